@@ -0,0 +1,128 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.rnott.mock.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rnott.mock.CaptureFilter;
+
+
+/**
+ * Measures the request thread cost of capturing a request, by capture mode and
+ * body size. Each request is passed through the capture filter to a handler that
+ * reads the request body and writes a response body of the same size, as text.
+ * <p>
+ * <code>baseline</code> runs the handler without the filter, so the difference
+ * is the cost of capturing. <code>capture</code> runs on a single thread and
+ * <code>captureShared</code> on every available processor. In <code>log</code>
+ * mode the log is written by a background thread; captures the writer cannot keep
+ * up with are dropped rather than blocking requests, so the results measure the
+ * request thread only.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class CaptureBenchmark {
+
+	@Param({ "ring", "log" })
+	String mode;
+
+	@Param({ "0", "1024", "65536" })
+	int bodySize;
+
+	private CaptureFilter filter;
+	private byte [] body;
+	private FilterChain handler;
+
+	@Setup
+	public void setup() throws ServletException {
+		body = SerializerBenchmark.body( bodySize, true );
+		handler = new FilterChain() {
+
+			@Override
+			public void doFilter( ServletRequest request, ServletResponse response ) throws IOException {
+				InputStream in = request.getInputStream();
+				byte [] buffer = new byte[ 4096 ];
+				while ( in.read( buffer ) >= 0 ) {}
+				((HttpServletResponse) response).setStatus( HttpServletResponse.SC_OK );
+				((HttpServletResponse) response).addHeader( "Content-Type", "application/json" );
+				response.getOutputStream().write( body );
+			}
+		};
+
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put( "captureMode", mode );
+		// large enough for every body size
+		parameters.put( "captureRingEntries", "256" );
+		parameters.put( "captureRingSlotSize", String.valueOf( 160 * 1024 ) );
+		parameters.put( "captureCleanup", "true" );
+		filter = new CaptureFilter();
+		FilterConfig config = Servlets.filterConfig( parameters );
+		filter.init( config );
+	}
+
+	@TearDown
+	public void tearDown() {
+		filter.destroy();
+	}
+
+	private ServletRequest request() {
+		return Servlets.request( "POST", "/items/42", SerializerBenchmark.HEADERS, SerializerBenchmark.PARAMETERS, body );
+	}
+
+	@Benchmark
+	public void baseline() throws IOException, ServletException {
+		handler.doFilter( request(), Servlets.response() );
+	}
+
+	@Benchmark
+	public void capture() throws IOException, ServletException {
+		filter.doFilter( request(), Servlets.response(), handler );
+	}
+
+	@Benchmark
+	@Threads( Threads.MAX )
+	public void captureShared() throws IOException, ServletException {
+		filter.doFilter( request(), Servlets.response(), handler );
+	}
+}
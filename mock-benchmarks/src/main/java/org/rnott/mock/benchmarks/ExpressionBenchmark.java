@@ -0,0 +1,117 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.rnott.mock.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rnott.mock.MockContext;
+import org.rnott.mock.Template;
+
+
+/**
+ * Measures the evaluation of response text containing expression language (EL)
+ * declarations, by body size and number of expressions. Expressions alternate
+ * between a named parameter and a method invocation taking that parameter.
+ * <p>
+ * <code>evaluate</code> compiles the text for every request, as
+ * {@link MockContext#evaluate(String)} does. <code>template</code> and
+ * <code>templateStream</code> evaluate text compiled once, as configured
+ * responses are.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class ExpressionBenchmark {
+
+	private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+	@Param({ "64", "1024", "16384" })
+	int bodySize;
+
+	@Param({ "0", "1", "16" })
+	int expressions;
+
+	private MockContext context;
+	private String text;
+	private Template template;
+	private ByteArrayOutputStream out;
+
+	@Setup
+	public void setup() {
+		// the context is private to the benchmark thread
+		context = MockContext.get();
+		context.getParameters().put( "id", "42" );
+		text = body( bodySize, expressions );
+		template = Template.compile( text );
+		out = new ByteArrayOutputStream( bodySize * 2 );
+	}
+
+	/*
+	 * Verbatim text of the requested size with the expressions spread evenly.
+	 */
+	static String body( int size, int expressions ) {
+		String [] el = { "${id}", "${string.toUpperCase(${id})}" };
+		StringBuilder sb = new StringBuilder( size + 32 * expressions );
+		int gap = size / ( expressions + 1 );
+		for ( int i = 0; i <= expressions; i++ ) {
+			for ( int n = 0; n < gap; n++ ) {
+				sb.append( (char) ( 'a' + n % 26 ) );
+			}
+			if ( i < expressions ) {
+				sb.append( el[ i % el.length ] );
+			}
+		}
+		while ( sb.length() < size ) {
+			sb.append( ' ' );
+		}
+		return sb.toString();
+	}
+
+	@Benchmark
+	public String evaluate() {
+		return context.evaluate( text );
+	}
+
+	@Benchmark
+	public String template() {
+		return template.evaluate( context );
+	}
+
+	@Benchmark
+	public int templateStream() throws IOException {
+		out.reset();
+		template.evaluate( context, out, UTF8 );
+		return out.size();
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.rnott.mock.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rnott.mock.IdGenerator;
+
+
+/**
+ * Measures the throughput of each {@link IdGenerator}, as used for the correlation
+ * id of every captured request, by generator.
+ * <p>
+ * <code>next</code> runs on a single thread, <code>nextPair</code> on two threads
+ * and <code>nextShared</code> on every available processor, all sharing one
+ * generator. A generator that does not contend scales close to linearly, so the
+ * combined throughput of the shared benchmarks is compared with the single thread.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class IdGeneratorBenchmark {
+
+	@Param({ "secure", "random", "time" })
+	String generator;
+
+	private IdGenerator ids;
+
+	@Setup
+	public void setup() {
+		ids = IdGenerator.create( generator );
+	}
+
+	@Benchmark
+	public String next() {
+		return ids.next();
+	}
+
+	@Benchmark
+	@Threads( 2 )
+	public String nextPair() {
+		return ids.next();
+	}
+
+	@Benchmark
+	@Threads( Threads.MAX )
+	public String nextShared() {
+		return ids.next();
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.rnott.mock.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rnott.mock.Endpoint;
+import org.rnott.mock.Response;
+import org.rnott.mock.handler.ResponseFactory;
+
+
+/**
+ * Measures selecting the response of an endpoint by response handler and number
+ * of configured responses. Rates are distributed evenly between the responses.
+ * <p>
+ * <code>select</code> runs on a single thread; <code>selectShared</code> selects
+ * responses of the same endpoint on every available processor, as concurrent
+ * requests for an endpoint do.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class ResponseSelectionBenchmark {
+
+	@Param({ "none", "sequential", "random", "rate" })
+	String handler;
+
+	@Param({ "2", "10" })
+	int responses;
+
+	private Endpoint endpoint;
+
+	@Setup
+	public void setup() {
+		List<Map<String, Object>> list = new ArrayList<Map<String, Object>>();
+		for ( int i = 0; i < responses; i++ ) {
+			Map<String, Object> response = new HashMap<String, Object>();
+			response.put( "status", 200 + i );
+			response.put( "rate", 100.0 / responses );
+			list.add( response );
+		}
+		Map<String, Object> attributes = new HashMap<String, Object>();
+		attributes.put( "method", "GET" );
+		attributes.put( "uri", "/items/{id}" );
+		attributes.put( "response", list );
+		if ( ! "none".equals( handler ) ) {
+			attributes.put( "handler", handler );
+		}
+		endpoint = new Endpoint( attributes );
+	}
+
+	@Benchmark
+	public Response select() {
+		return ResponseFactory.getResponse( endpoint );
+	}
+
+	@Benchmark
+	@Threads( Threads.MAX )
+	public Response selectShared() {
+		return ResponseFactory.getResponse( endpoint );
+	}
+}
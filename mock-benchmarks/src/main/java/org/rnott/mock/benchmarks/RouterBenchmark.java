@@ -0,0 +1,104 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.rnott.mock.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rnott.mock.Endpoint;
+import org.rnott.mock.Router;
+
+
+/**
+ * Measures selecting the endpoint for a request, as done by the mock servlet for
+ * every request, by the number of configured endpoints. Half of the endpoints
+ * declare two path variables and the other half one. A fixed number of
+ * endpoints declare a regular expression and are matched by URI template.
+ * <p>
+ * <code>matchFirst</code> and <code>matchLast</code> request the first and last
+ * configured endpoint; <code>matchMissing</code> a path no endpoint matches.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class RouterBenchmark {
+
+	private static final int PATTERNS = 4;
+
+	@Param({ "10", "100", "1000" })
+	int endpoints;
+
+	private Router router;
+	private String last;
+
+	static Endpoint endpoint( String method, String uri, List<Map<String, Object>> responses ) {
+		Map<String, Object> attributes = new HashMap<String, Object>();
+		attributes.put( "method", method );
+		attributes.put( "uri", uri );
+		attributes.put( "response", responses );
+		return new Endpoint( attributes );
+	}
+
+	@Setup
+	public void setup() {
+		List<Map<String, Object>> responses = Collections.singletonList( (Map<String, Object>) new HashMap<String, Object>() );
+		List<Endpoint> list = new ArrayList<Endpoint>();
+		for ( int i = 0; i < PATTERNS; i++ ) {
+			list.add( endpoint( "GET", "/files" + i + "/{path: .*}", responses ) );
+		}
+		for ( int i = 0; i < endpoints - PATTERNS; i++ ) {
+			String uri = i % 2 == 0 ? "/service" + i + "/items/{id}" : "/service" + i + "/items/{id}/parts/{part}";
+			list.add( endpoint( "GET", uri, responses ) );
+		}
+		router = new Router( list );
+		int n = endpoints - PATTERNS - 1;
+		last = n % 2 == 0 ? "/service" + n + "/items/42" : "/service" + n + "/items/42/parts/7";
+	}
+
+	@Benchmark
+	public Endpoint matchFirst() {
+		return router.match( "GET", "/files0/a/b/c", new HashMap<String, String>() );
+	}
+
+	@Benchmark
+	public Endpoint matchLast() {
+		return router.match( "GET", last, new HashMap<String, String>() );
+	}
+
+	@Benchmark
+	public Endpoint matchMissing() {
+		return router.match( "GET", "/missing/items/42", new HashMap<String, String>() );
+	}
+}
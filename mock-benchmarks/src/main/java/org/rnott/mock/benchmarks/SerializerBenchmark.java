@@ -0,0 +1,123 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.rnott.mock.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rnott.mock.Serializer;
+
+
+/**
+ * Measures serializing a request and its response, as every captured request
+ * is, by body size. Text bodies are written as JSON strings, binary bodies are
+ * Base64 encoded. The request carries eight headers and two parameters, the
+ * response two headers; both carry a body of the same size.
+ * <p>
+ * <code>request</code> serializes the request only, <code>exchange</code>
+ * the request and its response.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class SerializerBenchmark {
+
+	static final String [][] HEADERS = {
+		{ "Host", "localhost:8080" },
+		{ "User-Agent", "benchmark/1.0" },
+		{ "Accept", "application/json" },
+		{ "Accept-Encoding", "gzip, deflate" },
+		{ "Content-Type", "application/json" },
+		{ "Connection", "keep-alive" },
+		{ "X-Client-Id", "client-42" },
+		{ "X-Trace-Id", "4bf92f3577b34da6a3ce929d0e0e4736" },
+	};
+
+	static final String [][] PARAMETERS = {
+		{ "q", "items" },
+		{ "page", "2" },
+	};
+
+	@Param({ "0", "1024", "65536" })
+	int bodySize;
+
+	@Param({ "text", "binary" })
+	String content;
+
+	private HttpServletRequest request;
+	private HttpServletResponse response;
+	private byte [] body;
+	private ByteArrayOutputStream out;
+
+	/*
+	 * A body of the requested size, either ASCII text or random bytes.
+	 */
+	static byte [] body( int size, boolean text ) {
+		byte [] b = new byte[ size ];
+		if ( text ) {
+			byte [] s = ExpressionBenchmark.body( size, 0 ).getBytes( Charset.forName( "UTF-8" ) );
+			System.arraycopy( s, 0, b, 0, size );
+		} else {
+			new Random( 42 ).nextBytes( b );
+		}
+		return b;
+	}
+
+	@Setup
+	public void setup() {
+		body = body( bodySize, "text".equals( content ) );
+		request = Servlets.request( "POST", "/items/42", HEADERS, PARAMETERS, body );
+		response = Servlets.response();
+		response.setStatus( HttpServletResponse.SC_CREATED );
+		response.addHeader( "Content-Type", "application/json" );
+		response.addHeader( "X-Request-Correlation-Id", "0b7e6a2e-7c3a-4d47-9f0c-8d1f2e3a4b5c" );
+		out = new ByteArrayOutputStream( 4096 + bodySize * 3 );
+	}
+
+	@Benchmark
+	public int request() throws IOException {
+		out.reset();
+		Serializer.write( request, body, out );
+		return out.size();
+	}
+
+	@Benchmark
+	public int exchange() throws IOException {
+		out.reset();
+		Serializer.write( request, body, response, body, null, out );
+		return out.size();
+	}
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.rnott.mock.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.FilterConfig;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+
+/**
+ * Minimal servlet API objects for driving mock components outside of a container.
+ * Only the methods the mock relies on are implemented; all other methods return
+ * <code>null</code>, <code>0</code> or <code>false</code> as appropriate.
+ */
+final class Servlets {
+
+	private Servlets() {}
+
+	/*
+	 * Answers the methods a handler does not implement.
+	 */
+	private static Object defaultValue( Class<?> type ) {
+		if ( type == boolean.class ) {
+			return false;
+		} else if ( type == int.class ) {
+			return 0;
+		} else if ( type == long.class ) {
+			return 0L;
+		}
+		return null;
+	}
+
+	@SuppressWarnings( "unchecked" )
+	private static <T> T proxy( Class<T> type, InvocationHandler handler ) {
+		return (T) Proxy.newProxyInstance( Servlets.class.getClassLoader(), new Class<?> [] { type }, handler );
+	}
+
+	/**
+	 * Create a request.
+	 * <p>
+	 * @param method the HTTP method.
+	 * @param uri the request URI.
+	 * @param headers the request headers, as name and value pairs.
+	 * @param parameters the request parameters, as name and value pairs.
+	 * @param body the request body.
+	 * @return the request.
+	 */
+	static HttpServletRequest request( final String method, final String uri,
+			String [][] headers, String [][] parameters, final byte [] body ) {
+		final Map<String, List<String>> h = toMap( headers );
+		final Map<String, List<String>> p = toMap( parameters );
+		final Map<String, Object> attributes = new HashMap<String, Object>();
+		return proxy( HttpServletRequest.class, new InvocationHandler() {
+
+			@Override
+			public Object invoke( Object proxy, Method m, Object [] args ) throws Throwable {
+				String name = m.getName();
+				if ( "getMethod".equals( name ) ) {
+					return method;
+				} else if ( "getRequestURI".equals( name ) ) {
+					return uri;
+				} else if ( "getHeaderNames".equals( name ) ) {
+					return Collections.enumeration( h.keySet() );
+				} else if ( "getHeaders".equals( name ) ) {
+					return Collections.enumeration( get( h, args[0] ) );
+				} else if ( "getHeader".equals( name ) ) {
+					return first( get( h, args[0] ) );
+				} else if ( "getParameterNames".equals( name ) ) {
+					return Collections.enumeration( p.keySet() );
+				} else if ( "getParameterValues".equals( name ) ) {
+					List<String> values = get( p, args[0] );
+					return values.isEmpty() ? null : values.toArray( new String[ values.size() ] );
+				} else if ( "getParameter".equals( name ) ) {
+					return first( get( p, args[0] ) );
+				} else if ( "getContentLength".equals( name ) ) {
+					return body.length;
+				} else if ( "getContentLengthLong".equals( name ) ) {
+					return (long) body.length;
+				} else if ( "getInputStream".equals( name ) ) {
+					return new InputStream( body );
+				} else if ( "getAttribute".equals( name ) ) {
+					return attributes.get( args[0] );
+				} else if ( "setAttribute".equals( name ) ) {
+					attributes.put( (String) args[0], args[1] );
+					return null;
+				} else if ( "removeAttribute".equals( name ) ) {
+					attributes.remove( args[0] );
+					return null;
+				}
+				return defaultValue( m.getReturnType() );
+			}
+		});
+	}
+
+	/**
+	 * Create a response that discards its body.
+	 * <p>
+	 * @return the response.
+	 */
+	static HttpServletResponse response() {
+		final Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+		final int [] status = { HttpServletResponse.SC_OK };
+		return proxy( HttpServletResponse.class, new InvocationHandler() {
+
+			@Override
+			public Object invoke( Object proxy, Method m, Object [] args ) throws Throwable {
+				String name = m.getName();
+				if ( "setStatus".equals( name ) ) {
+					status[0] = (Integer) args[0];
+					return null;
+				} else if ( "getStatus".equals( name ) ) {
+					return status[0];
+				} else if ( "setHeader".equals( name ) ) {
+					headers.remove( args[0] );
+					add( headers, (String) args[0], (String) args[1] );
+					return null;
+				} else if ( "addHeader".equals( name ) ) {
+					add( headers, (String) args[0], (String) args[1] );
+					return null;
+				} else if ( "getHeader".equals( name ) ) {
+					return first( get( headers, args[0] ) );
+				} else if ( "getHeaders".equals( name ) ) {
+					return get( headers, args[0] );
+				} else if ( "getHeaderNames".equals( name ) ) {
+					return headers.keySet();
+				} else if ( "getCharacterEncoding".equals( name ) ) {
+					return "UTF-8";
+				} else if ( "getOutputStream".equals( name ) ) {
+					return new OutputStream();
+				}
+				return defaultValue( m.getReturnType() );
+			}
+		});
+	}
+
+	/**
+	 * Create a filter configuration, along with its servlet context.
+	 * <p>
+	 * @param parameters the filter initialization parameters.
+	 * @return the filter configuration.
+	 */
+	static FilterConfig filterConfig( final Map<String, String> parameters ) {
+		final Map<String, Object> attributes = new HashMap<String, Object>();
+		final ServletContext context = proxy( ServletContext.class, new InvocationHandler() {
+
+			@Override
+			public Object invoke( Object proxy, Method m, Object [] args ) throws Throwable {
+				String name = m.getName();
+				if ( "getAttribute".equals( name ) ) {
+					return attributes.get( args[0] );
+				} else if ( "setAttribute".equals( name ) ) {
+					attributes.put( (String) args[0], args[1] );
+					return null;
+				} else if ( "removeAttribute".equals( name ) ) {
+					attributes.remove( args[0] );
+					return null;
+				} else if ( "log".equals( name ) ) {
+					// discarded, so that benchmarks do not time console output
+					return null;
+				}
+				return defaultValue( m.getReturnType() );
+			}
+		});
+		return proxy( FilterConfig.class, new InvocationHandler() {
+
+			@Override
+			public Object invoke( Object proxy, Method m, Object [] args ) throws Throwable {
+				String name = m.getName();
+				if ( "getServletContext".equals( name ) ) {
+					return context;
+				} else if ( "getInitParameter".equals( name ) ) {
+					return parameters.get( args[0] );
+				} else if ( "getInitParameterNames".equals( name ) ) {
+					return Collections.enumeration( parameters.keySet() );
+				}
+				return defaultValue( m.getReturnType() );
+			}
+		});
+	}
+
+	private static Map<String, List<String>> toMap( String [][] pairs ) {
+		Map<String, List<String>> map = new LinkedHashMap<String, List<String>>();
+		for ( String [] pair : pairs ) {
+			add( map, pair[0], pair[1] );
+		}
+		return map;
+	}
+
+	private static void add( Map<String, List<String>> map, String name, String value ) {
+		List<String> values = map.get( name );
+		if ( values == null ) {
+			values = new ArrayList<String>();
+			map.put( name, values );
+		}
+		values.add( value );
+	}
+
+	private static List<String> get( Map<String, List<String>> map, Object name ) {
+		List<String> values = map.get( name );
+		return values == null ? Collections.<String>emptyList() : values;
+	}
+
+	private static String first( List<String> values ) {
+		return values.isEmpty() ? null : values.get( 0 );
+	}
+
+	/*
+	 * Request body, read from memory.
+	 */
+	private static final class InputStream extends ServletInputStream {
+
+		private final ByteArrayInputStream in;
+
+		InputStream( byte [] body ) {
+			in = new ByteArrayInputStream( body );
+		}
+
+		@Override
+		public int read() throws IOException {
+			return in.read();
+		}
+
+		@Override
+		public int read( byte [] b, int off, int len ) throws IOException {
+			return in.read( b, off, len );
+		}
+
+		@Override
+		public boolean isFinished() {
+			return in.available() == 0;
+		}
+
+		@Override
+		public boolean isReady() {
+			return true;
+		}
+
+		@Override
+		public void setReadListener( ReadListener listener ) {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/*
+	 * Response body, discarded.
+	 */
+	private static final class OutputStream extends ServletOutputStream {
+
+		@Override
+		public void write( int b ) throws IOException {}
+
+		@Override
+		public void write( byte [] b, int off, int len ) throws IOException {}
+
+		@Override
+		public boolean isReady() {
+			return true;
+		}
+
+		@Override
+		public void setWriteListener( WriteListener listener ) {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
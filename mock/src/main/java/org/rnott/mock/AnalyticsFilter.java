@@ -17,60 +17,165 @@
 package org.rnott.mock;
 
 import java.io.IOException;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
+import javax.servlet.ServletRequestWrapper;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.server.Request;
+import org.rnott.mock.metrics.Histogram;
+import org.rnott.mock.metrics.MetricsRegistry;
+import org.rnott.mock.metrics.TimeSeries;
 
 /**
- * HTTP filter to collect statistics about service requests.
+ * HTTP filter to collect statistics about service requests. The time taken to
+ * service each request is recorded, using {@link System#nanoTime()}, in the latency
+ * histogram of the endpoint and response status, along with the time spent in each
+ * phase of servicing it as reported by the {@link RequestTimer}. The histograms are
+ * published in the servlet context as a {@link MetricsRegistry} and served by
+ * {@link MetricsServlet}. The registry also counts requests in progress and the
+ * bytes transferred, as reported by the container. A request that fails with an
+ * exception is recorded with status 500.
  */
 public class AnalyticsFilter implements Filter {
 
+	/*
+	 * Request attribute holding the time request processing started.
+	 */
+	private static final String START_TIME = AnalyticsFilter.class.getName() + ".start";
+
 	private ServletContext context;
+	private MetricsRegistry registry;
 
 	@Override
 	public void init( FilterConfig filterConfig ) throws ServletException {
 		context = filterConfig.getServletContext();
+		int seconds = TimeSeries.DEFAULT_SECONDS;
+		String s = filterConfig.getInitParameter( "metricsHistory" );
+		if ( s != null && s.length() > 0 ) {
+			seconds = Integer.parseInt( s );
+		}
+		registry = new MetricsRegistry( seconds );
+		context.setAttribute( MetricsRegistry.ATTRIBUTE, registry );
 	}
 
 	@Override
 	public void destroy() {
+		long count = 0;
+		long elapsed = 0;
+		for ( MetricsRegistry.Series s : registry.snapshot() ) {
+			Histogram.Snapshot h = s.getSnapshot();
+			count += h.getCount();
+			elapsed += h.getSum();
+		}
+		context.log( "Serviced " + count + " requests in " + TimeUnit.NANOSECONDS.toMillis( elapsed ) + "ms" );
+		context.removeAttribute( MetricsRegistry.ATTRIBUTE );
+	}
+
+	@Override
+	public void doFilter( final ServletRequest request, ServletResponse response, FilterChain chain ) throws IOException, ServletException {
+		// skip calls to retrieve captured requests and metrics
+		String uri = ((HttpServletRequest) request ).getRequestURI();
+		if ( CaptureFilter.isCaptureUri( uri ) || MetricsServlet.isMetricsUri( uri ) ) {
+			chain.doFilter( request, response );
+			return;
+		}
+
+		final long start = System.nanoTime();
+		request.setAttribute( START_TIME, start );
+		registry.begin();
+		final Request base = getBaseRequest( request );
+		// the servlet records the matched endpoint and the time spent in each phase
+		RequestTimer t = RequestTimer.get( request );
+		final RequestTimer timer = t != null ? t : new RequestTimer().attach( request );
+		boolean serviced = false;
+		try {
+			chain.doFilter( request, response );
+			serviced = true;
+		} finally {
+			if ( ! serviced ) {
+				// the container responds to the failure with a server error, every
+				// request counted as begun is recorded
+				registry.record( timer, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, System.nanoTime() - start );
+				transferred( request, base );
+			}
+		}
+		if ( request.isAsyncStarted() ) {
+			// response is completed later, by another thread
+			request.getAsyncContext().addListener( new AsyncListener() {
+
+				@Override
+				public void onComplete( AsyncEvent event ) throws IOException {
+					int status = ((HttpServletResponse) event.getSuppliedResponse()).getStatus();
+					registry.record( timer, status, System.nanoTime() - start );
+					transferred( request, base );
+				}
+
+				@Override
+				public void onTimeout( AsyncEvent event ) throws IOException {}
+
+				@Override
+				public void onError( AsyncEvent event ) throws IOException {}
+
+				@Override
+				public void onStartAsync( AsyncEvent event ) throws IOException {}
+			});
+			return;
+		}
+		long nanos = System.nanoTime() - start;
+		HttpServletResponse res = (HttpServletResponse) response;
+		registry.record( timer, res.getStatus(), nanos );
+		transferred( request, base );
+		res.addHeader( "X-Elapsed-Time", String.valueOf( TimeUnit.NANOSECONDS.toMillis( nanos ) ) + "ms" );
 	}
 
 	/*
-	 * Request count.
+	 * Count the body bytes received and sent. The bytes sent are only known when
+	 * running in Jetty, and are counted after any compression.
 	 */
-	private AtomicLong count = new AtomicLong();
+	private void transferred( ServletRequest request, Request base ) {
+		long in = request.getContentLengthLong();
+		long out = 0;
+		if ( base != null ) {
+			if ( in < 0 ) {
+				// no declared length, count what was read
+				in = base.getHttpInput().getContentRead();
+			}
+			out = base.getResponse().getContentCount();
+		}
+		registry.transferred( Math.max( 0, in ), out );
+	}
 
 	/*
-	 * Elapsed time accumulator.
+	 * Find the container request underneath any request wrappers.
 	 */
-	private AtomicLong elapsed = new AtomicLong();
-
-	@Override
-	public void doFilter( ServletRequest request, ServletResponse response, FilterChain chain ) throws IOException, ServletException {
-		// skip calls to retrieve captured requests
-		if ( CaptureFilter.CAPTURE_URI.equals( ((HttpServletRequest) request ).getRequestURI() ) ) {
-			chain.doFilter( request, response );
-			return;
+	private static Request getBaseRequest( ServletRequest request ) {
+		while ( request instanceof ServletRequestWrapper ) {
+			request = ((ServletRequestWrapper) request).getRequest();
 		}
+		return request instanceof Request ? (Request) request : null;
+	}
 
-		// TODO: other analytics?
-		long start = System.currentTimeMillis();
-		chain.doFilter( request, response );
-		long ms = System.currentTimeMillis() - start;
-		long currentCount = count.incrementAndGet();
-		long currentElapsed = elapsed.addAndGet( ms );
-		((HttpServletResponse) response).addHeader( "X-Elapsed-Time", String.valueOf( ms ) + "ms" );
-		if ( currentCount % 10000 == 0 ) {
-			context.log( "Serviced " + currentCount + " requests in " + currentElapsed + "ms" );
+	/**
+	 * Add the elapsed time header to a response that is completed asynchronously.
+	 * This must be called before the response is committed.
+	 * <p>
+	 * @param request the request being serviced.
+	 * @param response the response to add the header to.
+	 */
+	public static void addElapsedTime( ServletRequest request, HttpServletResponse response ) {
+		Object start = request.getAttribute( START_TIME );
+		if ( start instanceof Long ) {
+			long ms = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - (Long) start );
+			response.addHeader( "X-Elapsed-Time", String.valueOf( ms ) + "ms" );
 		}
 	}
 }
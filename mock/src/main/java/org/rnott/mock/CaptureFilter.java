@@ -20,10 +20,12 @@ package org.rnott.mock;
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.UUID;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -31,73 +33,250 @@ import javax.servlet.ReadListener;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
+import javax.servlet.http.HttpServletResponseWrapper;
+import org.rnott.mock.capture.CaptureBuffer;
+import org.rnott.mock.capture.CaptureLog;
+import org.rnott.mock.capture.CapturePolicy;
+import org.rnott.mock.capture.CaptureRing;
+import org.rnott.mock.capture.CaptureStore;
+import org.rnott.mock.capture.CaptureTail;
+import org.rnott.mock.capture.Record;
 
 
 public class CaptureFilter implements Filter {
 
 	public static final String CAPTURE_URI = "/requests";
 
+	/**
+	 * Location of the capture store statistics.
+	 */
+	public static final String STATS_URI = CAPTURE_URI + "/stats";
+
+	/**
+	 * Location of the live capture stream.
+	 */
+	public static final String TAIL_URI = CAPTURE_URI + "/tail";
+
+	/**
+	 * Capture mode writing every request to a log in the working directory.
+	 */
+	public static final String MODE_LOG = "log";
+
+	/**
+	 * Capture mode retaining only the most recent requests, in memory.
+	 */
+	public static final String MODE_RING = "ring";
+
 	private ServletContext context;
-	private ObjectMapper mapper;
+	private CaptureStore store;
+	private CaptureTail tail;
+	private int maxBodySize = -1;
+	private int bufferSize = CaptureBuffer.DEFAULT_MEMORY_LIMIT;
 	private boolean debug = false;
+	private boolean cleanup = false;
+
+	/**
+	 * Determine if a request is for captured data rather than a mock endpoint.
+	 * Such requests are not captured themselves.
+	 * <p>
+	 * @param uri the request URI.
+	 * @return <code>true</code> if the URI addresses the captured data.
+	 */
+	public static boolean isCaptureUri( String uri ) {
+		return CAPTURE_URI.equals( uri ) || STATS_URI.equals( uri ) || TAIL_URI.equals( uri );
+	}
 
 	@Override
 	public void destroy() {
-		// TODO: delete files?
+		if ( tail != null ) {
+			context.removeAttribute( CaptureTail.ATTRIBUTE );
+			tail = null;
+		}
+		if ( store != null ) {
+			context.removeAttribute( CaptureStore.ATTRIBUTE );
+			if ( cleanup && store instanceof CaptureLog ) {
+				((CaptureLog) store).delete();
+				// removed only when nothing else remains in it
+				Configuration.getWorkDirectory().delete();
+			} else {
+				store.close();
+			}
+			if ( debug ) {
+				context.log( "Captured " + store.getBytesWritten() + " bytes, dropped "
+					+ store.getDropped() + " and evicted " + store.getEvicted() + " requests" );
+			}
+			store = null;
+		}
 	}
 
 	@Override
 	public void doFilter( ServletRequest httpRequest, ServletResponse httpResponse, FilterChain filters ) throws IOException, ServletException {
-		// skip calls to retrieve captured requests
-		if ( CAPTURE_URI.equals( ((HttpServletRequest) httpRequest ).getRequestURI() ) ) {
+		// skip calls to retrieve captured requests and metrics
+		String uri = ((HttpServletRequest) httpRequest ).getRequestURI();
+		if ( isCaptureUri( uri ) || MetricsServlet.isMetricsUri( uri ) ) {
+			filters.doFilter( httpRequest, httpResponse );
+			return;
+		}
+
+		// apply the capture policy of the endpoint
+		CapturePolicy policy = getPolicy( (HttpServletRequest) httpRequest );
+		if ( ! policy.sample() ) {
 			filters.doFilter( httpRequest, httpResponse );
 			return;
 		}
 
 		// add correlation id to response
-		String uuid = UUID.randomUUID().toString();
+		String uuid = IdGenerator.getDefault().next();
 		((HttpServletResponse) httpResponse).addHeader( "X-Request-Correlation-Id", uuid );
 
-		// capture the request
-		RequestWrapper request = new RequestWrapper( (HttpServletRequest) httpRequest );
+		// capture the request and response
+		int limit = policy.getMaxBodySize() >= 0 ? policy.getMaxBodySize() : maxBodySize;
+		File dir = Configuration.getWorkDirectory();
+		RequestWrapper request = new RequestWrapper( (HttpServletRequest) httpRequest, new CaptureBuffer( limit, bufferSize, dir ) );
+		ResponseWrapper response = new ResponseWrapper( (HttpServletResponse) httpResponse, new CaptureBuffer( limit, bufferSize, dir ) );
+		RequestTimer timer = new RequestTimer().attach( request );
+
+		boolean async = false;
+		try {
+			// process the request
+			filters.doFilter( request, response );
+
+			if ( request.isAsyncStarted() ) {
+				// the body may still be read, and the response written, by another thread
+				async = true;
+				final String id = uuid;
+				final RequestWrapper req = request;
+				final ResponseWrapper res = response;
+				final RequestTimer t = timer;
+				request.getAsyncContext().addListener( new AsyncListener() {
 
-		// process the request
-		filters.doFilter( request, httpResponse );
+					@Override
+					public void onComplete( AsyncEvent event ) throws IOException {
+						try {
+							capture( id, req, res, t );
+						} finally {
+							req.release();
+							res.release();
+						}
+					}
+
+					@Override
+					public void onTimeout( AsyncEvent event ) throws IOException {}
+
+					@Override
+					public void onError( AsyncEvent event ) throws IOException {}
+
+					@Override
+					public void onStartAsync( AsyncEvent event ) throws IOException {}
+				});
+				return;
+			}
 
-		// log the request
-        capture( uuid, request );
+			// log the request
+			response.flushWriter();
+			capture( uuid, request, response, timer );
+		} finally {
+			if ( ! async ) {
+				request.release();
+				response.release();
+			}
+		}
+	}
+
+	/*
+	 * Resolve the capture policy of the endpoint handling a request. Requests that
+	 * do not match an endpoint are always captured.
+	 */
+	private CapturePolicy getPolicy( HttpServletRequest request ) {
+		Router router = (Router) context.getAttribute( Router.ATTRIBUTE );
+		if ( router == null ) {
+			return CapturePolicy.ALWAYS;
+		}
+		// remembered for the servlet, which handles the same endpoint
+		Endpoint e = router.resolve( request );
+		return e == null ? CapturePolicy.ALWAYS : e.getCapturePolicy();
 	}
 
 	@Override
 	public void init( FilterConfig config ) throws ServletException {
 		context = config.getServletContext();
-
-		mapper = new ObjectMapper()
-			.configure( SerializationFeature.INDENT_OUTPUT, true );
 		try {
 			debug = Boolean.parseBoolean( config.getInitParameter( "debug" ) );
 		} catch ( Throwable ignore ) {}
 
-		if ( debug ) {
-			context.log( "Using capture directory: " + Configuration.getWorkDirectory().getAbsolutePath() );
+		// unlimited unless configured
+		maxBodySize = getInitParameter( config, "captureMaxBodySize", -1 );
+		// larger bodies are spilled to disk while being captured
+		bufferSize = getInitParameter( config, "captureBufferSize", CaptureBuffer.DEFAULT_MEMORY_LIMIT );
+
+		String mode = config.getInitParameter( "captureMode" );
+		if ( MODE_RING.equalsIgnoreCase( mode ) ) {
+			// bounded, in memory
+			int entries = getInitParameter( config, "captureRingEntries", CaptureRing.DEFAULT_ENTRIES );
+			int slotSize = getInitParameter( config, "captureRingSlotSize", CaptureRing.DEFAULT_SLOT_SIZE );
+			store = new CaptureRing( entries, slotSize );
+			if ( debug ) {
+				context.log( "Capturing the last " + entries + " requests in memory" );
+			}
+		} else if ( mode == null || mode.length() == 0 || MODE_LOG.equalsIgnoreCase( mode ) ) {
+			// captures are written to the log by a background thread
+			int segmentSize = getInitParameter( config, "captureSegmentSize", CaptureLog.DEFAULT_SEGMENT_SIZE );
+			int queueSize = getInitParameter( config, "captureQueueSize", CaptureLog.DEFAULT_QUEUE_SIZE );
+			// unlimited unless configured
+			long retentionSize = getInitParameter( config, "captureRetentionSize", 0 ) * 1024L * 1024L;
+			long retentionTime = getInitParameter( config, "captureRetentionTime", 0 ) * 1000L;
+			cleanup = Boolean.parseBoolean( config.getInitParameter( "captureCleanup" ) );
+			store = new CaptureLog( Configuration.getWorkDirectory(), segmentSize, queueSize, retentionSize, retentionTime );
+			if ( debug ) {
+				context.log( "Using capture directory: " + Configuration.getWorkDirectory().getAbsolutePath() );
+			}
+		} else {
+			throw new ServletException( "Unsupported capture mode: " + mode );
 		}
+		context.setAttribute( CaptureStore.ATTRIBUTE, store );
+		tail = new CaptureTail();
+		context.setAttribute( CaptureTail.ATTRIBUTE, tail );
 	}
 
-	private void capture( String id, RequestWrapper request ) {
+	private static int getInitParameter( FilterConfig config, String name, int defaultValue ) {
+		String s = config.getInitParameter( name );
+		if ( s == null || s.length() == 0 ) {
+			return defaultValue;
+		}
+		int value = Integer.parseInt( s );
+		return value > 0 ? value : defaultValue;
+	}
+
+	private void capture( String id, RequestWrapper request, ResponseWrapper response, RequestTimer timer ) {
 		try {
-			File f = new File( Configuration.getWorkDirectory(), id + "-request.json" );
-			if ( debug ) {
-				context.log( "Created capture file: " + f.getAbsolutePath() );
+			timer.stop();
+			RequestEvents events = RequestEvents.getDefault();
+			long start = events.isEnabled() ? System.nanoTime() : 0;
+			CaptureBuffer body = request.getBuffer();
+			CaptureBuffer responseBody = response.getBuffer();
+			// bodies are streamed from their buffers, and grow by a third if base64 encoded
+			long estimate = 1024 + ( body.size() + responseBody.size() ) * 4 / 3;
+			RecordOutputStream out = new RecordOutputStream( (int) Math.min( estimate, Integer.MAX_VALUE - 8 ) );
+			Serializer.writeCapture( request, body, response, responseBody, timer, out );
+			// the record takes the serialized data without copying it
+			Record record = new Record( id, System.currentTimeMillis(),
+				request.getMethod(), request.getRequestURI(), response.getStatus(), out.buffer(), out.size() );
+			boolean stored = store.append( record );
+			if ( ! stored && debug ) {
+				context.log( "Capture store is full, dropped request: " + id );
 			}
-			FileOutputStream stream = new FileOutputStream( f );
-			mapper.writeValue( stream, Serializer.serialize( request, request.getContent() ) );
+			if ( start != 0 ) {
+				events.captureWritten( id, record.getUri(), record.getLength(), stored, System.nanoTime() - start );
+			}
+			// live followers see every capture, stored or not
+			tail.publish( record );
 
 		} catch ( Throwable t ) {
 			t.printStackTrace();
@@ -106,29 +285,51 @@ public class CaptureFilter implements Filter {
 
 	public static class RequestWrapper extends HttpServletRequestWrapper {
 
+		private final CaptureBuffer buffer;
 		private TeeInputStream stream;
 
 		public RequestWrapper( HttpServletRequest request ) {
+			this( request, new CaptureBuffer( -1, CaptureBuffer.DEFAULT_MEMORY_LIMIT, Configuration.getWorkDirectory() ) );
+		}
+
+		/**
+		 * Wrap a request, recording the body into the provided buffer.
+		 * <p>
+		 * @param request the request to wrap.
+		 * @param buffer receives the body as it is read.
+		 */
+		public RequestWrapper( HttpServletRequest request, CaptureBuffer buffer ) {
 			super( request );
+			this.buffer = buffer;
 		}
 
-		public byte [] getContent() {
+		public byte [] getContent() throws IOException {
 			if ( stream == null ) {
 				return new byte[0];
-			} else {
-				byte [] content = stream.baos.toByteArray();
-				if ( content.length == 1 && content[0] == -1 ) {
-					// empty body will be considered no body
-					return new byte[0];
-				}
-				return content;
 			}
+			return buffer.toByteArray();
+		}
+
+		/**
+		 * Get the buffer the body is recorded into.
+		 * <p>
+		 * @return the recorded body, empty if the body was not read.
+		 */
+		public CaptureBuffer getBuffer() {
+			return buffer;
+		}
+
+		/**
+		 * Release the recorded body.
+		 */
+		public void release() {
+			buffer.close();
 		}
 
 		@Override
 		public ServletInputStream getInputStream() throws IOException {
 			if ( stream == null ) {
-				stream = new TeeInputStream( super.getInputStream() );
+				stream = new TeeInputStream( super.getInputStream(), buffer );
 			}
 			return stream;
 		}
@@ -139,14 +340,154 @@ public class CaptureFilter implements Filter {
 		}
 	}
 
+	/**
+	 * Records the response body as it is written by the application.
+	 */
+	public static class ResponseWrapper extends HttpServletResponseWrapper {
+
+		private final CaptureBuffer buffer;
+		private TeeOutputStream stream;
+		private PrintWriter writer;
+
+		/**
+		 * Wrap a response, recording the body into the provided buffer.
+		 * <p>
+		 * @param response the response to wrap.
+		 * @param buffer receives the body as it is written.
+		 */
+		public ResponseWrapper( HttpServletResponse response, CaptureBuffer buffer ) {
+			super( response );
+			this.buffer = buffer;
+		}
+
+		public byte [] getContent() throws IOException {
+			if ( stream == null ) {
+				return new byte[0];
+			}
+			return buffer.toByteArray();
+		}
+
+		/**
+		 * Get the buffer the body is recorded into.
+		 * <p>
+		 * @return the recorded body, empty if the body was not written.
+		 */
+		public CaptureBuffer getBuffer() {
+			return buffer;
+		}
+
+		/**
+		 * Release the recorded body.
+		 */
+		public void release() {
+			buffer.close();
+		}
+
+		/*
+		 * Push text held by the writer through to the response.
+		 */
+		void flushWriter() {
+			if ( writer != null ) {
+				writer.flush();
+			}
+		}
+
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException {
+			if ( stream == null ) {
+				stream = new TeeOutputStream( super.getOutputStream(), buffer );
+			}
+			return stream;
+		}
+
+		@Override
+		public PrintWriter getWriter() throws IOException {
+			if ( writer == null ) {
+				writer = new PrintWriter( new OutputStreamWriter( getOutputStream(), getCharacterEncoding() ) );
+			}
+			return writer;
+		}
+
+		@Override
+		public void flushBuffer() throws IOException {
+			flushWriter();
+			super.flushBuffer();
+		}
+	}
+
+	/*
+	 * Holds a serialized capture, giving up its buffer rather than a copy.
+	 */
+	private static final class RecordOutputStream extends ByteArrayOutputStream {
+
+		RecordOutputStream( int size ) {
+			super( size );
+		}
+
+		byte [] buffer() {
+			return buf;
+		}
+	}
+
+	/*
+	 * Records the body as it is written by the application, in blocking or
+	 * non-blocking (WriteListener) mode.
+	 */
+	private static class TeeOutputStream extends ServletOutputStream {
+
+		private final ServletOutputStream sink;
+		private final CaptureBuffer buffer;
+
+		private TeeOutputStream( ServletOutputStream sink, CaptureBuffer buffer ) {
+			this.sink = sink;
+			this.buffer = buffer;
+		}
+
+		@Override
+		public void write( int b ) throws IOException {
+			sink.write( b );
+			buffer.write( b );
+		}
+
+		@Override
+		public void write( byte [] b, int off, int len ) throws IOException {
+			sink.write( b, off, len );
+			buffer.write( b, off, len );
+		}
+
+		@Override
+		public void flush() throws IOException {
+			sink.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			sink.close();
+		}
+
+		@Override
+		public boolean isReady() {
+			return sink.isReady();
+		}
+
+		@Override
+		public void setWriteListener( WriteListener writeListener ) {
+			sink.setWriteListener( writeListener );
+		}
+	}
+
+	/*
+	 * Records the body as it is read by the application, in blocking or
+	 * non-blocking (ReadListener) mode.
+	 */
 	private static class TeeInputStream extends ServletInputStream {
 
 		private final ServletInputStream sink;
-		private final ByteArrayOutputStream baos;
+		private final CaptureBuffer buffer;
 
-		private TeeInputStream( ServletInputStream sink ) {
+		private TeeInputStream( ServletInputStream sink, CaptureBuffer buffer ) {
 			this.sink = sink;
-			baos = new ByteArrayOutputStream();
+			this.buffer = buffer;
 		}
 
 		@Override
@@ -154,27 +495,44 @@ public class CaptureFilter implements Filter {
 			int c = sink.read();
 			// don't record EOF
 			if ( c >= 0 ) {
-				baos.write( c );
+				buffer.write( c );
 			}
 			return c;
 		}
 
+		@Override
+		public int read( byte [] b, int off, int len ) throws IOException {
+			int n = sink.read( b, off, len );
+			if ( n > 0 ) {
+				buffer.write( b, off, n );
+			}
+			return n;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return sink.available();
+		}
+
+		@Override
+		public void close() throws IOException {
+			sink.close();
+		}
+
 		@Override
 		public boolean isFinished() {
-			// TODO Auto-generated method stub
-			return false;
+			return sink.isFinished();
 		}
 
 		@Override
 		public boolean isReady() {
-			// TODO Auto-generated method stub
-			return false;
+			return sink.isReady();
 		}
 
 		@Override
 		public void setReadListener( ReadListener readListener ) {
-			// TODO Auto-generated method stub
-			
+			// data is recorded as the listener reads it through this stream
+			sink.setReadListener( readListener );
 		}
 	}
 }
@@ -17,77 +17,397 @@
 package org.rnott.mock;
 
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import org.rnott.mock.capture.CaptureQuery;
+import org.rnott.mock.capture.CaptureStore;
+import org.rnott.mock.capture.CaptureStore.Page;
+import org.rnott.mock.capture.CaptureTail;
+import org.rnott.mock.capture.Record;
 
 
 /**
- * 
- * TODO: document CaptureServlet
- *
+ * Serves captured requests as a JSON array, in the order they were captured.
+ * The following optional parameters select which captures are returned:
+ * <ul>
+ * <li><code>correlation-id</code>: one or more comma separated correlation ids,
+ * the parameter may be repeated</li>
+ * <li><code>method</code>: the HTTP method</li>
+ * <li><code>uri</code>: the request URI, or a URI prefix when ending with <code>*</code></li>
+ * <li><code>status</code>: the response status</li>
+ * <li><code>from</code>, <code>to</code>: the capture time range in epoch milliseconds</li>
+ * <li><code>limit</code>: the maximum number of captures to return</li>
+ * <li><code>after</code>: continue from a previous page</li>
+ * </ul>
+ * When more captures are available than the limit allows, the value to pass as
+ * <code>after</code> for the next page is returned in the <code>X-Capture-Next</code>
+ * response header.
+ * <p>
+ * Statistics of the capture store are served as a JSON object from
+ * {@link CaptureFilter#STATS_URI}.
+ * <p>
+ * Captures taken from now on are streamed from {@link CaptureFilter#TAIL_URI},
+ * selected by the same parameters, as newline delimited JSON or, when the client
+ * accepts <code>text/event-stream</code> or requests <code>format=sse</code>, as
+ * server-sent events. The response is written with non-blocking I/O and holds no
+ * request thread. A client that cannot keep up misses captures rather than
+ * slowing down the requests being captured.
  */
 public class CaptureServlet extends HttpServlet {
 
 	private static final long serialVersionUID = 5027400758317704816L;
 
+	/**
+	 * Response header holding the position to continue a paginated query from.
+	 */
+	public static final String NEXT_HEADER = "X-Capture-Next";
+
+	// maximum time to wait for queued captures to be written
+	private static final long FLUSH_TIMEOUT = 1000;
+
+	// captures waiting to be streamed to a single client
+	private static final int TAIL_BACKLOG = 1000;
+
+	// interval between server-sent event comments keeping idle streams open
+	private static final long HEARTBEAT_INTERVAL = 15000;
+
+	private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+	private ScheduledExecutorService heartbeat;
+
+	@Override
+	public void init() throws ServletException {
+		heartbeat = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+
+			@Override
+			public Thread newThread( Runnable r ) {
+				Thread t = new Thread( r, "capture-tail" );
+				t.setDaemon( true );
+				return t;
+			}
+		});
+	}
+
+	@Override
+	public void destroy() {
+		if ( heartbeat != null ) {
+			heartbeat.shutdownNow();
+			heartbeat = null;
+		}
+	}
+
 	@Override
 	protected void service( HttpServletRequest request, HttpServletResponse response ) throws ServletException, IOException {
+		CaptureStore store = (CaptureStore) getServletContext().getAttribute( CaptureStore.ATTRIBUTE );
+		if ( store == null ) {
+			response.sendError( HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Request capture is not enabled" );
+			return;
+		}
+
+		if ( CaptureFilter.STATS_URI.equals( request.getRequestURI() ) ) {
+			writeStats( store, response );
+			return;
+		}
+
+		CaptureQuery query;
+		try {
+			query = getQuery( request );
+		} catch ( RuntimeException e ) {
+			response.sendError( HttpServletResponse.SC_BAD_REQUEST, "Invalid capture query: " + e.getMessage() );
+			return;
+		}
+
+		if ( CaptureFilter.TAIL_URI.equals( request.getRequestURI() ) ) {
+			tail( query, request, response );
+			return;
+		}
+
+		try {
+			// include requests completed before this one
+			store.flush( FLUSH_TIMEOUT );
+		} catch ( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+		}
+
+		Page page = store.query( query );
 		response.setContentType( "application/json" );
-		File dir = Configuration.getWorkDirectory();
-		OutputStream out = response.getOutputStream();
-
-		// all or some
-		int count = 0;
-		out.write( "[".getBytes() );
-		String [] ids = request.getParameterValues( "correlation-id" );
-		if ( ids == null || ids.length == 0 ) {
-			// all
-			for ( File f : dir.listFiles() ) {
-				if ( f.getName().endsWith( "-request.json" ) ) {
-					// one of ours
-					write( out, f, count );
-					count++;
+		response.setStatus( HttpServletResponse.SC_OK );
+		if ( page.getNext() >= 0 ) {
+			response.setHeader( NEXT_HEADER, String.valueOf( page.getNext() ) );
+		}
+
+		// stream the selected records
+		final OutputStream out = response.getOutputStream();
+		out.write( '[' );
+		page.read( new CaptureStore.Visitor() {
+			private int count = 0;
+			@Override
+			public boolean visit( Record record ) throws IOException {
+				if ( count++ > 0 ) {
+					out.write( ',' );
 				}
+				record.writeTo( out );
+				return true;
 			}
+		});
+		out.write( ']' );
+	}
+
+	/*
+	 * Stream captures as they are taken.
+	 */
+	private void tail( CaptureQuery query, HttpServletRequest request, HttpServletResponse response ) throws IOException {
+		CaptureTail tail = (CaptureTail) getServletContext().getAttribute( CaptureTail.ATTRIBUTE );
+		if ( tail == null || ! request.isAsyncSupported() ) {
+			response.sendError( HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Live capture is not available" );
+			return;
+		}
+		String accept = request.getHeader( "Accept" );
+		boolean sse = "sse".equalsIgnoreCase( request.getParameter( "format" ) )
+			|| ( request.getParameter( "format" ) == null && accept != null && accept.contains( "text/event-stream" ) );
+
+		response.setStatus( HttpServletResponse.SC_OK );
+		response.setContentType( sse ? "text/event-stream" : "application/x-ndjson" );
+		response.setCharacterEncoding( "UTF-8" );
+		response.setHeader( "Cache-Control", "no-cache" );
+		// let the client know the stream is open
+		response.flushBuffer();
+
+		AsyncContext async = request.startAsync();
+		// streams until the client goes away
+		async.setTimeout( 0 );
+		TailStream stream = new TailStream( async, sse );
+		async.addListener( stream );
+		stream.start( tail, query, heartbeat );
+	}
+
+	/*
+	 * Write the counters of the store.
+	 */
+	private static void writeStats( CaptureStore store, HttpServletResponse response ) throws IOException {
+		String stats = new StringBuilder( "{" )
+			.append( "\"size\":" ).append( store.size() )
+			.append( ",\"bytesWritten\":" ).append( store.getBytesWritten() )
+			.append( ",\"dropped\":" ).append( store.getDropped() )
+			.append( ",\"writeErrors\":" ).append( store.getWriteErrors() )
+			.append( ",\"evicted\":" ).append( store.getEvicted() )
+			.append( ",\"pending\":" ).append( store.getPending() )
+			.append( "}" ).toString();
+		response.setContentType( "application/json" );
+		response.setStatus( HttpServletResponse.SC_OK );
+		response.getOutputStream().write( stats.getBytes( "UTF-8" ) );
+	}
 
-		} else {
+	/*
+	 * Build a capture query from the request parameters.
+	 */
+	private static CaptureQuery getQuery( HttpServletRequest request ) {
+		CaptureQuery query = new CaptureQuery();
+		String [] values = request.getParameterValues( "correlation-id" );
+		if ( values != null ) {
 			// handle both id=1, id=2, ...
 			// and id=1,2...
-			for ( String s : ids ) {
-				String [] values = s.split( "," );
-				for ( String id : values ) {
-					File f = new File( dir, id.trim() + "-request.json" );
-					write( out, f, count );
-					count++;
+			Set<String> ids = new HashSet<String>();
+			for ( String s : values ) {
+				for ( String id : s.split( "," ) ) {
+					if ( id.trim().length() > 0 ) {
+						ids.add( id.trim() );
+					}
 				}
 			}
+			query.withIds( ids );
 		}
-		out.write( "]".getBytes() );
-
-		response.setStatus( HttpServletResponse.SC_OK );
+		query.withMethod( request.getParameter( "method" ) );
+		query.withUri( request.getParameter( "uri" ) );
+		String s = request.getParameter( "status" );
+		if ( s != null ) {
+			query.withStatus( Integer.parseInt( s ) );
+		}
+		long from = Long.MIN_VALUE;
+		long to = Long.MAX_VALUE;
+		s = request.getParameter( "from" );
+		if ( s != null ) {
+			from = Long.parseLong( s );
+		}
+		s = request.getParameter( "to" );
+		if ( s != null ) {
+			to = Long.parseLong( s );
+		}
+		query.withTimeRange( from, to );
+		s = request.getParameter( "after" );
+		if ( s != null ) {
+			query.withAfter( Long.parseLong( s ) );
+		}
+		s = request.getParameter( "limit" );
+		if ( s != null ) {
+			query.withLimit( Integer.parseInt( s ) );
+		}
+		return query;
 	}
 
-	private void write( OutputStream out, File source, int count ) throws IOException {
-		if ( count > 0 ) {
-			out.write( ",".getBytes() );
+	/*
+	 * Streams captures to one client. Captures are queued by request threads and
+	 * written by container threads, either when a capture arrives and the stream
+	 * is idle, or when the container reports the output is ready again.
+	 */
+	private static final class TailStream implements CaptureTail.Listener, WriteListener, AsyncListener, Runnable {
+
+		private static final byte [] HEARTBEAT = ":\n\n".getBytes( UTF8 );
+
+		private final AsyncContext async;
+		private final boolean sse;
+		private final BlockingQueue<byte []> queue = new ArrayBlockingQueue<byte []>( TAIL_BACKLOG );
+		// set while a container thread owns the output
+		private final AtomicBoolean scheduled = new AtomicBoolean( true );
+		private final AtomicBoolean closed = new AtomicBoolean();
+		private ServletOutputStream out;
+		private CaptureTail.Subscription subscription;
+		private ScheduledFuture<?> heartbeat;
+		private boolean unflushed;
+
+		TailStream( AsyncContext async, boolean sse ) {
+			this.async = async;
+			this.sse = sse;
 		}
-		InputStream in = new FileInputStream( source );
-		byte [] b = new byte[8192];
-		try {
-			int bytes = in.read( b );
-			while ( bytes > 0 ) {
-				out.write( b, 0, bytes );
-				bytes = in.read( b );
+
+		void start( CaptureTail tail, CaptureQuery query, ScheduledExecutorService scheduler ) throws IOException {
+			subscription = tail.subscribe( query, this );
+			if ( sse && scheduler != null ) {
+				heartbeat = scheduler.scheduleAtFixedRate( new Runnable() {
+					@Override
+					public void run() {
+						offer( HEARTBEAT );
+					}
+				}, HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS );
+			}
+			out = async.getResponse().getOutputStream();
+			// the container calls onWritePossible() once the output is ready
+			out.setWriteListener( this );
+		}
+
+		@Override
+		public void capture( Record record ) {
+			int length = record.getLength();
+			byte [] frame;
+			if ( sse ) {
+				byte [] head = ( "event: capture\nid: " + record.getId() + "\ndata: " ).getBytes( UTF8 );
+				frame = new byte[ head.length + length + 2 ];
+				System.arraycopy( head, 0, frame, 0, head.length );
+				record.copyTo( frame, head.length );
+				frame[ frame.length - 2 ] = '\n';
+			} else {
+				frame = new byte[ length + 1 ];
+				record.copyTo( frame, 0 );
+			}
+			frame[ frame.length - 1 ] = '\n';
+			offer( frame );
+		}
+
+		private void offer( byte [] frame ) {
+			// a slow client misses captures
+			if ( queue.offer( frame ) && ! closed.get() && scheduled.compareAndSet( false, true ) ) {
+				try {
+					async.start( this );
+				} catch ( IllegalStateException e ) {
+					close();
+				}
 			}
-		} finally {
-			in.close();
 		}
+
+		@Override
+		public void run() {
+			drain();
+		}
+
+		@Override
+		public void onWritePossible() throws IOException {
+			drain();
+		}
+
+		/*
+		 * Write queued frames for as long as the output accepts them without blocking.
+		 */
+		private void drain() {
+			try {
+				while ( ! closed.get() && out.isReady() ) {
+					byte [] frame = queue.poll();
+					if ( frame != null ) {
+						out.write( frame );
+						unflushed = true;
+					} else if ( unflushed ) {
+						unflushed = false;
+						out.flush();
+					} else {
+						scheduled.set( false );
+						// a capture may have been queued after the queue was found empty
+						if ( queue.isEmpty() || ! scheduled.compareAndSet( false, true ) ) {
+							return;
+						}
+					}
+				}
+				// otherwise the container calls onWritePossible() when ready
+			} catch ( IOException e ) {
+				// client went away
+				close();
+			}
+		}
+
+		@Override
+		public void onError( Throwable t ) {
+			close();
+		}
+
+		private void close() {
+			if ( closed.compareAndSet( false, true ) ) {
+				subscription.close();
+				if ( heartbeat != null ) {
+					heartbeat.cancel( false );
+				}
+				queue.clear();
+				try {
+					async.complete();
+				} catch ( IllegalStateException ignore ) {
+					// already completed
+				}
+			}
+		}
+
+		@Override
+		public void onComplete( AsyncEvent event ) throws IOException {
+			close();
+		}
+
+		@Override
+		public void onTimeout( AsyncEvent event ) throws IOException {
+			close();
+		}
+
+		@Override
+		public void onError( AsyncEvent event ) throws IOException {
+			close();
+		}
+
+		@Override
+		public void onStartAsync( AsyncEvent event ) throws IOException {}
 	}
 }
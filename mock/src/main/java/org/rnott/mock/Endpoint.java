@@ -20,6 +20,12 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import org.rnott.mock.capture.CapturePolicy;
+import org.rnott.mock.delay.Delay;
+import org.rnott.mock.delay.DelayFactory;
+import org.rnott.mock.delay.FixedDelay;
+import org.rnott.mock.handler.ResponseFactory;
+import org.rnott.mock.handler.ResponseHandler;
 import com.sun.jersey.api.uri.UriTemplate;
 
 public class Endpoint {
@@ -28,9 +34,13 @@ public class Endpoint {
 	
 	private final String method;
 	private final String handler; 
+	private final ResponseHandler responseHandler;
 	private final int status;
-	private final long delay;
+	private final Delay delay;
+	private final CapturePolicy capturePolicy;
 	private final List<Response> responses;
+	private final boolean constant;
+	private final Map<String, Object> attributes;
 
 	@SuppressWarnings( "unchecked" )
 	public Endpoint( Map<String, ?> attributes ) {
@@ -44,6 +54,7 @@ public class Endpoint {
 			throw new IllegalStateException( "Endpoint definition missing required 'response' attribute:" + attributes );
 		}
 
+		this.attributes = new HashMap<String, Object>( attributes );
 		Object obj = attributes.get( "uri" );
 		uriTemplate = new UriTemplate( (String) obj );
 		obj = attributes.get( "method" );
@@ -59,12 +70,8 @@ public class Endpoint {
 		} else {
 			status = 200;
 		}
-		if ( attributes.containsKey( "delay" ) ) {
-			obj = attributes.get( "delay" );
-			delay = (int) obj;
-		} else {
-			delay = 0;
-		}
+		delay = DelayFactory.create( attributes.get( "delay" ), FixedDelay.NONE );
+		capturePolicy = CapturePolicy.create( attributes.get( "capture" ), CapturePolicy.ALWAYS );
 
 		responses = new ArrayList<Response>();
 		List<Map<String, Object>> entries = (List<Map<String, Object>>) attributes.get( "response" );
@@ -73,8 +80,46 @@ public class Endpoint {
 			if ( attributes.containsKey( "headers" ) ) {
 				headers.putAll( (Map<String, String>) attributes.get( "headers" ) );
 			}
-			responses.add( new Response( status, headers, r ) );
+			responses.add( new Response( status, delay, headers, r ) );
+		}
+
+		boolean b = true;
+		for ( Response r : responses ) {
+			b &= r.isStatic();
 		}
+		constant = b;
+
+		// bind the handler once the endpoint is fully configured
+		try {
+			responseHandler = ResponseFactory.createHandler( handler );
+		} catch ( IllegalStateException e ) {
+			throw new IllegalStateException( method + " " + uriTemplate.getTemplate() + ": " + e.getMessage(), e );
+		}
+		if ( responseHandler != null ) {
+			responseHandler.initialize( this );
+		}
+	}
+
+	/**
+	 * Retrieve a configuration attribute by name.
+	 * <p>
+	 * @param attr the name of the attribute.
+	 * @return the attribute value or <code>null</code> if the attribute is undefined.
+	 */
+	public Object get( String attr ) {
+		return get( attr, Object.class );
+	}
+
+	/**
+	 * Retrieve a configuration attribute by name.
+	 * <p>
+	 * @param attr the name of the attribute.
+	 * @param type the Java type the value should be returned as.
+	 * @return the attribute value or <code>null</code> if the attribute is undefined.
+	 */
+	@SuppressWarnings( "unchecked" )
+	public <T> T get( String attr, Class<T> type ) {
+		return (T) attributes.get( attr );
 	}
 
     /**
@@ -106,6 +151,17 @@ public class Endpoint {
     	return handler;
     }
 	
+    /**
+     * Retrieve the handler bound to the endpoint, created when the endpoint
+     * was configured.
+     * <p>
+     * @return the response handler or <code>null</code> if no handler type
+     * has been assigned.
+     */
+    public ResponseHandler getResponseHandler() {
+    	return responseHandler;
+    }
+
     /**
      * Retrieve the current value of the status property.
      * <p>
@@ -119,13 +175,45 @@ public class Endpoint {
     /**
      * Retrieve the current value of the delay property.
      * <p>
-     * @return the current property value. The default value is 0.
+     * @return a delay sampled from the delay model, in milliseconds. The default
+     * value is 0.
+     * @deprecated the delay may vary by request, use {@link #getDelayModel()}.
      */
+    @Deprecated
     public long getDelay() {
+    	return delay.next();
+    }
+
+    /**
+     * Retrieve the delay model of the endpoint. This is the default delay of all
+     * responses returned by the endpoint.
+     * <p>
+     * @return the delay model. The default value is no delay.
+     */
+    public Delay getDelayModel() {
     	return delay;
     }
 
+    /**
+     * Retrieve the policy deciding which requests to the endpoint are captured.
+     * <p>
+     * @return the capture policy. The default policy captures every request.
+     */
+    public CapturePolicy getCapturePolicy() {
+    	return capturePolicy;
+    }
+
 	
+    /**
+     * Determine if none of the configured responses contain expressions. Request
+     * parameters are not needed to respond to a static endpoint.
+     * <p>
+     * @return <code>true</code> if all responses are static, <code>false</code> otherwise.
+     */
+    public boolean isStatic() {
+    	return constant;
+    }
+
     /**
      * Retrieve the current value of the responses property.
      * <p>
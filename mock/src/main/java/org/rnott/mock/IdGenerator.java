@@ -0,0 +1,177 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Generates the identifiers assigned to requests, such as correlation ids, and
+ * returned by the <code>${random.uuid()}</code> expression. Identifiers are
+ * formatted as UUIDs. The following generators are available:
+ * <ul>
+ * <li>random: random version 4 UUIDs drawn from a per-thread generator; the default
+ * <li>time: time ordered version 7 UUIDs, built from the current time, a per-thread
+ * prefix and a per-thread counter; ids created by one thread always increase
+ * <li>secure: random version 4 UUIDs drawn from the shared <code>SecureRandom</code>
+ * of {@link UUID#randomUUID()}
+ * </ul>
+ * Only the secure generator shares state between threads; the others never
+ * contend, so generating ids scales with the number of request threads.
+ */
+public abstract class IdGenerator {
+
+	/**
+	 * Random version 4 UUIDs from a per-thread generator.
+	 */
+	public static final IdGenerator RANDOM = new IdGenerator() {
+		@Override
+		public String next() {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			long msb = ( random.nextLong() & ~0xF000L ) | 0x4000L;
+			long lsb = ( random.nextLong() & ~( 0x3L << 62 ) ) | ( 0x2L << 62 );
+			return format( msb, lsb );
+		}
+	};
+
+	/**
+	 * Time ordered version 7 UUIDs.
+	 */
+	public static final IdGenerator TIME = new TimeGenerator();
+
+	/**
+	 * Random version 4 UUIDs from {@link UUID#randomUUID()}.
+	 */
+	public static final IdGenerator SECURE = new IdGenerator() {
+		@Override
+		public String next() {
+			return UUID.randomUUID().toString();
+		}
+	};
+
+	private static volatile IdGenerator defaultGenerator = RANDOM;
+
+	/**
+	 * Get the generator used for request identifiers.
+	 * <p>
+	 * @return the configured generator.
+	 */
+	public static IdGenerator getDefault() {
+		return defaultGenerator;
+	}
+
+	/**
+	 * Set the generator used for request identifiers.
+	 * <p>
+	 * @param generator the generator to use.
+	 */
+	public static void setDefault( IdGenerator generator ) {
+		if ( generator == null ) {
+			throw new IllegalArgumentException( "Generator must not be null" );
+		}
+		defaultGenerator = generator;
+	}
+
+	/**
+	 * Resolve a generator by name.
+	 * <p>
+	 * @param name the generator name.
+	 * @return the named generator.
+	 * @throws IllegalStateException if there is no generator with the name.
+	 */
+	public static IdGenerator create( String name ) {
+		String key = name == null ? "" : name.toLowerCase();
+		if ( "random".equals( key ) ) {
+			return RANDOM;
+		} else if ( "time".equals( key ) ) {
+			return TIME;
+		} else if ( "secure".equals( key ) ) {
+			return SECURE;
+		}
+		throw new IllegalStateException( "Unsupported id generator: " + name );
+	}
+
+	/**
+	 * Generate the next identifier.
+	 * <p>
+	 * @return a new identifier.
+	 */
+	public abstract String next();
+
+	private static final char [] DIGITS = "0123456789abcdef".toCharArray();
+
+	/*
+	 * Format as a UUID string, without the intermediate strings of UUID.toString().
+	 */
+	static String format( long msb, long lsb ) {
+		char [] c = new char[ 36 ];
+		hex( c, 0, msb >>> 32, 8 );
+		c[8] = '-';
+		hex( c, 9, msb >>> 16, 4 );
+		c[13] = '-';
+		hex( c, 14, msb, 4 );
+		c[18] = '-';
+		hex( c, 19, lsb >>> 48, 4 );
+		c[23] = '-';
+		hex( c, 24, lsb, 12 );
+		return new String( c );
+	}
+
+	private static void hex( char [] c, int pos, long value, int digits ) {
+		for ( int i = pos + digits - 1; i >= pos; i-- ) {
+			c[i] = DIGITS[ (int) ( value & 0xF ) ];
+			value >>>= 4;
+		}
+	}
+
+	/*
+	 * Version 7 layout: 48 bits of epoch milliseconds, the version, 12 high bits of
+	 * the counter, the variant, a 30 bit prefix identifying the process and thread,
+	 * and 32 low bits of the counter. Counters start at a random value.
+	 */
+	private static final class TimeGenerator extends IdGenerator {
+
+		private static final long NODE = ThreadLocalRandom.current().nextLong( 1 << 14 );
+		private static final AtomicInteger THREADS = new AtomicInteger();
+
+		private static final class State {
+			final long prefix = ( NODE << 16 ) | ( THREADS.getAndIncrement() & 0xFFFF );
+			long counter = ThreadLocalRandom.current().nextInt() & 0xFFFFFFFFL;
+			long time;
+		}
+
+		private final ThreadLocal<State> states = new ThreadLocal<State>() {
+			@Override
+			protected State initialValue() {
+				return new State();
+			}
+		};
+
+		@Override
+		public String next() {
+			State s = states.get();
+			// never step backwards with the clock
+			s.time = Math.max( s.time, System.currentTimeMillis() );
+			long counter = s.counter++;
+			long msb = ( s.time << 16 ) | 0x7000L | ( ( counter >>> 32 ) & 0xFFF );
+			long lsb = ( 0x2L << 62 ) | ( s.prefix << 32 ) | ( counter & 0xFFFFFFFFL );
+			return format( msb, lsb );
+		}
+	}
+}
@@ -35,10 +35,15 @@ import org.eclipse.jetty.server.ServerConnector;
  * requires jetty 9.3+
 import org.eclipse.jetty.server.handler.gzip.GzipHandler;
  */
+import org.eclipse.jetty.servlet.FilterHolder;
 import org.eclipse.jetty.servlet.ServletHolder;
 import org.eclipse.jetty.servlets.GzipFilter;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.eclipse.jetty.webapp.WebAppContext;
+import org.rnott.mock.capture.CaptureBuffer;
+import org.rnott.mock.capture.CaptureLog;
+import org.rnott.mock.capture.CaptureRing;
+import org.rnott.mock.metrics.TimeSeries;
 import org.rnott.mock.settings.BooleanSetting;
 import org.rnott.mock.settings.NumericSetting;
 import org.rnott.mock.settings.Setting;
@@ -133,8 +138,22 @@ public class Main {
 			.add( new NumericSetting( "port", 8080 ) )
 			.add( new NumericSetting( "maxRequests", 0 ) )
 			.add( new BooleanSetting( "captureEnabled", false ) )
+			.add( new StringSetting( "captureMode", CaptureFilter.MODE_LOG ) )
+			.add( new NumericSetting( "captureSegmentSize", CaptureLog.DEFAULT_SEGMENT_SIZE ) )
+			.add( new NumericSetting( "captureQueueSize", CaptureLog.DEFAULT_QUEUE_SIZE ) )
+			.add( new NumericSetting( "captureRingEntries", CaptureRing.DEFAULT_ENTRIES ) )
+			.add( new NumericSetting( "captureRingSlotSize", CaptureRing.DEFAULT_SLOT_SIZE ) )
+			.add( new NumericSetting( "captureMaxBodySize", 0 ) )
+			.add( new NumericSetting( "captureBufferSize", CaptureBuffer.DEFAULT_MEMORY_LIMIT ) )
+			.add( new NumericSetting( "captureRetentionSize", 0 ) )
+			.add( new NumericSetting( "captureRetentionTime", 0 ) )
+			.add( new BooleanSetting( "captureCleanup", false ) )
+			.add( new StringSetting( "idGenerator", "random" ) )
+			.add( new NumericSetting( "metricsHistory", TimeSeries.DEFAULT_SECONDS ) )
 			.add( new BooleanSetting( "debug", false ) )
 			.add( new BooleanSetting( "trace", false ) )
+			.add( new BooleanSetting( "timingHeaders", false ) )
+			.add( new BooleanSetting( "flightEvents", true ) )
 			.add( new StringSetting( "config" ) )
 			.parse( args );
 
@@ -146,6 +165,12 @@ public class Main {
 			}
 		}
 
+		// request correlation ids and ${random.uuid()}
+		IdGenerator.setDefault( IdGenerator.create( config.<String>getValue( "idGenerator" ) ) );
+
+		// request steps in flight recordings
+		RequestEvents.setDefault( config.<Boolean>getValue( "flightEvents" ) ? RequestEvents.create() : RequestEvents.NONE );
+
 		int port = config.<Integer>getValue( "port" );
 		int maxRequests = config.<Integer>getValue( "maxRequests" );
 		Server server;
@@ -168,7 +193,11 @@ public class Main {
         // enable request capture ?
         if ( config.<Boolean>getValue( "captureEnabled" ) ) {
         	// add filter to capture requests
-            webapp.addFilter( (Class<? extends Filter>) CaptureFilter.class, "/*", EnumSet.allOf( DispatcherType.class ) );
+            FilterHolder filter = webapp.addFilter( (Class<? extends Filter>) CaptureFilter.class, "/*", EnumSet.allOf( DispatcherType.class ) );
+            filter.setAsyncSupported( true );
+            for ( Setting<?> setting : config ) {
+            	filter.setInitParameter( setting.getKey(), String.valueOf( setting.getValue() ) );
+            }
 
             // add servlet to serve captured requests
             ServletHolder holder = new ServletHolder( new CaptureServlet() );
@@ -176,6 +205,10 @@ public class Main {
             	holder.setInitParameter( setting.getKey(), String.valueOf( setting.getValue() ) );
             }
             webapp.addServlet( holder, CaptureFilter.CAPTURE_URI );
+            webapp.addServlet( holder, CaptureFilter.STATS_URI );
+            // captures are streamed live without holding a request thread
+            holder.setAsyncSupported( true );
+            webapp.addServlet( holder, CaptureFilter.TAIL_URI );
         }
 
         // install response handling
@@ -186,16 +219,31 @@ public class Main {
         } else {
         	// configuration based handler
 	        ServletHolder holder = new ServletHolder( new MockServlet() );
+	        // delayed responses complete asynchronously
+	        holder.setAsyncSupported( true );
+	        // load at startup so that the endpoints are known to the filters
+	        holder.setInitOrder( 0 );
             for ( Setting<?> setting : config ) {
             	holder.setInitParameter( setting.getKey(), String.valueOf( setting.getValue() ) );
             }
 	        webapp.addServlet( holder, "/*" );
 
 	        // capture analytics
-	        webapp.addFilter( AnalyticsFilter.class, "/*", EnumSet.allOf( DispatcherType.class ) );
+	        FilterHolder analytics = webapp.addFilter( AnalyticsFilter.class, "/*", EnumSet.allOf( DispatcherType.class ) );
+	        analytics.setAsyncSupported( true );
+            for ( Setting<?> setting : config ) {
+            	analytics.setInitParameter( setting.getKey(), String.valueOf( setting.getValue() ) );
+            }
+	        ServletHolder metrics = new ServletHolder( new MetricsServlet() );
+	        webapp.addServlet( metrics, MetricsServlet.METRICS_URI );
+	        webapp.addServlet( metrics, MetricsServlet.HISTORY_URI );
+	        webapp.setAttribute( MetricsServlet.THREAD_POOL_ATTRIBUTE, server.getThreadPool() );
 
 	        // gzip
-	        webapp.addFilter( GzipFilter.class, "/*", EnumSet.allOf( DispatcherType.class ) );
+	        FilterHolder gzip = webapp.addFilter( GzipFilter.class, "/*", EnumSet.allOf( DispatcherType.class ) );
+	        gzip.setAsyncSupported( true );
+	        // compression would hold back the live capture stream
+	        gzip.setInitParameter( "excludePaths", CaptureFilter.TAIL_URI );
         }
 
         /*
@@ -209,6 +257,8 @@ public class Main {
 
         // start the server
 		server.setHandler( webapp );
+		// release filters and servlets, such as capture cleanup, when the JVM exits
+		server.setStopAtShutdown( true );
 		server.start();
 		if ( debug ) {
 			server.dumpStdErr();
@@ -0,0 +1,349 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock;
+
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.rnott.mock.RequestTimer.Phase;
+import org.rnott.mock.capture.CaptureStore;
+import org.rnott.mock.metrics.Histogram;
+import org.rnott.mock.metrics.MetricsRegistry;
+import org.rnott.mock.metrics.MetricsRegistry.PhaseSeries;
+import org.rnott.mock.metrics.MetricsRegistry.Series;
+import org.rnott.mock.metrics.TimeSeries;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+
+/**
+ * Serves the latency histograms recorded by {@link AnalyticsFilter}, one per
+ * endpoint and response status, and the histograms of the time each endpoint
+ * spends in each {@link Phase} of servicing a request. Latencies are reported as
+ * the 50th, 90th, 99th and 99.9th percentiles and the maximum.
+ * <p>
+ * Alongside the latencies, the number of requests received and in progress, the
+ * request and response body bytes transferred, the utilization of the server
+ * thread pool and, when requests are captured, the state of the capture store
+ * are reported. Every value is read without blocking the request threads.
+ * <p>
+ * The statistics of each recent second are served as a JSON array from
+ * {@link #HISTORY_URI}, oldest first, limited to the last <code>seconds</code>
+ * when that parameter is provided.
+ * <p>
+ * Metrics are served as a JSON object, with latencies in nanoseconds, unless the
+ * <code>format=prometheus</code> parameter is provided or the client accepts
+ * <code>text/plain</code> or <code>application/openmetrics-text</code>, in which
+ * case they are served in the Prometheus text exposition format, with latencies
+ * in seconds.
+ */
+public class MetricsServlet extends HttpServlet {
+
+	private static final long serialVersionUID = -3196504387102834766L;
+
+	/**
+	 * Location of the metrics.
+	 */
+	public static final String METRICS_URI = "/metrics";
+
+	/**
+	 * Location of the per-second history.
+	 */
+	public static final String HISTORY_URI = METRICS_URI + "/history";
+
+	/**
+	 * Name of the Prometheus latency summary.
+	 */
+	public static final String METRIC_NAME = "mock_request_duration_seconds";
+
+	/**
+	 * Name of the Prometheus summary of the time spent in each request phase.
+	 */
+	public static final String PHASE_METRIC_NAME = "mock_request_phase_seconds";
+
+	/**
+	 * Servlet context attribute the server thread pool is published under.
+	 */
+	public static final String THREAD_POOL_ATTRIBUTE = ThreadPool.class.getName();
+
+	private static final double [] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+	private static final String [] QUANTILE_KEYS = { "p50", "p90", "p99", "p999" };
+
+	private static final JsonFactory FACTORY = new JsonFactory();
+
+	/**
+	 * Determine if a request is for metrics rather than a mock endpoint. Such
+	 * requests are not measured themselves.
+	 * <p>
+	 * @param uri the request URI.
+	 * @return <code>true</code> if the URI addresses the metrics.
+	 */
+	public static boolean isMetricsUri( String uri ) {
+		return METRICS_URI.equals( uri ) || HISTORY_URI.equals( uri );
+	}
+
+	@Override
+	protected void service( HttpServletRequest request, HttpServletResponse response ) throws ServletException, IOException {
+		MetricsRegistry registry = (MetricsRegistry) getServletContext().getAttribute( MetricsRegistry.ATTRIBUTE );
+		if ( registry == null ) {
+			response.sendError( HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Metrics are not enabled" );
+			return;
+		}
+
+		if ( HISTORY_URI.equals( request.getRequestURI() ) ) {
+			TimeSeries history = registry.getHistory();
+			int seconds = history.getSeconds();
+			String s = request.getParameter( "seconds" );
+			if ( s != null ) {
+				try {
+					seconds = Integer.parseInt( s );
+				} catch ( NumberFormatException e ) {
+					response.sendError( HttpServletResponse.SC_BAD_REQUEST, "Invalid number of seconds: " + s );
+					return;
+				}
+			}
+			response.setStatus( HttpServletResponse.SC_OK );
+			response.setHeader( "Cache-Control", "no-cache" );
+			response.setContentType( "application/json" );
+			writeHistory( history.snapshot( seconds ), response );
+			return;
+		}
+
+		ThreadPool pool = (ThreadPool) getServletContext().getAttribute( THREAD_POOL_ATTRIBUTE );
+		CaptureStore store = (CaptureStore) getServletContext().getAttribute( CaptureStore.ATTRIBUTE );
+		response.setStatus( HttpServletResponse.SC_OK );
+		response.setHeader( "Cache-Control", "no-cache" );
+		if ( isPrometheus( request ) ) {
+			response.setContentType( "text/plain; version=0.0.4" );
+			response.setCharacterEncoding( "UTF-8" );
+			writePrometheus( registry, pool, store, response.getWriter() );
+		} else {
+			response.setContentType( "application/json" );
+			writeJson( registry, pool, store, response );
+		}
+	}
+
+	/*
+	 * Determine the format requested by the client.
+	 */
+	private static boolean isPrometheus( HttpServletRequest request ) {
+		String format = request.getParameter( "format" );
+		if ( format != null ) {
+			return "prometheus".equalsIgnoreCase( format );
+		}
+		String accept = request.getHeader( "Accept" );
+		return accept != null && ( accept.contains( "text/plain" ) || accept.contains( "application/openmetrics-text" ) );
+	}
+
+	/*
+	 * Write the metrics as a JSON object.
+	 */
+	private static void writeJson( MetricsRegistry registry, ThreadPool pool, CaptureStore store, HttpServletResponse response ) throws IOException {
+		JsonGenerator json = FACTORY.createGenerator( response.getOutputStream(), JsonEncoding.UTF8 );
+		json.writeStartObject();
+		json.writeObjectFieldStart( "server" );
+		json.writeNumberField( "requests", registry.getRequests() );
+		json.writeNumberField( "inFlight", registry.getInFlight() );
+		json.writeNumberField( "bytesIn", registry.getBytesIn() );
+		json.writeNumberField( "bytesOut", registry.getBytesOut() );
+		if ( pool != null ) {
+			int threads = pool.getThreads();
+			int idle = pool.getIdleThreads();
+			json.writeObjectFieldStart( "threads" );
+			json.writeNumberField( "current", threads );
+			json.writeNumberField( "busy", threads - idle );
+			json.writeNumberField( "idle", idle );
+			if ( pool instanceof ThreadPool.SizedThreadPool ) {
+				json.writeNumberField( "max", ((ThreadPool.SizedThreadPool) pool).getMaxThreads() );
+			}
+			if ( pool instanceof QueuedThreadPool ) {
+				json.writeNumberField( "queued", ((QueuedThreadPool) pool).getQueueSize() );
+			}
+			json.writeBooleanField( "lowOnThreads", pool.isLowOnThreads() );
+			json.writeEndObject();
+		}
+		json.writeEndObject();
+		if ( store != null ) {
+			json.writeObjectFieldStart( "capture" );
+			json.writeNumberField( "size", store.size() );
+			json.writeNumberField( "pending", store.getPending() );
+			json.writeNumberField( "bytesWritten", store.getBytesWritten() );
+			json.writeNumberField( "dropped", store.getDropped() );
+			json.writeNumberField( "writeErrors", store.getWriteErrors() );
+			json.writeNumberField( "evicted", store.getEvicted() );
+			json.writeEndObject();
+		}
+		json.writeArrayFieldStart( "requests" );
+		for ( Series s : registry.snapshot() ) {
+			json.writeStartObject();
+			json.writeStringField( "method", s.getMethod() );
+			json.writeStringField( "uri", s.getUri() );
+			json.writeNumberField( "status", s.getStatus() );
+			writeSnapshot( json, s.getSnapshot() );
+			json.writeEndObject();
+		}
+		json.writeEndArray();
+		json.writeArrayFieldStart( "phases" );
+		for ( PhaseSeries s : registry.snapshotPhases() ) {
+			json.writeStartObject();
+			json.writeStringField( "method", s.getMethod() );
+			json.writeStringField( "uri", s.getUri() );
+			for ( Phase p : Phase.values() ) {
+				json.writeObjectFieldStart( p.key() );
+				writeSnapshot( json, s.getSnapshot( p ) );
+				json.writeEndObject();
+			}
+			json.writeEndObject();
+		}
+		json.writeEndArray();
+		json.writeEndObject();
+		json.close();
+	}
+
+	/*
+	 * Write the statistics of each second as a JSON array.
+	 */
+	private static void writeHistory( List<TimeSeries.Entry> entries, HttpServletResponse response ) throws IOException {
+		JsonGenerator json = FACTORY.createGenerator( response.getOutputStream(), JsonEncoding.UTF8 );
+		json.writeStartArray();
+		for ( TimeSeries.Entry e : entries ) {
+			json.writeStartObject();
+			json.writeNumberField( "time", e.getTime() );
+			writeSnapshot( json, e.getLatency() );
+			json.writeNumberField( "errors", e.getErrors() );
+			json.writeNumberField( "bytesIn", e.getBytesIn() );
+			json.writeNumberField( "bytesOut", e.getBytesOut() );
+			json.writeEndObject();
+		}
+		json.writeEndArray();
+		json.close();
+	}
+
+	private static void writeSnapshot( JsonGenerator json, Histogram.Snapshot h ) throws IOException {
+		json.writeNumberField( "count", h.getCount() );
+		json.writeNumberField( "sum", h.getSum() );
+		for ( int i = 0; i < QUANTILES.length; i++ ) {
+			json.writeNumberField( QUANTILE_KEYS[i], h.getValue( QUANTILES[i] ) );
+		}
+		json.writeNumberField( "max", h.getMax() );
+	}
+
+	/*
+	 * Write the metrics in the Prometheus text exposition format.
+	 */
+	static void writePrometheus( MetricsRegistry registry, ThreadPool pool, CaptureStore store, Writer out ) throws IOException {
+		writeValue( "mock_requests_total", "counter", "Requests received.", registry.getRequests(), out );
+		writeValue( "mock_requests_in_flight", "gauge", "Requests being serviced.", registry.getInFlight(), out );
+		writeValue( "mock_request_bytes_total", "counter", "Request body bytes received.", registry.getBytesIn(), out );
+		writeValue( "mock_response_bytes_total", "counter", "Response body bytes sent.", registry.getBytesOut(), out );
+		if ( pool != null ) {
+			int threads = pool.getThreads();
+			int idle = pool.getIdleThreads();
+			out.write( "# HELP mock_threads Threads of the server thread pool.\n" );
+			out.write( "# TYPE mock_threads gauge\n" );
+			out.write( "mock_threads{state=\"busy\"} " + ( threads - idle ) + "\n" );
+			out.write( "mock_threads{state=\"idle\"} " + idle + "\n" );
+			if ( pool instanceof ThreadPool.SizedThreadPool ) {
+				int max = ((ThreadPool.SizedThreadPool) pool).getMaxThreads();
+				writeValue( "mock_threads_max", "gauge", "Maximum threads of the server thread pool.", max, out );
+				writeValue( "mock_thread_utilization", "gauge", "Fraction of the maximum server threads that are busy.",
+					max > 0 ? (double) ( threads - idle ) / max : 0, out );
+			}
+			if ( pool instanceof QueuedThreadPool ) {
+				writeValue( "mock_thread_queue", "gauge", "Jobs waiting for a server thread.", ((QueuedThreadPool) pool).getQueueSize(), out );
+			}
+		}
+		if ( store != null ) {
+			writeValue( "mock_capture_size", "gauge", "Captures that can be read.", store.size(), out );
+			writeValue( "mock_capture_pending", "gauge", "Captures waiting to be stored.", store.getPending(), out );
+			writeValue( "mock_capture_bytes_total", "counter", "Bytes of captured data stored.", store.getBytesWritten(), out );
+			writeValue( "mock_capture_dropped_total", "counter", "Captures dropped because the store could not keep up.", store.getDropped(), out );
+			writeValue( "mock_capture_write_errors_total", "counter", "Failed writes of captured data.", store.getWriteErrors(), out );
+			writeValue( "mock_capture_evicted_total", "counter", "Captures discarded by the retention limits.", store.getEvicted(), out );
+		}
+
+		List<Series> series = registry.snapshot();
+		out.write( "# HELP " + METRIC_NAME + " Time taken to service requests.\n" );
+		out.write( "# TYPE " + METRIC_NAME + " summary\n" );
+		for ( Series s : series ) {
+			writeSummary( METRIC_NAME, labels( s.getMethod(), s.getUri() ) + ",status=\"" + s.getStatus() + "\"", s.getSnapshot(), out );
+		}
+		String max = METRIC_NAME.replace( "_seconds", "_max_seconds" );
+		out.write( "# HELP " + max + " Longest time taken to service a request.\n" );
+		out.write( "# TYPE " + max + " gauge\n" );
+		for ( Series s : series ) {
+			out.write( max + "{" + labels( s.getMethod(), s.getUri() ) + ",status=\"" + s.getStatus() + "\"} "
+				+ seconds( s.getSnapshot().getMax() ) + "\n" );
+		}
+		out.write( "# HELP " + PHASE_METRIC_NAME + " Time spent in each phase of servicing requests.\n" );
+		out.write( "# TYPE " + PHASE_METRIC_NAME + " summary\n" );
+		for ( PhaseSeries s : registry.snapshotPhases() ) {
+			for ( Phase p : Phase.values() ) {
+				writeSummary( PHASE_METRIC_NAME, labels( s.getMethod(), s.getUri() ) + ",phase=\"" + p.key() + "\"", s.getSnapshot( p ), out );
+			}
+		}
+		out.flush();
+	}
+
+	private static void writeValue( String name, String type, String help, Number value, Writer out ) throws IOException {
+		out.write( "# HELP " + name + " " + help + "\n" );
+		out.write( "# TYPE " + name + " " + type + "\n" );
+		out.write( name + " " + value + "\n" );
+	}
+
+	private static void writeSummary( String name, String labels, Histogram.Snapshot h, Writer out ) throws IOException {
+		for ( double q : QUANTILES ) {
+			out.write( name + "{" + labels + ",quantile=\"" + q + "\"} " + seconds( h.getValue( q ) ) + "\n" );
+		}
+		out.write( name + "_sum{" + labels + "} " + seconds( h.getSum() ) + "\n" );
+		out.write( name + "_count{" + labels + "} " + h.getCount() + "\n" );
+	}
+
+	private static String labels( String method, String uri ) {
+		return "method=\"" + escape( method ) + "\",uri=\"" + escape( uri ) + "\"";
+	}
+
+	private static String seconds( long nanos ) {
+		return String.valueOf( nanos / 1e9 );
+	}
+
+	/*
+	 * Escape a label value.
+	 */
+	private static String escape( String value ) {
+		StringBuilder sb = new StringBuilder( value.length() );
+		for ( int i = 0; i < value.length(); i++ ) {
+			char c = value.charAt( i );
+			if ( c == '\\' || c == '"' ) {
+				sb.append( '\\' ).append( c );
+			} else if ( c == '\n' ) {
+				sb.append( "\\n" );
+			} else {
+				sb.append( c );
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -20,12 +20,6 @@ package org.rnott.mock;
 import java.util.HashMap;
 import java.util.Map;
 import javax.servlet.http.HttpServletRequest;
-import org.antlr.v4.runtime.ANTLRInputStream;
-import org.antlr.v4.runtime.CommonTokenStream;
-import org.antlr.v4.runtime.tree.ParseTree;
-import org.antlr.v4.runtime.tree.ParseTreeWalker;
-import org.rnott.mock.ExpressionLanguageLexer;
-import org.rnott.mock.ExpressionLanguageParser;
 import org.rnott.mock.evaluators.DateEvaluator;
 import org.rnott.mock.evaluators.Evaluator;
 import org.rnott.mock.evaluators.RandomEvaluator;
@@ -156,19 +150,8 @@ public class MockContext {
 		if ( text == null ) {
 			return text;
 		}
-
-		ExpressionLanguageLexer lexer = new ExpressionLanguageLexer( new ANTLRInputStream( text ) );
-		CommonTokenStream tokens = new CommonTokenStream( lexer );
-		ExpressionLanguageParser parser = new ExpressionLanguageParser( tokens );
-		lexer.removeErrorListeners();
-		parser.removeErrorListeners();
-		ParserErrorListener.register( lexer, parser );
-	    ParseTree tree = parser.content();
-	    ParseTreeWalker walker = new ParseTreeWalker();
-	    ExpressionLanguageEvaluator evaluator = new ExpressionLanguageEvaluator();
-	    walker.walk( evaluator, tree );
-
-		return evaluator.getText();
+		// text that is evaluated repeatedly should be compiled once instead
+		return Template.compile( text ).evaluate( this );
 	}
 
 	/**
@@ -17,17 +17,31 @@
 package org.rnott.mock;
 
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import org.rnott.mock.RequestTimer.Phase;
 import org.rnott.mock.handler.ResponseFactory;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -42,12 +56,43 @@ public class MockServlet extends HttpServlet {
 
 	private boolean debug = false;
 	private boolean trace = false;
+	private boolean timing = false;
 	private List<Endpoint> endpoints;
+	private Router router;
+
+	/*
+	 * Completes delayed responses. Requests waiting on a delay do not occupy a
+	 * request thread, so the scheduler needs very few threads of its own.
+	 */
+	private ScheduledExecutorService scheduler;
+
+	/*
+	 * Delayed responses not yet written, cut short when the servlet is destroyed.
+	 */
+	private final Set<DelayedResponse> pending = Collections.newSetFromMap( new ConcurrentHashMap<DelayedResponse, Boolean>() );
+
+	/*
+	 * Allowance beyond the configured delay before the container times out
+	 * an asynchronous response.
+	 */
+	private static final long ASYNC_TIMEOUT_MARGIN = 30000;
 
 	@Override
 	public void init( ServletConfig config ) throws ServletException {
 		super.init( config );
 
+		scheduler = Executors.newScheduledThreadPool( 2, new ThreadFactory() {
+
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread( Runnable r ) {
+				Thread t = new Thread( r, "mock-delay-" + count.incrementAndGet() );
+				t.setDaemon( true );
+				return t;
+			}
+		});
+
 		try {
 			debug = Boolean.parseBoolean( config.getInitParameter( "debug" ) );
 		} catch ( Throwable ignore ) {}
@@ -56,6 +101,10 @@ public class MockServlet extends HttpServlet {
 			trace = Boolean.parseBoolean( config.getInitParameter( "trace" ) );
 		} catch ( Throwable ignore ) {}
 
+		try {
+			timing = Boolean.parseBoolean( config.getInitParameter( "timingHeaders" ) );
+		} catch ( Throwable ignore ) {}
+
 		String resource = config.getInitParameter( "config" );
 		if ( resource == null ) {
 			throw new ServletException( "No mock configuration provided" );
@@ -74,95 +123,197 @@ public class MockServlet extends HttpServlet {
 			endpoints.clear();
 			endpoints = null;
 		}
+		if ( router != null ) {
+			getServletContext().removeAttribute( Router.ATTRIBUTE );
+			router = null;
+		}
+		if ( scheduler != null ) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+		// rather than leave clients waiting for the container to time out
+		for ( DelayedResponse r : pending ) {
+			r.cancel();
+		}
 
 		super.destroy();
 	}
 
 	private static final String NEWLINE = System.getProperty( "line.separator", "\n" );
 
+	/*
+	 * Response header reporting the time spent in each phase of servicing a request.
+	 */
+	private static final String SERVER_TIMING = "Server-Timing";
+
 	@Override
 	public void service( HttpServletRequest request, HttpServletResponse response ) throws ServletException, IOException {
 		MockContext context = MockContext.get();
 		context.setRequest( request );
+		// only timed when requested, for example to be measured or captured
+		RequestTimer timer = RequestTimer.get( request );
+		RequestEvents events = RequestEvents.getDefault();
+		boolean report = events.isEnabled();
+		if ( timer == null && report ) {
+			// timed for the profiler only
+			timer = new RequestTimer();
+		}
+		long t = timer == null ? 0 : System.nanoTime();
 
 		// match path/method
 		if ( debug ) {
 			log( "Matching request: " + request.getMethod() + " " + request.getRequestURI() );
 		}
-		for ( Endpoint e : endpoints ) {
+		Map<String, String> params = context.getParameters();
+		params.clear();
+		Endpoint e = router.match( request, params );
+		if ( e != null ) {
+			if ( debug ) {
+				log( "Matched: " + e.getMethod() + " " + e.getUriTemplate().getTemplate() );
+			}
+			// static responses need no expression parameters
+			if ( ! e.isStatic() ) {
+				addParameters( request, params );
+			}
+			if ( timer != null ) {
+				timer.setEndpoint( e );
+				t = timer.lap( Phase.ROUTE, t );
+			}
+			if ( report ) {
+				events.endpointMatched( request.getMethod(), request.getRequestURI(), e, timer.get( Phase.ROUTE ) );
+			}
+			Response r = ResponseFactory.getResponse( e );
+			if ( r == null ) {
+				throw new IllegalStateException( "No response available for endpoint: "
+					+ e.getMethod() + " " + e.getUriTemplate().getTemplate() );
+			}
+			if ( timer != null ) {
+				timer.setResponse( r );
+				t = timer.lap( Phase.SELECT, t );
+			}
+			if ( report ) {
+				events.responseSelected( e, r, timer.get( Phase.SELECT ) );
+			}
+
 			if ( debug ) {
-				log( "Testing endpoint: " + e.getMethod() + " " + e.getUriTemplate().getTemplate() );
+				log( "Response status code: " + r.getStatus() );
 			}
-			if ( request.getMethod().equalsIgnoreCase( e.getMethod() ) ) {
+			response.setStatus( r.getStatus() );
+			for ( Map.Entry<String, Template> h : r.getHeaderTemplates().entrySet() ) {
 				if ( debug ) {
-					log( "Matched: " + e.getMethod() + " " + e.getUriTemplate().getTemplate() );
+					log( "Evaluating response header: " + h.getKey() + " [" + h.getValue() + "]" );
 				}
-				Map<String, String> params = context.getParameters();
-				params.clear();
-				if ( e.getUriTemplate().match( request.getRequestURI(), params ) ) {
-					// add any query parameters
-					Enumeration<?> names = request.getParameterNames();
-					while ( names.hasMoreElements() ) {
-						String key = (String) names.nextElement();
-						params.put( key, request.getParameter( key ) );
-						if ( debug ) {
-							log( "Query parameter: " + key + " [" + request.getParameter( key ) + "] available as expression parameter" );
-						}
-					}
-					// add all request headers
-					names = request.getHeaderNames();
-					while ( names.hasMoreElements() ) {
-						String key = (String) names.nextElement();
-						params.put( key, request.getHeader( key ) );
-						if ( debug ) {
-							log( "Request header: " + key + " [" + request.getHeader( key ) + "] available as expression parameter" );
-						}
-					}
-					Response r = ResponseFactory.getResponse( e );
-					if ( r == null ) {
-						throw new IllegalStateException( "No response available for endpoint: "
-							+ e.getMethod() + " " + e.getUriTemplate().getTemplate() );
-					}
-
-					if ( debug ) {
-						log( "Response status code: " + r.getStatus() );
-					}
-					response.setStatus( r.getStatus() );
-					for ( String key : r.getHeaders().keySet() ) {
-						log("Evaluating response header: " + key + " [" + r.getHeaders().get( key ) + "]" );
-						response.addHeader( key, context.evaluate( r.getHeaders().get( key ) ) );
-					}
-					String body = context.evaluate( r.getBody() );
-					if ( body != null ) {
-						response.getOutputStream().write( body.getBytes() );
-					}
-
-					if ( e.getDelay() > 0 ) {
-						if ( debug ) {
-							log( "Delaying response: " + e.getDelay() + "ms" );
-						}
-						try {
-							Thread.sleep( e.getDelay() );
-						} catch ( InterruptedException ignore ) {}
-					}
+				response.addHeader( h.getKey(), h.getValue().evaluate( context ) );
+			}
+			long delay = r.getDelayModel().next();
+			if ( delay > 0 && report ) {
+				events.delayScheduled( e, delay );
+			}
+			if ( delay > 0 && request.isAsyncSupported() ) {
+				// evaluate now, while the request context is available, and write once the delay expires
+				if ( debug ) {
+					log( "Delaying response: " + delay + "ms" );
+				}
+				byte [] content = r.getContent();
+				if ( content == null && r.getBodyTemplate() != null ) {
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					r.getBodyTemplate().evaluate( context, out, r.getCharset() );
+					content = out.toByteArray();
+				}
+				if ( timer != null ) {
+					t = timer.lap( Phase.EVALUATE, t );
+				}
+				AsyncContext async = request.startAsync( request, response );
+				// saturate rather than overflow for very long delays
+				async.setTimeout( delay > Long.MAX_VALUE - ASYNC_TIMEOUT_MARGIN ? Long.MAX_VALUE : delay + ASYNC_TIMEOUT_MARGIN );
+				new DelayedResponse( async, content, timer, timing, pending ).schedule( scheduler, delay );
 
-					if ( trace ) {
-						logAccess( request, r.getStatus() );
+			} else {
+				if ( timer != null ) {
+					t = timer.lap( Phase.EVALUATE, t );
+				}
+				if ( delay > 0 ) {
+					// container does not support asynchronous processing
+					try {
+						Thread.sleep( delay );
+					} catch ( InterruptedException ignore ) {}
+					if ( timer != null ) {
+						t = timer.lap( Phase.DELAY, t );
 					}
-
-					// commit
-					return;
+				}
+				if ( timing && timer != null ) {
+					addServerTiming( response, timer );
+				}
+				byte [] content = r.getContent();
+				if ( content != null ) {
+					// static body, already encoded
+					response.setContentLength( content.length );
+					response.getOutputStream().write( content );
+				} else if ( r.getBodyTemplate() != null ) {
+					// stream evaluated content
+					r.getBodyTemplate().evaluate( context, response.getOutputStream(), r.getCharset() );
+				}
+				if ( timer != null ) {
+					timer.lap( Phase.WRITE, t );
 				}
 			}
+
+			if ( trace ) {
+				logAccess( request, r.getStatus() );
+			}
+
+			// commit
+			return;
 		}
 
 		// no match
+		if ( timer != null ) {
+			timer.lap( Phase.ROUTE, t );
+		}
+		if ( report ) {
+			events.endpointMatched( request.getMethod(), request.getRequestURI(), null, timer.get( Phase.ROUTE ) );
+		}
 		response.setStatus( HttpServletResponse.SC_NOT_FOUND );
 		if ( debug ) {
 			log( "No match for: " + request.getMethod() + " " + request.getRequestURI() );
 		}
 	}
 
+	/*
+	 * Report the time spent so far. The body has not been written yet, so the
+	 * write phase is never included.
+	 */
+	private static void addServerTiming( HttpServletResponse response, RequestTimer timer ) {
+		String s = timer.getServerTiming();
+		if ( s.length() > 0 ) {
+			response.addHeader( SERVER_TIMING, s );
+		}
+	}
+
+	/*
+	 * Make query parameters and request headers available as expression parameters.
+	 */
+	private void addParameters( HttpServletRequest request, Map<String, String> params ) {
+		// add any query parameters
+		Enumeration<?> names = request.getParameterNames();
+		while ( names.hasMoreElements() ) {
+			String key = (String) names.nextElement();
+			params.put( key, request.getParameter( key ) );
+			if ( debug ) {
+				log( "Query parameter: " + key + " [" + request.getParameter( key ) + "] available as expression parameter" );
+			}
+		}
+		// add all request headers
+		names = request.getHeaderNames();
+		while ( names.hasMoreElements() ) {
+			String key = (String) names.nextElement();
+			params.put( key, request.getHeader( key ) );
+			if ( debug ) {
+				log( "Request header: " + key + " [" + request.getHeader( key ) + "] available as expression parameter" );
+			}
+		}
+	}
+
 	private void initialize( InputStream config ) throws IOException {
 		endpoints = new ArrayList<Endpoint>();
 		ObjectMapper mapper = new ObjectMapper();
@@ -173,6 +324,9 @@ public class MockServlet extends HttpServlet {
 		for ( Map<String, ?> entry : entries ) {
 			endpoints.add( new Endpoint( entry ) );
 		}
+		router = new Router( endpoints );
+		// allow filters to resolve the endpoint of a request
+		getServletContext().setAttribute( Router.ATTRIBUTE, router );
 	}
 
 	private void logAccess( HttpServletRequest request, int status ) {
@@ -204,4 +358,101 @@ public class MockServlet extends HttpServlet {
 		}
 		log( sb.toString() );
 	}
+
+	/*
+	 * A response whose body is written once its delay has expired. The timer thread
+	 * only hands the response back to the container, which performs the write. A
+	 * response that is not written in time, because the container timed it out or
+	 * the servlet is destroyed, is completed without a body as unavailable.
+	 */
+	private static class DelayedResponse implements Runnable, AsyncListener {
+
+		private final AsyncContext async;
+		private final byte [] content;
+		private final RequestTimer timer;
+		private final boolean timing;
+		private final Set<DelayedResponse> pending;
+		// written or cancelled, whichever happens first
+		private final AtomicBoolean done = new AtomicBoolean();
+		private long scheduled;
+
+		DelayedResponse( AsyncContext async, byte [] content, RequestTimer timer, boolean timing, Set<DelayedResponse> pending ) {
+			this.async = async;
+			this.content = content;
+			this.timer = timer;
+			this.timing = timing;
+			this.pending = pending;
+		}
+
+		void schedule( ScheduledExecutorService scheduler, long delay ) {
+			scheduled = System.nanoTime();
+			pending.add( this );
+			async.addListener( this );
+			scheduler.schedule( new Runnable() {
+
+				@Override
+				public void run() {
+					if ( done.compareAndSet( false, true ) ) {
+						async.start( DelayedResponse.this );
+					}
+				}
+			}, delay, TimeUnit.MILLISECONDS );
+		}
+
+		/*
+		 * Complete the response now, without its body.
+		 */
+		void cancel() {
+			if ( done.compareAndSet( false, true ) ) {
+				try {
+					((HttpServletResponse) async.getResponse()).setStatus( HttpServletResponse.SC_SERVICE_UNAVAILABLE );
+				} finally {
+					pending.remove( this );
+					async.complete();
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			long t = timer == null ? 0 : timer.lap( Phase.DELAY, scheduled );
+			try {
+				HttpServletResponse response = (HttpServletResponse) async.getResponse();
+				AnalyticsFilter.addElapsedTime( async.getRequest(), response );
+				if ( timing && timer != null ) {
+					addServerTiming( response, timer );
+				}
+				if ( content != null ) {
+					response.setContentLength( content.length );
+					response.getOutputStream().write( content );
+				}
+				if ( timer != null ) {
+					timer.lap( Phase.WRITE, t );
+				}
+			} catch ( IOException ignore ) {
+				// client went away
+			} finally {
+				pending.remove( this );
+				async.complete();
+			}
+		}
+
+		@Override
+		public void onTimeout( AsyncEvent event ) throws IOException {
+			cancel();
+		}
+
+		@Override
+		public void onComplete( AsyncEvent event ) throws IOException {
+			pending.remove( this );
+		}
+
+		@Override
+		public void onError( AsyncEvent event ) throws IOException {
+			pending.remove( this );
+		}
+
+		@Override
+		public void onStartAsync( AsyncEvent event ) throws IOException {}
+	}
 }
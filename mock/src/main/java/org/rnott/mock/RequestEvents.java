@@ -0,0 +1,157 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock;
+
+
+/**
+ * Reports the steps of servicing a request to a profiler. Each step is reported
+ * once it has completed, along with the time it took as measured by the caller.
+ * <p>
+ * By default steps are reported as Java Flight Recorder events, so they appear in
+ * flight recordings alongside the container and JVM events. On a JVM without the
+ * flight recorder, steps are not reported. Callers check {@link #isEnabled()}
+ * before collecting anything to report, so reporting costs next to nothing when it
+ * is not enabled, and little more than a check of the recording state when the
+ * flight recorder is not recording.
+ */
+public abstract class RequestEvents {
+
+	/**
+	 * Reports nothing.
+	 */
+	public static final RequestEvents NONE = new RequestEvents() {
+
+		@Override
+		public boolean isEnabled() {
+			return false;
+		}
+
+		@Override
+		public void endpointMatched( String method, String path, Endpoint endpoint, long nanos ) {}
+
+		@Override
+		public void responseSelected( Endpoint endpoint, Response response, long nanos ) {}
+
+		@Override
+		public void templateEvaluated( Template template, long nanos ) {}
+
+		@Override
+		public void delayScheduled( Endpoint endpoint, long delay ) {}
+
+		@Override
+		public void captureWritten( String id, String uri, int size, boolean stored, long nanos ) {}
+	};
+
+	/*
+	 * Implementation reporting flight recorder events. Loaded by name, as it
+	 * requires the jdk.jfr API.
+	 */
+	private static final String FLIGHT_RECORDER = "org.rnott.mock.jfr.FlightRecorderEvents";
+
+	private static volatile RequestEvents defaultEvents = create();
+
+	/**
+	 * Get the events requests are reported to.
+	 * <p>
+	 * @return the configured events.
+	 */
+	public static RequestEvents getDefault() {
+		return defaultEvents;
+	}
+
+	/**
+	 * Set the events requests are reported to.
+	 * <p>
+	 * @param events the events to report to, or <code>null</code> to report nothing.
+	 */
+	public static void setDefault( RequestEvents events ) {
+		defaultEvents = events == null ? NONE : events;
+	}
+
+	/**
+	 * Create events reported to the flight recorder.
+	 * <p>
+	 * @return the flight recorder events, or {@link #NONE} if the flight recorder
+	 * is not available in this JVM.
+	 */
+	public static RequestEvents create() {
+		try {
+			return (RequestEvents) Class.forName( FLIGHT_RECORDER ).getDeclaredConstructor().newInstance();
+		} catch ( ReflectiveOperationException e ) {
+			// recording is not supported
+			return NONE;
+		} catch ( LinkageError e ) {
+			// no jdk.jfr API
+			return NONE;
+		}
+	}
+
+	/**
+	 * Determine if steps are reported. When they are not, the other methods
+	 * have no effect.
+	 * <p>
+	 * @return <code>true</code> if steps are reported.
+	 */
+	public abstract boolean isEnabled();
+
+	/**
+	 * Report the endpoint selected for a request.
+	 * <p>
+	 * @param method the HTTP method of the request.
+	 * @param path the request path.
+	 * @param endpoint the selected endpoint, or <code>null</code> if no endpoint matched.
+	 * @param nanos the time taken to select the endpoint, in nanoseconds.
+	 */
+	public abstract void endpointMatched( String method, String path, Endpoint endpoint, long nanos );
+
+	/**
+	 * Report the response selected by an endpoint.
+	 * <p>
+	 * @param endpoint the endpoint.
+	 * @param response the selected response.
+	 * @param nanos the time taken to select the response, in nanoseconds.
+	 */
+	public abstract void responseSelected( Endpoint endpoint, Response response, long nanos );
+
+	/**
+	 * Report the evaluation of a template containing expressions.
+	 * <p>
+	 * @param template the template.
+	 * @param nanos the time taken to evaluate the template, in nanoseconds.
+	 */
+	public abstract void templateEvaluated( Template template, long nanos );
+
+	/**
+	 * Report a response that is written once its delay has expired.
+	 * <p>
+	 * @param endpoint the endpoint.
+	 * @param delay the delay in milliseconds.
+	 */
+	public abstract void delayScheduled( Endpoint endpoint, long delay );
+
+	/**
+	 * Report a captured request.
+	 * <p>
+	 * @param id the correlation id of the request.
+	 * @param uri the request URI.
+	 * @param size the size of the serialized capture in bytes.
+	 * @param stored <code>true</code> if the capture store accepted the capture,
+	 * <code>false</code> if it was dropped.
+	 * @param nanos the time taken to serialize and store the capture, in nanoseconds.
+	 */
+	public abstract void captureWritten( String id, String uri, int size, boolean stored, long nanos );
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock;
+
+import java.util.Locale;
+import javax.servlet.ServletRequest;
+
+/**
+ * Records where the time spent servicing a request goes. A timer is attached to
+ * a request as an attribute by the component interested in the timings; request
+ * processing adds the time spent in each {@link Phase} using
+ * {@link System#nanoTime()}. Requests without a timer are not timed.
+ * <p>
+ * A timer belongs to a single request. When a response is completed
+ * asynchronously, the phases are added by whichever thread is processing the
+ * request at the time.
+ */
+public final class RequestTimer {
+
+	/**
+	 * Request attribute a timer is published under.
+	 */
+	public static final String ATTRIBUTE = RequestTimer.class.getName();
+
+	/**
+	 * The stages of servicing a request.
+	 */
+	public enum Phase {
+
+		/**
+		 * Selecting the endpoint and collecting expression parameters.
+		 */
+		ROUTE,
+
+		/**
+		 * Selecting the response of the endpoint.
+		 */
+		SELECT,
+
+		/**
+		 * Evaluating response headers, and the body when it is not streamed.
+		 */
+		EVALUATE,
+
+		/**
+		 * Waiting for the configured response delay.
+		 */
+		DELAY,
+
+		/**
+		 * Writing the response body, including any expressions evaluated while
+		 * it is streamed.
+		 */
+		WRITE;
+
+		private final String key = name().toLowerCase( Locale.ENGLISH );
+
+		/**
+		 * Get the name of the phase as it is reported.
+		 * <p>
+		 * @return the lower case phase name.
+		 */
+		public String key() {
+			return key;
+		}
+	}
+
+	private static final Phase [] PHASES = Phase.values();
+
+	/**
+	 * Get the timer attached to a request.
+	 * <p>
+	 * @param request the request.
+	 * @return the attached timer or <code>null</code> if the request is not timed.
+	 */
+	public static RequestTimer get( ServletRequest request ) {
+		return (RequestTimer) request.getAttribute( ATTRIBUTE );
+	}
+
+	private final long start;
+	private final long [] elapsed = new long[ PHASES.length ];
+	private long total = -1;
+	private Endpoint endpoint;
+	private Response response;
+
+	/**
+	 * Create a timer starting now.
+	 */
+	public RequestTimer() {
+		start = System.nanoTime();
+	}
+
+	/**
+	 * Attach the timer to a request.
+	 * <p>
+	 * @param request the request to time.
+	 * @return this timer.
+	 */
+	public RequestTimer attach( ServletRequest request ) {
+		request.setAttribute( ATTRIBUTE, this );
+		return this;
+	}
+
+	/**
+	 * Add the time elapsed since an earlier reading to a phase.
+	 * <p>
+	 * @param phase the phase to add to.
+	 * @param since the earlier {@link System#nanoTime()} reading.
+	 * @return the current {@link System#nanoTime()} reading, for timing the next phase.
+	 */
+	public long lap( Phase phase, long since ) {
+		long now = System.nanoTime();
+		elapsed[ phase.ordinal() ] += now - since;
+		return now;
+	}
+
+	/**
+	 * Get the time spent in a phase.
+	 * <p>
+	 * @param phase the phase.
+	 * @return the elapsed time in nanoseconds.
+	 */
+	public long get( Phase phase ) {
+		return elapsed[ phase.ordinal() ];
+	}
+
+	/**
+	 * Describe the time spent so far in each phase in the format of the
+	 * <code>Server-Timing</code> response header, in milliseconds. Phases that
+	 * took no time are omitted.
+	 * <p>
+	 * @return the header value, which may be empty.
+	 */
+	public String getServerTiming() {
+		StringBuilder sb = new StringBuilder();
+		for ( Phase p : PHASES ) {
+			long nanos = elapsed[ p.ordinal() ];
+			if ( nanos > 0 ) {
+				if ( sb.length() > 0 ) {
+					sb.append( ", " );
+				}
+				// microsecond precision
+				long micros = nanos / 1000;
+				sb.append( p.key() ).append( ";dur=" ).append( micros / 1000 ).append( '.' );
+				String fraction = String.valueOf( micros % 1000 );
+				for ( int i = fraction.length(); i < 3; i++ ) {
+					sb.append( '0' );
+				}
+				sb.append( fraction );
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Stop the timer. Only the first call has any effect.
+	 * <p>
+	 * @return the time elapsed since the timer was created, in nanoseconds.
+	 */
+	public long stop() {
+		if ( total < 0 ) {
+			total = System.nanoTime() - start;
+		}
+		return total;
+	}
+
+	/**
+	 * Get the time elapsed between creating and stopping the timer.
+	 * <p>
+	 * @return the elapsed time in nanoseconds, or <code>-1</code> if the timer
+	 * has not been stopped.
+	 */
+	public long getTotal() {
+		return total;
+	}
+
+	/**
+	 * Get the endpoint that serviced the request.
+	 * <p>
+	 * @return the endpoint or <code>null</code> if no endpoint matched.
+	 */
+	public Endpoint getEndpoint() {
+		return endpoint;
+	}
+
+	/**
+	 * Record the endpoint that serviced the request.
+	 * <p>
+	 * @param endpoint the matched endpoint.
+	 */
+	public void setEndpoint( Endpoint endpoint ) {
+		this.endpoint = endpoint;
+	}
+
+	/**
+	 * Get the response selected for the request.
+	 * <p>
+	 * @return the response or <code>null</code> if none was selected.
+	 */
+	public Response getResponse() {
+		return response;
+	}
+
+	/**
+	 * Record the response selected for the request.
+	 * <p>
+	 * @param response the selected response.
+	 */
+	public void setResponse( Response response ) {
+		this.response = response;
+	}
+}
@@ -20,8 +20,12 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringWriter;
+import java.nio.charset.Charset;
 import java.util.HashMap;
 import java.util.Map;
+import org.rnott.mock.delay.Delay;
+import org.rnott.mock.delay.DelayFactory;
+import org.rnott.mock.delay.FixedDelay;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 
@@ -32,25 +36,38 @@ import com.fasterxml.jackson.databind.SerializationFeature;
 public class Response /*implements Comparable<Response>*/ {
 
 	private int status;
+	private Delay delay = FixedDelay.NONE;
 	private final Map<String, String> headers;
 	private final Map<String, Object> attributes;
+	private final Map<String, Template> headerTemplates;
 	private String body;
+	private Template bodyTemplate;
+	private Charset charset = Charset.defaultCharset();
+	private byte [] content;
+	private boolean constant = true;
 
 	public Response() {
 		this.attributes = new HashMap<String, Object>();
 		this.headers = new HashMap<String, String>();
+		this.headerTemplates = new HashMap<String, Template>();
 	}
 
-	@SuppressWarnings( "unchecked" )
     public Response( int defaultStatus, Map<String, String> headers, Map<String, Object> attributes ) {
+		this( defaultStatus, FixedDelay.NONE, headers, attributes );
+	}
+
+	@SuppressWarnings( "unchecked" )
+    public Response( int defaultStatus, Delay defaultDelay, Map<String, String> headers, Map<String, Object> attributes ) {
 		this.attributes = new HashMap<String, Object>( attributes );
 		this.headers = new HashMap<String, String>( headers );
+		this.headerTemplates = new HashMap<String, Template>();
 		if ( attributes.containsKey( "status" ) ) {
 			Object obj = attributes.get( "status" );
 			status = (int) obj;
 		} else {
 			status = defaultStatus;
 		}
+		delay = DelayFactory.create( attributes.get( "delay" ), defaultDelay );
 		if ( attributes.containsKey( "headers" ) ) {
 			this.headers.putAll( (Map<String, String>) attributes.get( "headers" ) );
 		}
@@ -75,6 +92,60 @@ public class Response /*implements Comparable<Response>*/ {
 				body = out.toString();
 			}
 		}
+
+		// compile once, evaluated for every request
+		for ( Map.Entry<String, String> e : this.headers.entrySet() ) {
+			if ( e.getValue() != null ) {
+				headerTemplates.put( e.getKey(), Template.compile( e.getValue() ) );
+			}
+		}
+		bodyTemplate = Template.compile( body );
+		update();
+	}
+
+	/*
+	 * Recompute state derived from the compiled headers and body. The body of a
+	 * response that contains no expressions is encoded once, here, rather than
+	 * for every request.
+	 */
+	private void update() {
+		charset = Charset.defaultCharset();
+		constant = true;
+		for ( Map.Entry<String, Template> e : headerTemplates.entrySet() ) {
+			Template t = e.getValue();
+			if ( ! t.isConstant() ) {
+				constant = false;
+			} else if ( "Content-Type".equalsIgnoreCase( e.getKey() ) ) {
+				charset = getCharset( t.evaluate( null ), charset );
+			}
+		}
+		if ( bodyTemplate == null ) {
+			content = null;
+		} else if ( bodyTemplate.isConstant() ) {
+			content = bodyTemplate.evaluate( null ).getBytes( charset );
+		} else {
+			content = null;
+			constant = false;
+		}
+	}
+
+	/*
+	 * Extract the charset parameter from a content type declaration.
+	 */
+	private static Charset getCharset( String contentType, Charset defaultCharset ) {
+		int pos = contentType.toLowerCase().indexOf( "charset=" );
+		if ( pos >= 0 ) {
+			String name = contentType.substring( pos + "charset=".length() );
+			int end = name.indexOf( ';' );
+			if ( end >= 0 ) {
+				name = name.substring( 0, end );
+			}
+			name = name.trim().replace( "\"", "" );
+			try {
+				return Charset.forName( name );
+			} catch ( RuntimeException ignore ) {}
+		}
+		return defaultCharset;
 	}
 
 	private String streamAsString( InputStream in ) throws IOException {
@@ -152,6 +223,26 @@ public class Response /*implements Comparable<Response>*/ {
 		return this;
 	}
 
+	/**
+     * Retrieve the delay model of the response.
+     * <p>
+     * @return the delay model. The default value is no delay.
+     */
+    public Delay getDelayModel() {
+    	return delay;
+    }
+
+    /**
+     * Configure the latency of the response.
+     * <p>
+     * @param delay the delay model to sample for each request.
+     * @return the current response.
+     */
+	public Response withDelay( Delay delay ) {
+		this.delay = delay == null ? FixedDelay.NONE : delay;
+		return this;
+	}
+
 	/**
      * Retrieve the current value of the headers property.
      * <p>
@@ -170,9 +261,24 @@ public class Response /*implements Comparable<Response>*/ {
      */
     public Response withHeader( String key, String value ) {
     	headers.put( key, value );
+    	if ( value == null ) {
+    		headerTemplates.remove( key );
+    	} else {
+    		headerTemplates.put( key, Template.compile( value ) );
+    	}
+    	update();
     	return this;
     }
 
+	/**
+     * Retrieve the compiled form of the headers property.
+     * <p>
+     * @return the compiled header values, keyed by header name.
+     */
+    public Map<String, Template> getHeaderTemplates() {
+    	return headerTemplates;
+    }
+
     /**
      * Retrieve the current value of the body property.
      * <p>
@@ -190,9 +296,50 @@ public class Response /*implements Comparable<Response>*/ {
      */
     public Response wtihBody( String body ) {
     	this.body = body;
+    	this.bodyTemplate = Template.compile( body );
+    	update();
     	return this;
     }
 
+    /**
+     * Retrieve the compiled form of the body property.
+     * <p>
+     * @return the compiled body or <code>null</code> if the response has no body.
+     */
+    public Template getBodyTemplate() {
+    	return bodyTemplate;
+    }
+
+    /**
+     * Determine if the response contains no expressions in either its headers or
+     * body, meaning it is identical for every request.
+     * <p>
+     * @return <code>true</code> if the response is static, <code>false</code> otherwise.
+     */
+    public boolean isStatic() {
+    	return constant;
+    }
+
+    /**
+     * Retrieve the encoded form of a static body.
+     * <p>
+     * @return the encoded body or <code>null</code> if the response has no body
+     * or the body contains expressions that must be evaluated for each request.
+     */
+    public byte [] getContent() {
+    	return content;
+    }
+
+    /**
+     * Determine the character set used to encode the body. This is the charset
+     * declared by a static <code>Content-Type</code> header or the platform default.
+     * <p>
+     * @return the body character set.
+     */
+    public Charset getCharset() {
+    	return charset;
+    }
+
     /*
      * (non-Javadoc)
      * @see java.lang.Object#toString()
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import javax.servlet.ServletRequest;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Selects the endpoint that handles a request. Endpoint URI templates are indexed
+ * by HTTP method into a tree of path segments, where each segment is either a literal
+ * or a named variable (<code>{name}</code> or <code>${name}</code>). Lookup cost depends
+ * on the depth of the requested path rather than the number of configured endpoints.
+ * <p>
+ * Templates that cannot be represented as plain segments, for example variables
+ * declaring a regular expression or segments mixing literal text and variables, are
+ * matched using the endpoint URI template instead.
+ * <p>
+ * When more than one endpoint matches a request, the endpoint configured first is
+ * selected. Instances are immutable once built and may be shared between request threads.
+ */
+public class Router {
+
+	/**
+	 * Servlet context attribute the active router is published under.
+	 */
+	public static final String ATTRIBUTE = Router.class.getName();
+
+	/*
+	 * Request attribute holding the endpoint already selected for the request.
+	 */
+	private static final String MATCH_ATTRIBUTE = Router.class.getName() + ".match";
+
+	/*
+	 * The endpoint selected for a request, along with its path variables.
+	 */
+	private static final class Match {
+
+		final Router router;
+		final Endpoint endpoint;
+		final Map<String, String> params;
+
+		Match( Router router, Endpoint endpoint, Map<String, String> params ) {
+			this.router = router;
+			this.endpoint = endpoint;
+			this.params = params;
+		}
+	}
+
+	/*
+	 * An endpoint bound to the tree, along with the positions of the path segments
+	 * that provide its variables.
+	 */
+	private static final class Route {
+
+		final Endpoint endpoint;
+		final int order;
+		final String [] names;
+		final int [] positions;
+
+		Route( Endpoint endpoint, int order, String [] names, int [] positions ) {
+			this.endpoint = endpoint;
+			this.order = order;
+			this.names = names;
+			this.positions = positions;
+		}
+	}
+
+	/*
+	 * A path segment.
+	 */
+	private static final class Node {
+
+		final Map<String, Node> literals = new HashMap<String, Node>();
+		Node variable;
+		Route route;
+		// lowest configuration order of any route at or below this node
+		int order = Integer.MAX_VALUE;
+	}
+
+	private final Map<String, Node> roots = new HashMap<String, Node>();
+	private final Map<String, List<Route>> fallback = new HashMap<String, List<Route>>();
+
+	/**
+	 * Build a router for the provided endpoints.
+	 * <p>
+	 * @param endpoints the endpoints to route to, in order of precedence.
+	 */
+	public Router( List<Endpoint> endpoints ) {
+		int order = 0;
+		for ( Endpoint e : endpoints ) {
+			add( e, order++ );
+		}
+	}
+
+	private void add( Endpoint endpoint, int order ) {
+		String method = endpoint.getMethod().toUpperCase( Locale.ENGLISH );
+		String template = endpoint.getUriTemplate().getTemplate();
+		String [] segments = split( template );
+		List<String> names = new ArrayList<String>();
+		List<Integer> positions = new ArrayList<Integer>();
+		if ( segments != null ) {
+			for ( int i = 0; i < segments.length; i++ ) {
+				String name = getVariable( segments[i] );
+				if ( name != null ) {
+					names.add( name );
+					positions.add( i );
+				} else if ( segments[i].indexOf( '{' ) >= 0 || segments[i].indexOf( '}' ) >= 0 ) {
+					// not a plain segment
+					segments = null;
+					break;
+				}
+			}
+		}
+
+		if ( segments == null ) {
+			List<Route> routes = fallback.get( method );
+			if ( routes == null ) {
+				routes = new ArrayList<Route>();
+				fallback.put( method, routes );
+			}
+			routes.add( new Route( endpoint, order, null, null ) );
+			return;
+		}
+
+		int [] p = new int[ positions.size() ];
+		for ( int i = 0; i < p.length; i++ ) {
+			p[i] = positions.get( i );
+		}
+		Route route = new Route( endpoint, order, names.toArray( new String[ names.size() ] ), p );
+
+		Node node = roots.get( method );
+		if ( node == null ) {
+			node = new Node();
+			roots.put( method, node );
+		}
+		node.order = Math.min( node.order, order );
+		for ( String s : segments ) {
+			Node child;
+			if ( getVariable( s ) != null ) {
+				child = node.variable;
+				if ( child == null ) {
+					child = new Node();
+					node.variable = child;
+				}
+			} else {
+				child = node.literals.get( s );
+				if ( child == null ) {
+					child = new Node();
+					node.literals.put( s, child );
+				}
+			}
+			child.order = Math.min( child.order, order );
+			node = child;
+		}
+		if ( node.route == null ) {
+			// first configured endpoint wins
+			node.route = route;
+		}
+	}
+
+	/**
+	 * Select the endpoint for a request.
+	 * <p>
+	 * @param method the HTTP method of the request.
+	 * @param path the request path.
+	 * @param params receives the values of any path variables declared by the
+	 * selected endpoint.
+	 * @return the selected endpoint or <code>null</code> if no endpoint matches.
+	 */
+	public Endpoint match( String method, String path, Map<String, String> params ) {
+		String key = method.toUpperCase( Locale.ENGLISH );
+		String [] segments = split( path );
+		Route best = null;
+		Node root = roots.get( key );
+		if ( root != null && segments != null ) {
+			best = find( root, segments, 0, null );
+		}
+
+		// templates that are not part of the tree
+		List<Route> routes = fallback.get( key );
+		if ( routes != null ) {
+			for ( Route r : routes ) {
+				if ( best != null && r.order > best.order ) {
+					break;
+				}
+				if ( r.endpoint.getUriTemplate().match( path, params ) ) {
+					return r.endpoint;
+				}
+			}
+		}
+
+		if ( best == null ) {
+			return null;
+		}
+		for ( int i = 0; i < best.names.length; i++ ) {
+			params.put( best.names[i], segments[ best.positions[i] ] );
+		}
+		return best.endpoint;
+	}
+
+	/**
+	 * Select the endpoint for a request and remember the selection, so that
+	 * handling the request later does not select it again. Used by filters that
+	 * need the endpoint before the request is handled.
+	 * <p>
+	 * @param request the request.
+	 * @return the selected endpoint or <code>null</code> if no endpoint matches.
+	 * @see #match(HttpServletRequest, Map)
+	 */
+	public Endpoint resolve( HttpServletRequest request ) {
+		Match m = getMatch( request );
+		if ( m == null ) {
+			Map<String, String> params = new HashMap<String, String>();
+			m = new Match( this, match( request.getMethod(), request.getRequestURI(), params ), params );
+			request.setAttribute( MATCH_ATTRIBUTE, m );
+		}
+		return m.endpoint;
+	}
+
+	/**
+	 * Select the endpoint for a request, reusing any selection made by
+	 * {@link #resolve(HttpServletRequest)}.
+	 * <p>
+	 * @param request the request.
+	 * @param params receives the values of any path variables declared by the
+	 * selected endpoint.
+	 * @return the selected endpoint or <code>null</code> if no endpoint matches.
+	 */
+	public Endpoint match( HttpServletRequest request, Map<String, String> params ) {
+		Match m = getMatch( request );
+		if ( m == null ) {
+			return match( request.getMethod(), request.getRequestURI(), params );
+		}
+		params.putAll( m.params );
+		return m.endpoint;
+	}
+
+	private Match getMatch( ServletRequest request ) {
+		Object obj = request.getAttribute( MATCH_ATTRIBUTE );
+		// selections of a replaced router do not apply
+		return obj instanceof Match && ((Match) obj).router == this ? (Match) obj : null;
+	}
+
+	/*
+	 * Depth first search for the matching route with the lowest configuration order.
+	 * Subtrees that cannot improve on the current best are skipped.
+	 */
+	private Route find( Node node, String [] segments, int depth, Route best ) {
+		if ( best != null && node.order >= best.order ) {
+			return best;
+		}
+		if ( depth == segments.length ) {
+			if ( node.route != null && ( best == null || node.route.order < best.order ) ) {
+				return node.route;
+			}
+			return best;
+		}
+		String segment = segments[ depth ];
+		Node child = node.literals.get( segment );
+		if ( child != null ) {
+			best = find( child, segments, depth + 1, best );
+		}
+		if ( node.variable != null && segment.length() > 0 ) {
+			best = find( node.variable, segments, depth + 1, best );
+		}
+		return best;
+	}
+
+	/*
+	 * Split an absolute path into segments, preserving empty segments so that
+	 * trailing and repeated separators are significant.
+	 */
+	private static String [] split( String path ) {
+		if ( path == null || path.length() == 0 || path.charAt( 0 ) != '/' ) {
+			return null;
+		}
+		int count = 1;
+		for ( int i = 1; i < path.length(); i++ ) {
+			if ( path.charAt( i ) == '/' ) {
+				count++;
+			}
+		}
+		String [] segments = new String[ count ];
+		int start = 1;
+		for ( int i = 0; i < count; i++ ) {
+			int end = path.indexOf( '/', start );
+			if ( end < 0 ) {
+				end = path.length();
+			}
+			segments[i] = path.substring( start, end );
+			start = end + 1;
+		}
+		return segments;
+	}
+
+	/*
+	 * Determine the variable name declared by a template segment.
+	 */
+	private static String getVariable( String segment ) {
+		int start;
+		if ( segment.startsWith( "${" ) ) {
+			start = 2;
+		} else if ( segment.startsWith( "{" ) ) {
+			start = 1;
+		} else {
+			return null;
+		}
+		if ( ! segment.endsWith( "}" ) || segment.length() <= start + 1 ) {
+			return null;
+		}
+		String name = segment.substring( start, segment.length() - 1 ).trim();
+		for ( int i = 0; i < name.length(); i++ ) {
+			char c = name.charAt( i );
+			if ( ! ( Character.isLetterOrDigit( c ) || c == '_' || c == '-' || c == '.' ) ) {
+				return null;
+			}
+		}
+		return name.length() == 0 ? null : name;
+	}
+}
@@ -17,20 +17,35 @@
 package org.rnott.mock;
 
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
 import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.rnott.mock.RequestTimer.Phase;
+import org.rnott.mock.capture.CaptureBuffer;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 /**
- * Serializes an HTTP request for later inspection.
+ * Serializes an HTTP request for later inspection. The request is written as a
+ * compact JSON object in a single pass over its elements, directly to the target
+ * stream, without building an intermediate representation. The response to the
+ * request, the endpoint that produced it and the time spent in each phase of
+ * servicing the request may be included alongside.
+ * <p>
+ * Bodies that are valid UTF-8 are written as text. Any other body is written
+ * base64 encoded, and the object declares the encoding under {@link #KEY_BODY_ENCODING}.
+ * Captured bodies are streamed from their buffer, so a body is never copied in
+ * full before it is written. A captured body cut short by the capture limit is
+ * flagged under {@link #KEY_BODY_TRUNCATED}, along with its original length.
  */
 public class Serializer {
 
@@ -59,79 +74,440 @@ public class Serializer {
 	 */
 	public static final String KEY_BODY = "body";
 
+	/**
+	 * Dictionary key for retrieving the encoding of a body that is not text.
+	 */
+	public static final String KEY_BODY_ENCODING = "bodyEncoding";
+
+	/**
+	 * Dictionary key for retrieving whether the body was cut short by the
+	 * capture limit.
+	 */
+	public static final String KEY_BODY_TRUNCATED = "bodyTruncated";
+
+	/**
+	 * Dictionary key for retrieving the length in bytes of a truncated body
+	 * before it was cut short.
+	 */
+	public static final String KEY_BODY_LENGTH = "bodyLength";
+
+	/**
+	 * Body encoding used for content that is not valid UTF-8.
+	 */
+	public static final String ENCODING_BASE64 = "base64";
+
+	/**
+	 * Dictionary key for retrieving the response dictionary.
+	 */
+	public static final String KEY_RESPONSE = "response";
+
+	/**
+	 * Dictionary key for retrieving the response status.
+	 */
+	public static final String KEY_STATUS = "status";
+
+	/**
+	 * Dictionary key for retrieving the endpoint dictionary.
+	 */
+	public static final String KEY_ENDPOINT = "endpoint";
+
+	/**
+	 * Dictionary key for retrieving the position of the selected response among
+	 * the responses of the endpoint.
+	 */
+	public static final String KEY_SELECTED = "selected";
+
+	/**
+	 * Dictionary key for retrieving the phase timings dictionary. Timings are in
+	 * nanoseconds and keyed by {@link Phase#key()}.
+	 */
+	public static final String KEY_TIMINGS = "timings";
+
+	/**
+	 * Timings key for retrieving the total time spent servicing the request.
+	 */
+	public static final String KEY_TOTAL = "total";
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+	private static final JsonFactory FACTORY = MAPPER.getFactory();
+
 	/**
 	 * Serializes an HTTP request for later inspection.
 	 * <p>
+	 * This is a convenience for inspecting a request; it reads back the output
+	 * of {@link #write(HttpServletRequest, byte[], OutputStream)}.
+	 * <p>
 	 * @param request the request to serialize.
 	 * @param body an optional request body.
 	 * @return a dictionary of request elements.
 	 * @throws IOException if the request cannot be serialized for any reason.
 	 */
+	@SuppressWarnings( "unchecked" )
 	public static Map<String, Object> serialize( HttpServletRequest request, byte [] body ) throws IOException {
-		Map<String, Object> serialized = new HashMap<String, Object>();
-		serialized.put( KEY_METHOD, request.getMethod() );
-		serialized.put( KEY_URI, request.getRequestURI() );
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		write( request, body, out );
+		return MAPPER.readValue( out.toByteArray(), Map.class );
+	}
+
+	/**
+	 * Write an HTTP request as JSON, encoded as UTF-8.
+	 * <p>
+	 * @param request the request to serialize.
+	 * @param body an optional request body.
+	 * @param out the stream to write to. The stream is not closed.
+	 * @throws IOException if the request cannot be written for any reason.
+	 */
+	public static void write( HttpServletRequest request, byte [] body, OutputStream out ) throws IOException {
+		write( request, body, null, null, null, out );
+	}
+
+	/**
+	 * Write an HTTP request and its response as JSON, encoded as UTF-8.
+	 * <p>
+	 * @param request the request to serialize.
+	 * @param body an optional request body.
+	 * @param response an optional response to the request.
+	 * @param responseBody an optional response body.
+	 * @param timer optional timings of the request.
+	 * @param out the stream to write to. The stream is not closed.
+	 * @throws IOException if the request cannot be written for any reason.
+	 */
+	public static void write( HttpServletRequest request, byte [] body,
+			HttpServletResponse response, byte [] responseBody, RequestTimer timer, OutputStream out ) throws IOException {
+		write( request, body == null ? null : new ArrayBody( body ),
+			response, responseBody == null ? null : new ArrayBody( responseBody ), timer, out );
+	}
+
+	/**
+	 * Write a captured HTTP request and its response as JSON, encoded as UTF-8.
+	 * Bodies are read from their buffers as they are written.
+	 * <p>
+	 * @param request the request to serialize.
+	 * @param body the captured request body.
+	 * @param response the response to the request.
+	 * @param responseBody the captured response body.
+	 * @param timer optional timings of the request.
+	 * @param out the stream to write to. The stream is not closed.
+	 * @throws IOException if the request cannot be written for any reason.
+	 */
+	public static void writeCapture( HttpServletRequest request, CaptureBuffer body,
+			HttpServletResponse response, CaptureBuffer responseBody, RequestTimer timer, OutputStream out ) throws IOException {
+		write( request, new BufferBody( body ), response, new BufferBody( responseBody ), timer, out );
+	}
+
+	private static void write( HttpServletRequest request, Body body,
+			HttpServletResponse response, Body responseBody, RequestTimer timer, OutputStream out ) throws IOException {
+		JsonGenerator g = FACTORY.createGenerator( out, JsonEncoding.UTF8 );
+		g.disable( JsonGenerator.Feature.AUTO_CLOSE_TARGET );
+		g.writeStartObject();
+		g.writeStringField( KEY_METHOD, request.getMethod() );
+		g.writeStringField( KEY_URI, request.getRequestURI() );
 
-		// query parameters
-		Map<String, List<String>> params = new HashMap<String, List<String>>();
+		// query parameters, the container already includes those of the query string
+		g.writeObjectFieldStart( KEY_PARAMETERS );
 		Enumeration<String> names = request.getParameterNames();
 		while ( names.hasMoreElements() ) {
 			String key = names.nextElement();
-			if ( ! params.containsKey( key ) ) {
-				params.put( key, new ArrayList<String>() );
-			}
+			g.writeArrayFieldStart( key );
 			for ( String value : request.getParameterValues( key ) ) {
-				params.get( key ).add( value );
-			}
-		}
-		String query = request.getQueryString();
-		if ( query != null ) {
-			for ( String q : query.split( "&" ) ) {
-				int pos = q.indexOf( '=' );
-				String key = q.substring( 0, pos );
-				String value = q.substring( pos + 1 );
-				if ( ! params.containsKey( key ) ) {
-					params.put( key, new ArrayList<String>() );
-				}
-				params.get( key ).add( value );
+				g.writeString( value );
 			}
+			g.writeEndArray();
 		}
-		serialized.put( KEY_PARAMETERS, params );
+		g.writeEndObject();
 
 		// headers
-		Map<String, Object> headers = new HashMap<String, Object>();
+		g.writeObjectFieldStart( KEY_HEADERS );
 		Enumeration<?> hdrs = request.getHeaderNames();
 		while ( hdrs.hasMoreElements() ) {
 			String name = (String) hdrs.nextElement();
-			headers.put( name, getHeaderValues( request, name ) );
+			Enumeration<?> values = request.getHeaders( name );
+			if ( ! values.hasMoreElements() ) {
+				throw new IllegalStateException( "No value for header: " + name );
+			}
+			g.writeArrayFieldStart( name );
+			while ( values.hasMoreElements() ) {
+				g.writeString( String.valueOf( values.nextElement() ) );
+			}
+			g.writeEndArray();
 		}
-		serialized.put( KEY_HEADERS, headers );
+		g.writeEndObject();
 
 		// body
-		if ( body != null && body.length > 0 ) {
-			BufferedReader in = new BufferedReader( new InputStreamReader( new ByteArrayInputStream( body ) ) );
-			ByteArrayOutputStream encoded = new ByteArrayOutputStream();
-			String line = in.readLine();
-			while ( line != null ) {
-				byte [] b = line.getBytes();
-				encoded.write( b );
-				line = in.readLine();
-			}
-			serialized.put( KEY_BODY, new String( encoded.toByteArray() ) );
+		if ( body != null ) {
+			body.write( g, out );
+		}
+
+		if ( timer != null && timer.getEndpoint() != null ) {
+			Endpoint e = timer.getEndpoint();
+			g.writeObjectFieldStart( KEY_ENDPOINT );
+			g.writeStringField( KEY_METHOD, e.getMethod() );
+			g.writeStringField( KEY_URI, e.getUriTemplate().getTemplate() );
+			List<Response> responses = e.getResponses();
+			for ( int i = 0; i < responses.size(); i++ ) {
+				if ( responses.get( i ) == timer.getResponse() ) {
+					g.writeNumberField( KEY_SELECTED, i );
+					break;
+				}
+			}
+			g.writeEndObject();
 		}
 
-		return serialized;
+		if ( response != null ) {
+			g.writeObjectFieldStart( KEY_RESPONSE );
+			g.writeNumberField( KEY_STATUS, response.getStatus() );
+			g.writeObjectFieldStart( KEY_HEADERS );
+			for ( String name : response.getHeaderNames() ) {
+				Collection<String> values = response.getHeaders( name );
+				g.writeArrayFieldStart( name );
+				for ( String value : values ) {
+					g.writeString( value );
+				}
+				g.writeEndArray();
+			}
+			g.writeEndObject();
+			if ( responseBody != null ) {
+				responseBody.write( g, out );
+			}
+			g.writeEndObject();
+		}
+
+		if ( timer != null ) {
+			g.writeObjectFieldStart( KEY_TIMINGS );
+			for ( Phase phase : Phase.values() ) {
+				g.writeNumberField( phase.key(), timer.get( phase ) );
+			}
+			if ( timer.getTotal() >= 0 ) {
+				g.writeNumberField( KEY_TOTAL, timer.getTotal() );
+			}
+			g.writeEndObject();
+		}
+
+		g.writeEndObject();
+		g.close();
+	}
+
+	/*
+	 * A request or response body, written as text when it is valid UTF-8 and
+	 * base64 encoded otherwise.
+	 */
+	private static abstract class Body {
+
+		abstract void write( JsonGenerator g, OutputStream out ) throws IOException;
+	}
+
+	/*
+	 * Body held in an array.
+	 */
+	private static final class ArrayBody extends Body {
+
+		private final byte [] body;
+
+		ArrayBody( byte [] body ) {
+			this.body = body;
+		}
+
+		@Override
+		void write( JsonGenerator g, OutputStream out ) throws IOException {
+			if ( body.length == 0 ) {
+				return;
+			}
+			if ( isText( body ) ) {
+				g.writeFieldName( KEY_BODY );
+				g.writeUTF8String( body, 0, body.length );
+			} else {
+				g.writeStringField( KEY_BODY_ENCODING, ENCODING_BASE64 );
+				g.writeFieldName( KEY_BODY );
+				g.writeBinary( body );
+			}
+		}
 	}
 
-	private static Object getHeaderValues( HttpServletRequest request, String name ) {
-		Enumeration<?> values = request.getHeaders( name );
-		List<Object> v = new ArrayList<Object>( 1 );
-		while ( values.hasMoreElements() ) {
-			v.add( values.nextElement() );
+	/*
+	 * Body held in a capture buffer, possibly spilled to disk. The content is read
+	 * twice, once to determine its encoding and once to write it. A truncated body
+	 * may end part way through a character, the partial character is dropped
+	 * rather than treating the text as binary.
+	 */
+	private static final class BufferBody extends Body {
+
+		private final CaptureBuffer body;
+
+		BufferBody( CaptureBuffer body ) {
+			this.body = body;
 		}
-		if ( v.size() == 0 ) {
-			throw new IllegalStateException( "No value for header: " + name );
+
+		@Override
+		void write( JsonGenerator g, OutputStream out ) throws IOException {
+			long size = body.size();
+			if ( body.isTruncated() ) {
+				g.writeBooleanField( KEY_BODY_TRUNCATED, true );
+				g.writeNumberField( KEY_BODY_LENGTH, body.getLength() );
+			}
+			if ( size == 0 ) {
+				return;
+			}
+			long text;
+			InputStream in = body.getInputStream();
+			try {
+				text = textLength( in, body.isTruncated() );
+			} finally {
+				in.close();
+			}
+
+			in = body.getInputStream();
+			try {
+				if ( text >= 0 ) {
+					// the generator writes the separator and opening quote, the escaped
+					// content is copied directly to the stream behind it
+					g.writeFieldName( KEY_BODY );
+					g.writeRawValue( "\"" );
+					g.flush();
+					writeEscaped( in, out, text );
+					g.writeRaw( '"' );
+				} else {
+					g.writeStringField( KEY_BODY_ENCODING, ENCODING_BASE64 );
+					g.writeFieldName( KEY_BODY );
+					g.writeBinary( in, (int) Math.min( size, Integer.MAX_VALUE ) );
+				}
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	private static final byte [] HEX = "0123456789abcdef".getBytes();
+
+	/*
+	 * Copy up to length bytes of UTF-8 text, escaping it for use in a JSON string.
+	 * Only quotes, backslashes and control characters need escaping.
+	 */
+	static void writeEscaped( InputStream in, OutputStream out, long length ) throws IOException {
+		byte [] b = new byte[ 4096 ];
+		// each byte expands to at most six
+		byte [] escaped = new byte[ b.length * 6 ];
+		while ( length > 0 ) {
+			int n = in.read( b, 0, (int) Math.min( b.length, length ) );
+			if ( n < 0 ) {
+				break;
+			}
+			length -= n;
+			int k = 0;
+			for ( int i = 0; i < n; i++ ) {
+				int c = b[i] & 0xFF;
+				if ( c == '"' || c == '\\' ) {
+					escaped[ k++ ] = '\\';
+					escaped[ k++ ] = (byte) c;
+				} else if ( c >= 0x20 ) {
+					escaped[ k++ ] = (byte) c;
+				} else {
+					escaped[ k++ ] = '\\';
+					switch ( c ) {
+					case '\b': escaped[ k++ ] = 'b'; break;
+					case '\t': escaped[ k++ ] = 't'; break;
+					case '\n': escaped[ k++ ] = 'n'; break;
+					case '\f': escaped[ k++ ] = 'f'; break;
+					case '\r': escaped[ k++ ] = 'r'; break;
+					default:
+						escaped[ k++ ] = 'u';
+						escaped[ k++ ] = '0';
+						escaped[ k++ ] = '0';
+						escaped[ k++ ] = HEX[ c >> 4 ];
+						escaped[ k++ ] = HEX[ c & 0xF ];
+					}
+				}
+			}
+			out.write( escaped, 0, k );
+		}
+	}
+
+	/*
+	 * Determine if streamed content is well formed UTF-8. Sequences may span reads.
+	 */
+	static boolean isText( InputStream in ) throws IOException {
+		return textLength( in, false ) >= 0;
+	}
+
+	/*
+	 * Determine the number of bytes of streamed content that form well formed
+	 * UTF-8, or -1 if the content is not text. When partial, the content may end
+	 * with an incomplete sequence, which is excluded from the length.
+	 */
+	static long textLength( InputStream in, boolean partial ) throws IOException {
+		byte [] b = new byte[ 4096 ];
+		long length = 0;
+		// bytes of an incomplete sequence carried over from the previous read
+		int carry = 0;
+		for ( int n = in.read( b, carry, b.length - carry ); n >= 0; n = in.read( b, carry, b.length - carry ) ) {
+			int end = carry + n;
+			int pos = scan( b, end );
+			if ( pos < 0 ) {
+				return -1;
+			}
+			length += pos;
+			carry = end - pos;
+			System.arraycopy( b, pos, b, 0, carry );
+		}
+		return carry == 0 || partial ? length : -1;
+	}
+
+	/*
+	 * Determine if content is well formed UTF-8.
+	 */
+	static boolean isText( byte [] b ) {
+		return scan( b, b.length ) == b.length;
+	}
+
+	/*
+	 * Validate UTF-8 content, returning the position of an incomplete sequence at
+	 * the end of the content, the length if there is none, or -1 if the content is
+	 * not well formed.
+	 */
+	private static int scan( byte [] b, int length ) {
+		int i = 0;
+		while ( i < length ) {
+			int c = b[i] & 0xFF;
+			if ( c < 0x80 ) {
+				i++;
+				continue;
+			}
+			int n;
+			int min;
+			if ( c >= 0xC2 && c <= 0xDF ) {
+				n = 1;
+				min = 0x80;
+			} else if ( c >= 0xE0 && c <= 0xEF ) {
+				n = 2;
+				min = 0x800;
+			} else if ( c >= 0xF0 && c <= 0xF4 ) {
+				n = 3;
+				min = 0x10000;
+			} else {
+				return -1;
+			}
+			if ( i + n >= length ) {
+				// incomplete sequence, valid so far
+				for ( int k = i + 1; k < length; k++ ) {
+					if ( ( b[k] & 0xC0 ) != 0x80 ) {
+						return -1;
+					}
+				}
+				return i;
+			}
+			int cp = c & ( 0x3F >> n );
+			for ( int k = 1; k <= n; k++ ) {
+				int cc = b[ i + k ] & 0xFF;
+				if ( ( cc & 0xC0 ) != 0x80 ) {
+					return -1;
+				}
+				cp = ( cp << 6 ) | ( cc & 0x3F );
+			}
+			// overlong forms, surrogates and values beyond the Unicode range
+			if ( cp < min || cp > 0x10FFFF || ( cp >= 0xD800 && cp <= 0xDFFF ) ) {
+				return -1;
+			}
+			i += n + 1;
 		}
-		return v;
+		return length;
 	}
 }
@@ -0,0 +1,388 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.ParseTreeWalker;
+import org.rnott.mock.ExpressionLanguageParser.ExpressionContext;
+import org.rnott.mock.ExpressionLanguageParser.LiteralContext;
+import org.rnott.mock.ExpressionLanguageParser.MethodContext;
+import org.rnott.mock.ExpressionLanguageParser.ParameterContext;
+import org.rnott.mock.ExpressionLanguageParser.ParametersContext;
+import org.rnott.mock.ExpressionLanguageParser.PropertyContext;
+import org.rnott.mock.ExpressionLanguageParser.VerbatimContext;
+
+/**
+ * Compiled form of text that may contain expression language (EL) declarations.
+ * The text is parsed exactly once, when the template is compiled, into a sequence of
+ * literal segments and expression nodes. Rendering a template simply walks the nodes,
+ * resolving expressions against the request context of the current thread.
+ * <p>
+ * Instances are immutable and may be shared between request threads.
+ */
+public final class Template {
+
+	/**
+	 * A compiled template element.
+	 */
+	interface Node {
+
+		/**
+		 * Resolve the value of the node.
+		 * <p>
+		 * @param context the request context to resolve against.
+		 * @return the resolved value.
+		 */
+		Object evaluate( MockContext context );
+	}
+
+	/*
+	 * Verbatim text or an EL literal.
+	 */
+	static final class Constant implements Node {
+
+		private final Object value;
+		private volatile Encoded encoded;
+
+		Constant( Object value ) {
+			this.value = value;
+		}
+
+		@Override
+		public Object evaluate( MockContext context ) {
+			return value;
+		}
+
+		/*
+		 * Encoded form of the value, cached for the most recently used charset.
+		 */
+		byte [] getBytes( Charset charset ) {
+			Encoded e = encoded;
+			if ( e == null || ! e.charset.equals( charset ) ) {
+				e = new Encoded( charset, String.valueOf( value ).getBytes( charset ) );
+				encoded = e;
+			}
+			return e.bytes;
+		}
+	}
+
+	/*
+	 * Pairs encoded bytes with the charset used to produce them.
+	 */
+	private static final class Encoded {
+
+		final Charset charset;
+		final byte [] bytes;
+
+		Encoded( Charset charset, byte [] bytes ) {
+			this.charset = charset;
+			this.bytes = bytes;
+		}
+	}
+
+	/*
+	 * EL property, resolved from the request parameters.
+	 */
+	static final class Property implements Node {
+
+		private final String key;
+
+		Property( String key ) {
+			this.key = key;
+		}
+
+		@Override
+		public Object evaluate( MockContext context ) {
+			Map<String, String> params = context.getParameters();
+			String value = params.get( key );
+			if ( value != null || params.containsKey( key ) ) {
+				return value;
+			}
+			throw new IllegalStateException( "Property not present as a request parameter: " + key + " " + params.keySet() );
+		}
+	}
+
+	/*
+	 * EL method, resolved by invoking a registered evaluator.
+	 */
+	static final class Method implements Node {
+
+		private final String type;
+		private final String method;
+		private final Node [] params;
+
+		Method( String type, String method, Node [] params ) {
+			this.type = type;
+			this.method = method;
+			this.params = params;
+		}
+
+		@Override
+		public Object evaluate( MockContext context ) {
+			Object [] args = new Object[ params.length ];
+			for ( int i = 0; i < params.length; i++ ) {
+				args[i] = params[i].evaluate( context );
+			}
+			return context.getEvaluator( type ).evaluate( method, args );
+		}
+	}
+
+	/**
+	 * Compile the provided text using the built-in expression language.
+	 * <p>
+	 * @param text the text to compile.
+	 * @return the compiled template or <code>null</code> if no text was provided.
+	 * @throws IllegalStateException if the text is not valid according to the
+	 * expression language grammar.
+	 */
+	public static Template compile( String text ) {
+		if ( text == null ) {
+			return null;
+		}
+
+		ExpressionLanguageLexer lexer = new ExpressionLanguageLexer( new ANTLRInputStream( text ) );
+		CommonTokenStream tokens = new CommonTokenStream( lexer );
+		ExpressionLanguageParser parser = new ExpressionLanguageParser( tokens );
+		lexer.removeErrorListeners();
+		parser.removeErrorListeners();
+		ParserErrorListener.register( lexer, parser );
+		ParseTree tree = parser.content();
+		Compiler compiler = new Compiler();
+		new ParseTreeWalker().walk( compiler, tree );
+
+		return new Template( text, compiler.getNodes() );
+	}
+
+	private static final AtomicInteger IDS = new AtomicInteger();
+
+	private final int id = IDS.incrementAndGet();
+	private final String source;
+	private final Node [] nodes;
+	private final String constant;
+
+	private Template( String source, Node [] nodes ) {
+		this.source = source;
+		this.nodes = nodes;
+		if ( nodes.length == 1 && nodes[0] instanceof Constant ) {
+			constant = String.valueOf( nodes[0].evaluate( null ) );
+		} else {
+			constant = null;
+		}
+	}
+
+	/**
+	 * Retrieve the text the template was compiled from.
+	 * <p>
+	 * @return the template source.
+	 */
+	public String getSource() {
+		return source;
+	}
+
+	/**
+	 * Get the identifier of the template, unique within the running server. The
+	 * identifier is reported along with the time taken to evaluate the template.
+	 * <p>
+	 * @return the template identifier.
+	 * @see RequestEvents#templateEvaluated(Template, long)
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Determine if the template contains any expressions. A template without
+	 * expressions always evaluates to the same text.
+	 * <p>
+	 * @return <code>true</code> if the template contains no expressions,
+	 * <code>false</code> otherwise.
+	 */
+	public boolean isConstant() {
+		return constant != null;
+	}
+
+	/**
+	 * Render the template using the context associated with the current thread.
+	 * <p>
+	 * @return the resolved text.
+	 */
+	public String evaluate() {
+		return evaluate( MockContext.get() );
+	}
+
+	/**
+	 * Render the template.
+	 * <p>
+	 * @param context the request context used to resolve expressions.
+	 * @return the resolved text.
+	 */
+	public String evaluate( MockContext context ) {
+		if ( constant != null ) {
+			// no expressions
+			return constant;
+		}
+		RequestEvents events = RequestEvents.getDefault();
+		long start = events.isEnabled() ? System.nanoTime() : 0;
+		StringBuilder sb = new StringBuilder( source.length() );
+		evaluate( context, sb );
+		if ( start != 0 ) {
+			events.templateEvaluated( this, System.nanoTime() - start );
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Render the template, appending the result to the provided buffer.
+	 * <p>
+	 * @param context the request context used to resolve expressions.
+	 * @param sb the buffer to append to.
+	 */
+	public void evaluate( MockContext context, StringBuilder sb ) {
+		for ( Node n : nodes ) {
+			sb.append( n.evaluate( context ) );
+		}
+	}
+
+	/**
+	 * Render the template directly to a stream. Verbatim text is encoded once and
+	 * reused; only expression values are encoded for each request. No intermediate
+	 * copy of the complete text is created.
+	 * <p>
+	 * @param context the request context used to resolve expressions.
+	 * @param out the stream to write to.
+	 * @param charset the character set used to encode the text.
+	 * @throws IOException if the stream cannot be written.
+	 */
+	public void evaluate( MockContext context, OutputStream out, Charset charset ) throws IOException {
+		RequestEvents events = RequestEvents.getDefault();
+		long start = constant == null && events.isEnabled() ? System.nanoTime() : 0;
+		for ( Node n : nodes ) {
+			if ( n instanceof Constant ) {
+				out.write( ((Constant) n).getBytes( charset ) );
+			} else {
+				out.write( String.valueOf( n.evaluate( context ) ).getBytes( charset ) );
+			}
+		}
+		if ( start != 0 ) {
+			// includes the time taken to write
+			events.templateEvaluated( this, System.nanoTime() - start );
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return source;
+	}
+
+	/*
+	 * Transforms an EL parse tree into template nodes. Adjacent verbatim
+	 * text is merged into a single constant node.
+	 */
+	private static class Compiler extends ExpressionLanguageBaseListener {
+
+		private final List<Node> nodes = new ArrayList<Node>();
+		private final StringBuilder verbatim = new StringBuilder();
+
+		Node [] getNodes() {
+			flush();
+			if ( nodes.isEmpty() ) {
+				nodes.add( new Constant( "" ) );
+			}
+			return nodes.toArray( new Node[ nodes.size() ] );
+		}
+
+		private void flush() {
+			if ( verbatim.length() > 0 ) {
+				nodes.add( new Constant( verbatim.toString() ) );
+				verbatim.setLength( 0 );
+			}
+		}
+
+		@Override
+		public void enterVerbatim( VerbatimContext ctx ) {
+			// skip escape character
+			Object obj = ctx.getChild( 0 ).getPayload();
+			if ( obj instanceof CommonToken && ((CommonToken) obj).getType() == ExpressionLanguageParser.ESCAPED ) {
+				verbatim.append( ctx.getText().substring( 1 ) );
+			} else {
+				verbatim.append( ctx.getText() );
+			}
+		}
+
+		@Override
+		public void enterExpression( ExpressionContext ctx ) {
+			flush();
+			nodes.add( compile( (ParserRuleContext) ctx.getChild( 0 ) ) );
+		}
+
+		private Node compile( ParserRuleContext ctx ) {
+			switch ( ctx.getRuleIndex() ) {
+			case ExpressionLanguageParser.RULE_literal:
+				return compile( (LiteralContext) ctx );
+			case ExpressionLanguageParser.RULE_method:
+				return compile( (MethodContext) ctx );
+			case ExpressionLanguageParser.RULE_property:
+				return new Property( ctx.getChild( 1 ).getText() );
+			}
+			throw new IllegalStateException( "Unsupported expression: " + ctx.getText() );
+		}
+
+		private Node compile( LiteralContext ctx ) {
+			String s = ctx.getText();
+			switch ( ((CommonToken) ctx.getChild( 0 ).getPayload()).getType() ) {
+			case ExpressionLanguageParser.STRING:
+				// remove surrounding quotes
+				return new Constant( s.substring( 1, s.length() - 1 ) );
+			case ExpressionLanguageParser.INT:
+				return new Constant( Integer.parseInt( s ) );
+			case ExpressionLanguageParser.LONG:
+				return new Constant( Long.parseLong( s.substring( 0, s.length() - 1 ) ) );
+			}
+			return new Constant( s );
+		}
+
+		private Node compile( MethodContext ctx ) {
+			String s = ctx.getChild( 1 ).getText();
+			int pos = s.indexOf( '.' );
+			String type = s.substring( 0, pos );
+			String method = s.substring( pos + 1 );
+			ParametersContext pc = (ParametersContext) ctx.getChild( 2 );
+			List<Node> params = new ArrayList<Node>();
+			for ( int i = 1, count = pc.getChildCount() - 1; i < count; i++ ) {
+				if ( pc.getChild( i ) instanceof ParameterContext ) {
+					params.add( compile( (ParserRuleContext) pc.getChild( i ).getChild( 0 ) ) );
+				}
+			}
+			return new Method( type, method, params.toArray( new Node[ params.size() ] ) );
+		}
+	}
+}
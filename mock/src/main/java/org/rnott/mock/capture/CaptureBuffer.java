@@ -0,0 +1,323 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock.capture;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Accumulates a captured request body. Content is copied into fixed size chunks
+ * drawn from a shared pool, so capturing does not repeatedly grow and copy arrays
+ * and the chunks are reused by later requests. Content beyond the memory limit is
+ * spilled to a temporary file, and content beyond the capture limit is discarded.
+ * <p>
+ * A buffer is used by a single request thread and must be closed to return its
+ * chunks to the pool and remove any temporary file.
+ */
+public class CaptureBuffer implements Closeable {
+
+	/**
+	 * Default number of bytes held in memory before spilling to disk.
+	 */
+	public static final int DEFAULT_MEMORY_LIMIT = 64 * 1024;
+
+	static final int CHUNK_SIZE = 8 * 1024;
+	private static final int MAX_POOLED = 1024;
+
+	private static final Queue<byte []> POOL = new ConcurrentLinkedQueue<byte []>();
+	private static final AtomicInteger POOLED = new AtomicInteger();
+
+	private static byte [] acquire() {
+		byte [] chunk = POOL.poll();
+		if ( chunk == null ) {
+			return new byte[ CHUNK_SIZE ];
+		}
+		POOLED.decrementAndGet();
+		return chunk;
+	}
+
+	private static void release( byte [] chunk ) {
+		// the pool is bounded, surplus chunks are left to the garbage collector
+		if ( POOLED.incrementAndGet() <= MAX_POOLED ) {
+			POOL.offer( chunk );
+		} else {
+			POOLED.decrementAndGet();
+		}
+	}
+
+	private final long limit;
+	private final long memoryLimit;
+	private final File directory;
+	private final List<byte []> chunks = new ArrayList<byte []>();
+	private long size;
+	private long length;
+	private boolean truncated;
+	private File spill;
+	private OutputStream spillStream;
+
+	/**
+	 * Create a buffer.
+	 * <p>
+	 * @param limit the maximum number of bytes captured, or <code>-1</code> for no limit.
+	 * @param memoryLimit the number of bytes held in memory before spilling to disk.
+	 * @param directory the directory temporary files are created in.
+	 */
+	public CaptureBuffer( long limit, long memoryLimit, File directory ) {
+		this.limit = limit < 0 ? Long.MAX_VALUE : limit;
+		this.memoryLimit = memoryLimit;
+		this.directory = directory;
+	}
+
+	/**
+	 * Capture a single byte.
+	 * <p>
+	 * @param b the byte to capture.
+	 * @throws IOException if the content cannot be spilled to disk.
+	 */
+	public void write( int b ) throws IOException {
+		length++;
+		if ( size >= limit ) {
+			truncated = true;
+			return;
+		}
+		if ( spillStream == null && size + 1 > memoryLimit ) {
+			spill();
+		}
+		if ( spillStream != null ) {
+			spillStream.write( b );
+			size++;
+			return;
+		}
+		int pos = (int) ( size % CHUNK_SIZE );
+		if ( pos == 0 ) {
+			chunks.add( acquire() );
+		}
+		chunks.get( chunks.size() - 1 )[ pos ] = (byte) b;
+		size++;
+	}
+
+	/**
+	 * Capture a range of bytes. Bytes beyond the capture limit are discarded.
+	 * <p>
+	 * @param b the bytes to capture.
+	 * @param off the position of the first byte.
+	 * @param len the number of bytes.
+	 * @throws IOException if the content cannot be spilled to disk.
+	 */
+	public void write( byte [] b, int off, int len ) throws IOException {
+		length += len;
+		if ( size + len > limit ) {
+			truncated = true;
+			len = (int) ( limit - size );
+		}
+		if ( len <= 0 ) {
+			return;
+		}
+		if ( spillStream == null && size + len > memoryLimit ) {
+			spill();
+		}
+		if ( spillStream != null ) {
+			spillStream.write( b, off, len );
+			size += len;
+			return;
+		}
+		while ( len > 0 ) {
+			int pos = (int) ( size % CHUNK_SIZE );
+			if ( pos == 0 ) {
+				chunks.add( acquire() );
+			}
+			int n = Math.min( len, CHUNK_SIZE - pos );
+			System.arraycopy( b, off, chunks.get( chunks.size() - 1 ), pos, n );
+			off += n;
+			len -= n;
+			size += n;
+		}
+	}
+
+	/*
+	 * Move the content held in memory to a temporary file.
+	 */
+	private void spill() throws IOException {
+		spill = File.createTempFile( "capture-", ".body", directory );
+		spillStream = new BufferedOutputStream( new FileOutputStream( spill ), CHUNK_SIZE );
+		writeChunks( spillStream );
+		releaseChunks();
+	}
+
+	private void writeChunks( OutputStream out ) throws IOException {
+		long remaining = size;
+		for ( byte [] chunk : chunks ) {
+			int n = (int) Math.min( remaining, CHUNK_SIZE );
+			out.write( chunk, 0, n );
+			remaining -= n;
+		}
+	}
+
+	private void releaseChunks() {
+		for ( byte [] chunk : chunks ) {
+			release( chunk );
+		}
+		chunks.clear();
+	}
+
+	/**
+	 * Get the number of bytes captured.
+	 * <p>
+	 * @return the captured size.
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Get the number of bytes offered to the buffer, including any discarded
+	 * because they exceeded the capture limit.
+	 * <p>
+	 * @return the length of the original content.
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Determine if content was discarded because it exceeded the capture limit.
+	 * <p>
+	 * @return <code>true</code> if the captured content is incomplete.
+	 */
+	public boolean isTruncated() {
+		return truncated;
+	}
+
+	/**
+	 * Determine if the captured content was spilled to disk.
+	 * <p>
+	 * @return <code>true</code> if the content is held in a temporary file.
+	 */
+	public boolean isSpilled() {
+		return spill != null;
+	}
+
+	/**
+	 * Read the captured content. Content held in memory is read in place, so the
+	 * stream must be read before anything else is written to the buffer.
+	 * <p>
+	 * @return a stream providing the captured content.
+	 * @throws IOException if spilled content cannot be read.
+	 */
+	public InputStream getInputStream() throws IOException {
+		if ( spill != null ) {
+			spillStream.flush();
+			return new FileInputStream( spill );
+		}
+		return new ChunkInputStream();
+	}
+
+	/**
+	 * Copy the captured content.
+	 * <p>
+	 * @return the captured content.
+	 * @throws IOException if spilled content cannot be read.
+	 */
+	public byte [] toByteArray() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream( (int) Math.min( size, Integer.MAX_VALUE ) );
+		if ( spill != null ) {
+			spillStream.flush();
+			InputStream in = new FileInputStream( spill );
+			try {
+				byte [] b = new byte[ CHUNK_SIZE ];
+				for ( int n = in.read( b ); n >= 0; n = in.read( b ) ) {
+					out.write( b, 0, n );
+				}
+			} finally {
+				in.close();
+			}
+		} else {
+			writeChunks( out );
+		}
+		return out.toByteArray();
+	}
+
+	/*
+	 * Reads the chunks held in memory.
+	 */
+	private final class ChunkInputStream extends InputStream {
+
+		private final long end = size;
+		private long pos;
+
+		@Override
+		public int read() throws IOException {
+			if ( pos >= end ) {
+				return -1;
+			}
+			int c = chunks.get( (int) ( pos / CHUNK_SIZE ) )[ (int) ( pos % CHUNK_SIZE ) ] & 0xFF;
+			pos++;
+			return c;
+		}
+
+		@Override
+		public int read( byte [] b, int off, int len ) throws IOException {
+			if ( len == 0 ) {
+				return 0;
+			}
+			if ( pos >= end ) {
+				return -1;
+			}
+			int offset = (int) ( pos % CHUNK_SIZE );
+			int n = (int) Math.min( Math.min( len, end - pos ), CHUNK_SIZE - offset );
+			System.arraycopy( chunks.get( (int) ( pos / CHUNK_SIZE ) ), offset, b, off, n );
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return (int) Math.min( end - pos, Integer.MAX_VALUE );
+		}
+	}
+
+	/**
+	 * Return pooled memory and remove any temporary file.
+	 */
+	@Override
+	public void close() {
+		releaseChunks();
+		if ( spillStream != null ) {
+			try {
+				spillStream.close();
+			} catch ( IOException ignore ) {}
+			spillStream = null;
+		}
+		if ( spill != null ) {
+			spill.delete();
+			spill = null;
+		}
+	}
+}
@@ -0,0 +1,382 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock.capture;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/**
+ * In-memory index of the captures held by a log. Entries are kept in capture order
+ * with non-decreasing timestamps, so paginated and time-ranged queries start with a
+ * binary search rather than a scan from the oldest capture. Lookup by correlation id
+ * is a hash lookup.
+ * <p>
+ * Each HTTP method, request URI and response status also has a posting list of the
+ * sequence numbers of its captures. A query filtering on any of these visits only
+ * the captures present in every selected list, rather than every capture in its
+ * time range.
+ * <p>
+ * Entries are added by the log writer once the capture is on disk; queries may
+ * run concurrently with the writer. A query holds the read lock for at most
+ * {@link #CHUNK} captures at a time, so a broad query never stalls the writer
+ * for longer than that.
+ */
+final class CaptureIndex {
+
+	/*
+	 * Location and searchable attributes of a capture.
+	 */
+	static final class Entry {
+
+		final long sequence;
+		final String id;
+		final long timestamp;
+		final String method;
+		final String uri;
+		final int status;
+		final int segment;
+		final long offset;
+		final int length;
+
+		Entry( long sequence, Record r, long timestamp, int segment, long offset ) {
+			this.sequence = sequence;
+			this.id = r.getId();
+			this.timestamp = timestamp;
+			this.method = r.getMethod();
+			this.uri = r.getUri();
+			this.status = r.getStatus();
+			this.segment = segment;
+			this.offset = offset;
+			this.length = r.getLength();
+		}
+	}
+
+	/*
+	 * Ascending sequence numbers of the captures sharing an attribute value.
+	 * Entries are only ever appended and removed oldest first.
+	 */
+	private static final class Postings {
+
+		private long [] sequences = new long[ 8 ];
+		private int head;
+		private int tail;
+
+		void add( long sequence ) {
+			if ( tail == sequences.length ) {
+				int size = tail - head;
+				// compact in place while at most half full, otherwise grow
+				long [] target = size * 2 > sequences.length ? new long[ sequences.length * 2 ] : sequences;
+				System.arraycopy( sequences, head, target, 0, size );
+				sequences = target;
+				head = 0;
+				tail = size;
+			}
+			sequences[ tail++ ] = sequence;
+		}
+
+		boolean removeFirst() {
+			head++;
+			return head == tail;
+		}
+
+		/*
+		 * Smallest sequence number at or after the specified one, or -1 if none.
+		 */
+		long ceiling( long sequence ) {
+			int low = head;
+			int high = tail;
+			while ( low < high ) {
+				int mid = ( low + high ) >>> 1;
+				if ( sequences[ mid ] < sequence ) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low < tail ? sequences[ low ] : -1;
+		}
+	}
+
+	/**
+	 * Maximum number of captures examined by a query while holding the read lock.
+	 */
+	static final int CHUNK = 1024;
+
+	private static final Comparator<Entry> SEQUENCE = new Comparator<Entry>() {
+		@Override
+		public int compare( Entry a, Entry b ) {
+			return a.sequence < b.sequence ? -1 : a.sequence == b.sequence ? 0 : 1;
+		}
+	};
+
+	private final List<Entry> entries = new ArrayList<Entry>();
+	private final Map<String, Entry> ids = new HashMap<String, Entry>();
+	private final Map<String, Postings> methods = new HashMap<String, Postings>();
+	private final Map<String, Postings> uris = new HashMap<String, Postings>();
+	private final Map<Integer, Postings> statuses = new HashMap<Integer, Postings>();
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	// sequence number of the first entry
+	private long base;
+	private long timestamp = Long.MIN_VALUE;
+
+	/**
+	 * Index a capture that has been written.
+	 * <p>
+	 * @param r the capture.
+	 * @param segment the segment the capture data was written to.
+	 * @param offset the position of the capture data within the segment.
+	 * @return the index entry.
+	 */
+	Entry add( Record r, int segment, long offset ) {
+		lock.writeLock().lock();
+		try {
+			// captures are queued in roughly time order, keep the index strictly ordered
+			timestamp = Math.max( timestamp, r.getTimestamp() );
+			Entry e = new Entry( base + entries.size(), r, timestamp, segment, offset );
+			entries.add( e );
+			if ( e.id != null ) {
+				ids.put( e.id, e );
+			}
+			if ( e.method != null ) {
+				post( methods, e.method.toUpperCase( Locale.ENGLISH ), e.sequence );
+			}
+			if ( e.uri != null ) {
+				post( uris, e.uri, e.sequence );
+			}
+			post( statuses, e.status, e.sequence );
+			return e;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Remove the captures held by a segment, and any earlier segment. Segments
+	 * are removed oldest first, so these are always the oldest entries.
+	 * <p>
+	 * @param segment the segment being removed.
+	 * @return the number of entries removed.
+	 */
+	int remove( int segment ) {
+		lock.writeLock().lock();
+		try {
+			int count = 0;
+			while ( count < entries.size() && entries.get( count ).segment <= segment ) {
+				Entry e = entries.get( count++ );
+				if ( e.id != null && ids.get( e.id ) == e ) {
+					ids.remove( e.id );
+				}
+				if ( e.method != null ) {
+					unpost( methods, e.method.toUpperCase( Locale.ENGLISH ) );
+				}
+				if ( e.uri != null ) {
+					unpost( uris, e.uri );
+				}
+				unpost( statuses, e.status );
+			}
+			entries.subList( 0, count ).clear();
+			base += count;
+			return count;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the number of indexed captures.
+	 * <p>
+	 * @return the number of captures.
+	 */
+	int size() {
+		lock.readLock().lock();
+		try {
+			return entries.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Find the captures selected by a query, in capture order. At most one entry
+	 * more than the query limit is returned, indicating more results are available.
+	 * <p>
+	 * Captures removed while the query runs are not returned, captures added
+	 * while it runs may be.
+	 * <p>
+	 * @param query the selection criteria.
+	 * @return the matching entries.
+	 */
+	List<Entry> find( CaptureQuery query ) {
+		long max = query.getLimit() + 1L;
+		List<Entry> results = new ArrayList<Entry>();
+		if ( query.getIds() != null ) {
+			lock.readLock().lock();
+			try {
+				for ( String id : query.getIds() ) {
+					Entry e = ids.get( id );
+					if ( e != null && query.matches( e ) ) {
+						results.add( e );
+					}
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+			Collections.sort( results, SEQUENCE );
+			return results.size() > max ? new ArrayList<Entry>( results.subList( 0, (int) max ) ) : results;
+		}
+
+		// position is tracked by sequence number, entries may be removed between chunks
+		long next = query.getAfter() + 1;
+		boolean first = true;
+		while ( next >= 0 ) {
+			lock.readLock().lock();
+			try {
+				if ( first ) {
+					next = Math.max( next, base + lowerBound( query.getFrom() ) );
+					first = false;
+				}
+				next = scan( query, Math.max( next, base ), max, results );
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+		return results;
+	}
+
+	/*
+	 * Examine up to a chunk of captures starting at the specified sequence number,
+	 * adding those selected to the results. Returns the sequence number to continue
+	 * from, or -1 when the query is complete.
+	 */
+	private long scan( CaptureQuery query, long next, long max, List<Entry> results ) {
+		List<Postings> lists = postings( query );
+		if ( lists == null ) {
+			// no capture has the selected method, URI or status
+			return -1;
+		}
+		long end = base + entries.size();
+		for ( int examined = 0; examined < CHUNK; examined++ ) {
+			if ( ! lists.isEmpty() ) {
+				next = intersect( lists, next );
+			}
+			if ( next < 0 || next >= end ) {
+				return -1;
+			}
+			Entry e = entries.get( (int) ( next - base ) );
+			if ( e.timestamp > query.getTo() ) {
+				return -1;
+			}
+			if ( query.matches( e ) ) {
+				results.add( e );
+				if ( results.size() >= max ) {
+					return -1;
+				}
+			}
+			next++;
+		}
+		return next;
+	}
+
+	/*
+	 * Posting lists for the exact-match criteria of a query, empty if it has none,
+	 * or null if some criterion matches no capture.
+	 */
+	private List<Postings> postings( CaptureQuery query ) {
+		List<Postings> lists = new ArrayList<Postings>( 3 );
+		if ( query.getMethod() != null && ! add( lists, methods.get( query.getMethod().toUpperCase( Locale.ENGLISH ) ) ) ) {
+			return null;
+		}
+		if ( query.getUri() != null && ! query.isPrefix() && ! add( lists, uris.get( query.getUri() ) ) ) {
+			return null;
+		}
+		if ( query.getStatus() != 0 && ! add( lists, statuses.get( query.getStatus() ) ) ) {
+			return null;
+		}
+		return lists;
+	}
+
+	private static boolean add( List<Postings> lists, Postings postings ) {
+		return postings != null && lists.add( postings );
+	}
+
+	/*
+	 * Smallest sequence number at or after the specified one present in every
+	 * posting list, or -1 if none. Each list in turn skips ahead to the largest
+	 * candidate seen so far, until all of them agree.
+	 */
+	private static long intersect( List<Postings> lists, long sequence ) {
+		int agreed = 0;
+		for ( int i = 0; agreed < lists.size(); i = ( i + 1 ) % lists.size() ) {
+			long s = lists.get( i ).ceiling( sequence );
+			if ( s < 0 ) {
+				return -1;
+			}
+			if ( s == sequence ) {
+				agreed++;
+			} else {
+				sequence = s;
+				agreed = 1;
+			}
+		}
+		return sequence;
+	}
+
+	private static <K> void post( Map<K, Postings> index, K key, long sequence ) {
+		Postings postings = index.get( key );
+		if ( postings == null ) {
+			postings = new Postings();
+			index.put( key, postings );
+		}
+		postings.add( sequence );
+	}
+
+	/*
+	 * Remove the oldest sequence number posted for a key, which is always the
+	 * entry being removed.
+	 */
+	private static <K> void unpost( Map<K, Postings> index, K key ) {
+		Postings postings = index.get( key );
+		if ( postings != null && postings.removeFirst() ) {
+			index.remove( key );
+		}
+	}
+
+	/*
+	 * Position of the first entry captured at or after the specified time.
+	 */
+	private int lowerBound( long time ) {
+		int low = 0;
+		int high = entries.size();
+		while ( low < high ) {
+			int mid = ( low + high ) >>> 1;
+			if ( entries.get( mid ).timestamp < time ) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+}
@@ -0,0 +1,552 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock.capture;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Append-only store for captured requests. Captures are handed to a background
+ * writer through a bounded queue, so request threads never wait for the disk, and are
+ * written in batches to rolling segment files. Each record is length prefixed:
+ * <pre>
+ * int    length of the remainder of the record
+ * short  length of the identifier
+ * byte[] identifier (UTF-8)
+ * byte[] captured data
+ * </pre>
+ * When the queue is full, captures are dropped rather than slowing down requests.
+ * A batch that cannot be written is dropped and counted as a write error.
+ * <p>
+ * Written captures are indexed in memory by correlation id, method, URI, response
+ * status and capture time. Queries are answered from the index and only the selected
+ * records are read back from the segment files.
+ * <p>
+ * The log may be limited in total size, in the age of its captures, or both. Whole
+ * segments are evicted, oldest first, once a limit is exceeded; the segment being
+ * written is evicted only after it expires.
+ * <p>
+ * Segments left in the directory by an earlier log are deleted when the log is
+ * created. Their captures could not be queried, as the index is held in memory,
+ * and would only use up the retention limits.
+ */
+public class CaptureLog implements CaptureStore {
+
+	/**
+	 * Default maximum size of a segment file in bytes.
+	 */
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	/**
+	 * Default number of captures that may wait for the writer.
+	 */
+	public static final int DEFAULT_QUEUE_SIZE = 10000;
+
+	static final String PREFIX = "capture-";
+	static final String SUFFIX = ".log";
+	private static final int BATCH_SIZE = 256;
+	private static final int HEADER_SIZE = 6;
+	private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+	private final File directory;
+	private final long segmentSize;
+	private final BlockingQueue<Record> queue;
+	private final Thread writer;
+	private final AtomicLong appended = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong writeErrors = new AtomicLong();
+	private final AtomicLong evicted = new AtomicLong();
+	private final Object lock = new Object();
+	private final CaptureIndex index = new CaptureIndex();
+	private final long maxSize;
+	private final long maxAge;
+	private long written;
+	private volatile long bytesWritten;
+	private volatile boolean closed;
+
+	/*
+	 * Size and age of a segment file.
+	 */
+	private static final class Segment {
+
+		final int number;
+		long size;
+		long modified;
+
+		Segment( int number, long size, long modified ) {
+			this.number = number;
+			this.size = size;
+			this.modified = modified;
+		}
+	}
+
+	// owned by the writer thread
+	private FileChannel channel;
+	private int segment;
+	private long position;
+	private ByteBuffer buffer = ByteBuffer.allocate( 64 * 1024 );
+	private final int [] segments = new int[ BATCH_SIZE ];
+	private final long [] offsets = new long[ BATCH_SIZE ];
+	// segment files, oldest first, and their combined size
+	private final Deque<Segment> retained = new ArrayDeque<Segment>();
+	private long retainedSize;
+
+	/**
+	 * Create a log with default settings.
+	 * <p>
+	 * @param directory the directory segment files are written to.
+	 */
+	public CaptureLog( File directory ) {
+		this( directory, DEFAULT_SEGMENT_SIZE, DEFAULT_QUEUE_SIZE );
+	}
+
+	/**
+	 * Create a log.
+	 * <p>
+	 * @param directory the directory segment files are written to.
+	 * @param segmentSize the size in bytes after which a new segment is started.
+	 * @param queueSize the number of captures that may wait for the writer.
+	 */
+	public CaptureLog( File directory, long segmentSize, int queueSize ) {
+		this( directory, segmentSize, queueSize, 0, 0 );
+	}
+
+	/**
+	 * Create a log with limited retention.
+	 * <p>
+	 * @param directory the directory segment files are written to.
+	 * @param segmentSize the size in bytes after which a new segment is started.
+	 * @param queueSize the number of captures that may wait for the writer.
+	 * @param maxSize the total size in bytes of the segments retained, or
+	 * <code>0</code> for no limit.
+	 * @param maxAge the time in milliseconds captures are retained, or
+	 * <code>0</code> for no limit.
+	 */
+	public CaptureLog( File directory, long segmentSize, int queueSize, long maxSize, long maxAge ) {
+		if ( segmentSize <= 0 || queueSize <= 0 ) {
+			throw new IllegalStateException( "Capture log sizes must be positive: segment="
+				+ segmentSize + ", queue=" + queueSize );
+		}
+		if ( maxSize < 0 || maxAge < 0 ) {
+			throw new IllegalStateException( "Capture log retention must not be negative: size="
+				+ maxSize + ", age=" + maxAge );
+		}
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.maxSize = maxSize;
+		this.maxAge = maxAge;
+		directory.mkdirs();
+		for ( File f : getSegments() ) {
+			f.delete();
+		}
+		queue = new ArrayBlockingQueue<Record>( queueSize );
+		writer = new Thread( new Runnable() {
+			@Override
+			public void run() {
+				write();
+			}
+		}, "capture-writer" );
+		writer.setDaemon( true );
+		writer.start();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.rnott.mock.capture.CaptureStore#append(org.rnott.mock.capture.Record)
+	 */
+	@Override
+	public boolean append( Record record ) {
+		if ( ! closed ) {
+			appended.incrementAndGet();
+			if ( queue.offer( record ) ) {
+				return true;
+			}
+			appended.decrementAndGet();
+		}
+		dropped.incrementAndGet();
+		return false;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.rnott.mock.capture.CaptureStore#flush(long)
+	 */
+	@Override
+	public boolean flush( long timeout ) throws InterruptedException {
+		long target = appended.get();
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized ( lock ) {
+			while ( written < target ) {
+				long remaining = deadline - System.currentTimeMillis();
+				if ( remaining <= 0 || ! writer.isAlive() ) {
+					return false;
+				}
+				lock.wait( remaining );
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.rnott.mock.capture.CaptureStore#getDropped()
+	 */
+	@Override
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.rnott.mock.capture.CaptureStore#getWriteErrors()
+	 */
+	@Override
+	public long getWriteErrors() {
+		return writeErrors.get();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.rnott.mock.capture.CaptureStore#getEvicted()
+	 */
+	@Override
+	public long getEvicted() {
+		return evicted.get();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.rnott.mock.capture.CaptureStore#getBytesWritten()
+	 */
+	@Override
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.rnott.mock.capture.CaptureStore#getPending()
+	 */
+	@Override
+	public int getPending() {
+		return queue.size();
+	}
+
+	/**
+	 * Get the segment files of the log, oldest first.
+	 * <p>
+	 * @return the segment files.
+	 */
+	public List<File> getSegments() {
+		File [] files = directory.listFiles( new FilenameFilter() {
+			@Override
+			public boolean accept( File dir, String name ) {
+				return name.startsWith( PREFIX ) && name.endsWith( SUFFIX );
+			}
+		});
+		if ( files == null ) {
+			return new ArrayList<File>();
+		}
+		// fixed width names sort in creation order
+		Arrays.sort( files );
+		return new ArrayList<File>( Arrays.asList( files ) );
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.rnott.mock.capture.CaptureStore#size()
+	 */
+	@Override
+	public int size() {
+		return index.size();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.rnott.mock.capture.CaptureStore#read(org.rnott.mock.capture.CaptureStore.Visitor)
+	 */
+	@Override
+	public void read( Visitor visitor ) throws IOException {
+		CaptureQuery query = new CaptureQuery();
+		Page page = query( query );
+		while ( page.read( visitor ) && page.getNext() >= 0 ) {
+			page = query( query.withAfter( page.getNext() ) );
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.rnott.mock.capture.CaptureStore#query(org.rnott.mock.capture.CaptureQuery)
+	 */
+	@Override
+	public Page query( CaptureQuery query ) {
+		List<CaptureIndex.Entry> entries = index.find( query );
+		if ( entries.size() > query.getLimit() ) {
+			entries = entries.subList( 0, query.getLimit() );
+			return new LogPage( entries, entries.get( entries.size() - 1 ).sequence );
+		}
+		return new LogPage( entries, -1 );
+	}
+
+	/*
+	 * Page of indexed captures. Record data is read from the segment files
+	 * when the page is read.
+	 */
+	private final class LogPage implements Page {
+
+		private final List<CaptureIndex.Entry> entries;
+		private final long next;
+
+		LogPage( List<CaptureIndex.Entry> entries, long next ) {
+			this.entries = entries;
+			this.next = next;
+		}
+
+		@Override
+		public int size() {
+			return entries.size();
+		}
+
+		@Override
+		public long getNext() {
+			return next;
+		}
+
+		@Override
+		public boolean read( Visitor visitor ) throws IOException {
+			Map<Integer, RandomAccessFile> files = new HashMap<Integer, RandomAccessFile>();
+			try {
+				for ( CaptureIndex.Entry e : entries ) {
+					byte [] data = CaptureLog.this.read( files, e );
+					if ( data != null && ! visitor.visit(
+						new Record( e.sequence, e.id, e.timestamp, e.method, e.uri, e.status, data ) ) ) {
+						return false;
+					}
+				}
+				return true;
+			} finally {
+				for ( RandomAccessFile f : files.values() ) {
+					f.close();
+				}
+			}
+		}
+	}
+
+	/*
+	 * Read the data of an indexed capture.
+	 */
+	private byte [] read( Map<Integer, RandomAccessFile> files, CaptureIndex.Entry e ) throws IOException {
+		RandomAccessFile f = files.get( e.segment );
+		if ( f == null ) {
+			try {
+				f = new RandomAccessFile( getSegment( e.segment ), "r" );
+			} catch ( FileNotFoundException ex ) {
+				return null;
+			}
+			files.put( e.segment, f );
+		}
+		byte [] data = new byte[ e.length ];
+		f.seek( e.offset );
+		f.readFully( data );
+		return data;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.rnott.mock.capture.CaptureStore#close()
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		try {
+			writer.join();
+		} catch ( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Close the log and remove its segment files.
+	 */
+	public void delete() {
+		close();
+		for ( File f : getSegments() ) {
+			f.delete();
+		}
+	}
+
+	/*
+	 * Writer thread: drain the queue in batches until closed.
+	 */
+	private void write() {
+		List<Record> batch = new ArrayList<Record>( BATCH_SIZE );
+		try {
+			while ( true ) {
+				Record r;
+				try {
+					r = queue.poll( 100, TimeUnit.MILLISECONDS );
+				} catch ( InterruptedException e ) {
+					r = null;
+				}
+				if ( r == null ) {
+					if ( closed && queue.isEmpty() ) {
+						return;
+					}
+					// expire while idle
+					evict();
+					continue;
+				}
+				batch.add( r );
+				queue.drainTo( batch, BATCH_SIZE - 1 );
+				try {
+					write( batch );
+				} catch ( Throwable t ) {
+					// the batch is lost, start again with a new segment
+					dropped.addAndGet( batch.size() );
+					writeErrors.incrementAndGet();
+					closeSegment();
+				}
+				// retention is applied before the batch is visible to flush()
+				evict();
+				synchronized ( lock ) {
+					written += batch.size();
+					lock.notifyAll();
+				}
+				batch.clear();
+			}
+		} finally {
+			closeSegment();
+		}
+	}
+
+	private void write( List<Record> batch ) throws IOException {
+		buffer.clear();
+		for ( int i = 0; i < batch.size(); i++ ) {
+			Record r = batch.get( i );
+			byte [] id = r.getId() == null ? new byte[0] : r.getId().getBytes( UTF8 );
+			int size = HEADER_SIZE + id.length + r.getLength();
+			if ( channel == null || ( position + buffer.position() > 0 && position + buffer.position() + size > segmentSize ) ) {
+				flushBuffer();
+				openSegment();
+			}
+			if ( buffer.remaining() < size ) {
+				flushBuffer();
+				if ( buffer.capacity() < size ) {
+					buffer = ByteBuffer.allocate( size );
+				}
+			}
+			buffer.putInt( size - 4 );
+			buffer.putShort( (short) id.length );
+			buffer.put( id );
+			segments[i] = segment;
+			offsets[i] = position + buffer.position();
+			buffer.put( r.array(), 0, r.getLength() );
+		}
+		flushBuffer();
+
+		// searchable once written
+		for ( int i = 0; i < batch.size(); i++ ) {
+			index.add( batch.get( i ), segments[i], offsets[i] );
+		}
+	}
+
+	private void flushBuffer() throws IOException {
+		buffer.flip();
+		int n = 0;
+		while ( buffer.hasRemaining() ) {
+			n += channel.write( buffer );
+		}
+		buffer.clear();
+		if ( n > 0 ) {
+			position += n;
+			bytesWritten += n;
+			retainedSize += n;
+			Segment s = retained.peekLast();
+			s.size += n;
+			s.modified = System.currentTimeMillis();
+		}
+	}
+
+	private void openSegment() throws IOException {
+		closeSegment();
+		segment++;
+		channel = new FileOutputStream( getSegment( segment ), true ).getChannel();
+		position = channel.size();
+		retained.add( new Segment( segment, position, System.currentTimeMillis() ) );
+		retainedSize += position;
+	}
+
+	/*
+	 * Remove the oldest segments until the retention limits are met.
+	 */
+	private void evict() {
+		if ( maxSize == 0 && maxAge == 0 ) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		while ( ! retained.isEmpty() ) {
+			Segment s = retained.peekFirst();
+			boolean expired = maxAge > 0 && s.modified < now - maxAge;
+			boolean active = channel != null && s.number == segment;
+			if ( active && expired ) {
+				// nothing written for a while, start a new segment on the next write
+				closeSegment();
+				active = false;
+			}
+			if ( active || ! ( expired || ( maxSize > 0 && retainedSize > maxSize ) ) ) {
+				return;
+			}
+			retained.removeFirst();
+			retainedSize -= s.size;
+			evicted.addAndGet( index.remove( s.number ) );
+			getSegment( s.number ).delete();
+		}
+	}
+
+	private void closeSegment() {
+		if ( channel != null ) {
+			try {
+				channel.close();
+			} catch ( IOException ignore ) {}
+			channel = null;
+			position = 0;
+		}
+	}
+
+	private File getSegment( int number ) {
+		return new File( directory, String.format( "%s%010d%s", PREFIX, number, SUFFIX ) );
+	}
+}
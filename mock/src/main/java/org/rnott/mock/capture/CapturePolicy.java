@@ -0,0 +1,238 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock.capture;
+
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Decides which requests to an endpoint are captured, and how much of their body.
+ * A policy is configured either as one of the names <code>always</code> or
+ * <code>off</code>, or as a dictionary whose <code>policy</code> attribute selects
+ * one of the following:
+ * <ul>
+ * <li>always: every request
+ * <li>off: no requests
+ * <li>every: one request in <code>n</code>
+ * <li>probability: each request with probability <code>rate</code> (0 to 1)
+ * <li>first: the first <code>n</code> requests
+ * <li>reservoir: a uniform sample of <code>size</code> requests
+ * </ul>
+ * A dictionary may also declare <code>maxBodySize</code>, the maximum number of
+ * request body bytes captured.
+ * <p>
+ * Policies are evaluated by request threads concurrently and never block.
+ */
+public abstract class CapturePolicy {
+
+	/**
+	 * Capture every request.
+	 */
+	public static final CapturePolicy ALWAYS = new CapturePolicy( -1 ) {
+		@Override
+		public boolean sample() {
+			return true;
+		}
+	};
+
+	/**
+	 * Capture no requests.
+	 */
+	public static final CapturePolicy OFF = new CapturePolicy( -1 ) {
+		@Override
+		public boolean sample() {
+			return false;
+		}
+	};
+
+	/**
+	 * Create a policy from its configuration.
+	 * <p>
+	 * @param spec the policy configuration.
+	 * @param defaultPolicy the policy to use if no configuration is provided.
+	 * @return the configured policy.
+	 * @throws IllegalStateException if the configuration is not valid.
+	 */
+	public static CapturePolicy create( Object spec, CapturePolicy defaultPolicy ) {
+		if ( spec == null ) {
+			return defaultPolicy;
+		}
+		if ( spec instanceof String ) {
+			return create( (String) spec, null, -1 );
+		}
+		if ( ! ( spec instanceof Map ) ) {
+			throw new IllegalStateException( "Capture policy must be a name or a dictionary: " + spec );
+		}
+		Map<?, ?> attributes = (Map<?, ?>) spec;
+		Object type = attributes.get( "policy" );
+		if ( type == null ) {
+			throw new IllegalStateException( "Capture policy missing required 'policy' attribute: " + spec );
+		}
+		int maxBodySize = -1;
+		if ( attributes.containsKey( "maxBodySize" ) ) {
+			maxBodySize = getNumber( attributes, "maxBodySize" ).intValue();
+			if ( maxBodySize < 0 ) {
+				throw new IllegalStateException( "Capture policy 'maxBodySize' must not be negative: " + spec );
+			}
+		}
+		return create( String.valueOf( type ), attributes, maxBodySize );
+	}
+
+	private static CapturePolicy create( String type, Map<?, ?> attributes, int maxBodySize ) {
+		String key = type.toLowerCase();
+		if ( "always".equals( key ) ) {
+			return maxBodySize < 0 ? ALWAYS : new Every( 1, maxBodySize );
+		} else if ( "off".equals( key ) ) {
+			return OFF;
+		} else if ( attributes != null && "every".equals( key ) ) {
+			return new Every( getCount( attributes, "n" ), maxBodySize );
+		} else if ( attributes != null && "first".equals( key ) ) {
+			return new First( getCount( attributes, "n" ), maxBodySize );
+		} else if ( attributes != null && "reservoir".equals( key ) ) {
+			return new Reservoir( getCount( attributes, "size" ), maxBodySize );
+		} else if ( attributes != null && "probability".equals( key ) ) {
+			double rate = getNumber( attributes, "rate" ).doubleValue();
+			if ( ! ( rate >= 0 && rate <= 1 ) ) {
+				throw new IllegalStateException( "Capture policy 'rate' must be between 0 and 1: " + rate );
+			}
+			return new Probability( rate, maxBodySize );
+		}
+		throw new IllegalStateException( "Unsupported capture policy: " + type );
+	}
+
+	private static Number getNumber( Map<?, ?> attributes, String name ) {
+		Object value = attributes.get( name );
+		if ( ! ( value instanceof Number ) ) {
+			throw new IllegalStateException( "Capture policy missing required numeric '" + name + "' attribute: " + attributes );
+		}
+		return (Number) value;
+	}
+
+	private static long getCount( Map<?, ?> attributes, String name ) {
+		long value = getNumber( attributes, name ).longValue();
+		if ( value <= 0 ) {
+			throw new IllegalStateException( "Capture policy '" + name + "' must be positive: " + value );
+		}
+		return value;
+	}
+
+	private final int maxBodySize;
+
+	protected CapturePolicy( int maxBodySize ) {
+		this.maxBodySize = maxBodySize;
+	}
+
+	/**
+	 * Decide if the current request is captured.
+	 * <p>
+	 * @return <code>true</code> if the request should be captured.
+	 */
+	public abstract boolean sample();
+
+	/**
+	 * Get the maximum number of request body bytes captured.
+	 * <p>
+	 * @return the maximum body size, or <code>-1</code> if the policy does not
+	 * declare a limit.
+	 */
+	public int getMaxBodySize() {
+		return maxBodySize;
+	}
+
+	/*
+	 * One request in n.
+	 */
+	private static final class Every extends CapturePolicy {
+
+		private final long n;
+		private final AtomicLong count = new AtomicLong();
+
+		Every( long n, int maxBodySize ) {
+			super( maxBodySize );
+			this.n = n;
+		}
+
+		@Override
+		public boolean sample() {
+			return n == 1 || count.getAndIncrement() % n == 0;
+		}
+	}
+
+	/*
+	 * The first n requests.
+	 */
+	private static final class First extends CapturePolicy {
+
+		private final long n;
+		private final AtomicLong count = new AtomicLong();
+
+		First( long n, int maxBodySize ) {
+			super( maxBodySize );
+			this.n = n;
+		}
+
+		@Override
+		public boolean sample() {
+			// stop counting once the limit is reached
+			return count.get() < n && count.getAndIncrement() < n;
+		}
+	}
+
+	/*
+	 * Each request independently with a fixed probability.
+	 */
+	private static final class Probability extends CapturePolicy {
+
+		private final double rate;
+
+		Probability( double rate, int maxBodySize ) {
+			super( maxBodySize );
+			this.rate = rate;
+		}
+
+		@Override
+		public boolean sample() {
+			return ThreadLocalRandom.current().nextDouble() < rate;
+		}
+	}
+
+	/*
+	 * Reservoir sampling: request n is selected with probability size/n, the acceptance
+	 * rule of a reservoir of the given size, so captures remain spread uniformly over the
+	 * whole run however long it lasts. Capture stores are append-only, so requests that a
+	 * reservoir would later evict are retained as well; the number captured grows with
+	 * the logarithm of the number of requests.
+	 */
+	private static final class Reservoir extends CapturePolicy {
+
+		private final long size;
+		private final AtomicLong count = new AtomicLong();
+
+		Reservoir( long size, int maxBodySize ) {
+			super( maxBodySize );
+			this.size = size;
+		}
+
+		@Override
+		public boolean sample() {
+			long n = count.incrementAndGet();
+			return n <= size || ThreadLocalRandom.current().nextLong( n ) < size;
+		}
+	}
+}
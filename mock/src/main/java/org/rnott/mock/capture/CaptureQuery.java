@@ -0,0 +1,209 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock.capture;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+
+/**
+ * Criteria for selecting captured requests. All criteria are optional; a query
+ * without criteria selects every capture, oldest first, up to the limit.
+ * <p>
+ * Results are paginated using the sequence number of the last capture returned:
+ * passing it to {@link #withAfter(long)} continues the query from where the
+ * previous page ended, without revisiting earlier captures.
+ */
+public class CaptureQuery {
+
+	/**
+	 * Default maximum number of captures returned by a query.
+	 */
+	public static final int DEFAULT_LIMIT = 1000;
+
+	private Set<String> ids;
+	private String method;
+	private String uri;
+	private boolean prefix;
+	private int status;
+	private long from = Long.MIN_VALUE;
+	private long to = Long.MAX_VALUE;
+	private long after = -1;
+	private int limit = DEFAULT_LIMIT;
+
+	/**
+	 * Select captures by correlation id.
+	 * <p>
+	 * @param ids the correlation ids to select.
+	 * @return this query.
+	 */
+	public CaptureQuery withIds( Collection<String> ids ) {
+		this.ids = ids == null || ids.isEmpty() ? null : new HashSet<String>( ids );
+		return this;
+	}
+
+	/**
+	 * Select captures by HTTP method.
+	 * <p>
+	 * @param method the HTTP method, case is ignored.
+	 * @return this query.
+	 */
+	public CaptureQuery withMethod( String method ) {
+		this.method = method;
+		return this;
+	}
+
+	/**
+	 * Select captures by request URI. A URI ending with <code>*</code> selects
+	 * every URI starting with the preceding text.
+	 * <p>
+	 * @param uri the request URI or URI prefix.
+	 * @return this query.
+	 */
+	public CaptureQuery withUri( String uri ) {
+		prefix = uri != null && uri.endsWith( "*" );
+		this.uri = prefix ? uri.substring( 0, uri.length() - 1 ) : uri;
+		return this;
+	}
+
+	/**
+	 * Select captures by response status.
+	 * <p>
+	 * @param status the HTTP status code, <code>0</code> for any.
+	 * @return this query.
+	 */
+	public CaptureQuery withStatus( int status ) {
+		this.status = status;
+		return this;
+	}
+
+	/**
+	 * Select captures taken within a time range.
+	 * <p>
+	 * @param from the earliest capture time (inclusive) in epoch milliseconds.
+	 * @param to the latest capture time (inclusive) in epoch milliseconds.
+	 * @return this query.
+	 */
+	public CaptureQuery withTimeRange( long from, long to ) {
+		this.from = from;
+		this.to = to;
+		return this;
+	}
+
+	/**
+	 * Select captures following a previous page of results.
+	 * <p>
+	 * @param sequence the sequence number of the last capture already seen.
+	 * @return this query.
+	 */
+	public CaptureQuery withAfter( long sequence ) {
+		this.after = sequence;
+		return this;
+	}
+
+	/**
+	 * Limit the number of captures returned.
+	 * <p>
+	 * @param limit the maximum number of captures to return.
+	 * @return this query.
+	 */
+	public CaptureQuery withLimit( int limit ) {
+		if ( limit <= 0 ) {
+			throw new IllegalStateException( "Query limit must be positive: " + limit );
+		}
+		this.limit = limit;
+		return this;
+	}
+
+	Set<String> getIds() {
+		return ids;
+	}
+
+	String getMethod() {
+		return method;
+	}
+
+	String getUri() {
+		return uri;
+	}
+
+	boolean isPrefix() {
+		return prefix;
+	}
+
+	int getStatus() {
+		return status;
+	}
+
+	long getFrom() {
+		return from;
+	}
+
+	long getTo() {
+		return to;
+	}
+
+	long getAfter() {
+		return after;
+	}
+
+	int getLimit() {
+		return limit;
+	}
+
+	/*
+	 * Determine if an indexed capture satisfies the query.
+	 */
+	boolean matches( CaptureIndex.Entry e ) {
+		return matches( e.sequence, e.id, e.timestamp, e.method, e.uri, e.status );
+	}
+
+	/*
+	 * Determine if a capture satisfies the query. Captures not yet written are
+	 * newer than any position to continue from.
+	 */
+	boolean matches( Record r ) {
+		long sequence = r.getSequence() < 0 ? Long.MAX_VALUE : r.getSequence();
+		return matches( sequence, r.getId(), r.getTimestamp(), r.getMethod(), r.getUri(), r.getStatus() );
+	}
+
+	/*
+	 * Determine if a capture satisfies the query.
+	 */
+	boolean matches( long sequence, String id, long timestamp, String method, String uri, int status ) {
+		if ( sequence <= after || timestamp < from || timestamp > to ) {
+			return false;
+		}
+		if ( ids != null && ! ids.contains( id ) ) {
+			return false;
+		}
+		if ( this.method != null && ! this.method.equalsIgnoreCase( method ) ) {
+			return false;
+		}
+		if ( this.status != 0 && this.status != status ) {
+			return false;
+		}
+		if ( this.uri != null ) {
+			if ( uri == null ) {
+				return false;
+			}
+			return prefix ? uri.startsWith( this.uri ) : uri.equals( this.uri );
+		}
+		return true;
+	}
+}
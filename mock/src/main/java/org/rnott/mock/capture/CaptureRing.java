@@ -0,0 +1,361 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock.capture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Bounded in-memory store holding the most recent captures, intended for stress runs
+ * where throughput matters more than a complete record. Captures are copied into a
+ * fixed number of equally sized slots of a single off-heap buffer allocated up front,
+ * so the store neither performs disk I/O nor grows the heap, and the oldest captures are
+ * overwritten as new ones arrive.
+ * <p>
+ * Writers claim a slot by incrementing a shared sequence number and publish the capture
+ * through a per-slot stamp, without locking. Readers copy a slot and discard the copy
+ * if the stamp changed meanwhile, checking the stamp in a way that orders the copy
+ * before the check. A capture that does not fit in a slot, or whose slot
+ * is still being written by a writer one full cycle behind, is dropped.
+ * <p>
+ * Each slot holds:
+ * <pre>
+ * long   capture time
+ * int    response status
+ * int    length of the captured data
+ * short  length of the identifier, identifier (UTF-8)
+ * short  length of the method, method (UTF-8)
+ * short  length of the URI, URI (UTF-8)
+ * byte[] captured data
+ * </pre>
+ */
+public class CaptureRing implements CaptureStore {
+
+	/**
+	 * Default number of captures retained.
+	 */
+	public static final int DEFAULT_ENTRIES = 4096;
+
+	/**
+	 * Default maximum size in bytes of a single capture.
+	 */
+	public static final int DEFAULT_SLOT_SIZE = 16 * 1024;
+
+	private static final int FIXED_SIZE = 8 + 4 + 4 + 2 + 2 + 2;
+	private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+	private final int entries;
+	private final int slotSize;
+	private final ByteBuffer buffer;
+	/*
+	 * Slot state: 0 when empty, 2n+1 while capture n is written, 2n+2 once
+	 * capture n can be read.
+	 */
+	private final AtomicLongArray stamps;
+	private final AtomicLong next = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong evicted = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private volatile boolean closed;
+
+	/**
+	 * Create a ring with default settings.
+	 */
+	public CaptureRing() {
+		this( DEFAULT_ENTRIES, DEFAULT_SLOT_SIZE );
+	}
+
+	/**
+	 * Create a ring.
+	 * <p>
+	 * @param entries the number of captures retained.
+	 * @param slotSize the maximum size in bytes of a single capture, including the
+	 * identifier, method and URI.
+	 */
+	public CaptureRing( int entries, int slotSize ) {
+		if ( entries <= 0 || slotSize <= FIXED_SIZE || (long) entries * slotSize > Integer.MAX_VALUE ) {
+			throw new IllegalStateException( "Invalid capture ring size: entries="
+				+ entries + ", slot=" + slotSize );
+		}
+		this.entries = entries;
+		this.slotSize = slotSize;
+		buffer = ByteBuffer.allocateDirect( entries * slotSize );
+		stamps = new AtomicLongArray( entries );
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.rnott.mock.capture.CaptureStore#append(org.rnott.mock.capture.Record)
+	 */
+	@Override
+	public boolean append( Record record ) {
+		if ( closed ) {
+			dropped.incrementAndGet();
+			return false;
+		}
+		byte [] id = getBytes( record.getId() );
+		byte [] method = getBytes( record.getMethod() );
+		byte [] uri = getBytes( record.getUri() );
+		int length = record.getLength();
+		long size = (long) FIXED_SIZE + id.length + method.length + uri.length + length;
+		if ( size > slotSize ) {
+			dropped.incrementAndGet();
+			return false;
+		}
+
+		long sequence = next.getAndIncrement();
+		int slot = (int) ( sequence % entries );
+		long stamp = stamps.get( slot );
+		// the slot is being written, or already holds a later capture
+		if ( ( stamp & 1 ) != 0 || stamp > 2 * sequence || ! stamps.compareAndSet( slot, stamp, 2 * sequence + 1 ) ) {
+			dropped.incrementAndGet();
+			return false;
+		}
+		ByteBuffer b = buffer.duplicate();
+		b.position( slot * slotSize );
+		b.putLong( record.getTimestamp() );
+		b.putInt( record.getStatus() );
+		b.putInt( length );
+		b.putShort( (short) id.length ).put( id );
+		b.putShort( (short) method.length ).put( method );
+		b.putShort( (short) uri.length ).put( uri );
+		b.put( record.array(), 0, length );
+		stamps.set( slot, 2 * sequence + 2 );
+		if ( stamp != 0 && ( stamp & 1 ) == 0 ) {
+			// replaced an earlier capture
+			evicted.incrementAndGet();
+		}
+		bytesWritten.addAndGet( size );
+		return true;
+	}
+
+	private static byte [] getBytes( String s ) {
+		if ( s == null ) {
+			return new byte[0];
+		}
+		byte [] b = s.getBytes( UTF8 );
+		// lengths are stored as unsigned shorts
+		return b.length > 0xffff ? new byte[0] : b;
+	}
+
+	/*
+	 * Copy a capture out of its slot.
+	 */
+	private Record read( long sequence, CaptureQuery query ) {
+		int slot = (int) ( sequence % entries );
+		long stamp = 2 * sequence + 2;
+		if ( stamps.get( slot ) != stamp ) {
+			// overwritten, dropped or not yet written
+			return null;
+		}
+		ByteBuffer b = buffer.duplicate();
+		// a torn length must not reach into the next slot
+		b.limit( ( slot + 1 ) * slotSize );
+		b.position( slot * slotSize );
+		long timestamp = b.getLong();
+		int status = b.getInt();
+		int length = b.getInt();
+		String id = getString( b );
+		String method = getString( b );
+		String uri = getString( b );
+		if ( length < 0 || length > b.remaining() || ! validate( slot, stamp ) ) {
+			return null;
+		}
+		if ( query != null && ! query.matches( sequence, id, timestamp, method, uri, status ) ) {
+			return null;
+		}
+		byte [] data = new byte[ length ];
+		b.get( data );
+		// discard if a writer reused the slot while it was copied
+		return validate( slot, stamp )
+			? new Record( sequence, id.length() == 0 ? null : id, timestamp, method, uri, status, data ) : null;
+	}
+
+	/*
+	 * Determine if a slot still holds the capture it held before it was copied.
+	 * A volatile read would allow the plain reads of the copy to be reordered
+	 * after it, so the stamp is checked with a compare-and-set that writes back
+	 * the same value: no earlier read may move past its write, and a writer
+	 * claiming the slot is not affected.
+	 */
+	private boolean validate( int slot, long stamp ) {
+		return stamps.compareAndSet( slot, stamp, stamp );
+	}
+
+	private String getString( ByteBuffer b ) {
+		if ( b.remaining() < 2 ) {
+			// an earlier torn length consumed the slot
+			return "";
+		}
+		int length = b.getShort() & 0xffff;
+		if ( length > b.remaining() ) {
+			// torn read, detected by the caller
+			b.position( b.limit() );
+			return "";
+		}
+		byte [] bytes = new byte[ length ];
+		b.get( bytes );
+		return new String( bytes, UTF8 );
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.rnott.mock.capture.CaptureStore#flush(long)
+	 */
+	@Override
+	public boolean flush( long timeout ) {
+		// captures are readable as soon as they are appended
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.rnott.mock.capture.CaptureStore#query(org.rnott.mock.capture.CaptureQuery)
+	 */
+	@Override
+	public Page query( CaptureQuery query ) {
+		long end = next.get();
+		long start = Math.max( Math.max( 0, end - entries ), query.getAfter() + 1 );
+		final List<Record> records = new ArrayList<Record>();
+		long more = -1;
+		for ( long sequence = start; sequence < end; sequence++ ) {
+			Record r = read( sequence, query );
+			if ( r != null ) {
+				if ( records.size() == query.getLimit() ) {
+					more = records.get( records.size() - 1 ).getSequence();
+					break;
+				}
+				records.add( r );
+			}
+		}
+		final long cursor = more;
+		return new Page() {
+			@Override
+			public int size() {
+				return records.size();
+			}
+
+			@Override
+			public long getNext() {
+				return cursor;
+			}
+
+			@Override
+			public boolean read( Visitor visitor ) throws IOException {
+				for ( Record r : records ) {
+					if ( ! visitor.visit( r ) ) {
+						return false;
+					}
+				}
+				return true;
+			}
+		};
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.rnott.mock.capture.CaptureStore#read(org.rnott.mock.capture.CaptureStore.Visitor)
+	 */
+	@Override
+	public void read( Visitor visitor ) throws IOException {
+		long end = next.get();
+		for ( long sequence = Math.max( 0, end - entries ); sequence < end; sequence++ ) {
+			Record r = read( sequence, null );
+			if ( r != null && ! visitor.visit( r ) ) {
+				return;
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.rnott.mock.capture.CaptureStore#size()
+	 */
+	@Override
+	public int size() {
+		long end = next.get();
+		int count = 0;
+		for ( long sequence = Math.max( 0, end - entries ); sequence < end; sequence++ ) {
+			if ( stamps.get( (int) ( sequence % entries ) ) == 2 * sequence + 2 ) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.rnott.mock.capture.CaptureStore#getDropped()
+	 */
+	@Override
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.rnott.mock.capture.CaptureStore#getWriteErrors()
+	 */
+	@Override
+	public long getWriteErrors() {
+		// captures are copied to memory, which cannot fail
+		return 0;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.rnott.mock.capture.CaptureStore#getEvicted()
+	 */
+	@Override
+	public long getEvicted() {
+		return evicted.get();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.rnott.mock.capture.CaptureStore#getBytesWritten()
+	 */
+	@Override
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.rnott.mock.capture.CaptureStore#getPending()
+	 */
+	@Override
+	public int getPending() {
+		// captures are stored by the request thread
+		return 0;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.rnott.mock.capture.CaptureStore#close()
+	 */
+	@Override
+	public void close() {
+		closed = true;
+	}
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock.capture;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+
+/**
+ * Holds captured requests for later inspection. Request threads append captures;
+ * appending never blocks, a capture is dropped instead when the store cannot accept it.
+ */
+public interface CaptureStore extends Closeable {
+
+	/**
+	 * Servlet context attribute the active store is published under.
+	 */
+	String ATTRIBUTE = CaptureStore.class.getName();
+
+	/**
+	 * Receives records read from a store.
+	 */
+	interface Visitor {
+
+		/**
+		 * Process a record.
+		 * <p>
+		 * @param record the record read from the store.
+		 * @return <code>true</code> to continue reading, <code>false</code> to stop.
+		 * @throws IOException if the record cannot be processed.
+		 */
+		boolean visit( Record record ) throws IOException;
+	}
+
+	/**
+	 * A page of records selected by a query.
+	 */
+	interface Page {
+
+		/**
+		 * Get the number of records selected.
+		 * <p>
+		 * @return the number of records.
+		 */
+		int size();
+
+		/**
+		 * Get the position to continue the query from.
+		 * <p>
+		 * @return the sequence number to pass to {@link CaptureQuery#withAfter(long)}
+		 * for the next page, or <code>-1</code> if there are no more records.
+		 */
+		long getNext();
+
+		/**
+		 * Read the records of the page, oldest first. Records that are no longer
+		 * available are skipped.
+		 * <p>
+		 * @param visitor receives each record.
+		 * @return <code>false</code> if the visitor stopped reading, <code>true</code> otherwise.
+		 * @throws IOException if the store cannot be read.
+		 */
+		boolean read( Visitor visitor ) throws IOException;
+	}
+
+	/**
+	 * Store a capture. This never blocks.
+	 * <p>
+	 * @param record the capture.
+	 * @return <code>true</code> if the capture was accepted, <code>false</code> if
+	 * it was dropped.
+	 */
+	boolean append( Record record );
+
+	/**
+	 * Wait until every capture accepted before this call can be read.
+	 * <p>
+	 * @param timeout the maximum time to wait in milliseconds.
+	 * @return <code>true</code> if all captures can be read, <code>false</code> if
+	 * the timeout elapsed first.
+	 * @throws InterruptedException if the calling thread is interrupted while waiting.
+	 */
+	boolean flush( long timeout ) throws InterruptedException;
+
+	/**
+	 * Select records.
+	 * <p>
+	 * @param query the selection criteria.
+	 * @return the selected page of records.
+	 */
+	Page query( CaptureQuery query );
+
+	/**
+	 * Read every record of the store, oldest first.
+	 * <p>
+	 * @param visitor receives each record.
+	 * @throws IOException if the store cannot be read.
+	 */
+	void read( Visitor visitor ) throws IOException;
+
+	/**
+	 * Get the number of captures that can be read.
+	 * <p>
+	 * @return the number of captures.
+	 */
+	int size();
+
+	/**
+	 * Get the number of captures that were dropped.
+	 * <p>
+	 * @return the number of dropped captures.
+	 */
+	long getDropped();
+
+	/**
+	 * Get the number of times captured data could not be stored. The captures
+	 * lost are also counted as dropped.
+	 * <p>
+	 * @return the number of write errors.
+	 */
+	long getWriteErrors();
+
+	/**
+	 * Get the number of captures that were discarded to make room for newer
+	 * captures, or because they expired.
+	 * <p>
+	 * @return the number of evicted captures.
+	 */
+	long getEvicted();
+
+	/**
+	 * Get the number of bytes of captured data stored.
+	 * <p>
+	 * @return the number of bytes written.
+	 */
+	long getBytesWritten();
+
+	/**
+	 * Get the number of captures accepted but not yet stored.
+	 * <p>
+	 * @return the number of pending captures.
+	 */
+	int getPending();
+
+	/**
+	 * Stop accepting captures and release any resources held by the store.
+	 */
+	@Override
+	void close();
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock.capture;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+
+/**
+ * Delivers captures to listeners as they are taken, for following live traffic.
+ * Captures are handed over straight from the capture pipeline; nothing is read
+ * back from a store.
+ * <p>
+ * Captures are published by request threads, so listeners must not block. When
+ * nobody is listening, publishing costs a single check.
+ */
+public class CaptureTail {
+
+	/**
+	 * Servlet context attribute the active tail is published under.
+	 */
+	public static final String ATTRIBUTE = CaptureTail.class.getName();
+
+	/**
+	 * Receives captures as they are published.
+	 */
+	public interface Listener {
+
+		/**
+		 * Process a capture. This is called by request threads and must not block.
+		 * <p>
+		 * @param record the capture.
+		 */
+		void capture( Record record );
+	}
+
+	/**
+	 * Registration of a listener. Closing the subscription stops delivery.
+	 */
+	public final class Subscription implements Closeable {
+
+		private final CaptureQuery query;
+		private final Listener listener;
+
+		private Subscription( CaptureQuery query, Listener listener ) {
+			this.query = query;
+			this.listener = listener;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see java.io.Closeable#close()
+		 */
+		@Override
+		public void close() {
+			subscriptions.remove( this );
+		}
+	}
+
+	private final List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+
+	/**
+	 * Start delivering captures to a listener.
+	 * <p>
+	 * @param query selects the captures delivered.
+	 * @param listener receives the selected captures.
+	 * @return the subscription, to be closed when the listener is done.
+	 */
+	public Subscription subscribe( CaptureQuery query, Listener listener ) {
+		Subscription s = new Subscription( query, listener );
+		subscriptions.add( s );
+		return s;
+	}
+
+	/**
+	 * Deliver a capture to the listeners whose query it satisfies.
+	 * <p>
+	 * @param record the capture.
+	 */
+	public void publish( Record record ) {
+		if ( subscriptions.isEmpty() ) {
+			return;
+		}
+		for ( Subscription s : subscriptions ) {
+			if ( s.query.matches( record ) ) {
+				s.listener.capture( record );
+			}
+		}
+	}
+
+	/**
+	 * Get the number of active subscriptions.
+	 * <p>
+	 * @return the number of subscriptions.
+	 */
+	public int size() {
+		return subscriptions.size();
+	}
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock.capture;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A captured request. Instances are immutable.
+ */
+public final class Record {
+
+	private final long sequence;
+	private final String id;
+	private final long timestamp;
+	private final String method;
+	private final String uri;
+	private final int status;
+	private final byte [] data;
+	private final int length;
+
+	/**
+	 * Create a capture to be appended to the log.
+	 * <p>
+	 * @param id the capture identifier (correlation id).
+	 * @param timestamp the capture time in epoch milliseconds.
+	 * @param method the HTTP method of the request.
+	 * @param uri the request URI.
+	 * @param status the HTTP status of the response.
+	 * @param data the captured data.
+	 */
+	public Record( String id, long timestamp, String method, String uri, int status, byte [] data ) {
+		this( -1, id, timestamp, method, uri, status, data, data.length );
+	}
+
+	/**
+	 * Create a capture to be appended to the log from the start of a buffer, so
+	 * that the captured data does not have to be copied to an array of its own.
+	 * The record takes ownership of the buffer.
+	 * <p>
+	 * @param id the capture identifier (correlation id).
+	 * @param timestamp the capture time in epoch milliseconds.
+	 * @param method the HTTP method of the request.
+	 * @param uri the request URI.
+	 * @param status the HTTP status of the response.
+	 * @param data the buffer holding the captured data.
+	 * @param length the number of bytes of captured data in the buffer.
+	 */
+	public Record( String id, long timestamp, String method, String uri, int status, byte [] data, int length ) {
+		this( -1, id, timestamp, method, uri, status, data, length );
+	}
+
+	Record( long sequence, String id, long timestamp, String method, String uri, int status, byte [] data ) {
+		this( sequence, id, timestamp, method, uri, status, data, data.length );
+	}
+
+	private Record( long sequence, String id, long timestamp, String method, String uri, int status, byte [] data, int length ) {
+		if ( length < 0 || length > data.length ) {
+			throw new IllegalStateException( "Capture length outside of the buffer: " + length );
+		}
+		this.sequence = sequence;
+		this.id = id;
+		this.timestamp = timestamp;
+		this.method = method;
+		this.uri = uri;
+		this.status = status;
+		this.data = data;
+		this.length = length;
+	}
+
+	/**
+	 * Get the position of the capture within the log. Sequence numbers are
+	 * assigned when the capture is written.
+	 * <p>
+	 * @return the sequence number, or <code>-1</code> if not yet written.
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Get the identifier (correlation id) of the capture.
+	 * <p>
+	 * @return the capture identifier.
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * Get the time the request was captured.
+	 * <p>
+	 * @return the capture time in epoch milliseconds.
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * Get the HTTP method of the captured request.
+	 * <p>
+	 * @return the HTTP method.
+	 */
+	public String getMethod() {
+		return method;
+	}
+
+	/**
+	 * Get the URI of the captured request.
+	 * <p>
+	 * @return the request URI.
+	 */
+	public String getUri() {
+		return uri;
+	}
+
+	/**
+	 * Get the HTTP status of the response to the captured request.
+	 * <p>
+	 * @return the response status.
+	 */
+	public int getStatus() {
+		return status;
+	}
+
+	/**
+	 * Get the captured data. The data is copied if the record was created from
+	 * part of a larger buffer, so {@link #writeTo(OutputStream)} is preferred.
+	 * <p>
+	 * @return the captured data.
+	 */
+	public byte [] getData() {
+		return length == data.length ? data : Arrays.copyOf( data, length );
+	}
+
+	/**
+	 * Get the length of the captured data.
+	 * <p>
+	 * @return the number of bytes captured.
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Write the captured data.
+	 * <p>
+	 * @param out the stream to write to.
+	 * @throws IOException if the data cannot be written.
+	 */
+	public void writeTo( OutputStream out ) throws IOException {
+		out.write( data, 0, length );
+	}
+
+	/**
+	 * Copy the captured data into an array.
+	 * <p>
+	 * @param b the array to copy to, with room for {@link #getLength()} bytes.
+	 * @param off the position the data is copied to.
+	 */
+	public void copyTo( byte [] b, int off ) {
+		System.arraycopy( data, 0, b, off, length );
+	}
+
+	/*
+	 * The buffer holding the captured data, which may be longer than the data.
+	 */
+	byte [] array() {
+		return data;
+	}
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock.delay;
+
+
+/**
+ * Models the latency of a response. A delay is sampled once for each request
+ * that selects the response.
+ */
+public interface Delay {
+
+	/**
+	 * Determine the amount of time to delay the next response.
+	 * <p>
+	 * @return the delay in milliseconds, never negative.
+	 */
+	long next();
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock.delay;
+
+import java.util.Map;
+
+
+/**
+ * Creates response delays from configuration. A delay is configured either as a
+ * number, the fixed delay in milliseconds, or as a dictionary whose
+ * <code>distribution</code> attribute selects one of the following models:
+ * <ul>
+ * <li>fixed: <code>value</code>
+ * <li>uniform: <code>min</code>, <code>max</code>
+ * <li>normal: <code>mean</code>, <code>stddev</code>
+ * <li>lognormal: <code>mean</code>, <code>stddev</code>
+ * <li>pareto: <code>scale</code>, <code>shape</code>
+ * <li>empirical: <code>percentiles</code> or <code>file</code>
+ * </ul>
+ * All values are expressed in milliseconds. Apart from fixed, each model also
+ * accepts optional <code>min</code> and <code>max</code> bounds.
+ */
+public class DelayFactory {
+
+	/**
+	 * Create a delay from its configuration.
+	 * <p>
+	 * @param spec the delay configuration.
+	 * @param defaultDelay the delay to use if no configuration is provided.
+	 * @return the configured delay.
+	 * @throws IllegalStateException if the configuration is not valid.
+	 */
+	@SuppressWarnings( "unchecked" )
+	public static Delay create( Object spec, Delay defaultDelay ) {
+		if ( spec == null ) {
+			return defaultDelay;
+		}
+		if ( spec instanceof Number ) {
+			long value = ((Number) spec).longValue();
+			return value == 0 ? FixedDelay.NONE : new FixedDelay( value );
+		}
+		if ( ! ( spec instanceof Map ) ) {
+			throw new IllegalStateException( "Delay must be a number or a distribution: " + spec );
+		}
+
+		Map<String, ?> attributes = (Map<String, ?>) spec;
+		Object type = attributes.get( "distribution" );
+		if ( type == null ) {
+			throw new IllegalStateException( "Delay definition missing required 'distribution' attribute: " + spec );
+		}
+		String key = String.valueOf( type ).toLowerCase();
+		if ( "fixed".equals( key ) ) {
+			Object value = attributes.get( "value" );
+			if ( ! ( value instanceof Number ) ) {
+				throw new IllegalStateException( "Delay definition missing required 'value' attribute: " + spec );
+			}
+			return new FixedDelay( ((Number) value).longValue() );
+		} else if ( "uniform".equals( key ) ) {
+			return new UniformDelay( attributes );
+		} else if ( "normal".equals( key ) ) {
+			return new NormalDelay( attributes );
+		} else if ( "lognormal".equals( key ) ) {
+			return new LogNormalDelay( attributes );
+		} else if ( "pareto".equals( key ) ) {
+			return new ParetoDelay( attributes );
+		} else if ( "empirical".equals( key ) ) {
+			return new EmpiricalDelay( attributes );
+		}
+		throw new IllegalStateException( "Unsupported delay distribution: " + type );
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock.delay;
+
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+
+/**
+ * Base type for delays sampled from a probability distribution. Samples are
+ * rounded to the nearest millisecond and may be constrained using the optional
+ * <code>min</code> and <code>max</code> settings, which is useful for heavy
+ * tailed distributions. Unless a <code>max</code> is configured, samples are
+ * limited to one hour. Each request thread samples from its own random source.
+ */
+public abstract class DistributionDelay implements Delay {
+
+	/**
+	 * Upper bound of samples when no <code>max</code> is configured: one hour,
+	 * in milliseconds.
+	 */
+	public static final double DEFAULT_MAX = 60 * 60 * 1000;
+
+	private final double min;
+	private final double max;
+
+	/**
+	 * Construct a delay using the bounds present in a delay specification.
+	 * <p>
+	 * @param spec the delay specification.
+	 */
+	protected DistributionDelay( Map<String, ?> spec ) {
+		min = Math.max( 0, getDouble( spec, "min", 0 ) );
+		max = getDouble( spec, "max", DEFAULT_MAX );
+		if ( max < min ) {
+			throw new IllegalStateException( "Delay maximum is less than minimum: " + spec );
+		}
+	}
+
+	/**
+	 * Draw a sample from the distribution.
+	 * <p>
+	 * @param random the random source of the current thread.
+	 * @return the sampled value in milliseconds.
+	 */
+	protected abstract double sample( ThreadLocalRandom random );
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.rnott.mock.delay.Delay#next()
+	 */
+	@Override
+	public long next() {
+		double value = sample( ThreadLocalRandom.current() );
+		if ( value < min || Double.isNaN( value ) ) {
+			value = min;
+		} else if ( value > max ) {
+			value = max;
+		}
+		return Math.round( value );
+	}
+
+	/**
+	 * Retrieve a required numeric setting from a delay specification.
+	 * <p>
+	 * @param spec the delay specification.
+	 * @param key the setting name.
+	 * @return the setting value.
+	 * @throws IllegalStateException if the setting is missing or not numeric.
+	 */
+	protected static double getDouble( Map<String, ?> spec, String key ) {
+		if ( ! spec.containsKey( key ) ) {
+			throw new IllegalStateException( "Delay definition missing required '" + key + "' attribute: " + spec );
+		}
+		return getDouble( spec, key, 0 );
+	}
+
+	/**
+	 * Retrieve an optional numeric setting from a delay specification.
+	 * <p>
+	 * @param spec the delay specification.
+	 * @param key the setting name.
+	 * @param defaultValue the value to use if the setting is not present.
+	 * @return the setting value.
+	 * @throws IllegalStateException if the setting is not numeric.
+	 */
+	protected static double getDouble( Map<String, ?> spec, String key, double defaultValue ) {
+		Object value = spec.get( key );
+		if ( value == null ) {
+			return defaultValue;
+		}
+		if ( value instanceof Number ) {
+			return ((Number) value).doubleValue();
+		}
+		throw new IllegalStateException( "Delay attribute '" + key + "' must be numeric: " + spec );
+	}
+}
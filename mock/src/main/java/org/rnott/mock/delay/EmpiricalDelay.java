@@ -0,0 +1,151 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock.delay;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import org.rnott.mock.StreamFactory;
+
+
+/**
+ * A delay following an observed latency distribution. The distribution is
+ * described by a set of percentiles, for example the p50, p90, p99 and p99.9
+ * latencies reported by a monitoring system, and delays are interpolated
+ * linearly between adjacent percentiles. Percentiles are provided inline using
+ * <code>percentiles</code>, a dictionary of percentile to delay in milliseconds,
+ * or loaded from the resource specified by <code>file</code>. Each line of the
+ * resource holds a percentile and a delay separated by whitespace or a comma;
+ * blank lines and lines starting with '#' are ignored.
+ * <p>
+ * Delays below the lowest declared percentile use that percentile's delay, as do
+ * delays above the highest.
+ */
+public class EmpiricalDelay extends DistributionDelay {
+
+	private final double [] percentiles;
+	private final double [] values;
+
+	/**
+	 * Construct an empirical delay.
+	 * <p>
+	 * @param spec the delay specification, requiring either <code>percentiles</code>
+	 * or <code>file</code>.
+	 */
+	public EmpiricalDelay( Map<String, ?> spec ) {
+		super( spec );
+		TreeMap<Double, Double> table = new TreeMap<Double, Double>();
+		Object obj = spec.get( "percentiles" );
+		if ( obj instanceof Map ) {
+			for ( Map.Entry<?, ?> e : ((Map<?, ?>) obj).entrySet() ) {
+				table.put( parse( e.getKey(), spec ), parse( e.getValue(), spec ) );
+			}
+		} else if ( spec.get( "file" ) instanceof String ) {
+			try {
+				load( (String) spec.get( "file" ), table );
+			} catch ( IOException e ) {
+				throw new IllegalStateException( "Failed to load delay percentiles: " + spec, e );
+			}
+		} else {
+			throw new IllegalStateException( "Delay definition missing required 'percentiles' or 'file' attribute: " + spec );
+		}
+		if ( table.isEmpty() ) {
+			throw new IllegalStateException( "Delay definition contains no percentiles: " + spec );
+		}
+
+		percentiles = new double[ table.size() ];
+		values = new double[ table.size() ];
+		int i = 0;
+		for ( Map.Entry<Double, Double> e : table.entrySet() ) {
+			if ( e.getKey() < 0 || e.getKey() > 100 ) {
+				throw new IllegalStateException( "Percentile must be in the range 0..100: " + e.getKey() );
+			}
+			if ( i > 0 && e.getValue() < values[ i - 1 ] ) {
+				throw new IllegalStateException( "Delay must not decrease as percentile increases: " + e.getKey() );
+			}
+			percentiles[i] = e.getKey();
+			values[i] = e.getValue();
+			i++;
+		}
+	}
+
+	private static void load( String uri, Map<Double, Double> table ) throws IOException {
+		BufferedReader in = new BufferedReader( new InputStreamReader( StreamFactory.getStream( uri ), "UTF-8" ) );
+		try {
+			String line = in.readLine();
+			while ( line != null ) {
+				line = line.trim();
+				if ( line.length() > 0 && ! line.startsWith( "#" ) ) {
+					String [] fields = line.split( "[\\s,]+" );
+					if ( fields.length != 2 ) {
+						throw new IllegalStateException( "Expected percentile and delay: " + line );
+					}
+					table.put( Double.parseDouble( fields[0] ), Double.parseDouble( fields[1] ) );
+				}
+				line = in.readLine();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static double parse( Object value, Map<String, ?> spec ) {
+		if ( value instanceof Number ) {
+			return ((Number) value).doubleValue();
+		}
+		try {
+			return Double.parseDouble( String.valueOf( value ) );
+		} catch ( NumberFormatException e ) {
+			throw new IllegalStateException( "Delay percentiles must be numeric: " + spec );
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.rnott.mock.delay.DistributionDelay#sample(java.util.concurrent.ThreadLocalRandom)
+	 */
+	@Override
+	protected double sample( ThreadLocalRandom random ) {
+		double p = random.nextDouble() * 100;
+		int last = percentiles.length - 1;
+		if ( p <= percentiles[0] ) {
+			return values[0];
+		}
+		if ( p >= percentiles[ last ] ) {
+			return values[ last ];
+		}
+		// find the first percentile greater than p
+		int low = 0;
+		int high = last;
+		while ( low < high ) {
+			int mid = ( low + high ) >>> 1;
+			if ( percentiles[ mid ] <= p ) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		double p0 = percentiles[ low - 1 ];
+		double p1 = percentiles[ low ];
+		double v0 = values[ low - 1 ];
+		double v1 = values[ low ];
+		return v0 + ( v1 - v0 ) * ( p - p0 ) / ( p1 - p0 );
+	}
+}
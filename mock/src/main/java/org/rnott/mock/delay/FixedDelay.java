@@ -0,0 +1,58 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock.delay;
+
+
+/**
+ * A delay that is the same for every response.
+ */
+public class FixedDelay implements Delay {
+
+	/**
+	 * No delay.
+	 */
+	public static final FixedDelay NONE = new FixedDelay( 0 );
+
+	private final long value;
+
+	/**
+	 * Construct a fixed delay.
+	 * <p>
+	 * @param value the delay in milliseconds.
+	 * @throws IllegalStateException if the delay is negative.
+	 */
+	public FixedDelay( long value ) {
+		if ( value < 0 ) {
+			throw new IllegalStateException( "Delay must not be negative: " + value );
+		}
+		this.value = value;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.rnott.mock.delay.Delay#next()
+	 */
+	@Override
+	public long next() {
+		return value;
+	}
+
+	@Override
+	public String toString() {
+		return value + "ms";
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock.delay;
+
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+
+/**
+ * A delay with a log-normal distribution, the typical shape of service latency.
+ * The distribution is specified using the <code>mean</code> and <code>stddev</code>
+ * of the delay itself rather than of the underlying normal distribution.
+ */
+public class LogNormalDelay extends DistributionDelay {
+
+	private final double mu;
+	private final double sigma;
+
+	/**
+	 * Construct a log-normally distributed delay.
+	 * <p>
+	 * @param spec the delay specification, requiring <code>mean</code> and <code>stddev</code>.
+	 */
+	public LogNormalDelay( Map<String, ?> spec ) {
+		super( spec );
+		double mean = getDouble( spec, "mean" );
+		double stddev = getDouble( spec, "stddev" );
+		if ( mean <= 0 ) {
+			throw new IllegalStateException( "Log-normal delay requires a positive mean: " + spec );
+		}
+		double variance = Math.log( 1 + ( stddev * stddev ) / ( mean * mean ) );
+		sigma = Math.sqrt( variance );
+		mu = Math.log( mean ) - variance / 2;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.rnott.mock.delay.DistributionDelay#sample(java.util.concurrent.ThreadLocalRandom)
+	 */
+	@Override
+	protected double sample( ThreadLocalRandom random ) {
+		return Math.exp( mu + sigma * random.nextGaussian() );
+	}
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock.delay;
+
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+
+/**
+ * A delay with a normal (Gaussian) distribution, specified using <code>mean</code>
+ * and <code>stddev</code>. Negative samples are treated as no delay.
+ */
+public class NormalDelay extends DistributionDelay {
+
+	private final double mean;
+	private final double stddev;
+
+	/**
+	 * Construct a normally distributed delay.
+	 * <p>
+	 * @param spec the delay specification, requiring <code>mean</code> and <code>stddev</code>.
+	 */
+	public NormalDelay( Map<String, ?> spec ) {
+		super( spec );
+		mean = getDouble( spec, "mean" );
+		stddev = getDouble( spec, "stddev" );
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.rnott.mock.delay.DistributionDelay#sample(java.util.concurrent.ThreadLocalRandom)
+	 */
+	@Override
+	protected double sample( ThreadLocalRandom random ) {
+		return mean + random.nextGaussian() * stddev;
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock.delay;
+
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+
+/**
+ * A delay with a Pareto distribution, producing a heavy tail of slow responses.
+ * The distribution is specified using <code>scale</code>, the minimum delay, and
+ * <code>shape</code>, where smaller values produce a heavier tail. Consider
+ * constraining the delay using <code>max</code>.
+ */
+public class ParetoDelay extends DistributionDelay {
+
+	private final double scale;
+	private final double exponent;
+
+	/**
+	 * Construct a Pareto distributed delay.
+	 * <p>
+	 * @param spec the delay specification, requiring <code>scale</code> and <code>shape</code>.
+	 */
+	public ParetoDelay( Map<String, ?> spec ) {
+		super( spec );
+		scale = getDouble( spec, "scale" );
+		double shape = getDouble( spec, "shape" );
+		if ( shape <= 0 ) {
+			throw new IllegalStateException( "Pareto delay requires a positive shape: " + spec );
+		}
+		exponent = 1 / shape;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.rnott.mock.delay.DistributionDelay#sample(java.util.concurrent.ThreadLocalRandom)
+	 */
+	@Override
+	protected double sample( ThreadLocalRandom random ) {
+		// inverse transform, 1 - u is in (0, 1]
+		return scale / Math.pow( 1 - random.nextDouble(), exponent );
+	}
+}
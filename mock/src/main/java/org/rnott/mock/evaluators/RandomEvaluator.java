@@ -17,14 +17,14 @@
 package org.rnott.mock.evaluators;
 
 import java.security.SecureRandom;
-import java.util.UUID;
+import org.rnott.mock.IdGenerator;
 
 
 /**
  * Support for rqndom values during expression language evaluation.
  * The following psuedo-methods are available:
  * <ul>
- * <li>uuid(): generate a new random v4 UUID.
+ * <li>uuid(): generate a new UUID, using the configured {@link IdGenerator}.
  * <li>integer(): generate the next random integer value.
  * <li>long(): generate the next random long value.
  * </ul>
@@ -53,7 +53,7 @@ public class RandomEvaluator implements Evaluator {
 	@Override
 	public String evaluate( String method, Object ... args ) {
 		if ( "uuid".equalsIgnoreCase( method ) ) {
-			return UUID.randomUUID().toString();
+			return IdGenerator.getDefault().next();
 		} else if ( "integer".equalsIgnoreCase( method ) ) {
 			return String.valueOf( RANDOM.nextInt() );
 		} else if ( "long".equalsIgnoreCase( method ) ) {
@@ -16,7 +16,7 @@
 
 package org.rnott.mock.handler;
 
-import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 import org.rnott.mock.Endpoint;
 import org.rnott.mock.Response;
 
@@ -31,7 +31,13 @@ public class RandomResponseHandler implements ResponseHandler {
 		ResponseFactory.register( "random", RandomResponseHandler.class );
 	}
 
-	private static final Random RANDOM = new Random();
+	/*
+	 * (non-Javadoc)
+	 * @see org.rnott.mock.handler.ResponseHandler#initialize(org.rnott.mock.Endpoint)
+	 */
+	@Override
+	public void initialize( Endpoint endpoint ) {
+	}
 
 	/* 
      * (non-Javadoc)
@@ -39,7 +45,7 @@ public class RandomResponseHandler implements ResponseHandler {
      */
     @Override
     public Response getResponse( Endpoint endpoint ) {
-    	int index = RANDOM.nextInt( endpoint.getResponses().size() );
+    	int index = ThreadLocalRandom.current().nextInt( endpoint.getResponses().size() );
 	    return endpoint.getResponses().get( index );
     }
 }
@@ -16,16 +16,23 @@
 
 package org.rnott.mock.handler;
 
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 import org.rnott.mock.Endpoint;
 import org.rnott.mock.Response;
 
 
 /**
  * A response handler that selects a response from configured entries based
- * on a percentage distribution.
+ * on a percentage distribution. Rates may be fractional, for example <code>0.01</code>
+ * to return a response for one in ten thousand requests, but must total 100%.
+ * <p>
+ * Selection uses the alias method: the rates are arranged into a table when the
+ * endpoint is configured so that each selection costs one random slot and one
+ * random comparison, regardless of the number of responses or the precision of
+ * the rates. The table is never modified after initialization and random values
+ * are drawn from a source private to the request thread, so concurrent requests
+ * do not contend.
  */
 public class RateResponseHandler implements ResponseHandler {
 
@@ -34,29 +41,91 @@ public class RateResponseHandler implements ResponseHandler {
 		ResponseFactory.register( "rate", RateResponseHandler.class );
 	}
 
-	private final List<Response> responses = new ArrayList<Response>( 100 );
-	private Random RANDOM = new Random();
-
-	/* 
-     * (non-Javadoc)
-     * @see org.rnott.mock.handler.ResponseHandler#getResponse(org.rnott.mock.Endpoint)
-     */
-    @Override
-    public Response getResponse( Endpoint endpoint ) {
-	    // need to distribute responses the first time
-    	if ( responses.size() == 0 ) {
-    		for ( Response r : endpoint.getResponses() ) {
-    			int percentile = r.get( "rate", Integer.class );
-    			for ( int i = 0; i < percentile; i++ ) {
-    				responses.add( r );
-    			}
-    		}
-    		if ( responses.size() != 100 ) {
-    			throw new IllegalStateException( "Invalid response configuration: percentiles do not total 100%" );
-    		}
-    	}
-
-    	int index = RANDOM.nextInt( 100 );
-	    return responses.get( index );
-    }
+	// tolerance for rounding when totalling fractional rates
+	private static final double TOLERANCE = 1e-6;
+
+	private Response [] responses;
+	private double [] probability;
+	private int [] alias;
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.rnott.mock.handler.ResponseHandler#initialize(org.rnott.mock.Endpoint)
+	 */
+	@Override
+	public void initialize( Endpoint endpoint ) {
+		List<Response> list = endpoint.getResponses();
+		int n = list.size();
+		double [] rates = new double[ n ];
+		double total = 0;
+		for ( int i = 0; i < n; i++ ) {
+			Object obj = list.get( i ).get( "rate" );
+			if ( ! ( obj instanceof Number ) ) {
+				throw new IllegalStateException( "Invalid response configuration: missing or invalid rate: " + obj );
+			}
+			rates[i] = ((Number) obj).doubleValue();
+			if ( rates[i] < 0 || Double.isNaN( rates[i] ) || Double.isInfinite( rates[i] ) ) {
+				throw new IllegalStateException( "Invalid response configuration: invalid rate: " + obj );
+			}
+			total += rates[i];
+		}
+		if ( Math.abs( total - 100 ) > TOLERANCE ) {
+			throw new IllegalStateException( "Invalid response configuration: percentiles do not total 100%" );
+		}
+
+		// Vose's alias method: scale rates so that the average slot holds 1.0
+		double [] scaled = new double[ n ];
+		int [] small = new int[ n ];
+		int [] large = new int[ n ];
+		int s = 0, l = 0;
+		for ( int i = 0; i < n; i++ ) {
+			scaled[i] = rates[i] * n / total;
+			if ( scaled[i] < 1.0 ) {
+				small[ s++ ] = i;
+			} else {
+				large[ l++ ] = i;
+			}
+		}
+		double [] p = new double[ n ];
+		int [] a = new int[ n ];
+		while ( s > 0 && l > 0 ) {
+			int less = small[ --s ];
+			int more = large[ --l ];
+			p[ less ] = scaled[ less ];
+			a[ less ] = more;
+			// the larger entry donates the remainder of the slot
+			scaled[ more ] = ( scaled[ more ] + scaled[ less ] ) - 1.0;
+			if ( scaled[ more ] < 1.0 ) {
+				small[ s++ ] = more;
+			} else {
+				large[ l++ ] = more;
+			}
+		}
+		// whatever remains is full, within rounding error
+		while ( l > 0 ) {
+			int i = large[ --l ];
+			p[i] = 1.0;
+			a[i] = i;
+		}
+		while ( s > 0 ) {
+			int i = small[ --s ];
+			p[i] = 1.0;
+			a[i] = i;
+		}
+
+		responses = list.toArray( new Response[ n ] );
+		probability = p;
+		alias = a;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.rnott.mock.handler.ResponseHandler#getResponse(org.rnott.mock.Endpoint)
+	 */
+	@Override
+	public Response getResponse( Endpoint endpoint ) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int i = random.nextInt( responses.length );
+		return random.nextDouble() < probability[i] ? responses[i] : responses[ alias[i] ];
+	}
 }
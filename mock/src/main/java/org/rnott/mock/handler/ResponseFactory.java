@@ -16,21 +16,25 @@
 
 package org.rnott.mock.handler;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import org.rnott.mock.Endpoint;
 import org.rnott.mock.Response;
 
 
 /**
- * TODO: document ResponseHandler
- *
+ * Binds endpoints to response handler implementations. A handler is created once
+ * for each endpoint, when the endpoint is configured, so selecting a response for
+ * a request requires no lookup or synchronization.
  */
 public class ResponseFactory {
 
-	static Map<String, Class<? extends ResponseHandler>> implementations =
-		new HashMap<String, Class<? extends ResponseHandler>>();
-	static Map<Endpoint, ResponseHandler> handlers = new HashMap<Endpoint, ResponseHandler>();
+	static final Map<String, Class<? extends ResponseHandler>> implementations =
+		new ConcurrentHashMap<String, Class<? extends ResponseHandler>>();
+
+	static {
+		bootstrap();
+	}
 
 	// cause handler classes to load so that they register
 	// TODO: automatically discover response handler implementations
@@ -53,10 +57,34 @@ public class ResponseFactory {
 	 * <p>
 	 * @param key the key to identify the handler (case-insensitive). The endpoint handler attribute
 	 * is used to select a handler and must match the key for that handler to be selected.
-	 * @param impl the handler class which will be instantiated at most once per endpoint.
+	 * @param impl the handler class which will be instantiated once per endpoint.
 	 */
 	static void register( String key, Class<? extends ResponseHandler> impl ) {
-		implementations.put( key == null ? null : key.toLowerCase(), impl );
+		implementations.put( key.toLowerCase(), impl );
+	}
+
+	/**
+	 * Create the handler used to select responses for an endpoint.
+	 * <p>
+	 * @param key the handler type configured for the endpoint (case-insensitive).
+	 * @return a new handler instance or <code>null</code> if no handler type is specified,
+	 * in which case the first configured response is always selected.
+	 * @throws IllegalStateException if the handler type is not supported or the
+	 * handler cannot be created.
+	 */
+	public static ResponseHandler createHandler( String key ) {
+		if ( key == null ) {
+			return null;
+		}
+		Class<? extends ResponseHandler> impl = implementations.get( key.toLowerCase() );
+		if ( impl == null ) {
+			throw new IllegalStateException( "Unsupported response handler: " + key );
+		}
+		try {
+			return impl.getDeclaredConstructor().newInstance();
+		} catch ( ReflectiveOperationException t ) {
+			throw new IllegalStateException( "Failed to create response handler: " + key, t );
+		}
 	}
 
 	/**
@@ -67,24 +95,8 @@ public class ResponseFactory {
 	 * is appropriate.
 	 */
 	public static Response getResponse( Endpoint endpoint ) {
-		if ( implementations.size() == 0 ) {
-			bootstrap();
-		}
-
 		Response response = null;
-
-		// find appropriate handler
-		ResponseHandler handler = handlers.get( endpoint );
-		if ( handler == null ) {
-			String key = endpoint.getHandlerType();
-			Class<? extends ResponseHandler> impl = implementations.get( key == null ? null : key.toLowerCase() );
-			if ( impl != null ) {
-				try {
-					handler = impl.newInstance();
-					handlers.put( endpoint, handler );
-				} catch ( Throwable t ) {}					
-			}
-		}
+		ResponseHandler handler = endpoint.getResponseHandler();
 		if ( handler != null ) {
 			response = handler.getResponse( endpoint );
 		}
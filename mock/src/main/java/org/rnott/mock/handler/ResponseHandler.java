@@ -25,6 +25,16 @@ import org.rnott.mock.Response;
  */
 public interface ResponseHandler {
 
+	/**
+	 * Prepare the handler for the endpoint it is bound to. This is called once,
+	 * when the endpoint is configured, before any response is requested.
+	 * <p>
+	 * @param endpoint the endpoint the handler is bound to.
+	 * @throws IllegalStateException if the endpoint configuration is not valid
+	 * for the handler.
+	 */
+	void initialize( Endpoint endpoint );
+
 	/**
 	 * Determine the response for an endpoint request.
 	 * <p>
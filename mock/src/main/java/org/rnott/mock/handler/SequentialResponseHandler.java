@@ -16,13 +16,39 @@
 
 package org.rnott.mock.handler;
 
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.servlet.http.HttpServletRequest;
 import org.rnott.mock.Endpoint;
+import org.rnott.mock.MockContext;
 import org.rnott.mock.Response;
 
 
 /**
  * A response handler that iterates over the configured entries. When the
  * sequence has completed, it is restarted from the beginning.
+ * <p>
+ * By default a single sequence is shared by all clients. An endpoint may instead
+ * maintain a sequence per client by declaring how clients are identified:
+ * <pre>
+ * "sequence": {
+ *     "client": "header:X-Client-Id",
+ *     "maxClients": 10000,
+ *     "expiry": 300000
+ * }
+ * </pre>
+ * The client is identified by a request header (<code>header:&lt;name&gt;</code>),
+ * a request parameter (<code>parameter:&lt;name&gt;</code>) or the remote address
+ * (<code>remote-address</code>). Requests that do not identify a client use the
+ * shared sequence. Sequences idle longer than the expiry (milliseconds) are discarded,
+ * as are the least recently used sequences when the number of clients exceeds the
+ * configured maximum.
  */
 public class SequentialResponseHandler implements ResponseHandler {
 
@@ -31,16 +57,167 @@ public class SequentialResponseHandler implements ResponseHandler {
 		ResponseFactory.register( "sequential", SequentialResponseHandler.class );
 	}
 
-	private int index = 0;
+	static final int DEFAULT_MAX_CLIENTS = 10000;
+	static final long DEFAULT_EXPIRY = 5 * 60 * 1000L;
 
-	/* 
-     * (non-Javadoc)
-     * @see org.rnott.mock.handler.ResponseHandler#getResponse(org.rnott.mock.Endpoint)
-     */
-    @Override
-    public Response getResponse( Endpoint endpoint ) {
-	    Response r = endpoint.getResponses().get( index );
-	    index = (index + 1) % endpoint.getResponses().size();
-	    return r;
-    }
+	/*
+	 * The shared counter occupies the middle slot of the array so that it does not
+	 * share a cache line with other frequently written data.
+	 */
+	private static final int PADDING = 7;
+	private final AtomicLongArray counter = new AtomicLongArray( PADDING * 2 + 1 );
+
+	/*
+	 * Position within a per-client sequence.
+	 */
+	private static final class Sequence {
+
+		final AtomicLong position = new AtomicLong();
+		volatile long accessed;
+	}
+
+	private ConcurrentMap<String, Sequence> sequences;
+	private String source;
+	private String name;
+	private int maxClients;
+	private long expiry;
+	private final AtomicBoolean evicting = new AtomicBoolean();
+	private volatile long nextEviction;
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.rnott.mock.handler.ResponseHandler#initialize(org.rnott.mock.Endpoint)
+	 */
+	@Override
+	public void initialize( Endpoint endpoint ) {
+		Object obj = endpoint.get( "sequence" );
+		if ( obj == null ) {
+			return;
+		}
+		if ( ! ( obj instanceof Map ) ) {
+			throw new IllegalStateException( "Sequence definition must be an object: " + obj );
+		}
+		Map<?, ?> config = (Map<?, ?>) obj;
+		String client = (String) config.get( "client" );
+		if ( client == null ) {
+			throw new IllegalStateException( "Sequence definition missing required 'client' attribute: " + config );
+		}
+		if ( "remote-address".equals( client ) ) {
+			source = client;
+		} else {
+			int pos = client.indexOf( ':' );
+			if ( pos < 0 || pos == client.length() - 1 ) {
+				throw new IllegalStateException( "Unsupported sequence client: " + client );
+			}
+			source = client.substring( 0, pos );
+			name = client.substring( pos + 1 );
+			if ( ! "header".equals( source ) && ! "parameter".equals( source ) ) {
+				throw new IllegalStateException( "Unsupported sequence client: " + client );
+			}
+		}
+		maxClients = config.containsKey( "maxClients" )
+			? ((Number) config.get( "maxClients" )).intValue() : DEFAULT_MAX_CLIENTS;
+		expiry = config.containsKey( "expiry" )
+			? ((Number) config.get( "expiry" )).longValue() : DEFAULT_EXPIRY;
+		if ( maxClients <= 0 || expiry <= 0 ) {
+			throw new IllegalStateException( "Sequence limits must be positive: " + config );
+		}
+		sequences = new ConcurrentHashMap<String, Sequence>();
+		nextEviction = System.currentTimeMillis() + expiry;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.rnott.mock.handler.ResponseHandler#getResponse(org.rnott.mock.Endpoint)
+	 */
+	@Override
+	public Response getResponse( Endpoint endpoint ) {
+		String client = sequences == null ? null : getClient( MockContext.get().getRequest() );
+		long position;
+		if ( client == null ) {
+			position = counter.getAndIncrement( PADDING );
+		} else {
+			position = getSequence( client ).position.getAndIncrement();
+		}
+		return endpoint.getResponses().get( (int) ( position % endpoint.getResponses().size() ) );
+	}
+
+	/*
+	 * Identify the client issuing the request.
+	 */
+	private String getClient( HttpServletRequest request ) {
+		if ( name == null ) {
+			return request.getRemoteAddr();
+		}
+		if ( "header".equals( source ) ) {
+			return request.getHeader( name );
+		}
+		return request.getParameter( name );
+	}
+
+	/*
+	 * Resolve the sequence of a client, creating it if necessary.
+	 */
+	private Sequence getSequence( String client ) {
+		long now = System.currentTimeMillis();
+		Sequence s = sequences.get( client );
+		if ( s == null ) {
+			s = new Sequence();
+			Sequence existing = sequences.putIfAbsent( client, s );
+			if ( existing != null ) {
+				s = existing;
+			}
+		}
+		s.accessed = now;
+		if ( ( now >= nextEviction || sequences.size() > maxClients ) && evicting.compareAndSet( false, true ) ) {
+			try {
+				evict( now );
+			} finally {
+				evicting.set( false );
+			}
+		}
+		return s;
+	}
+
+	/*
+	 * Discard expired sequences and, if there are still too many, the least recently used.
+	 * Only one thread evicts at a time; other threads continue without waiting.
+	 */
+	private void evict( long now ) {
+		nextEviction = now + expiry;
+		long cutoff = now - expiry;
+		for ( Iterator<Sequence> i = sequences.values().iterator(); i.hasNext(); ) {
+			if ( i.next().accessed < cutoff ) {
+				i.remove();
+			}
+		}
+
+		int excess = sequences.size() - maxClients;
+		if ( excess > 0 ) {
+			// also make room for new clients so that eviction is not repeated on every request
+			excess += maxClients / 10;
+			long [] accessed = new long[ sequences.size() ];
+			int count = 0;
+			for ( Sequence s : sequences.values() ) {
+				if ( count == accessed.length ) {
+					break;
+				}
+				accessed[ count++ ] = s.accessed;
+			}
+			Arrays.sort( accessed, 0, count );
+			cutoff = accessed[ Math.min( excess, count ) - 1 ];
+			for ( Iterator<Sequence> i = sequences.values().iterator(); i.hasNext(); ) {
+				if ( i.next().accessed <= cutoff ) {
+					i.remove();
+				}
+			}
+		}
+	}
+
+	/*
+	 * Number of clients with an active sequence.
+	 */
+	int getClientCount() {
+		return sequences == null ? 0 : sequences.size();
+	}
 }
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+import org.rnott.mock.Endpoint;
+import org.rnott.mock.RequestEvents;
+import org.rnott.mock.Response;
+import org.rnott.mock.Template;
+
+
+/**
+ * Reports the steps of servicing a request as Java Flight Recorder events, in the
+ * <em>Mock</em> category. Events are committed when a step completes and carry
+ * the duration of the step in a field, as measured by the mock.
+ * <p>
+ * Steps are only reported while a recording is running; the recording state is
+ * tracked by a listener, so checking it is a single volatile read. Which events are
+ * recorded is controlled by the recording settings, for example
+ * <code>org.rnott.mock.TemplateEvaluated#enabled=false</code>.
+ * <p>
+ * This class requires the <code>jdk.jfr</code> API and is only loaded when it is
+ * available, by {@link RequestEvents#create()}.
+ */
+public class FlightRecorderEvents extends RequestEvents {
+
+	private static final String CATEGORY = "Mock";
+	private static final int MAX_SOURCE = 256;
+
+	@Name( "org.rnott.mock.EndpointMatched" )
+	@Label( "Endpoint Matched" )
+	@Description( "Endpoint selected for a request" )
+	@Category( CATEGORY )
+	@StackTrace( false )
+	static final class EndpointMatched extends Event {
+
+		@Label( "Method" )
+		String method;
+
+		@Label( "Path" )
+		String path;
+
+		@Label( "Endpoint" )
+		@Description( "URI template of the selected endpoint, missing if no endpoint matched" )
+		String endpoint;
+
+		@Label( "Routing Time" )
+		@Timespan( Timespan.NANOSECONDS )
+		long routingTime;
+	}
+
+	@Name( "org.rnott.mock.ResponseSelected" )
+	@Label( "Response Selected" )
+	@Description( "Response selected by an endpoint" )
+	@Category( CATEGORY )
+	@StackTrace( false )
+	static final class ResponseSelected extends Event {
+
+		@Label( "Endpoint" )
+		String endpoint;
+
+		@Label( "Status" )
+		int status;
+
+		@Label( "Selection Time" )
+		@Timespan( Timespan.NANOSECONDS )
+		long selectionTime;
+	}
+
+	@Name( "org.rnott.mock.TemplateEvaluated" )
+	@Label( "Template Evaluated" )
+	@Description( "Expressions of a response header or body evaluated" )
+	@Category( CATEGORY )
+	@StackTrace( false )
+	static final class TemplateEvaluated extends Event {
+
+		@Label( "Template Id" )
+		int templateId;
+
+		@Label( "Source" )
+		@Description( "Template text, truncated" )
+		String source;
+
+		@Label( "Evaluation Time" )
+		@Timespan( Timespan.NANOSECONDS )
+		long evaluationTime;
+	}
+
+	@Name( "org.rnott.mock.DelayScheduled" )
+	@Label( "Delay Scheduled" )
+	@Description( "Response held back by the configured delay" )
+	@Category( CATEGORY )
+	@StackTrace( false )
+	static final class DelayScheduled extends Event {
+
+		@Label( "Endpoint" )
+		String endpoint;
+
+		@Label( "Delay" )
+		@Timespan( Timespan.MILLISECONDS )
+		long delay;
+	}
+
+	@Name( "org.rnott.mock.CaptureWritten" )
+	@Label( "Capture Written" )
+	@Description( "Request serialized and handed to the capture store" )
+	@Category( CATEGORY )
+	@StackTrace( false )
+	static final class CaptureWritten extends Event {
+
+		@Label( "Correlation Id" )
+		String correlationId;
+
+		@Label( "URI" )
+		String uri;
+
+		@Label( "Size" )
+		@DataAmount
+		int size;
+
+		@Label( "Stored" )
+		@Description( "False if the capture store dropped the capture" )
+		boolean stored;
+
+		@Label( "Capture Time" )
+		@Timespan( Timespan.NANOSECONDS )
+		long captureTime;
+	}
+
+	private volatile boolean recording;
+
+	/**
+	 * Create the events and start tracking the recording state.
+	 * <p>
+	 * @throws IllegalStateException if the flight recorder is not available.
+	 */
+	public FlightRecorderEvents() {
+		if ( ! FlightRecorder.isAvailable() ) {
+			throw new IllegalStateException( "Flight recorder is not available" );
+		}
+		FlightRecorder.register( EndpointMatched.class );
+		FlightRecorder.register( ResponseSelected.class );
+		FlightRecorder.register( TemplateEvaluated.class );
+		FlightRecorder.register( DelayScheduled.class );
+		FlightRecorder.register( CaptureWritten.class );
+		FlightRecorder.addListener( new FlightRecorderListener() {
+
+			@Override
+			public void recorderInitialized( FlightRecorder recorder ) {
+				update( recorder );
+			}
+
+			@Override
+			public void recordingStateChanged( Recording recording ) {
+				update( FlightRecorder.getFlightRecorder() );
+			}
+		});
+	}
+
+	private void update( FlightRecorder recorder ) {
+		boolean running = false;
+		for ( Recording r : recorder.getRecordings() ) {
+			if ( r.getState() == RecordingState.RUNNING ) {
+				running = true;
+				break;
+			}
+		}
+		recording = running;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.rnott.mock.RequestEvents#isEnabled()
+	 */
+	@Override
+	public boolean isEnabled() {
+		return recording;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.rnott.mock.RequestEvents#endpointMatched(java.lang.String, java.lang.String, org.rnott.mock.Endpoint, long)
+	 */
+	@Override
+	public void endpointMatched( String method, String path, Endpoint endpoint, long nanos ) {
+		EndpointMatched e = new EndpointMatched();
+		if ( e.isEnabled() ) {
+			e.method = method;
+			e.path = path;
+			e.endpoint = endpoint == null ? null : endpoint.getUriTemplate().getTemplate();
+			e.routingTime = nanos;
+			e.commit();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.rnott.mock.RequestEvents#responseSelected(org.rnott.mock.Endpoint, org.rnott.mock.Response, long)
+	 */
+	@Override
+	public void responseSelected( Endpoint endpoint, Response response, long nanos ) {
+		ResponseSelected e = new ResponseSelected();
+		if ( e.isEnabled() ) {
+			e.endpoint = describe( endpoint );
+			e.status = response.getStatus();
+			e.selectionTime = nanos;
+			e.commit();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.rnott.mock.RequestEvents#templateEvaluated(org.rnott.mock.Template, long)
+	 */
+	@Override
+	public void templateEvaluated( Template template, long nanos ) {
+		TemplateEvaluated e = new TemplateEvaluated();
+		if ( e.isEnabled() ) {
+			String source = template.getSource();
+			e.templateId = template.getId();
+			e.source = source.length() > MAX_SOURCE ? source.substring( 0, MAX_SOURCE ) : source;
+			e.evaluationTime = nanos;
+			e.commit();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.rnott.mock.RequestEvents#delayScheduled(org.rnott.mock.Endpoint, long)
+	 */
+	@Override
+	public void delayScheduled( Endpoint endpoint, long delay ) {
+		DelayScheduled e = new DelayScheduled();
+		if ( e.isEnabled() ) {
+			e.endpoint = describe( endpoint );
+			e.delay = delay;
+			e.commit();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.rnott.mock.RequestEvents#captureWritten(java.lang.String, java.lang.String, int, boolean, long)
+	 */
+	@Override
+	public void captureWritten( String id, String uri, int size, boolean stored, long nanos ) {
+		CaptureWritten e = new CaptureWritten();
+		if ( e.isEnabled() ) {
+			e.correlationId = id;
+			e.uri = uri;
+			e.size = size;
+			e.stored = stored;
+			e.captureTime = nanos;
+			e.commit();
+		}
+	}
+
+	private static String describe( Endpoint endpoint ) {
+		return endpoint.getMethod() + " " + endpoint.getUriTemplate().getTemplate();
+	}
+}
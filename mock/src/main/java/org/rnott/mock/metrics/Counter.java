@@ -0,0 +1,92 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A counter that many threads update at once without contending for the same
+ * memory. Each thread adds to one of several cells, selected by thread and spaced
+ * a cache line apart; reading the counter sums the cells. Reads never block
+ * updates, and a value read while the counter is updated may or may not include
+ * the concurrent updates.
+ */
+public class Counter {
+
+	/**
+	 * Number of cells updated concurrently, also used to stripe histograms.
+	 */
+	static final int STRIPES;
+	static {
+		// next power of two of the processor count, at most 8
+		int n = Math.min( 8, Runtime.getRuntime().availableProcessors() );
+		STRIPES = Integer.highestOneBit( Math.max( 1, n - 1 ) << 1 );
+	}
+
+	// longs per cache line
+	private static final int PADDING = 8;
+
+	private final AtomicLongArray cells = new AtomicLongArray( STRIPES * PADDING );
+
+	/**
+	 * Select the stripe updated by the current thread.
+	 * <p>
+	 * @return the stripe index.
+	 */
+	static int stripe() {
+		return (int) Thread.currentThread().getId() & ( STRIPES - 1 );
+	}
+
+	/**
+	 * Add one to the counter.
+	 */
+	public void increment() {
+		cells.incrementAndGet( stripe() * PADDING );
+	}
+
+	/**
+	 * Add to the counter.
+	 * <p>
+	 * @param n the amount to add.
+	 */
+	public void add( long n ) {
+		cells.addAndGet( stripe() * PADDING, n );
+	}
+
+	/*
+	 * Clear the counter. Updates made while it is cleared may be lost.
+	 */
+	void reset() {
+		for ( int i = 0; i < STRIPES; i++ ) {
+			cells.set( i * PADDING, 0 );
+		}
+	}
+
+	/**
+	 * Get the current value.
+	 * <p>
+	 * @return the sum of every update.
+	 */
+	public long get() {
+		long sum = 0;
+		for ( int i = 0; i < STRIPES; i++ ) {
+			sum += cells.get( i * PADDING );
+		}
+		return sum;
+	}
+}
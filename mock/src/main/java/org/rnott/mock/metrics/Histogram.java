@@ -0,0 +1,247 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Records the distribution of durations in the style of an HDR histogram. Values
+ * are counted in log-linear buckets: each power of two is divided into 8 buckets,
+ * so a reported percentile is within 12.5% of the recorded value, from single
+ * nanoseconds to over half an hour. Longer values share the last bucket, although
+ * the maximum is always exact.
+ * <p>
+ * A stripe holds 313 counters, about 2.5KB. A histogram recorded from one thread
+ * at a time keeps a single stripe, so each series costs about 2.5KB, growing to at
+ * most 10KB under contention.
+ * <p>
+ * Recording is lock-free. A histogram starts with a single stripe of counters, and
+ * only once threads are seen updating the same counter at once does it add stripes,
+ * selected by thread, up to {@link #STRIPES}. A snapshot merges the stripes.
+ */
+public class Histogram {
+
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int MAX_EXPONENT = 40;
+
+	/**
+	 * Number of buckets.
+	 */
+	static final int BUCKETS = ( MAX_EXPONENT - SUB_BITS + 2 ) * SUB_BUCKETS;
+
+	/**
+	 * Maximum number of stripes of a histogram.
+	 */
+	static final int STRIPES = Math.min( 4, Counter.STRIPES );
+
+	// each stripe holds the bucket counts followed by the sum of the recorded values
+	private volatile AtomicLongArray [] stripes = { new AtomicLongArray( BUCKETS + 1 ) };
+	private final int limit;
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Create an empty histogram.
+	 */
+	public Histogram() {
+		this( STRIPES );
+	}
+
+	/*
+	 * Create an empty histogram that never grows beyond a number of stripes, a
+	 * power of two.
+	 */
+	Histogram( int limit ) {
+		this.limit = limit;
+	}
+
+	/**
+	 * Record a value.
+	 * <p>
+	 * @param value the value, in nanoseconds. Negative values are recorded as zero.
+	 */
+	public void record( long value ) {
+		if ( value < 0 ) {
+			value = 0;
+		}
+		AtomicLongArray [] current = stripes;
+		AtomicLongArray s = current[ Counter.stripe() & ( current.length - 1 ) ];
+		int i = index( value );
+		long n = s.get( i );
+		if ( ! s.compareAndSet( i, n, n + 1 ) ) {
+			// contended, spread later updates over more stripes
+			s.incrementAndGet( i );
+			expand( current );
+		}
+		s.addAndGet( BUCKETS, value );
+		long m = max.get();
+		while ( value > m && ! max.compareAndSet( m, value ) ) {
+			m = max.get();
+		}
+	}
+
+	/*
+	 * Double the number of stripes, unless another thread already has or the
+	 * limit is reached.
+	 */
+	private synchronized void expand( AtomicLongArray [] current ) {
+		if ( stripes == current && current.length < limit ) {
+			AtomicLongArray [] expanded = Arrays.copyOf( current, current.length * 2 );
+			for ( int i = current.length; i < expanded.length; i++ ) {
+				expanded[i] = new AtomicLongArray( BUCKETS + 1 );
+			}
+			stripes = expanded;
+		}
+	}
+
+	/*
+	 * Approximate number of bytes held by the counters of the histogram.
+	 */
+	long footprint() {
+		return stripes.length * ( BUCKETS + 1 ) * 8L;
+	}
+
+	/*
+	 * Clear the histogram so it can be reused. Values recorded while it is cleared
+	 * may be lost.
+	 */
+	void reset() {
+		for ( AtomicLongArray s : stripes ) {
+			for ( int i = 0; i <= BUCKETS; i++ ) {
+				s.set( i, 0 );
+			}
+		}
+		max.set( 0 );
+	}
+
+	/**
+	 * Take a consistent enough copy of the histogram for reporting. Values recorded
+	 * while the copy is taken may or may not be included.
+	 * <p>
+	 * @return the recorded distribution.
+	 */
+	public Snapshot snapshot() {
+		long [] counts = new long[ BUCKETS ];
+		long sum = 0;
+		for ( AtomicLongArray s : stripes ) {
+			for ( int i = 0; i < BUCKETS; i++ ) {
+				counts[i] += s.get( i );
+			}
+			sum += s.get( BUCKETS );
+		}
+		return new Snapshot( counts, sum, max.get() );
+	}
+
+	/*
+	 * Bucket of a value: values below 8 are exact, larger values keep their 3 most
+	 * significant bits after the leading one.
+	 */
+	static int index( long value ) {
+		if ( value < SUB_BUCKETS ) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros( value ) - SUB_BITS;
+		int index = ( shift + 1 ) * SUB_BUCKETS + (int) ( ( value >>> shift ) & ( SUB_BUCKETS - 1 ) );
+		return Math.min( index, BUCKETS - 1 );
+	}
+
+	/*
+	 * Highest value counted by a bucket.
+	 */
+	static long highest( int index ) {
+		if ( index < SUB_BUCKETS ) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long lowest = (long) ( SUB_BUCKETS + index % SUB_BUCKETS ) << shift;
+		return lowest + ( 1L << shift ) - 1;
+	}
+
+	/**
+	 * A copy of the recorded distribution.
+	 */
+	public static final class Snapshot {
+
+		private final long [] counts;
+		private final long count;
+		private final long sum;
+		private final long max;
+
+		Snapshot( long [] counts, long sum, long max ) {
+			long n = 0;
+			for ( long c : counts ) {
+				n += c;
+			}
+			this.counts = counts;
+			this.count = n;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		/**
+		 * Get the number of recorded values.
+		 * <p>
+		 * @return the number of values.
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * Get the sum of the recorded values.
+		 * <p>
+		 * @return the sum in nanoseconds.
+		 */
+		public long getSum() {
+			return sum;
+		}
+
+		/**
+		 * Get the largest recorded value.
+		 * <p>
+		 * @return the maximum in nanoseconds.
+		 */
+		public long getMax() {
+			return max;
+		}
+
+		/**
+		 * Get the value below which a fraction of the recorded values fall.
+		 * <p>
+		 * @param quantile the fraction, between 0 and 1.
+		 * @return the value in nanoseconds, or <code>0</code> if nothing was recorded.
+		 */
+		public long getValue( double quantile ) {
+			if ( count == 0 ) {
+				return 0;
+			}
+			long rank = Math.max( 1, (long) Math.ceil( quantile * count ) );
+			long seen = 0;
+			for ( int i = 0; i < counts.length; i++ ) {
+				seen += counts[i];
+				if ( seen >= rank ) {
+					// never report more than was recorded
+					return Math.min( highest( i ), max );
+				}
+			}
+			return max;
+		}
+	}
+}
@@ -0,0 +1,423 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.rnott.mock.Endpoint;
+import org.rnott.mock.RequestTimer;
+import org.rnott.mock.RequestTimer.Phase;
+
+
+/**
+ * Latency histograms of serviced requests, by endpoint and response status, along
+ * with histograms of the time each endpoint spends in each {@link Phase} of
+ * servicing a request. Histograms are created the first time an endpoint is used
+ * or responds with a status, after which recording a request takes no locks.
+ * Phase histograms are never striped.
+ * <p>
+ * Each endpoint costs about 12.5KB for its phase histograms, plus about 2.5KB for
+ * each status it responds with, or up to 10KB if requests with that status are
+ * recorded concurrently; see {@link Histogram}.
+ * <p>
+ * The registry also counts the requests received and the bytes transferred,
+ * tracks the requests in progress, and keeps a {@link TimeSeries} of recent seconds.
+ */
+public class MetricsRegistry {
+
+	/**
+	 * Servlet context attribute the registry is published under.
+	 */
+	public static final String ATTRIBUTE = MetricsRegistry.class.getName();
+
+	/**
+	 * Method and URI reported for requests that did not match an endpoint.
+	 */
+	public static final String UNMATCHED = "*";
+
+	private static final int MIN_STATUS = 100;
+	private static final int MAX_STATUS = 599;
+
+	private static final Phase [] PHASES = Phase.values();
+
+	/*
+	 * Histograms of one endpoint, indexed by status and phase.
+	 */
+	private static final class Statuses {
+
+		final String method;
+		final String uri;
+		final AtomicReferenceArray<Histogram> histograms = new AtomicReferenceArray<Histogram>( MAX_STATUS - MIN_STATUS + 1 );
+		final Histogram [] phases = new Histogram[ PHASES.length ];
+
+		Statuses( String method, String uri ) {
+			this.method = method;
+			this.uri = uri;
+			for ( int i = 0; i < phases.length; i++ ) {
+				phases[i] = new Histogram( 1 );
+			}
+		}
+
+		Histogram get( int status ) {
+			int i = Math.min( Math.max( status, MIN_STATUS ), MAX_STATUS ) - MIN_STATUS;
+			Histogram h = histograms.get( i );
+			return h != null ? h : create( i );
+		}
+
+		/*
+		 * Create the histogram of a status under a lock, so that racing threads
+		 * do not each allocate one.
+		 */
+		private synchronized Histogram create( int i ) {
+			Histogram h = histograms.get( i );
+			if ( h == null ) {
+				h = new Histogram();
+				histograms.set( i, h );
+			}
+			return h;
+		}
+	}
+
+	// endpoints are compared by identity
+	private final ConcurrentMap<Endpoint, Statuses> endpoints = new ConcurrentHashMap<Endpoint, Statuses>();
+	private final Statuses unmatched = new Statuses( UNMATCHED, UNMATCHED );
+	private final Counter started = new Counter();
+	private final Counter completed = new Counter();
+	private final Counter bytesIn = new Counter();
+	private final Counter bytesOut = new Counter();
+	private final TimeSeries history;
+
+	/**
+	 * Create a registry retaining the default number of seconds of history.
+	 */
+	public MetricsRegistry() {
+		this( TimeSeries.DEFAULT_SECONDS );
+	}
+
+	/**
+	 * Create a registry.
+	 * <p>
+	 * @param seconds the number of seconds of history retained.
+	 * @throws IllegalStateException if the number of seconds is not positive.
+	 */
+	public MetricsRegistry( int seconds ) {
+		history = new TimeSeries( seconds );
+	}
+
+	/**
+	 * Count a request that is about to be serviced. Every request counted must be
+	 * recorded once it completes.
+	 */
+	public void begin() {
+		started.increment();
+	}
+
+	/**
+	 * Count the bytes transferred by a request.
+	 * <p>
+	 * @param in the number of request body bytes received.
+	 * @param out the number of response body bytes sent.
+	 */
+	public void transferred( long in, long out ) {
+		bytesIn.add( in );
+		bytesOut.add( out );
+		history.transferred( in, out );
+	}
+
+	/**
+	 * Get the per-second history of serviced requests.
+	 * <p>
+	 * @return the time series.
+	 */
+	public TimeSeries getHistory() {
+		return history;
+	}
+
+	/**
+	 * Get the number of requests received.
+	 * <p>
+	 * @return the number of requests.
+	 */
+	public long getRequests() {
+		return started.get();
+	}
+
+	/**
+	 * Get the number of requests being serviced.
+	 * <p>
+	 * @return the number of requests in progress.
+	 */
+	public long getInFlight() {
+		// never less than zero, as requests complete after they are received
+		long done = completed.get();
+		return Math.max( 0, started.get() - done );
+	}
+
+	/**
+	 * Get the number of request body bytes received.
+	 * <p>
+	 * @return the number of bytes.
+	 */
+	public long getBytesIn() {
+		return bytesIn.get();
+	}
+
+	/**
+	 * Get the number of response body bytes sent.
+	 * <p>
+	 * @return the number of bytes.
+	 */
+	public long getBytesOut() {
+		return bytesOut.get();
+	}
+
+	/**
+	 * Record the time taken to service a request.
+	 * <p>
+	 * @param endpoint the endpoint that serviced the request, or <code>null</code>
+	 * if no endpoint matched.
+	 * @param status the response status.
+	 * @param nanos the elapsed time in nanoseconds.
+	 */
+	public void record( Endpoint endpoint, int status, long nanos ) {
+		get( endpoint ).get( status ).record( nanos );
+		history.record( status, nanos );
+		completed.increment();
+	}
+
+	/**
+	 * Record the time taken to service a request, along with the time spent in
+	 * each phase.
+	 * <p>
+	 * @param timer the timer of the request, identifying the endpoint that
+	 * serviced it.
+	 * @param status the response status.
+	 * @param nanos the elapsed time in nanoseconds.
+	 */
+	public void record( RequestTimer timer, int status, long nanos ) {
+		Statuses s = get( timer.getEndpoint() );
+		s.get( status ).record( nanos );
+		for ( Phase p : PHASES ) {
+			s.phases[ p.ordinal() ].record( timer.get( p ) );
+		}
+		history.record( status, nanos );
+		completed.increment();
+	}
+
+	private Statuses get( Endpoint endpoint ) {
+		if ( endpoint == null ) {
+			return unmatched;
+		}
+		Statuses s = endpoints.get( endpoint );
+		return s != null ? s : create( endpoint );
+	}
+
+	/*
+	 * Create the histograms of an endpoint under a lock, so that threads racing
+	 * on its first request do not each allocate them.
+	 */
+	private synchronized Statuses create( Endpoint endpoint ) {
+		Statuses s = endpoints.get( endpoint );
+		if ( s == null ) {
+			s = new Statuses( endpoint.getMethod(), endpoint.getUriTemplate().getTemplate() );
+			endpoints.put( endpoint, s );
+		}
+		return s;
+	}
+
+	/*
+	 * Approximate number of bytes held by the histograms of an endpoint.
+	 */
+	long footprint( Endpoint endpoint ) {
+		Statuses s = endpoint == null ? unmatched : endpoints.get( endpoint );
+		long bytes = 0;
+		if ( s != null ) {
+			for ( Histogram h : s.phases ) {
+				bytes += h.footprint();
+			}
+			for ( int i = 0; i < s.histograms.length(); i++ ) {
+				Histogram h = s.histograms.get( i );
+				bytes += h == null ? 0 : h.footprint();
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Take a snapshot of every recorded histogram.
+	 * <p>
+	 * @return the histograms ordered by URI, method and status. The list may be
+	 * empty but never <code>null</code>.
+	 */
+	public List<Series> snapshot() {
+		List<Statuses> all = new ArrayList<Statuses>( endpoints.values() );
+		all.add( unmatched );
+		List<Series> series = new ArrayList<Series>();
+		for ( Statuses s : all ) {
+			for ( int i = 0; i < s.histograms.length(); i++ ) {
+				Histogram h = s.histograms.get( i );
+				if ( h != null ) {
+					series.add( new Series( s.method, s.uri, MIN_STATUS + i, h.snapshot() ) );
+				}
+			}
+		}
+		Collections.sort( series, new Comparator<Series>() {
+			@Override
+			public int compare( Series a, Series b ) {
+				int n = a.uri.compareTo( b.uri );
+				if ( n == 0 ) {
+					n = a.method.compareTo( b.method );
+				}
+				return n != 0 ? n : a.status - b.status;
+			}
+		});
+		return series;
+	}
+
+	/**
+	 * Take a snapshot of the phase histograms of every endpoint that has serviced
+	 * a request.
+	 * <p>
+	 * @return the histograms ordered by URI and method. The list may be empty
+	 * but never <code>null</code>.
+	 */
+	public List<PhaseSeries> snapshotPhases() {
+		List<Statuses> all = new ArrayList<Statuses>( endpoints.values() );
+		all.add( unmatched );
+		List<PhaseSeries> series = new ArrayList<PhaseSeries>();
+		for ( Statuses s : all ) {
+			Histogram.Snapshot [] snapshots = new Histogram.Snapshot[ PHASES.length ];
+			for ( int i = 0; i < snapshots.length; i++ ) {
+				snapshots[i] = s.phases[i].snapshot();
+			}
+			if ( snapshots[0].getCount() > 0 ) {
+				series.add( new PhaseSeries( s.method, s.uri, snapshots ) );
+			}
+		}
+		Collections.sort( series, new Comparator<PhaseSeries>() {
+			@Override
+			public int compare( PhaseSeries a, PhaseSeries b ) {
+				int n = a.uri.compareTo( b.uri );
+				return n != 0 ? n : a.method.compareTo( b.method );
+			}
+		});
+		return series;
+	}
+
+	/**
+	 * The distribution recorded for an endpoint and response status.
+	 */
+	public static final class Series {
+
+		private final String method;
+		private final String uri;
+		private final int status;
+		private final Histogram.Snapshot snapshot;
+
+		Series( String method, String uri, int status, Histogram.Snapshot snapshot ) {
+			this.method = method;
+			this.uri = uri;
+			this.status = status;
+			this.snapshot = snapshot;
+		}
+
+		/**
+		 * Get the HTTP method of the endpoint.
+		 * <p>
+		 * @return the method, or {@link MetricsRegistry#UNMATCHED}.
+		 */
+		public String getMethod() {
+			return method;
+		}
+
+		/**
+		 * Get the URI template of the endpoint.
+		 * <p>
+		 * @return the URI template, or {@link MetricsRegistry#UNMATCHED}.
+		 */
+		public String getUri() {
+			return uri;
+		}
+
+		/**
+		 * Get the response status.
+		 * <p>
+		 * @return the status.
+		 */
+		public int getStatus() {
+			return status;
+		}
+
+		/**
+		 * Get the recorded distribution.
+		 * <p>
+		 * @return the latency histogram snapshot.
+		 */
+		public Histogram.Snapshot getSnapshot() {
+			return snapshot;
+		}
+	}
+
+	/**
+	 * The distribution of the time spent in each phase by an endpoint.
+	 */
+	public static final class PhaseSeries {
+
+		private final String method;
+		private final String uri;
+		private final Histogram.Snapshot [] snapshots;
+
+		PhaseSeries( String method, String uri, Histogram.Snapshot [] snapshots ) {
+			this.method = method;
+			this.uri = uri;
+			this.snapshots = snapshots;
+		}
+
+		/**
+		 * Get the HTTP method of the endpoint.
+		 * <p>
+		 * @return the method, or {@link MetricsRegistry#UNMATCHED}.
+		 */
+		public String getMethod() {
+			return method;
+		}
+
+		/**
+		 * Get the URI template of the endpoint.
+		 * <p>
+		 * @return the URI template, or {@link MetricsRegistry#UNMATCHED}.
+		 */
+		public String getUri() {
+			return uri;
+		}
+
+		/**
+		 * Get the distribution recorded for a phase.
+		 * <p>
+		 * @param phase the phase.
+		 * @return the histogram snapshot of the phase.
+		 */
+		public Histogram.Snapshot getSnapshot( Phase phase ) {
+			return snapshots[ phase.ordinal() ];
+		}
+	}
+}
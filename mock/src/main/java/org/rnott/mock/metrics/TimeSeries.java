@@ -0,0 +1,309 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * Per-second request statistics for a fixed number of recent seconds. Each second
+ * has its own bucket holding the number of requests, the number of server errors,
+ * the bytes transferred and a latency histogram.
+ * <p>
+ * Buckets are held in a ring indexed by time. The first request of a second
+ * replaces the bucket left in its slot by an older second with an empty one, using
+ * a single compare-and-set, so no request ever clears a bucket or waits for another
+ * to do so. The empty bucket is a spare cleared ahead of time by the history
+ * reader, which recycles the last bucket replaced each time it takes a snapshot,
+ * or a new bucket when no spare is ready. A request can only be counted in the
+ * wrong second if its thread stalls between finding its bucket and recording, and
+ * snapshots skip a bucket that is replaced while it is read.
+ */
+public class TimeSeries {
+
+	/**
+	 * Default number of seconds retained.
+	 */
+	public static final int DEFAULT_SECONDS = 300;
+
+	/*
+	 * Statistics of one second.
+	 */
+	private static final class Bucket {
+
+		// set before the bucket is placed in the ring
+		volatile long second;
+		final Counter count = new Counter();
+		final Counter errors = new Counter();
+		final Counter bytesIn = new Counter();
+		final Counter bytesOut = new Counter();
+		final Histogram latency = new Histogram();
+
+		void reset() {
+			count.reset();
+			errors.reset();
+			bytesIn.reset();
+			bytesOut.reset();
+			latency.reset();
+		}
+	}
+
+	private final AtomicReferenceArray<Bucket> buckets;
+	// cleared bucket for the next second to start
+	private final AtomicReference<Bucket> spare = new AtomicReference<Bucket>();
+	// the last bucket replaced, not yet cleared
+	private final AtomicReference<Bucket> retired = new AtomicReference<Bucket>();
+
+	/**
+	 * Create a time series retaining the default number of seconds.
+	 */
+	public TimeSeries() {
+		this( DEFAULT_SECONDS );
+	}
+
+	/**
+	 * Create a time series.
+	 * <p>
+	 * @param seconds the number of seconds retained.
+	 * @throws IllegalStateException if the number of seconds is not positive.
+	 */
+	public TimeSeries( int seconds ) {
+		if ( seconds <= 0 ) {
+			throw new IllegalStateException( "Time series must retain at least one second: " + seconds );
+		}
+		buckets = new AtomicReferenceArray<Bucket>( seconds );
+	}
+
+	/**
+	 * Get the number of seconds retained.
+	 * <p>
+	 * @return the number of seconds.
+	 */
+	public int getSeconds() {
+		return buckets.length();
+	}
+
+	/**
+	 * Record a completed request in the current second.
+	 * <p>
+	 * @param status the response status; statuses of 500 and above are counted
+	 * as errors.
+	 * @param nanos the time taken to service the request, in nanoseconds.
+	 */
+	public void record( int status, long nanos ) {
+		record( System.currentTimeMillis(), status, nanos );
+	}
+
+	/*
+	 * Record a completed request at the provided time.
+	 */
+	void record( long millis, int status, long nanos ) {
+		Bucket b = get( millis / 1000 );
+		if ( b != null ) {
+			b.count.increment();
+			if ( status >= 500 ) {
+				b.errors.increment();
+			}
+			b.latency.record( nanos );
+		}
+	}
+
+	/**
+	 * Count the bytes transferred by a request in the current second.
+	 * <p>
+	 * @param in the number of request body bytes received.
+	 * @param out the number of response body bytes sent.
+	 */
+	public void transferred( long in, long out ) {
+		transferred( System.currentTimeMillis(), in, out );
+	}
+
+	/*
+	 * Count the bytes transferred at the provided time.
+	 */
+	void transferred( long millis, long in, long out ) {
+		Bucket b = get( millis / 1000 );
+		if ( b != null ) {
+			b.bytesIn.add( in );
+			b.bytesOut.add( out );
+		}
+	}
+
+	/*
+	 * Get the bucket of a second, replacing the bucket of an older second.
+	 */
+	private Bucket get( long second ) {
+		int i = (int) ( second % buckets.length() );
+		for ( ;; ) {
+			Bucket b = buckets.get( i );
+			if ( b != null ) {
+				if ( b.second == second ) {
+					return b;
+				}
+				if ( b.second > second ) {
+					// a thread delayed past the retained seconds has nowhere to record
+					return null;
+				}
+			}
+			Bucket next = spare.getAndSet( null );
+			if ( next == null ) {
+				next = new Bucket();
+			}
+			next.second = second;
+			if ( buckets.compareAndSet( i, b, next ) ) {
+				if ( b != null ) {
+					retired.set( b );
+				}
+				return next;
+			}
+			// another request started the second, keep the bucket for a later one
+			spare.compareAndSet( null, next );
+		}
+	}
+
+	/*
+	 * Clear the last bucket replaced so the next second can start with it. Called
+	 * by the history reader, keeping the cost off requests.
+	 */
+	private void recycle() {
+		if ( spare.get() == null ) {
+			Bucket b = retired.getAndSet( null );
+			if ( b != null ) {
+				b.reset();
+				spare.compareAndSet( null, b );
+			}
+		}
+	}
+
+	/**
+	 * Get the statistics of recent seconds, oldest first. Seconds without requests
+	 * are included, so the entries are one second apart.
+	 * <p>
+	 * @param seconds the number of seconds to return, up to and including the
+	 * current second. Values beyond the retained seconds are reduced.
+	 * @return the statistics of each second.
+	 */
+	public List<Entry> snapshot( int seconds ) {
+		return snapshot( System.currentTimeMillis(), seconds );
+	}
+
+	/*
+	 * Get the statistics of the seconds up to the provided time.
+	 */
+	List<Entry> snapshot( long millis, int seconds ) {
+		recycle();
+		long now = millis / 1000;
+		int n = Math.max( 0, Math.min( seconds, buckets.length() ) );
+		List<Entry> entries = new ArrayList<Entry>( n );
+		for ( long s = now - n + 1; s <= now; s++ ) {
+			int i = (int) ( s % buckets.length() );
+			Bucket b = buckets.get( i );
+			if ( b != null && b.second == s ) {
+				Entry e = new Entry( s * 1000, b.count.get(), b.errors.get(),
+					b.bytesIn.get(), b.bytesOut.get(), b.latency.snapshot() );
+				// discard statistics of a bucket replaced while it was read
+				if ( buckets.get( i ) == b && b.second == s ) {
+					entries.add( e );
+					continue;
+				}
+			}
+			entries.add( new Entry( s * 1000, 0, 0, 0, 0, null ) );
+		}
+		return entries;
+	}
+
+	/**
+	 * The statistics of one second.
+	 */
+	public static final class Entry {
+
+		private static final Histogram.Snapshot EMPTY = new Histogram().snapshot();
+
+		private final long time;
+		private final long count;
+		private final long errors;
+		private final long bytesIn;
+		private final long bytesOut;
+		private final Histogram.Snapshot latency;
+
+		Entry( long time, long count, long errors, long bytesIn, long bytesOut, Histogram.Snapshot latency ) {
+			this.time = time;
+			this.count = count;
+			this.errors = errors;
+			this.bytesIn = bytesIn;
+			this.bytesOut = bytesOut;
+			this.latency = latency != null ? latency : EMPTY;
+		}
+
+		/**
+		 * Get the start of the second.
+		 * <p>
+		 * @return the time in epoch milliseconds.
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * Get the number of requests completed.
+		 * <p>
+		 * @return the number of requests.
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * Get the number of requests completed with a status of 500 or above.
+		 * <p>
+		 * @return the number of errors.
+		 */
+		public long getErrors() {
+			return errors;
+		}
+
+		/**
+		 * Get the number of request body bytes received.
+		 * <p>
+		 * @return the number of bytes.
+		 */
+		public long getBytesIn() {
+			return bytesIn;
+		}
+
+		/**
+		 * Get the number of response body bytes sent.
+		 * <p>
+		 * @return the number of bytes.
+		 */
+		public long getBytesOut() {
+			return bytesOut;
+		}
+
+		/**
+		 * Get the latencies of the requests completed.
+		 * <p>
+		 * @return the latency histogram snapshot.
+		 */
+		public Histogram.Snapshot getLatency() {
+			return latency;
+		}
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.rnott.mock;
+
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.DispatcherType;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.server.LocalConnector;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.rnott.mock.metrics.MetricsRegistry;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+
+/**
+ * Test functionality of the <code>AnalyticsFilter</code> component, serving
+ * requests through an in-process server.
+ * <p>
+ * @see AnalyticsFilter
+ */
+public class AnalyticsFilterTest {
+
+	private Server server;
+	private LocalConnector connector;
+	private ServletContextHandler context;
+
+	@BeforeMethod
+	public void start() throws Exception {
+		server = new Server();
+		connector = new LocalConnector( server );
+		server.addConnector( connector );
+		context = new ServletContextHandler();
+		context.setContextPath( "/" );
+		context.addFilter( AnalyticsFilter.class, "/*", EnumSet.of( DispatcherType.REQUEST ) );
+		context.addServlet( new ServletHolder( new HttpServlet() {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void doGet( HttpServletRequest request, HttpServletResponse response ) throws ServletException, IOException {
+				if ( request.getRequestURI().startsWith( "/fail" ) ) {
+					throw new IllegalStateException( "failed" );
+				}
+				response.getWriter().write( "ok" );
+			}
+		}), "/*" );
+		server.setHandler( context );
+		server.start();
+	}
+
+	@AfterMethod
+	public void stop() throws Exception {
+		server.stop();
+	}
+
+	private String get( String uri ) throws Exception {
+		return connector.getResponses( "GET " + uri + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n", 5, TimeUnit.SECONDS );
+	}
+
+	private int count( MetricsRegistry registry, int status ) {
+		int count = 0;
+		for ( MetricsRegistry.Series s : registry.snapshot() ) {
+			if ( s.getStatus() == status ) {
+				count += s.getSnapshot().getCount();
+			}
+		}
+		return count;
+	}
+
+	@Test
+	public void doFilter() throws Exception {
+		String response = get( "/ok" );
+		assert response.startsWith( "HTTP/1.1 200" ) : "Unexpected response: " + response;
+		assert response.contains( "X-Elapsed-Time:" ) : "Missing elapsed time: " + response;
+
+		MetricsRegistry registry = (MetricsRegistry) context.getServletContext().getAttribute( MetricsRegistry.ATTRIBUTE );
+		assert registry.getRequests() == 1 : "Unexpected requests: " + registry.getRequests();
+		assert registry.getInFlight() == 0 : "Unexpected requests in flight: " + registry.getInFlight();
+		assert count( registry, 200 ) == 1 : "Request not recorded";
+	}
+
+	@Test
+	public void doFilter_Exception() throws Exception {
+		for ( int i = 0; i < 3; i++ ) {
+			String response = get( "/fail" );
+			assert response.startsWith( "HTTP/1.1 500" ) : "Unexpected response: " + response;
+		}
+
+		// failed requests are no longer counted as in progress
+		MetricsRegistry registry = (MetricsRegistry) context.getServletContext().getAttribute( MetricsRegistry.ATTRIBUTE );
+		assert registry.getRequests() == 3 : "Unexpected requests: " + registry.getRequests();
+		assert registry.getInFlight() == 0 : "Unexpected requests in flight: " + registry.getInFlight();
+		assert count( registry, 500 ) == 3 : "Failed requests not recorded";
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+
+/**
+ * Test functionality of the <code>IdGenerator</code> component.
+ * <p>
+ * @see IdGenerator
+ */
+public class IdGeneratorTest {
+
+	private static final Pattern FORMAT = Pattern.compile( "[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[89ab][0-9a-f]{3}-[0-9a-f]{12}" );
+
+	@DataProvider(name = "generators")
+	public Object [][] generators() {
+		return new Object [][] {
+			{ "random", IdGenerator.RANDOM, 4 },
+			{ "time", IdGenerator.TIME, 7 },
+			{ "secure", IdGenerator.SECURE, 4 },
+			{ "TIME", IdGenerator.TIME, 7 },
+		};
+	}
+
+	@Test(dataProvider = "generators")
+	public void create( String name, IdGenerator expected, int version ) {
+		assert IdGenerator.create( name ) == expected : "Unexpected generator for: " + name;
+	}
+
+	@Test(dataProvider = "generators")
+	public void next( String name, IdGenerator generator, int version ) {
+		for ( int i = 0; i < 1000; i++ ) {
+			String id = generator.next();
+			assert FORMAT.matcher( id ).matches() : "Unexpected format: " + id;
+			UUID uuid = UUID.fromString( id );
+			assert uuid.version() == version : "Unexpected version: " + id;
+			assert uuid.variant() == 2 : "Unexpected variant: " + id;
+			assert uuid.toString().equals( id ) : "Formatted differently than UUID: " + id;
+		}
+	}
+
+	@Test(dataProvider = "generators")
+	public void next_Unique( String name, final IdGenerator generator, int version ) throws InterruptedException {
+		final Set<String> ids = Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+		final int count = 20000;
+		List<Thread> threads = new ArrayList<Thread>();
+		for ( int t = 0; t < 4; t++ ) {
+			threads.add( new Thread() {
+				@Override
+				public void run() {
+					for ( int i = 0; i < count; i++ ) {
+						ids.add( generator.next() );
+					}
+				}
+			});
+		}
+		for ( Thread t : threads ) {
+			t.start();
+		}
+		for ( Thread t : threads ) {
+			t.join();
+		}
+		assert ids.size() == threads.size() * count : "Duplicate ids: " + ( threads.size() * count - ids.size() );
+	}
+
+	@Test
+	public void next_Ordered() {
+		String previous = IdGenerator.TIME.next();
+		for ( int i = 0; i < 10000; i++ ) {
+			String id = IdGenerator.TIME.next();
+			assert id.compareTo( previous ) > 0 : "Not ordered: " + previous + ", " + id;
+			previous = id;
+		}
+	}
+
+	@Test(expectedExceptions = IllegalStateException.class)
+	public void create_IllegalStateException() {
+		IdGenerator.create( "sequential" );
+	}
+
+	@Test
+	public void format() {
+		UUID uuid = UUID.randomUUID();
+		String s = IdGenerator.format( uuid.getMostSignificantBits(), uuid.getLeastSignificantBits() );
+		assert uuid.toString().equals( s ) : "Unexpected format: " + s + ", expected " + uuid;
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.rnott.mock;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.rnott.mock.RequestTimer.Phase;
+import org.rnott.mock.metrics.MetricsRegistry;
+import org.testng.annotations.Test;
+
+
+/**
+ * Test functionality of the <code>MetricsServlet</code> component.
+ * <p>
+ * @see MetricsServlet
+ */
+public class MetricsServletTest {
+
+	private static Endpoint endpoint( String method, String uri ) {
+		Map<String, Object> attributes = new HashMap<String, Object>();
+		attributes.put( "method", method );
+		attributes.put( "uri", uri );
+		attributes.put( "response", Collections.singletonList( new HashMap<String, Object>() ) );
+		return new Endpoint( attributes );
+	}
+
+	private static List<String> prometheus( MetricsRegistry registry ) throws IOException {
+		StringWriter out = new StringWriter();
+		MetricsServlet.writePrometheus( registry, null, null, out );
+		String s = out.toString();
+		assert s.endsWith( "\n" ) : "Missing final line feed";
+		return Arrays.asList( s.split( "\n" ) );
+	}
+
+	/*
+	 * Find the value of the sample with the provided name and labels.
+	 */
+	private static String value( List<String> lines, String sample ) {
+		for ( String line : lines ) {
+			if ( line.startsWith( sample + " " ) ) {
+				return line.substring( sample.length() + 1 );
+			}
+		}
+		throw new AssertionError( "Missing sample: " + sample + " in " + lines );
+	}
+
+	@Test
+	public void writePrometheus_Metadata() throws IOException {
+		MetricsRegistry registry = new MetricsRegistry();
+		registry.begin();
+		registry.record( endpoint( "GET", "/items/{id}" ), 200, 1000 );
+		List<String> lines = prometheus( registry );
+
+		// every sample follows the help and type of its metric
+		Set<String> declared = new HashSet<String>();
+		Map<String, String> types = new HashMap<String, String>();
+		String help = null;
+		for ( String line : lines ) {
+			if ( line.startsWith( "# HELP " ) ) {
+				help = line.split( " " )[2];
+				assert line.length() > ( "# HELP " + help + " " ).length() : "Missing help text: " + line;
+			} else if ( line.startsWith( "# TYPE " ) ) {
+				String [] parts = line.split( " " );
+				assert parts.length == 4 : "Malformed type: " + line;
+				assert parts[2].equals( help ) : "Type without help: " + line;
+				assert Arrays.asList( "counter", "gauge", "summary" ).contains( parts[3] ) : "Unexpected type: " + line;
+				assert declared.add( parts[2] ) : "Metric declared twice: " + parts[2];
+				types.put( parts[2], parts[3] );
+			} else {
+				String name = line.split( "[ {]" )[0];
+				String base = name.replaceAll( "_(sum|count)$", "" );
+				assert declared.contains( name ) || "summary".equals( types.get( base ) ) : "Undeclared sample: " + line;
+			}
+		}
+		assert "counter".equals( types.get( "mock_requests_total" ) ) : "Unexpected types: " + types;
+		assert "summary".equals( types.get( MetricsServlet.METRIC_NAME ) ) : "Unexpected types: " + types;
+		assert "summary".equals( types.get( MetricsServlet.PHASE_METRIC_NAME ) ) : "Unexpected types: " + types;
+		assert "1".equals( value( lines, "mock_requests_total" ) ) : "Unexpected request count";
+		assert "0".equals( value( lines, "mock_requests_in_flight" ) ) : "Unexpected requests in flight";
+	}
+
+	@Test
+	public void writePrometheus_Summary() throws IOException {
+		Endpoint e = endpoint( "GET", "/items/{id}" );
+		MetricsRegistry registry = new MetricsRegistry();
+		registry.record( e, 200, 1500000000L );
+		registry.record( e, 200, 500000000L );
+		registry.record( (Endpoint) null, 404, 250000000L );
+		List<String> lines = prometheus( registry );
+
+		// durations are reported in seconds
+		String name = MetricsServlet.METRIC_NAME;
+		String labels = "method=\"GET\",uri=\"/items/{id}\",status=\"200\"";
+		assert "2.0".equals( value( lines, name + "_sum{" + labels + "}" ) ) : "Unexpected sum";
+		assert "2".equals( value( lines, name + "_count{" + labels + "}" ) ) : "Unexpected count";
+		for ( String q : new String [] { "0.5", "0.9", "0.99", "0.999" } ) {
+			double v = Double.parseDouble( value( lines, name + "{" + labels + ",quantile=\"" + q + "\"}" ) );
+			double expected = "0.5".equals( q ) ? 0.5 : 1.5;
+			assert Math.abs( v - expected ) <= expected / 16 : "Unexpected quantile " + q + ": " + v;
+		}
+		assert "1.5".equals( value( lines, "mock_request_duration_max_seconds{" + labels + "}" ) ) : "Unexpected max";
+
+		// requests that match no endpoint
+		String unmatched = "method=\"*\",uri=\"*\",status=\"404\"";
+		assert "0.25".equals( value( lines, name + "_sum{" + unmatched + "}" ) ) : "Unexpected unmatched sum";
+		assert "1".equals( value( lines, name + "_count{" + unmatched + "}" ) ) : "Unexpected unmatched count";
+	}
+
+	@Test
+	public void writePrometheus_Phases() throws IOException {
+		Endpoint e = endpoint( "POST", "/items" );
+		RequestTimer timer = new RequestTimer();
+		timer.setEndpoint( e );
+		MetricsRegistry registry = new MetricsRegistry();
+		registry.record( timer, 201, 1000000L );
+		List<String> lines = prometheus( registry );
+
+		String name = MetricsServlet.PHASE_METRIC_NAME;
+		for ( Phase p : Phase.values() ) {
+			String labels = "method=\"POST\",uri=\"/items\",phase=\"" + p.key() + "\"";
+			assert "1".equals( value( lines, name + "_count{" + labels + "}" ) ) : "Unexpected count for " + p;
+			value( lines, name + "_sum{" + labels + "}" );
+			value( lines, name + "{" + labels + ",quantile=\"0.99\"}" );
+		}
+	}
+
+	@Test
+	public void writePrometheus_Escape() throws IOException {
+		MetricsRegistry registry = new MetricsRegistry();
+		registry.record( endpoint( "GET", "/say/\"hi\"/back\\slash" ), 200, 1000 );
+		List<String> lines = prometheus( registry );
+
+		// quotes and backslashes in label values are escaped
+		String labels = "method=\"GET\",uri=\"/say/\\\"hi\\\"/back\\\\slash\",status=\"200\"";
+		assert "1".equals( value( lines, MetricsServlet.METRIC_NAME + "_count{" + labels + "}" ) ) : "Unexpected count";
+	}
+}
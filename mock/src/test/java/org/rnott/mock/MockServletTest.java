@@ -0,0 +1,131 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.rnott.mock;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jetty.server.LocalConnector;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+
+/**
+ * Test functionality of the <code>MockServlet</code> component, serving requests
+ * through an in-process server.
+ * <p>
+ * @see MockServlet
+ */
+public class MockServletTest {
+
+	private static final String CONFIG = "["
+		+ "{ \"uri\": \"/delayed/{id}\", \"method\": \"GET\", \"delay\": 200, \"response\": [ { \"body\": \"delayed ${id}\" } ] },"
+		+ "{ \"uri\": \"/static\", \"method\": \"GET\", \"delay\": 200, \"response\": [ { \"body\": \"static body\" } ] },"
+		+ "{ \"uri\": \"/forever\", \"method\": \"GET\", \"delay\": 60000, \"response\": [ { \"body\": \"never\" } ] }"
+		+ "]";
+
+	private Server server;
+	private LocalConnector connector;
+	private MockServlet servlet;
+
+	private void start( boolean async ) throws Exception {
+		server = new Server();
+		connector = new LocalConnector( server );
+		server.addConnector( connector );
+		ServletContextHandler context = new ServletContextHandler();
+		context.setContextPath( "/" );
+		servlet = new MockServlet();
+		ServletHolder holder = new ServletHolder( servlet );
+		holder.setInitParameter( "config", CONFIG );
+		holder.setAsyncSupported( async );
+		context.addServlet( holder, "/*" );
+		server.setHandler( context );
+		server.start();
+	}
+
+	@AfterMethod
+	public void stop() throws Exception {
+		if ( server != null ) {
+			server.stop();
+			server = null;
+		}
+	}
+
+	private String get( String uri ) throws Exception {
+		return connector.getResponses( "GET " + uri + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n", 5, TimeUnit.SECONDS );
+	}
+
+	@Test
+	public void delay_Async() throws Exception {
+		start( true );
+		long start = System.nanoTime();
+		String response = get( "/delayed/42" );
+		long elapsed = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+		assert response.startsWith( "HTTP/1.1 200" ) : "Unexpected response: " + response;
+		assert response.endsWith( "delayed 42" ) : "Unexpected body: " + response;
+		assert response.contains( "Content-Length: 10" ) : "Missing content length: " + response;
+		assert elapsed >= 200 : "Response not delayed: " + elapsed + "ms";
+
+		// static bodies are written as configured
+		response = get( "/static" );
+		assert response.startsWith( "HTTP/1.1 200" ) && response.endsWith( "static body" ) : "Unexpected response: " + response;
+	}
+
+	@Test
+	public void delay_Sync() throws Exception {
+		// the request thread waits out the delay
+		start( false );
+		long start = System.nanoTime();
+		String response = get( "/delayed/7" );
+		long elapsed = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+		assert response.startsWith( "HTTP/1.1 200" ) : "Unexpected response: " + response;
+		assert response.endsWith( "delayed 7" ) : "Unexpected body: " + response;
+		assert elapsed >= 200 : "Response not delayed: " + elapsed + "ms";
+	}
+
+	@Test
+	public void delay_Destroy() throws Exception {
+		start( true );
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<String> future = executor.submit( new Callable<String>() {
+
+				@Override
+				public String call() throws Exception {
+					return get( "/forever" );
+				}
+			});
+			// wait for the response to be scheduled
+			Thread.sleep( 500 );
+			assert ! future.isDone() : "Response should be delayed";
+
+			// pending responses are completed rather than left to time out
+			servlet.destroy();
+			String response = future.get( 5, TimeUnit.SECONDS );
+			assert response.startsWith( "HTTP/1.1 503" ) : "Unexpected response: " + response;
+			assert ! response.contains( "never" ) : "Unexpected body: " + response;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
@@ -16,8 +16,10 @@
 
 package org.rnott.mock;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import org.rnott.mock.delay.FixedDelay;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
@@ -62,6 +64,27 @@ public class ResponseTest {
 		};
 	}
 
+	@Test(dataProvider = "delay")
+	public void delay( int delay ) {
+		assert response.getDelayModel().next() == 0 : "Unexpected default delay: " + response.getDelayModel();
+		assert response.withDelay( new FixedDelay( delay ) ).getDelayModel().next() == delay : "Unexpected delay " + response.getDelayModel();
+	}
+
+	@SuppressWarnings( "deprecation" )
+	@Test(dataProvider = "delay")
+	public void delay_Endpoint( int delay ) {
+		Map<String, Object> attributes = new HashMap<String, Object>();
+		attributes.put( "method", "GET" );
+		attributes.put( "uri", "/foo" );
+		attributes.put( "delay", delay );
+		attributes.put( "response", Arrays.asList( new HashMap<String, Object>() ) );
+		Endpoint e = new Endpoint( attributes );
+		assert e.getDelayModel().next() == delay : "Unexpected delay model: " + e.getDelayModel();
+		// the fixed delay is still available to existing callers
+		assert e.getDelay() == delay : "Unexpected delay: " + e.getDelay();
+		assert e.getResponses().get( 0 ).getDelayModel().next() == delay : "Delay not inherited by the response";
+	}
+
 	@DataProvider(name = "status")
 	public Object [][] stgtus() {
 		return new Object [][] {
@@ -108,4 +131,32 @@ public class ResponseTest {
 				: "Unexpected value: '" + response.getHeaders().get( key ) + "', expected '" + headers.get( key ) + "'";
 		}
 	}
+
+	@DataProvider(name = "static")
+	public Object [][] statics() {
+		return new Object [][] {
+			{ "text/plain", "static body", true },
+			{ "text/plain", "${foo}", false },
+			{ "${foo}", "static body", false },
+		};
+	}
+
+	@Test(dataProvider = "static")
+	public void isStatic( String contentType, String body, boolean expected ) {
+		response.withHeader( "Content-Type", contentType ).wtihBody( body );
+		assert response.isStatic() == expected : "Unexpected static state: " + response.isStatic();
+		if ( expected ) {
+			assert response.getContent() != null : "Static body is not encoded";
+			assert body.equals( new String( response.getContent(), response.getCharset() ) ) : "Unexpected encoded body";
+		} else {
+			assert response.getContent() == null || ! body.contains( "${" ) : "Dynamic body should not be encoded";
+		}
+	}
+
+	@Test
+	public void getCharset() throws Exception {
+		response.withHeader( "Content-Type", "text/plain; charset=UTF-16" ).wtihBody( "abc" );
+		assert "UTF-16".equals( response.getCharset().name() ) : "Unexpected charset: " + response.getCharset();
+		assert Arrays.equals( "abc".getBytes( "UTF-16" ), response.getContent() ) : "Body not encoded using declared charset";
+	}
 }
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+
+/**
+ * Test functionality of the <code>Router</code> component.
+ * <p>
+ * @see Router
+ */
+public class RouterTest {
+
+	private static final String [][] TEMPLATES = {
+		{ "GET", "/" },
+		{ "GET", "/items" },
+		{ "GET", "/items/{id}" },
+		{ "GET", "/items/special" },
+		{ "PUT", "/items/{id}" },
+		{ "GET", "/items/{id}/parts/${part}" },
+		{ "GET", "/files/{path: .*}" },
+		{ "GET", "/docs/{name}.json" },
+		{ "GET", "/orders/recent" },
+		{ "GET", "/orders/{id}" },
+	};
+
+	private List<Endpoint> endpoints;
+	private Router router;
+
+	@BeforeClass
+	public void initialize() {
+		endpoints = new ArrayList<Endpoint>();
+		for ( String [] t : TEMPLATES ) {
+			Map<String, Object> attributes = new HashMap<String, Object>();
+			attributes.put( "method", t[0] );
+			attributes.put( "uri", t[1] );
+			attributes.put( "response", Collections.singletonList( new HashMap<String, Object>() ) );
+			endpoints.add( new Endpoint( attributes ) );
+		}
+		router = new Router( endpoints );
+	}
+
+	@DataProvider(name = "requests")
+	public Object [][] requests() {
+		return new Object [][] {
+			{ "GET", "/", 0, new String [][] {} },
+			{ "GET", "/items", 1, new String [][] {} },
+			{ "get", "/items", 1, new String [][] {} },
+			{ "GET", "/items/42", 2, new String [][] {{ "id", "42" }} },
+			// first configured endpoint wins
+			{ "GET", "/items/special", 2, new String [][] {{ "id", "special" }} },
+			{ "GET", "/orders/recent", 8, new String [][] {} },
+			{ "GET", "/orders/7", 9, new String [][] {{ "id", "7" }} },
+			{ "PUT", "/items/42", 4, new String [][] {{ "id", "42" }} },
+			{ "GET", "/items/42/parts/7", 5, new String [][] {{ "id", "42" }, { "part", "7" }} },
+			// templates matched by the URI template
+			{ "GET", "/files/a/b/c", 6, new String [][] {{ "path", "a/b/c" }} },
+			{ "GET", "/docs/readme.json", 7, new String [][] {{ "name", "readme" }} },
+		};
+	}
+
+	@DataProvider(name = "unmatched")
+	public Object [][] unmatched() {
+		return new Object [][] {
+			{ "POST", "/items" },
+			{ "GET", "/items/" },
+			{ "GET", "/items//parts/7" },
+			{ "GET", "/missing" },
+			{ "GET", "" },
+			{ "DELETE", "/items/42" },
+		};
+	}
+
+	@Test(dataProvider = "requests")
+	public void match( String method, String path, int expected, String [][] params ) {
+		Map<String, String> values = new HashMap<String, String>();
+		Endpoint e = router.match( method, path, values );
+		assert e == endpoints.get( expected ) : "Unexpected endpoint: " + e + ", expected " + endpoints.get( expected );
+		assert values.size() == params.length : "Unexpected parameters: " + values;
+		for ( String [] p : params ) {
+			assert p[1].equals( values.get( p[0] ) ) : "Unexpected parameter value: " + p[0] + "=" + values.get( p[0] );
+		}
+	}
+
+	private static MockHttpServletRequest request( final String method, final String path ) {
+		return new MockHttpServletRequest() {
+
+			private final Map<String, Object> attributes = new HashMap<String, Object>();
+
+			@Override
+			public String getMethod() {
+				return method;
+			}
+
+			@Override
+			public String getRequestURI() {
+				return path;
+			}
+
+			@Override
+			public Object getAttribute( String name ) {
+				return attributes.get( name );
+			}
+
+			@Override
+			public void setAttribute( String name, Object o ) {
+				attributes.put( name, o );
+			}
+		};
+	}
+
+	@Test(dataProvider = "requests")
+	public void resolve( String method, String path, int expected, String [][] params ) {
+		MockHttpServletRequest request = request( method, path );
+		Endpoint e = router.resolve( request );
+		assert e == endpoints.get( expected ) : "Unexpected endpoint: " + e + ", expected " + endpoints.get( expected );
+
+		// selected once, reused when the request is handled
+		Map<String, String> values = new HashMap<String, String>();
+		Router other = new Router( Collections.<Endpoint>emptyList() );
+		assert other.match( request, values ) == null : "Selection of another router should not apply";
+		assert router.match( request, values ) == e : "Selection not reused";
+		assert values.size() == params.length : "Unexpected parameters: " + values;
+		for ( String [] p : params ) {
+			assert p[1].equals( values.get( p[0] ) ) : "Unexpected parameter value: " + p[0] + "=" + values.get( p[0] );
+		}
+	}
+
+	@Test(dataProvider = "unmatched")
+	public void resolve_NotFound( String method, String path ) {
+		MockHttpServletRequest request = request( method, path );
+		assert router.resolve( request ) == null : "Unexpected endpoint";
+		assert router.match( request, new HashMap<String, String>() ) == null : "Unexpected endpoint";
+	}
+
+	@Test(dataProvider = "unmatched")
+	public void match_NotFound( String method, String path ) {
+		Endpoint e = router.match( method, path, new HashMap<String, String>() );
+		assert e == null : "Unexpected endpoint: " + e;
+	}
+}
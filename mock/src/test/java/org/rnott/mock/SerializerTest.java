@@ -16,15 +16,27 @@
 
 package org.rnott.mock;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import javax.servlet.http.HttpServletResponse;
+import org.rnott.mock.capture.CaptureBuffer;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 
 /**
@@ -44,6 +56,25 @@ public class SerializerTest {
 		};
 	}
 
+	@DataProvider(name = "content")
+	public Object [][] content() {
+		return new Object [][] {
+			{ new byte [] { 'a', '\n', 'b' }, true },
+			{ "caf\u00e9 \u20ac \ud83d\ude00".getBytes( Charset.forName( "UTF-8" ) ), true },
+			{ new byte [] { 0 }, true },
+			{ new byte [] { (byte) 0xFF }, false },
+			// latin-1
+			{ new byte [] { 'c', 'a', 'f', (byte) 0xE9 }, false },
+			// incomplete sequence
+			{ new byte [] { (byte) 0xE2, (byte) 0x82 }, false },
+			// overlong encoding
+			{ new byte [] { (byte) 0xC0, (byte) 0xAF }, false },
+			{ new byte [] { (byte) 0xE0, (byte) 0x80, (byte) 0xAF }, false },
+			// surrogate
+			{ new byte [] { (byte) 0xED, (byte) 0xA0, (byte) 0x80 }, false },
+		};
+	}
+
 	private static class MockHttpServletRequestImpl extends MockHttpServletRequest {
 
 		private final String method;
@@ -259,4 +290,207 @@ public class SerializerTest {
 		assert result.containsKey( Serializer.KEY_BODY ) : "No request BODY";
 		assert body.equals( result.get( Serializer.KEY_BODY ) ) : "Body mismatch";
 	}
+
+	@Test(dataProvider = "content")
+	public void isText( byte [] content, boolean expected ) {
+		assert Serializer.isText( content ) == expected : "Unexpected text detection: " + Arrays.toString( content );
+	}
+
+	@Test(dataProvider = "content")
+	public void isText_Stream( byte [] content, boolean expected ) throws IOException {
+		// one byte for each read, so that every sequence spans reads
+		InputStream in = new ByteArrayInputStream( content ) {
+			@Override
+			public synchronized int read( byte [] b, int off, int len ) {
+				return super.read( b, off, Math.min( len, 1 ) );
+			}
+		};
+		assert Serializer.isText( in ) == expected : "Unexpected text detection: " + Arrays.toString( content );
+	}
+
+	@DataProvider(name = "captured")
+	public Object [][] captured() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for ( char c = 0; c < 0x80; c++ ) {
+			sb.append( c );
+		}
+		sb.append( "caf\u00e9 \u20ac \ud83d\ude00 \"quoted\" \\ end" );
+		byte [] text = sb.toString().getBytes( "UTF-8" );
+		byte [] binary = new byte[ 256 ];
+		for ( int i = 0; i < binary.length; i++ ) {
+			binary[i] = (byte) i;
+		}
+		// larger than a read, with multi-byte sequences spanning reads
+		StringBuilder large = new StringBuilder();
+		while ( large.length() < 20000 ) {
+			large.append( "line \u00e9\u20ac\ud83d\ude00 \"\t\"\n" );
+		}
+		return new Object [][] {
+			{ new byte[0], 1024 },
+			{ text, 1024 },
+			{ text, 16 },
+			{ binary, 1024 },
+			{ binary, 16 },
+			{ large.toString().getBytes( "UTF-8" ), 1024 * 1024 },
+			{ large.toString().getBytes( "UTF-8" ), 1024 },
+		};
+	}
+
+	@SuppressWarnings( "unchecked" )
+	@Test(dataProvider = "captured")
+	public void writeCapture( byte [] content, int memoryLimit ) throws IOException {
+		Map<String, List<String>> headers = new HashMap<String, List<String>>();
+		headers.put( "Content-Type", Arrays.asList( "text/plain" ) );
+		HttpServletResponse response = response( headers );
+		File directory = new File( System.getProperty( "java.io.tmpdir" ) );
+		CaptureBuffer body = new CaptureBuffer( -1, memoryLimit, directory );
+		CaptureBuffer responseBody = new CaptureBuffer( -1, memoryLimit, directory );
+		try {
+			body.write( content, 0, content.length );
+			responseBody.write( content, 0, content.length );
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			Serializer.writeCapture( new MockHttpServletRequestImpl( "POST", "/foo" ), body, response, responseBody, null, out );
+			Map<String, Object> captured = new ObjectMapper().readValue( out.toByteArray(), Map.class );
+
+			// same as serializing the content held in arrays
+			out.reset();
+			Serializer.write( new MockHttpServletRequestImpl( "POST", "/foo" ), content, response, content, null, out );
+			Map<String, Object> expected = new ObjectMapper().readValue( out.toByteArray(), Map.class );
+			assert expected.equals( captured ) : "Unexpected capture: " + captured;
+		} finally {
+			body.close();
+			responseBody.close();
+		}
+	}
+
+	@DataProvider(name = "truncated")
+	public Object [][] truncated() throws IOException {
+		byte [] text = "caf\u00e9".getBytes( "UTF-8" );
+		// not text from the first byte
+		byte [] binary = new byte[ 256 ];
+		for ( int i = 0; i < binary.length; i++ ) {
+			binary[i] = (byte) ( 0xFF - i );
+		}
+		return new Object [][] {
+			{ text, 5, 1024, "caf\u00e9" },
+			// cut part way through the last character
+			{ text, 4, 1024, "caf" },
+			{ text, 4, 2, "caf" },
+			{ text, 0, 1024, null },
+			{ binary, 16, 1024, Arrays.copyOf( binary, 16 ) },
+			{ binary, 16, 8, Arrays.copyOf( binary, 16 ) },
+		};
+	}
+
+	@SuppressWarnings( "unchecked" )
+	@Test(dataProvider = "truncated")
+	public void writeCapture_Truncated( byte [] content, int limit, int memoryLimit, Object expected ) throws IOException {
+		File directory = new File( System.getProperty( "java.io.tmpdir" ) );
+		CaptureBuffer body = new CaptureBuffer( limit, memoryLimit, directory );
+		CaptureBuffer responseBody = new CaptureBuffer( -1, memoryLimit, directory );
+		try {
+			body.write( content, 0, content.length );
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			Serializer.writeCapture( new MockHttpServletRequestImpl( "POST", "/foo" ), body, null, responseBody, null, out );
+			Map<String, Object> captured = new ObjectMapper().readValue( out.toByteArray(), Map.class );
+
+			boolean truncated = content.length > limit;
+			assert Boolean.valueOf( truncated ).equals( captured.containsKey( Serializer.KEY_BODY_TRUNCATED ) ) : "Unexpected truncation: " + captured;
+			if ( truncated ) {
+				assert Boolean.TRUE.equals( captured.get( Serializer.KEY_BODY_TRUNCATED ) ) : "Expected truncated body: " + captured;
+				assert ((Number) captured.get( Serializer.KEY_BODY_LENGTH )).longValue() == content.length : "Unexpected body length: " + captured;
+			} else {
+				assert ! captured.containsKey( Serializer.KEY_BODY_LENGTH ) : "Unexpected body length: " + captured;
+			}
+			Object actual = captured.get( Serializer.KEY_BODY );
+			if ( expected instanceof byte [] ) {
+				assert Serializer.ENCODING_BASE64.equals( captured.get( Serializer.KEY_BODY_ENCODING ) ) : "Expected base64 body encoding";
+				byte [] decoded = new ObjectMapper().convertValue( actual, byte [].class );
+				assert Arrays.equals( (byte []) expected, decoded ) : "Body mismatch: " + actual;
+			} else {
+				assert ! captured.containsKey( Serializer.KEY_BODY_ENCODING ) : "Unexpected body encoding: " + captured;
+				assert expected == null ? actual == null : expected.equals( actual ) : "Body mismatch: " + actual;
+			}
+		} finally {
+			body.close();
+			responseBody.close();
+		}
+	}
+
+	@Test
+	public void serialize_Text() throws IOException {
+		String body = "line one\nline two \u00e9 \"quoted\"\n";
+		Map<String, Object> result = Serializer.serialize( new MockHttpServletRequestImpl( "POST", "/foo" ), body.getBytes( "UTF-8" ) );
+		assert body.equals( result.get( Serializer.KEY_BODY ) ) : "Body mismatch: " + result.get( Serializer.KEY_BODY );
+		assert ! result.containsKey( Serializer.KEY_BODY_ENCODING ) : "Unexpected body encoding";
+	}
+
+	@Test
+	public void serialize_Binary() throws IOException {
+		byte [] body = new byte[ 256 ];
+		for ( int i = 0; i < body.length; i++ ) {
+			body[i] = (byte) i;
+		}
+		Map<String, Object> result = Serializer.serialize( new MockHttpServletRequestImpl( "POST", "/foo" ), body );
+		assert Serializer.ENCODING_BASE64.equals( result.get( Serializer.KEY_BODY_ENCODING ) ) : "Expected base64 body encoding";
+		byte [] decoded = new ObjectMapper().convertValue( result.get( Serializer.KEY_BODY ), byte [].class );
+		assert Arrays.equals( body, decoded ) : "Body mismatch";
+	}
+
+	@SuppressWarnings( "unchecked" )
+	@Test
+	public void serialize_NoBody() throws IOException {
+		MockHttpServletRequestImpl request = new MockHttpServletRequestImpl( "GET", "/foo" );
+		request.addParameter( "a", "1" );
+		Map<String, Object> result = Serializer.serialize( request, new byte[0] );
+		assert ! result.containsKey( Serializer.KEY_BODY ) : "Unexpected body";
+		// query string values are not counted twice
+		List<Object> values = ((Map<String, List<Object>>) result.get( Serializer.KEY_PARAMETERS )).get( "a" );
+		assert values.size() == 1 : "Unexpected parameter values: " + values;
+	}
+
+	private static HttpServletResponse response( final Map<String, List<String>> headers ) {
+		return (HttpServletResponse) Proxy.newProxyInstance( SerializerTest.class.getClassLoader(),
+			new Class<?> [] { HttpServletResponse.class }, new InvocationHandler() {
+				@Override
+				public Object invoke( Object proxy, Method method, Object [] args ) throws Throwable {
+					if ( "getStatus".equals( method.getName() ) ) {
+						return 201;
+					} else if ( "getHeaderNames".equals( method.getName() ) ) {
+						return headers.keySet();
+					} else if ( "getHeaders".equals( method.getName() ) ) {
+						return headers.get( args[0] );
+					}
+					throw new UnsupportedOperationException( method.getName() );
+				}
+			});
+	}
+
+	@SuppressWarnings( "unchecked" )
+	@Test
+	public void serialize_Response() throws IOException {
+		final Map<String, List<String>> headers = new HashMap<String, List<String>>();
+		headers.put( "Content-Type", Arrays.asList( "text/plain" ) );
+		headers.put( "X-Multi", Arrays.asList( "a", "b" ) );
+		HttpServletResponse response = response( headers );
+		RequestTimer timer = new RequestTimer();
+		timer.lap( RequestTimer.Phase.ROUTE, System.nanoTime() - 1000 );
+		timer.stop();
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Serializer.write( new MockHttpServletRequestImpl( "POST", "/foo" ), null, response, "created".getBytes( "UTF-8" ), timer, out );
+		Map<String, Object> result = new ObjectMapper().readValue( out.toByteArray(), Map.class );
+
+		assert ! result.containsKey( Serializer.KEY_ENDPOINT ) : "Unexpected endpoint";
+		Map<String, Object> r = (Map<String, Object>) result.get( Serializer.KEY_RESPONSE );
+		assert r != null : "No response";
+		assert Integer.valueOf( 201 ).equals( r.get( Serializer.KEY_STATUS ) ) : "Unexpected status: " + r.get( Serializer.KEY_STATUS );
+		assert headers.equals( r.get( Serializer.KEY_HEADERS ) ) : "Unexpected headers: " + r.get( Serializer.KEY_HEADERS );
+		assert "created".equals( r.get( Serializer.KEY_BODY ) ) : "Unexpected body: " + r.get( Serializer.KEY_BODY );
+
+		Map<String, Number> timings = (Map<String, Number>) result.get( Serializer.KEY_TIMINGS );
+		assert timings.get( "route" ).longValue() >= 1000 : "Unexpected route timing: " + timings;
+		assert timings.get( "write" ).longValue() == 0 : "Unexpected write timing: " + timings;
+		assert timings.get( Serializer.KEY_TOTAL ).longValue() == timer.getTotal() : "Unexpected total: " + timings;
+	}
 }
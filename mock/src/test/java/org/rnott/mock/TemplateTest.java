@@ -0,0 +1,130 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Map;
+import org.rnott.mock.evaluators.Evaluator;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+
+/**
+ * Test functionality of the <code>Template</code> component.
+ * <p>
+ * @see Template
+ */
+public class TemplateTest {
+
+	@DataProvider(name = "templates")
+	public Object [][] templates() {
+		Map<String, String> params = MockContext.get().getParameters();
+		params.put( "foo", "bar" );
+		params.put( "foo.bar", "foobar" );
+
+		MockContext.get().addEvaluator( new Evaluator() {
+			@Override
+            public String key() {
+	            return "test";
+            }
+			@Override
+            public Object evaluate( String text, Object... args ) {
+	            StringBuilder sb = new StringBuilder( this.key() ).append( ':' ).append( text );
+	            for ( Object o : args ) {
+	            	sb.append( ':' ).append( o );
+	            }
+	            return sb;
+            }
+		});
+		return new Object [][] {
+			{ "", "" },
+			{ "abcdefghijklmnopqrstuvwxyz 01234567890.,;:[]{}()_-+~!@#$%^&*/", "abcdefghijklmnopqrstuvwxyz 01234567890.,;:[]{}()_-+~!@#$%^&*/" },
+			{ "'${foo}'", "'${foo}'" },
+			{ "\"${foo}\"", "\"bar\"" },
+			{ "a\\$bcd", "a$bcd" },
+			{ "a$\\{bcd\\}", "a${bcd}" },
+			{ "${foo}", "bar" },
+			{ "${foo.bar}", "foobar" },
+			{ "\\${foo}", "${foo}" },
+			{ "{\"a\": \"${foo}\", \"b\": \"${foo.bar}\"}", "{\"a\": \"bar\", \"b\": \"foobar\"}" },
+			{ "${test.function()}", "test:function" },
+			{ "${test.function('abc')}", "test:function:abc" },
+			{ "${test.function(1)}", "test:function:1" },
+			{ "${test.function(1L)}", "test:function:1" },
+			{ "${test.function('a','b','c')}", "test:function:a:b:c" },
+			{ "${test.function(${foo})}", "test:function:bar" },
+			{ "${test.function(${test.function(${foo})})}", "test:function:test:function:bar" },
+		};
+	}
+
+	@DataProvider(name = "invalidTemplates")
+	public Object [][] invalidTemplates() {
+		return new Object [][] {
+			{ "${" },
+			{ "${}" },
+		};
+	}
+
+	@Test
+	public void compile_NULL() {
+		assert Template.compile( null ) == null : "Compiled NULL should be NULL";
+	}
+
+	@Test(dataProvider = "templates")
+	public void evaluate( String text, String expected ) {
+		Template t = Template.compile( text );
+		assert text.equals( t.getSource() ) : "Unexpected source: '" + t.getSource() + "', expected '" + text + "'";
+		String s = t.evaluate();
+		assert s.equals( expected ) : "Unexpected evaluated text: '" + s + "', expected '" + expected + "'";
+	}
+
+	@Test(dataProvider = "invalidTemplates", expectedExceptions = IllegalStateException.class)
+	public void compile_IllegalStateException( String text ) {
+		Template.compile( text );
+	}
+
+	@Test
+	public void evaluate_IllegalStateException() {
+		// missing properties are detected during evaluation, not compilation
+		Template t = Template.compile( "${missing}" );
+		try {
+			t.evaluate();
+			assert false : "Expected IllegalStateException";
+		} catch ( IllegalStateException expected ) {}
+	}
+
+	@Test
+	public void evaluate_Reuse() {
+		Template t = Template.compile( "value: ${reuse}" );
+		Map<String, String> params = MockContext.get().getParameters();
+		params.put( "reuse", "one" );
+		assert "value: one".equals( t.evaluate() ) : "Unexpected evaluated text: " + t.evaluate();
+		params.put( "reuse", "two" );
+		assert "value: two".equals( t.evaluate() ) : "Unexpected evaluated text: " + t.evaluate();
+	}
+
+	@Test(dataProvider = "templates")
+	public void evaluate_Stream( String text, String expected ) throws IOException {
+		Charset charset = Charset.forName( "UTF-8" );
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Template.compile( text ).evaluate( MockContext.get(), out, charset );
+		String s = new String( out.toByteArray(), charset );
+		assert s.equals( expected ) : "Unexpected streamed text: '" + s + "', expected '" + expected + "'";
+	}
+}
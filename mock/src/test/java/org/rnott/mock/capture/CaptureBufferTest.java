@@ -0,0 +1,145 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock.capture;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+
+/**
+ * Test functionality of the <code>CaptureBuffer</code> component.
+ * <p>
+ * @see CaptureBuffer
+ */
+public class CaptureBufferTest {
+
+	private static final File DIRECTORY = new File( System.getProperty( "java.io.tmpdir" ) );
+
+	private static byte [] content( int size ) {
+		byte [] b = new byte[ size ];
+		new Random( size ).nextBytes( b );
+		return b;
+	}
+
+	/*
+	 * Write content using a mix of single byte and bulk writes.
+	 */
+	private static void write( CaptureBuffer buffer, byte [] b ) throws Exception {
+		int pos = 0;
+		int len = 1;
+		while ( pos < b.length ) {
+			int n = Math.min( len, b.length - pos );
+			if ( n == 1 ) {
+				buffer.write( b[ pos ] );
+			} else {
+				buffer.write( b, pos, n );
+			}
+			pos += n;
+			len = len * 3 + 1;
+		}
+	}
+
+	@DataProvider(name = "sizes")
+	public Object [][] sizes() {
+		int chunk = CaptureBuffer.CHUNK_SIZE;
+		return new Object [][] {
+			{ 0 },
+			{ 1 },
+			{ chunk - 1 },
+			{ chunk },
+			{ chunk + 1 },
+			{ chunk * 5 + 17 },
+			{ CaptureBuffer.DEFAULT_MEMORY_LIMIT + 1 },
+			{ CaptureBuffer.DEFAULT_MEMORY_LIMIT * 3 },
+		};
+	}
+
+	@Test(dataProvider = "sizes")
+	public void write( int size ) throws Exception {
+		byte [] b = content( size );
+		CaptureBuffer buffer = new CaptureBuffer( -1, CaptureBuffer.DEFAULT_MEMORY_LIMIT, DIRECTORY );
+		try {
+			write( buffer, b );
+			assert buffer.size() == size : "Unexpected size: " + buffer.size();
+			assert ! buffer.isTruncated() : "Content truncated";
+			assert buffer.isSpilled() == ( size > CaptureBuffer.DEFAULT_MEMORY_LIMIT ) : "Unexpected spill state";
+			assert Arrays.equals( b, buffer.toByteArray() ) : "Captured content does not match";
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			InputStream in = buffer.getInputStream();
+			for ( int c = in.read(); c >= 0; c = in.read() ) {
+				out.write( c );
+			}
+			in.close();
+			assert Arrays.equals( b, out.toByteArray() ) : "Streamed content does not match";
+		} finally {
+			buffer.close();
+		}
+	}
+
+	@Test(dataProvider = "sizes")
+	public void write_Single( int size ) throws Exception {
+		byte [] b = content( size );
+		CaptureBuffer buffer = new CaptureBuffer( -1, CaptureBuffer.DEFAULT_MEMORY_LIMIT, DIRECTORY );
+		try {
+			for ( byte c : b ) {
+				buffer.write( c );
+			}
+			assert buffer.size() == size : "Unexpected size: " + buffer.size();
+			assert buffer.isSpilled() == ( size > CaptureBuffer.DEFAULT_MEMORY_LIMIT ) : "Unexpected spill state";
+			assert Arrays.equals( b, buffer.toByteArray() ) : "Captured content does not match";
+		} finally {
+			buffer.close();
+		}
+	}
+
+	@Test(dataProvider = "sizes")
+	public void write_Limit( int size ) throws Exception {
+		int limit = CaptureBuffer.CHUNK_SIZE + 3;
+		byte [] b = content( size );
+		CaptureBuffer buffer = new CaptureBuffer( limit, CaptureBuffer.DEFAULT_MEMORY_LIMIT, DIRECTORY );
+		try {
+			write( buffer, b );
+			assert buffer.isTruncated() == ( size > limit ) : "Unexpected truncation state";
+			assert buffer.getLength() == size : "Unexpected length: " + buffer.getLength();
+			assert Arrays.equals( Arrays.copyOf( b, Math.min( size, limit ) ), buffer.toByteArray() ) : "Captured content does not match";
+		} finally {
+			buffer.close();
+		}
+	}
+
+	@Test
+	public void close() throws Exception {
+		File directory = new File( DIRECTORY, UUID.randomUUID().toString() );
+		directory.mkdirs();
+		try {
+			CaptureBuffer buffer = new CaptureBuffer( -1, 16, directory );
+			write( buffer, content( 100 ) );
+			assert buffer.isSpilled() && directory.list().length == 1 : "Content not spilled";
+			buffer.close();
+			assert directory.list().length == 0 : "Temporary file not removed";
+		} finally {
+			directory.delete();
+		}
+	}
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock.capture;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+
+/**
+ * Test functionality of the <code>CaptureIndex</code> component.
+ * <p>
+ * @see CaptureIndex
+ */
+public class CaptureIndexTest {
+
+	private static Record record( int i ) {
+		return new Record( "id-" + i, 1000 + i, i % 2 == 0 ? "GET" : "POST", "/items/" + ( i % 10 ),
+			i % 20 == 0 ? 500 : 200, new byte[0] );
+	}
+
+	/*
+	 * Index captures in segments of 100.
+	 */
+	private static CaptureIndex index( int count ) {
+		CaptureIndex index = new CaptureIndex();
+		for ( int i = 0; i < count; i++ ) {
+			index.add( record( i ), i / 100, 0 );
+		}
+		return index;
+	}
+
+	/*
+	 * Expected matches, found by testing every capture.
+	 */
+	private static List<String> expected( CaptureQuery query, int first, int count ) {
+		List<String> ids = new ArrayList<String>();
+		for ( int i = first; i < count && ids.size() <= query.getLimit(); i++ ) {
+			Record r = record( i );
+			if ( query.matches( i, r.getId(), r.getTimestamp(), r.getMethod(), r.getUri(), r.getStatus() ) ) {
+				ids.add( r.getId() );
+			}
+		}
+		return ids;
+	}
+
+	private static List<String> ids( List<CaptureIndex.Entry> entries ) {
+		List<String> ids = new ArrayList<String>();
+		for ( CaptureIndex.Entry e : entries ) {
+			ids.add( e.id );
+		}
+		return ids;
+	}
+
+	@DataProvider(name = "queries")
+	public Object [][] queries() {
+		int count = CaptureIndex.CHUNK * 3 + 17;
+		return new Object [][] {
+			{ new CaptureQuery(), count },
+			{ new CaptureQuery().withMethod( "post" ), count },
+			{ new CaptureQuery().withUri( "/items/3" ), count },
+			{ new CaptureQuery().withUri( "/items/*" ).withStatus( 500 ), count },
+			{ new CaptureQuery().withMethod( "GET" ).withUri( "/items/4" ).withStatus( 500 ).withLimit( 5000 ), count },
+			{ new CaptureQuery().withMethod( "POST" ).withStatus( 500 ), count },
+			{ new CaptureQuery().withMethod( "DELETE" ), count },
+			{ new CaptureQuery().withStatus( 200 ).withTimeRange( 1500, 2600 ).withLimit( 5000 ), count },
+			{ new CaptureQuery().withUri( "/items/7" ).withAfter( 2000 ).withLimit( 10 ), count },
+		};
+	}
+
+	@Test(dataProvider = "queries")
+	public void find( CaptureQuery query, int count ) {
+		CaptureIndex index = index( count );
+		List<String> found = ids( index.find( query ) );
+		assert found.equals( expected( query, 0, count ) ) : "Unexpected matches: " + found;
+	}
+
+	@Test(dataProvider = "queries")
+	public void find_Removed( CaptureQuery query, int count ) {
+		CaptureIndex index = index( count );
+		// posting lists give up their oldest entries along with the index
+		assert index.remove( 4 ) == 500 : "Unexpected removed count";
+		List<String> found = ids( index.find( query ) );
+		assert found.equals( expected( query, 500, count ) ) : "Unexpected matches: " + found;
+
+		// later captures are posted after the removal
+		index.add( record( count ), count / 100, 0 );
+		found = ids( index.find( query ) );
+		assert found.equals( expected( query, 500, count + 1 ) ) : "Unexpected matches: " + found;
+	}
+
+	@Test
+	public void find_Concurrent() throws Exception {
+		// the writer continues while a broad query runs
+		final CaptureIndex index = index( 1000 );
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				for ( int i = 1000; i < 50000; i++ ) {
+					index.add( record( i ), i / 100, 0 );
+					if ( i % 1000 == 0 ) {
+						index.remove( i / 100 - 20 );
+					}
+				}
+			}
+		};
+		writer.start();
+		while ( writer.isAlive() ) {
+			List<CaptureIndex.Entry> entries = index.find( new CaptureQuery().withMethod( "GET" ).withLimit( 100000 ) );
+			for ( int i = 1; i < entries.size(); i++ ) {
+				assert entries.get( i ).sequence > entries.get( i - 1 ).sequence : "Entries out of order";
+				assert "GET".equals( entries.get( i ).method ) : "Unexpected entry: " + entries.get( i ).method;
+			}
+		}
+		writer.join();
+	}
+}
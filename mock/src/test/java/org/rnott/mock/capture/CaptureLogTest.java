@@ -0,0 +1,369 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock.capture;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+
+/**
+ * Test functionality of the <code>CaptureLog</code> component.
+ * <p>
+ * @see CaptureLog
+ */
+public class CaptureLogTest {
+
+	private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+	private File directory;
+
+	@BeforeMethod
+	public void initialize() {
+		directory = new File( new File( System.getProperty( "java.io.tmpdir" ) ), UUID.randomUUID().toString() );
+	}
+
+	@AfterMethod
+	public void cleanup() {
+		File [] files = directory.listFiles();
+		if ( files != null ) {
+			for ( File f : files ) {
+				f.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	private static Record record( String id, byte [] data ) {
+		return new Record( id, System.currentTimeMillis(), "GET", "/test", 200, data );
+	}
+
+	private static List<Record> read( CaptureStore.Page page ) throws IOException {
+		final List<Record> records = new ArrayList<Record>();
+		page.read( new CaptureStore.Visitor() {
+			@Override
+			public boolean visit( Record record ) {
+				records.add( record );
+				return true;
+			}
+		});
+		return records;
+	}
+
+	private static List<Record> read( CaptureLog log ) throws IOException {
+		final List<Record> records = new ArrayList<Record>();
+		log.read( new CaptureStore.Visitor() {
+			@Override
+			public boolean visit( Record record ) {
+				records.add( record );
+				return true;
+			}
+		});
+		return records;
+	}
+
+	@Test
+	public void append() throws Exception {
+		CaptureLog log = new CaptureLog( directory );
+		try {
+			for ( int i = 0; i < 1000; i++ ) {
+				assert log.append( record( "id-" + i, ( "{\"n\":" + i + "}" ).getBytes( UTF8 ) ) ) : "Capture dropped: " + i;
+			}
+			assert log.flush( 5000 ) : "Captures not written";
+			List<Record> records = read( log );
+			assert records.size() == 1000 : "Unexpected record count: " + records.size();
+			for ( int i = 0; i < records.size(); i++ ) {
+				Record r = records.get( i );
+				assert ( "id-" + i ).equals( r.getId() ) : "Unexpected record id: " + r.getId();
+				assert ( "{\"n\":" + i + "}" ).equals( new String( r.getData(), UTF8 ) ) : "Unexpected record data";
+			}
+			assert log.getSegments().size() == 1 : "Unexpected segments: " + log.getSegments();
+			assert log.getBytesWritten() == log.getSegments().get( 0 ).length() : "Unexpected bytes written: " + log.getBytesWritten();
+		} finally {
+			log.close();
+		}
+	}
+
+	@Test
+	public void append_Rolling() throws Exception {
+		byte [] data = new byte[ 100 ];
+		CaptureLog log = new CaptureLog( directory, 1000, 100 );
+		try {
+			for ( int i = 0; i < 50; i++ ) {
+				log.append( record( String.valueOf( i ), data ) );
+				if ( i % 10 == 0 ) {
+					log.flush( 5000 );
+				}
+			}
+			assert log.flush( 5000 ) : "Captures not written";
+			List<File> segments = log.getSegments();
+			assert segments.size() > 1 : "Segments not rolled: " + segments;
+			for ( File f : segments ) {
+				// a record is never split, so a segment only exceeds the limit by less than one record
+				assert f.length() <= 1000 + data.length : "Segment too large: " + f.length();
+			}
+			List<Record> records = read( log );
+			assert records.size() == 50 : "Unexpected record count: " + records.size();
+			for ( int i = 0; i < records.size(); i++ ) {
+				assert String.valueOf( i ).equals( records.get( i ).getId() ) : "Records out of order";
+			}
+		} finally {
+			log.close();
+		}
+	}
+
+	@Test
+	public void read_Stop() throws Exception {
+		CaptureLog log = new CaptureLog( directory );
+		try {
+			for ( int i = 0; i < 10; i++ ) {
+				log.append( record( String.valueOf( i ), new byte[0] ) );
+			}
+			log.flush( 5000 );
+			final int [] count = new int[1];
+			log.read( new CaptureStore.Visitor() {
+				@Override
+				public boolean visit( Record record ) {
+					return ++count[0] < 3;
+				}
+			});
+			assert count[0] == 3 : "Reading did not stop: " + count[0];
+		} finally {
+			log.close();
+		}
+	}
+
+	@Test
+	public void append_Partial() throws Exception {
+		// only the start of the buffer is captured data
+		byte [] buffer = Arrays.copyOf( "{\"n\":1}".getBytes( UTF8 ), 64 );
+		CaptureLog log = new CaptureLog( directory );
+		try {
+			assert log.append( new Record( "partial", 0, "GET", "/", 200, buffer, 7 ) ) : "Capture dropped";
+			assert log.flush( 5000 ) : "Captures not written";
+			Record r = read( log ).get( 0 );
+			assert r.getLength() == 7 : "Unexpected length: " + r.getLength();
+			assert "{\"n\":1}".equals( new String( r.getData(), UTF8 ) ) : "Unexpected record data";
+		} finally {
+			log.close();
+		}
+	}
+
+	@Test
+	public void append_WriteError() throws Exception {
+		CaptureLog log = new CaptureLog( directory );
+		try {
+			// the first segment cannot be created
+			File segment = new File( directory, String.format( "%s%010d%s", CaptureLog.PREFIX, 1, CaptureLog.SUFFIX ) );
+			assert segment.mkdir() : "Segment not blocked";
+			assert log.append( record( "lost", new byte[ 10 ] ) ) : "Capture dropped";
+			assert log.flush( 5000 ) : "Captures not written";
+			assert log.getWriteErrors() == 1 : "Unexpected write errors: " + log.getWriteErrors();
+			assert log.getDropped() == 1 : "Unexpected dropped count: " + log.getDropped();
+			assert log.size() == 0 : "Unexpected record count: " + log.size();
+		} finally {
+			log.close();
+		}
+	}
+
+	@Test
+	public void close() throws Exception {
+		CaptureLog log = new CaptureLog( directory );
+		for ( int i = 0; i < 100; i++ ) {
+			log.append( record( String.valueOf( i ), new byte[ 10 ] ) );
+		}
+		log.close();
+		// queued captures are written before closing
+		assert read( log ).size() == 100 : "Queued captures lost";
+		assert log.getPending() == 0 : "Unexpected pending count: " + log.getPending();
+		assert ! log.append( record( "late", new byte[0] ) ) : "Closed log accepted capture";
+		assert log.getDropped() == 1 : "Unexpected dropped count: " + log.getDropped();
+	}
+
+	@Test
+	public void query() throws Exception {
+		CaptureLog log = new CaptureLog( directory, 4096, 1000 );
+		try {
+			String [] methods = { "GET", "POST", "PUT", "DELETE" };
+			for ( int i = 0; i < 400; i++ ) {
+				log.append( new Record( "id-" + i, 1000 + i, methods[ i % 4 ], "/items/" + ( i % 10 ),
+					i % 20 == 0 ? 500 : 200, String.valueOf( i ).getBytes( UTF8 ) ) );
+			}
+			assert log.flush( 5000 ) : "Captures not written";
+			assert log.size() == 400 : "Unexpected capture count: " + log.size();
+
+			List<Record> records = read( log.query( new CaptureQuery().withMethod( "post" ).withUri( "/items/3" ) ) );
+			assert records.size() == 20 : "Unexpected match count: " + records.size();
+			for ( Record r : records ) {
+				assert "POST".equals( r.getMethod() ) && "/items/3".equals( r.getUri() ) : "Unexpected match: " + r.getId();
+				assert r.getId().equals( "id-" + new String( r.getData(), UTF8 ) ) : "Data does not match record";
+			}
+
+			records = read( log.query( new CaptureQuery().withUri( "/items/*" ).withStatus( 500 ) ) );
+			assert records.size() == 20 : "Unexpected match count: " + records.size();
+
+			records = read( log.query( new CaptureQuery().withTimeRange( 1100, 1109 ) ) );
+			assert records.size() == 10 : "Unexpected match count: " + records.size();
+			assert "id-100".equals( records.get( 0 ).getId() ) : "Unexpected first match: " + records.get( 0 ).getId();
+
+			records = read( log.query( new CaptureQuery().withIds( Arrays.asList( "id-7", "id-3", "missing" ) ) ) );
+			assert records.size() == 2 : "Unexpected match count: " + records.size();
+			assert "id-3".equals( records.get( 0 ).getId() ) : "Matches not in capture order";
+		} finally {
+			log.close();
+		}
+	}
+
+	@Test
+	public void query_Pagination() throws Exception {
+		CaptureLog log = new CaptureLog( directory, 1024, 1000 );
+		try {
+			for ( int i = 0; i < 250; i++ ) {
+				log.append( record( String.valueOf( i ), new byte[ 20 ] ) );
+			}
+			assert log.flush( 5000 ) : "Captures not written";
+
+			CaptureQuery query = new CaptureQuery().withLimit( 100 );
+			List<Record> all = new ArrayList<Record>();
+			int pages = 0;
+			CaptureStore.Page page = log.query( query );
+			while ( true ) {
+				pages++;
+				all.addAll( read( page ) );
+				if ( page.getNext() < 0 ) {
+					break;
+				}
+				page = log.query( query.withAfter( page.getNext() ) );
+			}
+			assert pages == 3 : "Unexpected page count: " + pages;
+			assert all.size() == 250 : "Unexpected record count: " + all.size();
+			for ( int i = 0; i < all.size(); i++ ) {
+				assert String.valueOf( i ).equals( all.get( i ).getId() ) : "Records skipped or repeated";
+			}
+		} finally {
+			log.close();
+		}
+	}
+
+	@Test
+	public void retention_Size() throws Exception {
+		byte [] data = new byte[ 100 ];
+		CaptureLog log = new CaptureLog( directory, 1000, 100, 3000, 0 );
+		try {
+			for ( int i = 0; i < 100; i++ ) {
+				log.append( record( String.valueOf( i ), data ) );
+				if ( i % 10 == 0 ) {
+					log.flush( 5000 );
+				}
+			}
+			assert log.flush( 5000 ) : "Captures not written";
+			long size = 0;
+			for ( File f : log.getSegments() ) {
+				size += f.length();
+			}
+			assert size <= 3000 : "Retention size exceeded: " + size;
+			assert log.getEvicted() > 0 : "No captures evicted";
+			assert log.size() + log.getEvicted() == 100 : "Unexpected counts: " + log.size() + " + " + log.getEvicted();
+
+			// the most recent captures remain
+			List<Record> records = read( log );
+			assert records.size() == log.size() : "Unexpected record count: " + records.size();
+			for ( int i = 0; i < records.size(); i++ ) {
+				assert String.valueOf( 100 - records.size() + i ).equals( records.get( i ).getId() ) : "Unexpected record: " + records.get( i ).getId();
+			}
+			assert read( log.query( new CaptureQuery().withIds( Arrays.asList( "0" ) ) ) ).isEmpty() : "Evicted capture found";
+		} finally {
+			log.close();
+		}
+	}
+
+	@Test
+	public void retention_Time() throws Exception {
+		CaptureLog log = new CaptureLog( directory, 1000, 100, 0, 200 );
+		try {
+			for ( int i = 0; i < 10; i++ ) {
+				log.append( record( String.valueOf( i ), new byte[ 10 ] ) );
+			}
+			assert log.flush( 5000 ) : "Captures not written";
+			assert log.size() == 10 : "Unexpected record count: " + log.size();
+
+			// expired while idle
+			long deadline = System.currentTimeMillis() + 5000;
+			// captures are removed from the index before their segment is deleted
+			while ( ( log.size() > 0 || ! log.getSegments().isEmpty() ) && System.currentTimeMillis() < deadline ) {
+				Thread.sleep( 50 );
+			}
+			assert log.size() == 0 : "Captures not expired: " + log.size();
+			assert log.getEvicted() == 10 : "Unexpected evicted count: " + log.getEvicted();
+			assert log.getSegments().isEmpty() : "Segments not removed: " + log.getSegments();
+
+			// captures continue in a new segment
+			log.append( record( "next", new byte[ 10 ] ) );
+			assert log.flush( 5000 ) : "Captures not written";
+			assert read( log ).size() == 1 : "Capture not written after expiry";
+		} finally {
+			log.close();
+		}
+	}
+
+	@Test
+	public void delete() throws Exception {
+		CaptureLog log = new CaptureLog( directory );
+		log.append( record( "id", new byte[ 10 ] ) );
+		assert log.flush( 5000 ) : "Captures not written";
+		log.delete();
+		assert log.getSegments().isEmpty() : "Segments not removed: " + log.getSegments();
+	}
+
+	@Test
+	public void constructor_Leftover() throws Exception {
+		CaptureLog log = new CaptureLog( directory );
+		log.append( record( "old", new byte[ 1000 ] ) );
+		log.close();
+		assert log.getSegments().size() == 1 : "Unexpected segments: " + log.getSegments();
+
+		// segments of an earlier log are removed rather than using up the limits
+		log = new CaptureLog( directory, 4096, 100, 1500, 0 );
+		try {
+			assert log.getSegments().isEmpty() : "Leftover segments: " + log.getSegments();
+			log.append( record( "new", new byte[ 1000 ] ) );
+			assert log.flush( 5000 ) : "Captures not written";
+			List<Record> records = read( log );
+			assert records.size() == 1 && "new".equals( records.get( 0 ).getId() ) : "Unexpected records: " + records.size();
+			assert log.getEvicted() == 0 : "Unexpected evicted count: " + log.getEvicted();
+		} finally {
+			log.close();
+		}
+	}
+
+	@Test(expectedExceptions = IllegalStateException.class)
+	public void constructor_IllegalStateException() {
+		new CaptureLog( directory, 0, 10 );
+	}
+
+	@Test(expectedExceptions = IllegalStateException.class)
+	public void constructor_NegativeRetention() {
+		new CaptureLog( directory, 1000, 10, -1, 0 );
+	}
+}
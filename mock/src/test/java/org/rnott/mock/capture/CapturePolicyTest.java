@@ -0,0 +1,104 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock.capture;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+
+/**
+ * Test functionality of the <code>CapturePolicy</code> component.
+ * <p>
+ * @see CapturePolicy
+ */
+public class CapturePolicyTest {
+
+	private static Map<String, Object> spec( String policy, Object... attributes ) {
+		Map<String, Object> spec = new HashMap<String, Object>();
+		spec.put( "policy", policy );
+		for ( int i = 0; i < attributes.length; i += 2 ) {
+			spec.put( (String) attributes[i], attributes[i + 1] );
+		}
+		return spec;
+	}
+
+	@DataProvider(name = "policies")
+	public Object [][] policies() {
+		return new Object [][] {
+			{ "always", 1000, 1000 },
+			{ "off", 0, 0 },
+			{ spec( "always" ), 1000, 1000 },
+			{ spec( "OFF" ), 0, 0 },
+			{ spec( "every", "n", 10 ), 100, 100 },
+			{ spec( "every", "n", 1 ), 1000, 1000 },
+			{ spec( "first", "n", 5 ), 5, 5 },
+			{ spec( "probability", "rate", 0.1 ), 50, 150 },
+			{ spec( "probability", "rate", 0 ), 0, 0 },
+			// size * ( 1 + ln( requests / size ) ) expected
+			{ spec( "reservoir", "size", 10 ), 10, 100 },
+		};
+	}
+
+	@Test(dataProvider = "policies")
+	public void sample( Object spec, int min, int max ) {
+		CapturePolicy policy = CapturePolicy.create( spec, null );
+		int count = 0;
+		for ( int i = 0; i < 1000; i++ ) {
+			if ( policy.sample() ) {
+				count++;
+			}
+		}
+		assert count >= min && count <= max : "Unexpected sample count: " + count;
+	}
+
+	@Test
+	public void create_Default() {
+		assert CapturePolicy.create( null, CapturePolicy.OFF ) == CapturePolicy.OFF : "Expected default policy";
+	}
+
+	@Test
+	public void getMaxBodySize() {
+		assert CapturePolicy.ALWAYS.getMaxBodySize() == -1 : "Unexpected body limit";
+		CapturePolicy policy = CapturePolicy.create( spec( "every", "n", 2, "maxBodySize", 1024 ), null );
+		assert policy.getMaxBodySize() == 1024 : "Unexpected body limit: " + policy.getMaxBodySize();
+		policy = CapturePolicy.create( spec( "always", "maxBodySize", 0 ), null );
+		assert policy.getMaxBodySize() == 0 && policy.sample() : "Unexpected body limit: " + policy.getMaxBodySize();
+	}
+
+	@DataProvider(name = "invalid")
+	public Object [][] invalid() {
+		return new Object [][] {
+			{ 10 },
+			{ "every" },
+			{ "sometimes" },
+			{ spec( null ) },
+			{ spec( "every" ) },
+			{ spec( "every", "n", 0 ) },
+			{ spec( "first", "n", "5" ) },
+			{ spec( "probability", "rate", 1.5 ) },
+			{ spec( "reservoir", "size", -1 ) },
+			{ spec( "always", "maxBodySize", -1 ) },
+		};
+	}
+
+	@Test(dataProvider = "invalid", expectedExceptions = IllegalStateException.class)
+	public void create_IllegalStateException( Object spec ) {
+		CapturePolicy.create( spec, null );
+	}
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock.capture;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.testng.annotations.Test;
+
+
+/**
+ * Test functionality of the <code>CaptureRing</code> component.
+ * <p>
+ * @see CaptureRing
+ */
+public class CaptureRingTest {
+
+	private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+	private static Record record( String id ) {
+		return new Record( id, System.currentTimeMillis(), "GET", "/test/" + id, 200, id.getBytes( UTF8 ) );
+	}
+
+	private static List<Record> read( CaptureStore store ) throws IOException {
+		final List<Record> records = new ArrayList<Record>();
+		store.read( new CaptureStore.Visitor() {
+			@Override
+			public boolean visit( Record record ) {
+				records.add( record );
+				return true;
+			}
+		});
+		return records;
+	}
+
+	private static List<Record> read( CaptureStore.Page page ) throws IOException {
+		final List<Record> records = new ArrayList<Record>();
+		page.read( new CaptureStore.Visitor() {
+			@Override
+			public boolean visit( Record record ) {
+				records.add( record );
+				return true;
+			}
+		});
+		return records;
+	}
+
+	@Test
+	public void append() throws Exception {
+		CaptureRing ring = new CaptureRing( 100, 256 );
+		for ( int i = 0; i < 50; i++ ) {
+			assert ring.append( record( "id-" + i ) ) : "Capture dropped: " + i;
+		}
+		List<Record> records = read( ring );
+		assert records.size() == 50 && ring.size() == 50 : "Unexpected record count: " + records.size();
+		for ( int i = 0; i < records.size(); i++ ) {
+			Record r = records.get( i );
+			assert ( "id-" + i ).equals( r.getId() ) : "Unexpected record id: " + r.getId();
+			assert ( "/test/id-" + i ).equals( r.getUri() ) && "GET".equals( r.getMethod() ) && r.getStatus() == 200;
+			assert ( "id-" + i ).equals( new String( r.getData(), UTF8 ) ) : "Unexpected record data";
+		}
+	}
+
+	@Test
+	public void append_Partial() throws Exception {
+		// only the start of the buffer is captured data
+		byte [] buffer = Arrays.copyOf( "{\"n\":1}".getBytes( UTF8 ), 64 );
+		CaptureRing ring = new CaptureRing( 10, 256 );
+		assert ring.append( new Record( "partial", 0, "GET", "/", 200, buffer, 7 ) ) : "Capture dropped";
+		Record r = read( ring ).get( 0 );
+		assert r.getLength() == 7 : "Unexpected length: " + r.getLength();
+		assert "{\"n\":1}".equals( new String( r.getData(), UTF8 ) ) : "Unexpected record data";
+	}
+
+	@Test
+	public void append_Overwrite() throws Exception {
+		CaptureRing ring = new CaptureRing( 10, 256 );
+		for ( int i = 0; i < 25; i++ ) {
+			ring.append( record( String.valueOf( i ) ) );
+		}
+		List<Record> records = read( ring );
+		assert records.size() == 10 : "Unexpected record count: " + records.size();
+		for ( int i = 0; i < records.size(); i++ ) {
+			assert String.valueOf( 15 + i ).equals( records.get( i ).getId() ) : "Oldest captures not overwritten";
+		}
+		assert ring.getEvicted() == 15 : "Unexpected evicted count: " + ring.getEvicted();
+		assert ring.getBytesWritten() > 0 : "No bytes written";
+	}
+
+	@Test
+	public void append_TooLarge() throws Exception {
+		CaptureRing ring = new CaptureRing( 10, 64 );
+		assert ! ring.append( new Record( "big", 0, "GET", "/", 200, new byte[ 64 ] ) ) : "Oversized capture accepted";
+		assert ring.getDropped() == 1 : "Unexpected dropped count: " + ring.getDropped();
+		assert ring.size() == 0 : "Unexpected record count: " + ring.size();
+	}
+
+	@Test
+	public void append_Concurrent() throws Exception {
+		final CaptureRing ring = new CaptureRing( 1000, 128 );
+		final CountDownLatch start = new CountDownLatch( 1 );
+		List<Thread> threads = new ArrayList<Thread>();
+		for ( int t = 0; t < 4; t++ ) {
+			final int thread = t;
+			Thread writer = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch ( InterruptedException e ) {
+						return;
+					}
+					for ( int i = 0; i < 20000; i++ ) {
+						ring.append( record( thread + "-" + i ) );
+					}
+				}
+			};
+			writer.start();
+			threads.add( writer );
+		}
+		start.countDown();
+		// read while writing, no copy may be torn
+		while ( threads.get( 0 ).isAlive() ) {
+			for ( Record r : read( ring ) ) {
+				assert r.getId().equals( new String( r.getData(), UTF8 ) ) : "Torn record: " + r.getId();
+				assert r.getUri().equals( "/test/" + r.getId() ) : "Torn record: " + r.getUri();
+			}
+		}
+		for ( Thread t : threads ) {
+			t.join();
+		}
+		assert ring.size() + ring.getDropped() >= 1000 : "Unexpected record count: " + ring.size();
+	}
+
+	/*
+	 * Capture whose every field is derived from its writer and position, so that
+	 * a torn copy can be recognized.
+	 */
+	private static Record stress( int writer, int i ) {
+		String id = writer + "-" + i;
+		StringBuilder data = new StringBuilder();
+		for ( int k = 0; k <= i % 7; k++ ) {
+			data.append( id ).append( ';' );
+		}
+		return new Record( id, i, i % 2 == 0 ? "GET" : "POST", "/stress/" + id, 200 + i % 300, data.toString().getBytes( UTF8 ) );
+	}
+
+	@Test
+	public void read_Stress() throws Exception {
+		// few slots, so readers constantly race writers reusing them
+		final CaptureRing ring = new CaptureRing( 8, 256 );
+		final AtomicBoolean running = new AtomicBoolean( true );
+		final AtomicReference<String> torn = new AtomicReference<String>();
+		final AtomicLong reads = new AtomicLong();
+		List<Thread> threads = new ArrayList<Thread>();
+		for ( int t = 0; t < 4; t++ ) {
+			final int writer = t;
+			threads.add( new Thread() {
+				@Override
+				public void run() {
+					for ( int i = 0; running.get(); i++ ) {
+						ring.append( stress( writer, i ) );
+					}
+				}
+			});
+			threads.add( new Thread() {
+				@Override
+				public void run() {
+					while ( running.get() ) {
+						try {
+							for ( Record r : read( ring ) ) {
+								String [] parts = r.getId().split( "-" );
+								Record expected = stress( Integer.parseInt( parts[0] ), Integer.parseInt( parts[1] ) );
+								if ( r.getTimestamp() != expected.getTimestamp() || r.getStatus() != expected.getStatus()
+									|| ! expected.getMethod().equals( r.getMethod() ) || ! expected.getUri().equals( r.getUri() )
+									|| ! Arrays.equals( expected.getData(), r.getData() ) ) {
+									torn.compareAndSet( null, r.getId() + " " + r.getUri() + " " + new String( r.getData(), UTF8 ) );
+								}
+								reads.incrementAndGet();
+							}
+						} catch ( Exception e ) {
+							torn.compareAndSet( null, e.toString() );
+						}
+					}
+				}
+			});
+		}
+		for ( Thread t : threads ) {
+			t.start();
+		}
+		Thread.sleep( 1000 );
+		running.set( false );
+		for ( Thread t : threads ) {
+			t.join();
+		}
+		assert torn.get() == null : "Torn record read: " + torn.get();
+		assert reads.get() > 0 : "Nothing read";
+	}
+
+	@Test
+	public void query() throws Exception {
+		CaptureRing ring = new CaptureRing( 500, 256 );
+		for ( int i = 0; i < 400; i++ ) {
+			ring.append( new Record( "id-" + i, 1000 + i, i % 2 == 0 ? "GET" : "POST", "/items/" + ( i % 10 ),
+				i % 20 == 0 ? 500 : 200, new byte[0] ) );
+		}
+		List<Record> records = read( ring.query( new CaptureQuery().withMethod( "post" ).withUri( "/items/3" ) ) );
+		assert records.size() == 40 : "Unexpected match count: " + records.size();
+		records = read( ring.query( new CaptureQuery().withStatus( 500 ).withTimeRange( 1000, 1199 ) ) );
+		assert records.size() == 10 : "Unexpected match count: " + records.size();
+
+		CaptureQuery query = new CaptureQuery().withLimit( 150 );
+		CaptureStore.Page page = ring.query( query );
+		List<Record> all = new ArrayList<Record>( read( page ) );
+		while ( page.getNext() >= 0 ) {
+			page = ring.query( query.withAfter( page.getNext() ) );
+			all.addAll( read( page ) );
+		}
+		assert all.size() == 400 : "Unexpected record count: " + all.size();
+		for ( int i = 0; i < all.size(); i++ ) {
+			assert ( "id-" + i ).equals( all.get( i ).getId() ) : "Records skipped or repeated";
+		}
+	}
+
+	@Test
+	public void close() {
+		CaptureRing ring = new CaptureRing( 10, 256 );
+		ring.close();
+		assert ! ring.append( record( "late" ) ) : "Closed ring accepted capture";
+	}
+
+	@Test(expectedExceptions = IllegalStateException.class)
+	public void constructor_IllegalStateException() {
+		new CaptureRing( 1 << 20, 1 << 12 );
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock.capture;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.testng.annotations.Test;
+
+
+/**
+ * Test functionality of the <code>CaptureTail</code> component.
+ * <p>
+ * @see CaptureTail
+ */
+public class CaptureTailTest {
+
+	private static Record record( String id, String method, String uri ) {
+		return new Record( id, System.currentTimeMillis(), method, uri, 200, new byte[0] );
+	}
+
+	private static class Collector implements CaptureTail.Listener {
+
+		final List<String> ids = new ArrayList<String>();
+
+		@Override
+		public void capture( Record record ) {
+			ids.add( record.getId() );
+		}
+	}
+
+	@Test
+	public void publish() {
+		CaptureTail tail = new CaptureTail();
+		Collector all = new Collector();
+		Collector items = new Collector();
+		tail.subscribe( new CaptureQuery(), all );
+		tail.subscribe( new CaptureQuery().withMethod( "GET" ).withUri( "/items*" ), items );
+		assert tail.size() == 2 : "Unexpected subscriptions: " + tail.size();
+
+		tail.publish( record( "1", "GET", "/items/1" ) );
+		tail.publish( record( "2", "POST", "/items" ) );
+		tail.publish( record( "3", "GET", "/other" ) );
+
+		assert all.ids.size() == 3 : "Unexpected captures: " + all.ids;
+		assert items.ids.size() == 1 && "1".equals( items.ids.get( 0 ) ) : "Unexpected filtered captures: " + items.ids;
+	}
+
+	@Test
+	public void publish_AfterPosition() {
+		// captures not yet written are newer than any position
+		CaptureTail tail = new CaptureTail();
+		Collector c = new Collector();
+		tail.subscribe( new CaptureQuery().withAfter( 1000 ), c );
+		tail.publish( record( "1", "GET", "/" ) );
+		assert c.ids.size() == 1 : "Capture not delivered";
+	}
+
+	@Test
+	public void close() {
+		CaptureTail tail = new CaptureTail();
+		Collector c = new Collector();
+		CaptureTail.Subscription s = tail.subscribe( new CaptureQuery(), c );
+		tail.publish( record( "1", "GET", "/" ) );
+		s.close();
+		tail.publish( record( "2", "GET", "/" ) );
+		assert c.ids.size() == 1 : "Capture delivered after close: " + c.ids;
+		assert tail.size() == 0 : "Subscription not removed";
+	}
+}
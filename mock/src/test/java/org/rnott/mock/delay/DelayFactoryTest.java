@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock.delay;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+
+/**
+ * Test functionality of the <code>DelayFactory</code> component and the
+ * delay models it creates.
+ * <p>
+ * @see DelayFactory
+ */
+public class DelayFactoryTest {
+
+	private static final int SAMPLES = 20000;
+
+	private static Map<String, Object> spec( Object ... pairs ) {
+		Map<String, Object> spec = new HashMap<String, Object>();
+		for ( int i = 0; i < pairs.length; i += 2 ) {
+			spec.put( (String) pairs[i], pairs[i + 1] );
+		}
+		return spec;
+	}
+
+	/*
+	 * Sort a set of samples to determine percentiles.
+	 */
+	private static long [] sample( Delay delay ) {
+		long [] samples = new long[ SAMPLES ];
+		for ( int i = 0; i < samples.length; i++ ) {
+			samples[i] = delay.next();
+		}
+		Arrays.sort( samples );
+		return samples;
+	}
+
+	private static long percentile( long [] samples, double p ) {
+		return samples[ (int) Math.min( samples.length - 1, samples.length * p / 100 ) ];
+	}
+
+	@DataProvider(name = "distributions")
+	public Object [][] distributions() {
+		Map<String, Object> percentiles = new HashMap<String, Object>();
+		percentiles.put( "0", 10 );
+		percentiles.put( "50", 20 );
+		percentiles.put( "90", 100 );
+		percentiles.put( "100", 1000 );
+		return new Object [][] {
+			// spec, min, max, approximate median
+			{ 25, 25, 25, 25 },
+			{ spec( "distribution", "fixed", "value", 40 ), 40, 40, 40 },
+			{ spec( "distribution", "uniform", "min", 10, "max", 30 ), 10, 30, 20 },
+			{ spec( "distribution", "normal", "mean", 100, "stddev", 10 ), 0, Long.MAX_VALUE, 100 },
+			{ spec( "distribution", "normal", "mean", 5, "stddev", 50 ), 0, Long.MAX_VALUE, 5 },
+			{ spec( "distribution", "lognormal", "mean", 100, "stddev", 50 ), 0, Long.MAX_VALUE, 89 },
+			{ spec( "distribution", "pareto", "scale", 10, "shape", 2, "max", 5000 ), 10, 5000, 14 },
+			// heavy tail limited to the default maximum
+			{ spec( "distribution", "pareto", "scale", 10, "shape", 0.01 ), 10, 3600000, 3600000 },
+			{ spec( "distribution", "empirical", "percentiles", percentiles ), 10, 1000, 20 },
+			{ spec( "distribution", "empirical", "file", "50 20\n90, 100\n# comment\n\n100 1000\n0 10" ), 10, 1000, 20 },
+		};
+	}
+
+	@DataProvider(name = "invalid")
+	public Object [][] invalid() {
+		return new Object [][] {
+			{ "100" },
+			{ -1 },
+			{ spec( "mean", 10 ) },
+			{ spec( "distribution", "bogus" ) },
+			{ spec( "distribution", "uniform", "min", 10 ) },
+			{ spec( "distribution", "uniform", "min", 30, "max", 10 ) },
+			{ spec( "distribution", "normal", "mean", "ten", "stddev", 1 ) },
+			{ spec( "distribution", "lognormal", "mean", 0, "stddev", 1 ) },
+			{ spec( "distribution", "pareto", "scale", 10, "shape", 0 ) },
+			{ spec( "distribution", "empirical" ) },
+			{ spec( "distribution", "empirical", "percentiles", spec( "50", 100, "90", 10 ) ) },
+			{ spec( "distribution", "empirical", "percentiles", spec( "150", 100 ) ) },
+		};
+	}
+
+	@Test
+	public void create_Default() {
+		Delay d = new FixedDelay( 5 );
+		assert DelayFactory.create( null, d ) == d : "Expected default delay";
+		assert DelayFactory.create( 0, d ) == FixedDelay.NONE : "Expected no delay";
+	}
+
+	@Test(dataProvider = "distributions")
+	public void next( Object spec, long min, long max, long median ) {
+		long [] samples = sample( DelayFactory.create( spec, null ) );
+		assert samples[0] >= min : "Sample below minimum: " + samples[0];
+		assert samples[ samples.length - 1 ] <= max : "Sample above maximum: " + samples[ samples.length - 1 ];
+		long p50 = percentile( samples, 50 );
+		assert Math.abs( p50 - median ) <= Math.max( 2, median / 10 ) : "Unexpected median: " + p50 + ", expected " + median;
+	}
+
+	@Test
+	public void next_Empirical() {
+		Delay d = DelayFactory.create( spec( "distribution", "empirical", "percentiles", spec( "50", 10, "99", 200 ) ), null );
+		long [] samples = sample( d );
+		// below the lowest percentile
+		assert percentile( samples, 25 ) == 10 : "Unexpected p25: " + percentile( samples, 25 );
+		long p90 = percentile( samples, 90 );
+		// interpolated
+		assert p90 > 150 && p90 < 190 : "Unexpected p90: " + p90;
+	}
+
+	@Test(dataProvider = "invalid", expectedExceptions = IllegalStateException.class)
+	public void create_IllegalStateException( Object spec ) {
+		DelayFactory.create( spec, null );
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock.handler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.rnott.mock.Endpoint;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+
+/**
+ * Test functionality of the <code>RateResponseHandler</code> component.
+ * <p>
+ * @see RateResponseHandler
+ */
+public class RateResponseHandlerTest {
+
+	private static Endpoint endpoint( Object... rates ) {
+		Map<String, Object> attributes = new HashMap<String, Object>();
+		attributes.put( "uri", "/test" );
+		attributes.put( "method", "GET" );
+		attributes.put( "handler", "rate" );
+		List<Map<String, Object>> entries = new ArrayList<Map<String, Object>>();
+		for ( int i = 0; i < rates.length; i++ ) {
+			Map<String, Object> r = new HashMap<String, Object>();
+			r.put( "body", String.valueOf( i ) );
+			if ( rates[i] != null ) {
+				r.put( "rate", rates[i] );
+			}
+			entries.add( r );
+		}
+		attributes.put( "response", entries );
+		return new Endpoint( attributes );
+	}
+
+	private static int [] sample( Endpoint e, int count ) {
+		int [] counts = new int[ e.getResponses().size() ];
+		for ( int i = 0; i < count; i++ ) {
+			counts[ Integer.parseInt( e.getResponseHandler().getResponse( e ).getBodyTemplate().getSource() ) ]++;
+		}
+		return counts;
+	}
+
+	@DataProvider(name = "rates")
+	public Object [][] rates() {
+		return new Object [][] {
+			{ new Object [] { 100 } },
+			{ new Object [] { 60, 30, 10 } },
+			{ new Object [] { 50, 0, 50 } },
+			{ new Object [] { 33.3, 33.3, 33.4 } },
+			{ new Object [] { 12.5, 12.5, 25, 25, 12.5, 12.5 } },
+		};
+	}
+
+	@Test(dataProvider = "rates")
+	public void getResponse( Object [] rates ) {
+		int count = 200000;
+		int [] counts = sample( endpoint( rates ), count );
+		for ( int i = 0; i < rates.length; i++ ) {
+			double expected = ((Number) rates[i]).doubleValue() / 100 * count;
+			assert Math.abs( counts[i] - expected ) < count * 0.01
+				: "Unexpected selection count for response " + i + ": " + counts[i] + ", expected " + expected;
+		}
+	}
+
+	@Test
+	public void getResponse_Rare() {
+		int count = 1000000;
+		int [] counts = sample( endpoint( 99.99, 0.01 ), count );
+		// expect 100, allow for random variation
+		assert counts[1] > 30 && counts[1] < 200 : "Unexpected selection count for rare response: " + counts[1];
+	}
+
+	@DataProvider(name = "invalid")
+	public Object [][] invalid() {
+		return new Object [][] {
+			{ new Object [] { 60, 30 } },
+			{ new Object [] { 60, 30, 20 } },
+			{ new Object [] { 110, -10 } },
+			{ new Object [] { 100, null } },
+			{ new Object [] { "100" } },
+		};
+	}
+
+	@Test(dataProvider = "invalid", expectedExceptions = IllegalStateException.class)
+	public void initialize_IllegalStateException( Object [] rates ) {
+		endpoint( rates );
+	}
+}
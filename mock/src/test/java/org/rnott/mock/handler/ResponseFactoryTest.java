@@ -0,0 +1,109 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock.handler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.rnott.mock.Endpoint;
+import org.rnott.mock.Response;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+
+/**
+ * Test functionality of the <code>ResponseFactory</code> component.
+ * <p>
+ * @see ResponseFactory
+ */
+public class ResponseFactoryTest {
+
+	static Endpoint endpoint( String handler, int responses ) {
+		Map<String, Object> attributes = new HashMap<String, Object>();
+		attributes.put( "uri", "/test" );
+		attributes.put( "method", "GET" );
+		if ( handler != null ) {
+			attributes.put( "handler", handler );
+		}
+		List<Map<String, Object>> entries = new ArrayList<Map<String, Object>>();
+		for ( int i = 0; i < responses; i++ ) {
+			Map<String, Object> r = new HashMap<String, Object>();
+			r.put( "body", String.valueOf( i ) );
+			r.put( "rate", 100 / responses + ( i == 0 ? 100 % responses : 0 ) );
+			entries.add( r );
+		}
+		attributes.put( "response", entries );
+		return new Endpoint( attributes );
+	}
+
+	@DataProvider(name = "handlers")
+	public Object [][] handlers() {
+		return new Object [][] {
+			{ "sequential", SequentialResponseHandler.class },
+			{ "Random", RandomResponseHandler.class },
+			{ "RATE", RateResponseHandler.class },
+		};
+	}
+
+	@Test(dataProvider = "handlers")
+	public void createHandler( String key, Class<?> type ) {
+		ResponseHandler h = ResponseFactory.createHandler( key );
+		assert h != null : "No handler for key: " + key;
+		assert h.getClass() == type : "Unexpected handler type: " + h.getClass();
+		assert h != ResponseFactory.createHandler( key ) : "Handler instances must not be shared";
+	}
+
+	@Test
+	public void createHandler_NULL() {
+		assert ResponseFactory.createHandler( null ) == null : "Expected no handler";
+	}
+
+	@Test(expectedExceptions = IllegalStateException.class)
+	public void createHandler_Unsupported() {
+		ResponseFactory.createHandler( "missing" );
+	}
+
+	@Test
+	public void createHandler_UnsupportedEndpoint() {
+		try {
+			endpoint( "missing", 3 );
+			assert false : "Unsupported handler accepted";
+		} catch ( IllegalStateException e ) {
+			// the endpoint is identified
+			assert e.getMessage().contains( "missing" ) && e.getMessage().contains( "/test" ) : "Unexpected message: " + e.getMessage();
+		}
+	}
+
+	@Test(dataProvider = "handlers")
+	public void getResponse( String key, Class<?> type ) {
+		Endpoint e = endpoint( key, 3 );
+		assert type.isInstance( e.getResponseHandler() ) : "Handler not bound to endpoint: " + e.getResponseHandler();
+		for ( int i = 0; i < 10; i++ ) {
+			Response r = ResponseFactory.getResponse( e );
+			assert e.getResponses().contains( r ) : "Unexpected response: " + r;
+		}
+	}
+
+	@Test
+	public void getResponse_Default() {
+		Endpoint e = endpoint( null, 3 );
+		for ( int i = 0; i < 10; i++ ) {
+			assert ResponseFactory.getResponse( e ) == e.getResponses().get( 0 ) : "Expected first response";
+		}
+	}
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock.handler;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.servlet.http.HttpServletRequest;
+import org.rnott.mock.Endpoint;
+import org.rnott.mock.MockContext;
+import org.rnott.mock.Response;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+
+/**
+ * Test functionality of the <code>SequentialResponseHandler</code> component.
+ * <p>
+ * @see SequentialResponseHandler
+ */
+public class SequentialResponseHandlerTest {
+
+	private static Endpoint endpoint( int responses, Map<String, Object> sequence ) {
+		Map<String, Object> attributes = new HashMap<String, Object>();
+		attributes.put( "uri", "/test" );
+		attributes.put( "method", "GET" );
+		attributes.put( "handler", "sequential" );
+		if ( sequence != null ) {
+			attributes.put( "sequence", sequence );
+		}
+		List<Map<String, Object>> entries = new ArrayList<Map<String, Object>>();
+		for ( int i = 0; i < responses; i++ ) {
+			entries.add( Collections.<String, Object>singletonMap( "body", String.valueOf( i ) ) );
+		}
+		attributes.put( "response", entries );
+		return new Endpoint( attributes );
+	}
+
+	private static Map<String, Object> sequence( String client ) {
+		Map<String, Object> sequence = new HashMap<String, Object>();
+		sequence.put( "client", client );
+		return sequence;
+	}
+
+	/*
+	 * Associate a request with the current thread that provides the specified
+	 * header, parameter and remote address.
+	 */
+	private static void request( final String value ) {
+		MockContext.get().setRequest( (HttpServletRequest) Proxy.newProxyInstance(
+			HttpServletRequest.class.getClassLoader(),
+			new Class<?> [] { HttpServletRequest.class },
+			new InvocationHandler() {
+				@Override
+				public Object invoke( Object proxy, Method method, Object [] args ) {
+					return value;
+				}
+			}
+		));
+	}
+
+	private static String next( Endpoint e ) {
+		return e.getResponseHandler().getResponse( e ).getBodyTemplate().getSource();
+	}
+
+	@Test
+	public void getResponse() {
+		Endpoint e = endpoint( 3, null );
+		for ( int i = 0; i < 10; i++ ) {
+			assert String.valueOf( i % 3 ).equals( next( e ) ) : "Unexpected response in position " + i;
+		}
+	}
+
+	@Test
+	public void getResponse_Concurrent() throws Exception {
+		final Endpoint e = endpoint( 4, null );
+		final int requests = 1000;
+		ExecutorService executor = Executors.newFixedThreadPool( 4 );
+		List<Future<int []>> results = new ArrayList<Future<int []>>();
+		try {
+			for ( int t = 0; t < 4; t++ ) {
+				results.add( executor.submit( new Callable<int []>() {
+					@Override
+					public int [] call() {
+						int [] counts = new int[ 4 ];
+						for ( int i = 0; i < requests; i++ ) {
+							counts[ Integer.parseInt( next( e ) ) ]++;
+						}
+						return counts;
+					}
+				}));
+			}
+			int [] totals = new int[ 4 ];
+			for ( Future<int []> f : results ) {
+				int [] counts = f.get();
+				for ( int i = 0; i < counts.length; i++ ) {
+					totals[i] += counts[i];
+				}
+			}
+			// no position may be skipped or repeated
+			for ( int total : totals ) {
+				assert total == requests : "Uneven response distribution: " + total;
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@DataProvider(name = "clients")
+	public Object [][] clients() {
+		return new Object [][] {
+			{ "header:X-Client-Id" },
+			{ "parameter:client" },
+			{ "remote-address" },
+		};
+	}
+
+	@Test(dataProvider = "clients")
+	public void getResponse_PerClient( String client ) {
+		Endpoint e = endpoint( 3, sequence( client ) );
+		request( "a" );
+		assert "0".equals( next( e ) );
+		assert "1".equals( next( e ) );
+		request( "b" );
+		assert "0".equals( next( e ) ) : "Clients must not share a sequence";
+		request( "a" );
+		assert "2".equals( next( e ) );
+		assert "0".equals( next( e ) );
+	}
+
+	@Test
+	public void getResponse_Anonymous() {
+		Endpoint e = endpoint( 3, sequence( "header:X-Client-Id" ) );
+		request( null );
+		assert "0".equals( next( e ) );
+		assert "1".equals( next( e ) );
+		request( "a" );
+		assert "0".equals( next( e ) );
+		request( null );
+		assert "2".equals( next( e ) ) : "Unidentified clients use the shared sequence";
+	}
+
+	@Test
+	public void getResponse_Eviction() {
+		Map<String, Object> sequence = sequence( "header:X-Client-Id" );
+		sequence.put( "maxClients", 10 );
+		Endpoint e = endpoint( 3, sequence );
+		SequentialResponseHandler h = (SequentialResponseHandler) e.getResponseHandler();
+		for ( int i = 0; i < 100; i++ ) {
+			request( String.valueOf( i ) );
+			next( e );
+			assert h.getClientCount() <= 11 : "Too many client sequences: " + h.getClientCount();
+		}
+	}
+
+	@DataProvider(name = "invalid")
+	public Object [][] invalid() {
+		Map<String, Object> limit = sequence( "remote-address" );
+		limit.put( "maxClients", 0 );
+		return new Object [][] {
+			{ sequence( null ) },
+			{ sequence( "cookie:id" ) },
+			{ sequence( "header:" ) },
+			{ limit },
+		};
+	}
+
+	@Test(dataProvider = "invalid", expectedExceptions = IllegalStateException.class)
+	public void initialize_IllegalStateException( Map<String, Object> sequence ) {
+		endpoint( 3, sequence );
+	}
+}
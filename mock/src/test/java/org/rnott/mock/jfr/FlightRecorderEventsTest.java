@@ -0,0 +1,144 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.rnott.mock.jfr;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.rnott.mock.Endpoint;
+import org.rnott.mock.MockContext;
+import org.rnott.mock.RequestEvents;
+import org.rnott.mock.Response;
+import org.rnott.mock.Template;
+import org.testng.annotations.Test;
+
+
+/**
+ * Test functionality of the <code>FlightRecorderEvents</code> component.
+ * <p>
+ * @see FlightRecorderEvents
+ * @see RequestEvents
+ */
+public class FlightRecorderEventsTest {
+
+	private static Endpoint endpoint() {
+		Map<String, Object> response = new HashMap<String, Object>();
+		response.put( "status", 201 );
+		Map<String, Object> attributes = new HashMap<String, Object>();
+		attributes.put( "method", "GET" );
+		attributes.put( "uri", "/items/{id}" );
+		attributes.put( "response", Collections.singletonList( response ) );
+		return new Endpoint( attributes );
+	}
+
+	@Test
+	public void none() {
+		assert ! RequestEvents.NONE.isEnabled() : "Reporting should not be enabled";
+		RequestEvents previous = RequestEvents.getDefault();
+		try {
+			RequestEvents.setDefault( null );
+			assert RequestEvents.getDefault() == RequestEvents.NONE : "Expected events to be disabled";
+		} finally {
+			RequestEvents.setDefault( previous );
+		}
+	}
+
+	@Test
+	public void create() {
+		assert RequestEvents.create() instanceof FlightRecorderEvents : "Expected flight recorder events";
+	}
+
+	@Test
+	public void record() throws IOException {
+		FlightRecorderEvents events = new FlightRecorderEvents();
+		assert ! events.isEnabled() : "Reporting should not be enabled without a recording";
+
+		Endpoint e = endpoint();
+		Response r = e.getResponses().get( 0 );
+		Template t = Template.compile( "id: ${id}" );
+		MockContext.get().getParameters().put( "id", "42" );
+
+		File f = File.createTempFile( "test", ".jfr" );
+		f.deleteOnExit();
+		Recording recording = new Recording();
+		try {
+			recording.enable( "org.rnott.mock.EndpointMatched" );
+			recording.enable( "org.rnott.mock.ResponseSelected" );
+			recording.enable( "org.rnott.mock.TemplateEvaluated" );
+			recording.enable( "org.rnott.mock.DelayScheduled" );
+			recording.enable( "org.rnott.mock.CaptureWritten" );
+			recording.start();
+			assert events.isEnabled() : "Reporting should be enabled while recording";
+
+			events.endpointMatched( "GET", "/items/42", e, 1000 );
+			events.endpointMatched( "GET", "/missing", null, 500 );
+			events.responseSelected( e, r, 2000 );
+			events.templateEvaluated( t, 3000 );
+			events.delayScheduled( e, 250 );
+			events.captureWritten( "abc", "/items/42", 512, true, 4000 );
+			recording.stop();
+			assert ! events.isEnabled() : "Reporting should not be enabled once stopped";
+			recording.dump( f.toPath() );
+		} finally {
+			recording.close();
+		}
+
+		Map<String, List<RecordedEvent>> recorded = new HashMap<String, List<RecordedEvent>>();
+		for ( RecordedEvent event : RecordingFile.readAllEvents( f.toPath() ) ) {
+			String name = event.getEventType().getName();
+			if ( ! recorded.containsKey( name ) ) {
+				recorded.put( name, new ArrayList<RecordedEvent>() );
+			}
+			recorded.get( name ).add( event );
+		}
+
+		List<RecordedEvent> matched = recorded.get( "org.rnott.mock.EndpointMatched" );
+		assert matched != null && matched.size() == 2 : "Unexpected endpoint events: " + matched;
+		Set<String> endpoints = new HashSet<String>();
+		for ( RecordedEvent event : matched ) {
+			endpoints.add( event.<String>getValue( "endpoint" ) );
+		}
+		assert endpoints.contains( "/items/{id}" ) && endpoints.contains( null ) : "Unexpected endpoints: " + endpoints;
+
+		RecordedEvent event = recorded.get( "org.rnott.mock.ResponseSelected" ).get( 0 );
+		assert event.getInt( "status" ) == 201 : "Unexpected status: " + event.getInt( "status" );
+		assert "GET /items/{id}".equals( event.getString( "endpoint" ) ) : "Unexpected endpoint: " + event.getString( "endpoint" );
+		assert event.getLong( "selectionTime" ) == 2000 : "Unexpected selection time: " + event.getLong( "selectionTime" );
+
+		event = recorded.get( "org.rnott.mock.TemplateEvaluated" ).get( 0 );
+		assert event.getInt( "templateId" ) == t.getId() : "Unexpected template: " + event.getInt( "templateId" );
+		assert "id: ${id}".equals( event.getString( "source" ) ) : "Unexpected source: " + event.getString( "source" );
+
+		event = recorded.get( "org.rnott.mock.DelayScheduled" ).get( 0 );
+		assert event.getLong( "delay" ) == 250 : "Unexpected delay: " + event.getLong( "delay" );
+
+		event = recorded.get( "org.rnott.mock.CaptureWritten" ).get( 0 );
+		assert "abc".equals( event.getString( "correlationId" ) ) : "Unexpected id: " + event.getString( "correlationId" );
+		assert event.getInt( "size" ) == 512 : "Unexpected size: " + event.getInt( "size" );
+		assert event.getBoolean( "stored" ) : "Capture should be stored";
+	}
+}
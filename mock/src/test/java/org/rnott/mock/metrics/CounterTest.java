@@ -0,0 +1,78 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock.metrics;
+
+import org.rnott.mock.Endpoint;
+import org.testng.annotations.Test;
+
+
+/**
+ * Test functionality of the <code>Counter</code> component and the counters of
+ * the <code>MetricsRegistry</code>.
+ * <p>
+ * @see Counter
+ * @see MetricsRegistry
+ */
+public class CounterTest {
+
+	@Test
+	public void add() {
+		Counter c = new Counter();
+		assert c.get() == 0 : "Unexpected initial value: " + c.get();
+		c.increment();
+		c.add( 41 );
+		c.add( -2 );
+		assert c.get() == 40 : "Unexpected value: " + c.get();
+	}
+
+	@Test
+	public void add_Concurrent() throws InterruptedException {
+		final Counter c = new Counter();
+		Thread [] threads = new Thread[ 8 ];
+		for ( int i = 0; i < threads.length; i++ ) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for ( int n = 0; n < 100000; n++ ) {
+						c.increment();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for ( Thread t : threads ) {
+			t.join();
+		}
+		assert c.get() == 800000 : "Lost updates: " + c.get();
+	}
+
+	@Test
+	public void registry() {
+		MetricsRegistry registry = new MetricsRegistry();
+		registry.begin();
+		registry.begin();
+		assert registry.getRequests() == 2 : "Unexpected requests: " + registry.getRequests();
+		assert registry.getInFlight() == 2 : "Unexpected in flight: " + registry.getInFlight();
+		registry.record( (Endpoint) null, 404, 1000 );
+		registry.transferred( 10, 200 );
+		registry.transferred( 0, 50 );
+		assert registry.getRequests() == 2 : "Unexpected requests: " + registry.getRequests();
+		assert registry.getInFlight() == 1 : "Unexpected in flight: " + registry.getInFlight();
+		assert registry.getBytesIn() == 10 : "Unexpected bytes in: " + registry.getBytesIn();
+		assert registry.getBytesOut() == 250 : "Unexpected bytes out: " + registry.getBytesOut();
+	}
+}
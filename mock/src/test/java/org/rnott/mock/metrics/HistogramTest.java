@@ -0,0 +1,214 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock.metrics;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.rnott.mock.Endpoint;
+import org.rnott.mock.RequestTimer;
+import org.rnott.mock.RequestTimer.Phase;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+
+/**
+ * Test functionality of the <code>Histogram</code> and <code>MetricsRegistry</code> components.
+ * <p>
+ * @see Histogram
+ * @see MetricsRegistry
+ */
+public class HistogramTest {
+
+	// bytes held by one stripe of a histogram
+	private static final long STRIPE = ( Histogram.BUCKETS + 1 ) * 8L;
+
+	private static Endpoint endpoint( String method, String uri ) {
+		Map<String, Object> attributes = new HashMap<String, Object>();
+		attributes.put( "method", method );
+		attributes.put( "uri", uri );
+		attributes.put( "response", Collections.singletonList( new HashMap<String, Object>() ) );
+		return new Endpoint( attributes );
+	}
+
+	@DataProvider(name = "values")
+	public Object [][] values() {
+		return new Object [][] {
+			{ 0L },
+			{ 1L },
+			{ 15L },
+			{ 16L },
+			{ 17L },
+			{ 1000L },
+			{ 123456789L },
+			{ 1L << 40 },
+			{ ( 1L << 40 ) - 1 },
+		};
+	}
+
+	@Test(dataProvider = "values")
+	public void index( long value ) {
+		int index = Histogram.index( value );
+		long highest = Histogram.highest( index );
+		assert value <= highest : "Value above bucket: " + value + " > " + highest;
+		assert index == 0 || Histogram.highest( index - 1 ) < value : "Value below bucket: " + value;
+		assert highest - value <= value / 8 : "Bucket too wide for " + value + ": " + highest;
+	}
+
+	@Test
+	public void index_Overflow() {
+		assert Histogram.index( Long.MAX_VALUE ) == Histogram.BUCKETS - 1 : "Unexpected bucket: " + Histogram.index( Long.MAX_VALUE );
+	}
+
+	@Test
+	public void snapshot() {
+		Histogram h = new Histogram();
+		for ( long v = 1; v <= 1000; v++ ) {
+			h.record( v * 1000 );
+		}
+		Histogram.Snapshot s = h.snapshot();
+		assert s.getCount() == 1000 : "Unexpected count: " + s.getCount();
+		assert s.getSum() == 500500000L : "Unexpected sum: " + s.getSum();
+		assert s.getMax() == 1000000 : "Unexpected max: " + s.getMax();
+		assertNear( s.getValue( 0.5 ), 500000 );
+		assertNear( s.getValue( 0.9 ), 900000 );
+		assertNear( s.getValue( 0.99 ), 990000 );
+		assert s.getValue( 1.0 ) == 1000000 : "Unexpected maximum percentile: " + s.getValue( 1.0 );
+	}
+
+	@Test
+	public void snapshot_Empty() {
+		Histogram.Snapshot s = new Histogram().snapshot();
+		assert s.getCount() == 0 && s.getMax() == 0 && s.getValue( 0.99 ) == 0 : "Unexpected values";
+	}
+
+	@Test
+	public void record_Concurrent() throws InterruptedException {
+		final Histogram h = new Histogram();
+		Thread [] threads = new Thread[ 4 ];
+		for ( int i = 0; i < threads.length; i++ ) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for ( int n = 0; n < 10000; n++ ) {
+						h.record( n );
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for ( Thread t : threads ) {
+			t.join();
+		}
+		assert h.snapshot().getCount() == 40000 : "Lost values: " + h.snapshot().getCount();
+		assert h.snapshot().getMax() == 9999 : "Unexpected max: " + h.snapshot().getMax();
+		assert h.footprint() <= Histogram.STRIPES * STRIPE : "Too many stripes: " + h.footprint();
+	}
+
+	@Test
+	public void footprint() {
+		Histogram h = new Histogram();
+		for ( int n = 0; n < 10000; n++ ) {
+			h.record( n );
+		}
+		assert h.footprint() == STRIPE : "Uncontended histogram striped: " + h.footprint();
+		// the documented cost of a series
+		assert STRIPE <= 2560 : "Unexpected stripe size: " + STRIPE;
+	}
+
+	@Test
+	public void registry() {
+		Endpoint e = endpoint( "GET", "/items/{id}" );
+
+		MetricsRegistry registry = new MetricsRegistry();
+		registry.record( e, 200, 1000 );
+		registry.record( e, 200, 2000 );
+		registry.record( e, 500, 3000 );
+		registry.record( (Endpoint) null, 404, 4000 );
+		List<MetricsRegistry.Series> series = registry.snapshot();
+		assert series.size() == 3 : "Unexpected series: " + series.size();
+		assert MetricsRegistry.UNMATCHED.equals( series.get( 0 ).getUri() ) : "Unexpected order: " + series.get( 0 ).getUri();
+		assert series.get( 0 ).getStatus() == 404 : "Unexpected status: " + series.get( 0 ).getStatus();
+		assert "/items/{id}".equals( series.get( 1 ).getUri() ) && "GET".equals( series.get( 1 ).getMethod() ) : "Unexpected endpoint";
+		assert series.get( 1 ).getStatus() == 200 && series.get( 1 ).getSnapshot().getCount() == 2 : "Unexpected 200 series";
+		assert series.get( 2 ).getStatus() == 500 && series.get( 2 ).getSnapshot().getSum() == 3000 : "Unexpected 500 series";
+	}
+
+	@Test
+	public void registry_Phases() {
+		Endpoint e = endpoint( "POST", "/items" );
+
+		MetricsRegistry registry = new MetricsRegistry();
+		registry.record( e, 200, 1000 );
+		assert registry.snapshotPhases().isEmpty() : "Unexpected phases without a timer";
+
+		RequestTimer timer = new RequestTimer();
+		timer.setEndpoint( e );
+		timer.lap( Phase.ROUTE, System.nanoTime() - 5000 );
+		timer.lap( Phase.WRITE, System.nanoTime() - 7000 );
+		registry.record( timer, 201, 20000 );
+		List<MetricsRegistry.PhaseSeries> phases = registry.snapshotPhases();
+		assert phases.size() == 1 : "Unexpected phase series: " + phases.size();
+		MetricsRegistry.PhaseSeries p = phases.get( 0 );
+		assert "POST".equals( p.getMethod() ) && "/items".equals( p.getUri() ) : "Unexpected endpoint";
+		for ( Phase phase : Phase.values() ) {
+			assert p.getSnapshot( phase ).getCount() == 1 : "Unexpected count: " + phase;
+		}
+		assert p.getSnapshot( Phase.ROUTE ).getSum() >= 5000 : "Unexpected route time";
+		assert p.getSnapshot( Phase.WRITE ).getSum() >= 7000 : "Unexpected write time";
+		assert p.getSnapshot( Phase.DELAY ).getSum() == 0 : "Unexpected delay time";
+		assert registry.snapshot().size() == 2 : "Unexpected series: " + registry.snapshot().size();
+	}
+
+	@Test
+	public void registry_Footprint() throws InterruptedException {
+		final Endpoint e = endpoint( "GET", "/items" );
+		final MetricsRegistry registry = new MetricsRegistry();
+		RequestTimer timer = new RequestTimer();
+		timer.setEndpoint( e );
+		registry.record( timer, 200, 1000 );
+		long phases = Phase.values().length * STRIPE;
+		assert registry.footprint( e ) == phases + STRIPE : "Unexpected endpoint footprint: " + registry.footprint( e );
+
+		// contended recording stripes the status histograms only, up to the limit
+		Thread [] threads = new Thread[ 8 ];
+		for ( int i = 0; i < threads.length; i++ ) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					RequestTimer t = new RequestTimer();
+					t.setEndpoint( e );
+					for ( int n = 0; n < 20000; n++ ) {
+						registry.record( t, 200 + n % 2, n );
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for ( Thread t : threads ) {
+			t.join();
+		}
+		long max = phases + 2 * Histogram.STRIPES * STRIPE;
+		assert registry.footprint( e ) <= max : "Unexpected endpoint footprint: " + registry.footprint( e );
+		assert registry.snapshotPhases().get( 0 ).getSnapshot( Phase.WRITE ).getCount() == 160001 : "Lost phase values";
+	}
+
+	private static void assertNear( long actual, long expected ) {
+		assert Math.abs( actual - expected ) <= expected / 8 : "Unexpected percentile: " + actual + ", expected " + expected;
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2016 Randy Nott
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rnott.mock.metrics;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.testng.annotations.Test;
+
+
+/**
+ * Test functionality of the <code>TimeSeries</code> component.
+ * <p>
+ * @see TimeSeries
+ */
+public class TimeSeriesTest {
+
+	private static final long NOW = 1700000000000L;
+
+	@Test
+	public void snapshot() {
+		TimeSeries series = new TimeSeries( 10 );
+		series.record( NOW - 2000, 200, 1000 );
+		series.record( NOW - 2000, 503, 3000 );
+		series.transferred( NOW - 2000, 10, 100 );
+		series.record( NOW, 200, 2000 );
+
+		List<TimeSeries.Entry> entries = series.snapshot( NOW + 500, 3 );
+		assert entries.size() == 3 : "Unexpected entries: " + entries.size();
+		TimeSeries.Entry e = entries.get( 0 );
+		assert e.getTime() == NOW - 2000 : "Unexpected time: " + e.getTime();
+		assert e.getCount() == 2 && e.getErrors() == 1 : "Unexpected counts: " + e.getCount() + ", " + e.getErrors();
+		assert e.getBytesIn() == 10 && e.getBytesOut() == 100 : "Unexpected bytes";
+		assert e.getLatency().getMax() == 3000 : "Unexpected latency: " + e.getLatency().getMax();
+		// seconds without requests are included
+		assert entries.get( 1 ).getCount() == 0 && entries.get( 1 ).getLatency().getCount() == 0 : "Unexpected idle second";
+		assert entries.get( 2 ).getTime() == NOW && entries.get( 2 ).getCount() == 1 : "Unexpected current second";
+	}
+
+	@Test
+	public void snapshot_Limit() {
+		TimeSeries series = new TimeSeries( 5 );
+		assert series.snapshot( NOW, 100 ).size() == 5 : "Entries not limited to retained seconds";
+		assert series.snapshot( NOW, -1 ).isEmpty() : "Unexpected entries";
+	}
+
+	@Test
+	public void record_Wrap() {
+		TimeSeries series = new TimeSeries( 5 );
+		series.record( NOW, 503, 9000 );
+		series.transferred( NOW, 10, 100 );
+		// same slot, five seconds later
+		series.record( NOW + 5000, 200, 1000 );
+		series.record( NOW + 5000, 200, 1000 );
+		// too old to be recorded once its slot was reused
+		series.record( NOW, 200, 1000 );
+		List<TimeSeries.Entry> entries = series.snapshot( NOW + 5000, 5 );
+		TimeSeries.Entry e = entries.get( 4 );
+		assert e.getCount() == 2 : "Unexpected count: " + e.getCount();
+		// the reused bucket holds nothing of the older second
+		assert e.getErrors() == 0 && e.getBytesIn() == 0 && e.getBytesOut() == 0 : "Stale counts reported";
+		assert e.getLatency().getCount() == 2 && e.getLatency().getMax() == 1000 : "Stale latency reported: " + e.getLatency().getMax();
+		for ( int i = 0; i < 4; i++ ) {
+			assert entries.get( i ).getCount() == 0 : "Stale second reported: " + entries.get( i ).getTime();
+		}
+	}
+
+	@Test
+	public void record_Recycle() {
+		TimeSeries series = new TimeSeries( 2 );
+		for ( int s = 0; s < 10; s++ ) {
+			series.record( NOW + s * 1000, 503, 9000 - s );
+			series.transferred( NOW + s * 1000, 10, 100 );
+			// the reader clears the bucket replaced by this second for a later one
+			TimeSeries.Entry e = series.snapshot( NOW + s * 1000, 1 ).get( 0 );
+			assert e.getCount() == 1 && e.getErrors() == 1 : "Stale counts reported in second " + s;
+			assert e.getBytesIn() == 10 && e.getBytesOut() == 100 : "Stale bytes reported in second " + s;
+			assert e.getLatency().getCount() == 1 && e.getLatency().getMax() == 9000 - s : "Stale latency reported in second " + s;
+		}
+	}
+
+	@Test
+	public void record_Concurrent() throws Exception {
+		// two slots, so each is reused every other second
+		final TimeSeries series = new TimeSeries( 2 );
+		final int threads = 4;
+		final int seconds = 50;
+		final int requests = 200;
+		final CyclicBarrier barrier = new CyclicBarrier( threads + 1 );
+		ExecutorService executor = Executors.newFixedThreadPool( threads );
+		try {
+			for ( int t = 0; t < threads; t++ ) {
+				executor.submit( new Callable<Void>() {
+
+					@Override
+					public Void call() throws Exception {
+						for ( int s = 0; s < seconds; s++ ) {
+							for ( int i = 0; i < requests; i++ ) {
+								series.record( NOW + s * 1000, 200, 1000 );
+							}
+							barrier.await( 10, TimeUnit.SECONDS );
+							barrier.await( 10, TimeUnit.SECONDS );
+						}
+						return null;
+					}
+				});
+			}
+			for ( int s = 0; s < seconds; s++ ) {
+				barrier.await( 10, TimeUnit.SECONDS );
+				// every request of the second is counted once the bucket is reused
+				TimeSeries.Entry e = series.snapshot( NOW + s * 1000, 1 ).get( 0 );
+				assert e.getCount() == threads * requests : "Unexpected count in second " + s + ": " + e.getCount();
+				assert e.getLatency().getCount() == threads * requests : "Unexpected latency count in second " + s;
+				barrier.await( 10, TimeUnit.SECONDS );
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test(expectedExceptions = IllegalStateException.class)
+	public void constructor_IllegalStateException() {
+		new TimeSeries( 0 );
+	}
+}